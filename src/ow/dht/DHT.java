@@ -69,6 +69,18 @@ public interface DHT<V extends Serializable> extends HighLevelService {
 	Set<ValueInfo<V>>[] put(PutRequest<V>[] requests)
 		throws Exception;
 
+	/**
+	 * Puts multiple key-value pairs collectively with the specified TTL and secret
+	 * instead of ones set for following put operations.
+	 * Concurrent callers can put with their own TTL and secret.
+	 *
+	 * @param ttl TTL in millisecond.
+	 * @param hashedSecret a secret hashed with SHA1, or null.
+	 * @return values which have existed. an element of the array is null if not stored.
+	 */
+	Set<ValueInfo<V>>[] put(PutRequest<V>[] requests, long ttl, ByteArray hashedSecret)
+		throws Exception;
+
 	/**
 	 * Returns a set of values associated to the specified key.
 	 *
@@ -118,11 +130,14 @@ public interface DHT<V extends Serializable> extends HighLevelService {
 	/**
 	 * Sets a secret for following put operations.
 	 * The stored pair can be removed later with the specified secret.
+	 * The secret is shared by all the callers of this DHT.
+	 * See {@link #put(PutRequest[], long, ByteArray) put(PutRequest[], long, ByteArray)} for a secret of a call.
 	 */
 	ByteArray setHashedSecretForPut(ByteArray hashedSecret);
 
 	/**
 	 * Sets TTL (in millisecond) for following put operations.
+	 * The TTL is shared by all the callers of this DHT.
 	 */
 	long setTTLForPut(long ttl);
 
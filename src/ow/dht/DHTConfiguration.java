@@ -18,6 +18,7 @@
 package ow.dht;
 
 import ow.util.HighLevelServiceConfiguration;
+import ow.util.Timer;
 
 public class DHTConfiguration extends HighLevelServiceConfiguration {
 	public final static String DEFAULT_IMPL_NAME = "ChurnTolerantDHT";
@@ -25,8 +26,11 @@ public class DHTConfiguration extends HighLevelServiceConfiguration {
 //	public final static String DEFAULT_IMPL_NAME = "CHT";	// Centralized Hash Table
 
 	// for Directory
-	public final static String DEFAULT_DIRECTORY_TYPE = "VolatileMap";
-		// "BerkeleyDB", "PersistentMap" or "VolatileMap"
+	public final static String DEFAULT_DIRECTORY_TYPE = "ConcurrentMap";
+		// "BerkeleyDB", "DeferredWriteBerkeleyDB", "MappedLog", "PersistentMap", "LoggedMap", "OffHeapMap", "ConcurrentMap" or "VolatileMap"
+	public final static long DEFAULT_DIRECTORY_CAPACITY = 64 * 1024 * 1024L;	// 64 MB, only for "OffHeapMap"
+	public final static long DEFAULT_DIRECTORY_CACHE_SIZE = 0L;	// default of JE, only for "BerkeleyDB" and "DeferredWriteBerkeleyDB"
+	public final static long DEFAULT_DIRECTORY_CHECKPOINT_BYTES_INTERVAL = 0L;	// default of JE, ditto
 	public final static Class DEFAULT_VALUE_CLASS = String.class;
 	public final static String DEFAULT_WORKING_DIR = ".";
 
@@ -41,10 +45,12 @@ public class DHTConfiguration extends HighLevelServiceConfiguration {
 	public final static int DEFAULT_NUM_REPLICA = 1;
 	public final static boolean DEFAULT_RESPONSIBLE_NODE_DOES_REPLICATION = true;
 	public final static int DEFAULT_NUM_NODES_ASKED_TO_TRANSFER = 0;
+	public final static int DEFAULT_NUM_KEYS_PER_TRANSFER = 100;
 	public final static int DEFAULT_NUM_TIMES_GETS = 1;
 
 	public final static boolean DEFAULT_DO_REPUT_ON_REPLICAS = false;
 	public final static boolean DEFAULT_DO_REPUT_ON_REQUESTER = false;
+	public final static boolean DEFAULT_DO_ANTI_ENTROPY_ON_REPLICAS = false;
 	public final static int[] DEFAULT_REPUT_PARAMS =
 		{ 5 * 1000 /*msec*/, 10 /*keys*/};
 	public final static double DEFAULT_REPUT_INTERVAL_PLAY_RATIO = 0.2;
@@ -69,6 +75,30 @@ public class DHTConfiguration extends HighLevelServiceConfiguration {
 		return old;
 	}
 
+	private long directoryCapacity = DEFAULT_DIRECTORY_CAPACITY;
+	public long getDirectoryCapacity() { return this.directoryCapacity; }
+	public long setDirectoryCapacity(long capacity) {
+		long old = this.directoryCapacity;
+		this.directoryCapacity = capacity;
+		return old;
+	}
+
+	private long directoryCacheSize = DEFAULT_DIRECTORY_CACHE_SIZE;
+	public long getDirectoryCacheSize() { return this.directoryCacheSize; }
+	public long setDirectoryCacheSize(long size) {
+		long old = this.directoryCacheSize;
+		this.directoryCacheSize = size;
+		return old;
+	}
+
+	private long directoryCheckpointBytesInterval = DEFAULT_DIRECTORY_CHECKPOINT_BYTES_INTERVAL;
+	public long getDirectoryCheckpointBytesInterval() { return this.directoryCheckpointBytesInterval; }
+	public long setDirectoryCheckpointBytesInterval(long bytes) {
+		long old = this.directoryCheckpointBytesInterval;
+		this.directoryCheckpointBytesInterval = bytes;
+		return old;
+	}
+
 	private Class valueClass = DEFAULT_VALUE_CLASS;
 	public Class getValueClass() { return this.valueClass; }
 	public Class setValueClass(Class clz) {
@@ -149,6 +179,15 @@ public class DHTConfiguration extends HighLevelServiceConfiguration {
 		return old;
 	}
 
+	// keys handed over to a joining node are sent in messages containing up to this number of keys
+	private int numKeysPerTransfer = DEFAULT_NUM_KEYS_PER_TRANSFER;
+	public int getNumKeysPerTransfer() { return this.numKeysPerTransfer; }
+	public int setNumKeysPerTransfer(int num) {
+		int old = this.numKeysPerTransfer;
+		this.numKeysPerTransfer = num;
+		return old;
+	}
+
 	private int numTimesGets = DEFAULT_NUM_TIMES_GETS;
 	public int getNumTimesGets() { return this.numTimesGets; }
 	public int setNumTimesGets(int num) {
@@ -176,6 +215,18 @@ public class DHTConfiguration extends HighLevelServiceConfiguration {
 		return old;
 	}
 
+	private boolean doAntiEntropyOnReplicas = DEFAULT_DO_ANTI_ENTROPY_ON_REPLICAS;
+	/**
+	 * Returns whether replicas are synchronized with neighbors by comparing Merkle trees.
+	 * If true, it replaces reput on replicas and the interval of reput is used.
+	 */
+	public boolean getDoAntiEntropyOnReplicas() { return this.doAntiEntropyOnReplicas; }
+	public boolean setDoAntiEntropyOnReplicas(boolean flag) {
+		boolean old = this.doAntiEntropyOnReplicas;
+		this.doAntiEntropyOnReplicas = flag;
+		return old;
+	}
+
 	private int[] reputParameters = DEFAULT_REPUT_PARAMS;
 
 	/**
@@ -211,7 +262,10 @@ public class DHTConfiguration extends HighLevelServiceConfiguration {
 	}
 
 	private boolean useTimer = DEFAULT_USE_TIMER_INSTEAD_OF_THREAD;
-	public boolean getUseTimerInsteadOfThread() { return this.useTimer; }
+	/**
+	 * Returns true also in event driven mode of {@link Timer Timer}, in which no thread should wait in real time.
+	 */
+	public boolean getUseTimerInsteadOfThread() { return this.useTimer || Timer.isEventDriven(); }
 	public boolean setUseTimerInsteadOfThread(boolean flag) {
 		boolean old = this.useTimer;
 		this.useTimer = flag;
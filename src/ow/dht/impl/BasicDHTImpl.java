@@ -23,10 +23,13 @@ import java.io.Serializable;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +44,7 @@ import ow.dht.impl.message.RemoveMessage;
 import ow.dht.impl.message.ReqTransferMessage;
 import ow.dht.memcached.Memcached;
 import ow.dht.memcached.impl.message.PutOnConditionMessage;
+import ow.directory.BatchableDirectory;
 import ow.directory.DirectoryConfiguration;
 import ow.directory.DirectoryFactory;
 import ow.directory.DirectoryProvider;
@@ -56,6 +60,7 @@ import ow.messaging.MessagingAddress;
 import ow.messaging.MessagingConfiguration;
 import ow.messaging.MessagingFactory;
 import ow.messaging.MessagingProvider;
+import ow.messaging.ReplyCallback;
 import ow.messaging.Signature;
 import ow.routing.CallbackOnRoute;
 import ow.routing.RoutingAlgorithmConfiguration;
@@ -66,6 +71,7 @@ import ow.routing.RoutingResult;
 import ow.routing.RoutingService;
 import ow.routing.RoutingServiceFactory;
 import ow.routing.RoutingServiceProvider;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 /**
  * A basic implementation of DHT service over a routing service.
@@ -151,6 +157,9 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 		// initialize directories
 		DirectoryProvider dirProvider = DirectoryFactory.getProvider(config.getDirectoryType());
 		DirectoryConfiguration dirConfig = DirectoryConfiguration.getDefaultConfiguration();
+		dirConfig.setOffHeapCapacity(config.getDirectoryCapacity());
+		dirConfig.setCacheSize(config.getDirectoryCacheSize());
+		dirConfig.setCheckpointBytesInterval(config.getDirectoryCheckpointBytesInterval());
 
 		if (config.getDoExpire())
 			dirConfig.setExpirationTime(config.getDefaultTTL());
@@ -236,9 +245,7 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 	}
 
 	public void clearDHTState() {
-		synchronized (this.globalDir) {
-			globalDir.clear();
-		}
+		globalDir.clear();
 	}
 
 	public Set<ValueInfo<V>> get(ID key)
@@ -257,6 +264,103 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 	public Set<ValueInfo<V>>[] get(ID[] keys) {
 		Set<ValueInfo<V>>[] results = new Set/*<ValueInfo<V>>*/[keys.length];
 
+		// route all the keys collectively
+		RoutingResult[] routingRes = this.routingSvc.route(
+				keys, config.getNumTimesGets() + config.getNumSpareResponsibleNodeCandidates());
+
+		Queue<IDAddressPair>[] respCands = new Queue/*<IDAddressPair>*/[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			if (routingRes[i] != null) {
+				respCands[i] = new LinkedList<IDAddressPair>();
+				for (IDAddressPair p: routingRes[i].getResponsibleNodeCandidates()) {
+					respCands[i].offer(p);
+				}
+			}
+		}
+
+		boolean[] succeed = new boolean[keys.length];
+		boolean[] inFlight = new boolean[keys.length];
+		int numInFlight = 0;
+		BlockingQueue<RequestCallback> completionQueue = SingletonThreadPoolExecutors.newCompletionQueue();
+
+		// GET messages to responsible nodes are sent concurrently and
+		// a key is sent to the next candidate as soon as the previous request for it failed.
+		while (true) {
+			Map<MessagingAddress,List<Integer>> targetMap = new LinkedHashMap<MessagingAddress,List<Integer>>();
+			for (int i = 0; i < respCands.length; i++) {
+				if (respCands[i] == null || inFlight[i]) continue;
+
+				IDAddressPair p = respCands[i].poll();
+				if (p != null) {
+					List<Integer> indexList = targetMap.get(p.getAddress());
+					if (indexList == null) {
+						indexList = new ArrayList<Integer>();
+						targetMap.put(p.getAddress(), indexList);
+					}
+					indexList.add(i);
+				}
+			}
+
+			for (Map.Entry<MessagingAddress,List<Integer>> entry: targetMap.entrySet()) {
+				MessagingAddress target = entry.getKey();
+				List<Integer> indexList = entry.getValue();
+
+				int size = indexList.size();
+				ID[] packedKeys = new ID[size];
+				for (int i = 0; i < size; i++) {
+					packedKeys[i] = keys[indexList.get(i)];
+				}
+
+				for (int index: indexList) inFlight[index] = true;
+				numInFlight++;
+
+				sender.sendAndReceiveAsync(target, new GetMessage(packedKeys),
+						new RequestCallback("get", target, indexList, completionQueue));
+			}
+
+			if (numInFlight <= 0) break;
+
+			// wait for a request to complete
+			RequestCallback completed;
+			try {
+				completed = completionQueue.take();
+			}
+			catch (InterruptedException e) {
+				logger.log(Level.WARNING, "Interrupted while waiting for replies to get messages.");
+				break;
+			}
+			numInFlight--;
+
+			for (int index: completed.indexList) inFlight[index] = false;
+
+			if (completed.reply == null) {
+				continue;	// the keys are sent to the next responsible node candidates
+			}
+
+			Set<ValueInfo<V>>[] s = completed.reply.existedValues;
+			for (int i = 0; i < completed.indexList.size(); i++) {
+				int index = completed.indexList.get(i);
+
+				if (s != null) results[index] = s[i];
+				succeed[index] = true;
+				respCands[index] = null;
+			}
+		}	// while (true)
+
+		for (int i = 0; i < keys.length; i++) {
+			if (succeed[i]) {
+				if (results[i] == null) results[i] = new HashSet<ValueInfo<V>>();
+				// get succeeded and results[i] should not be null.
+			}
+			else {
+				// null in results indicates that routing or get failed
+				routingRes[i] = null;
+				results[i] = null;
+			}
+		}
+
+		this.preserveRoute(keys, routingRes);
+
 		return results;
 	}
 
@@ -308,7 +412,11 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 	}
 
 	public Set<ValueInfo<V>>[] put(DHT.PutRequest<V>[] requests) throws IOException {
-		return putOrRemoveRemotely(requests, false, this.ttlForPut, this.hashedSecretForPut, true);
+		return this.put(requests, this.ttlForPut, this.hashedSecretForPut);
+	}
+
+	public Set<ValueInfo<V>>[] put(DHT.PutRequest<V>[] requests, long ttl, ByteArray hashedSecret) throws IOException {
+		return putOrRemoveRemotely(requests, false, ttl, hashedSecret, true);
 	}
 
 	public Set<ValueInfo<V>> remove(ID key, V[] values, ByteArray hashedSecret)
@@ -390,12 +498,16 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 		}
 
 		int[] succeed = new int[requests.length];
+		boolean[] inFlight = new boolean[requests.length];
+		int numInFlight = 0;
+		BlockingQueue<RequestCallback> completionQueue = SingletonThreadPoolExecutors.newCompletionQueue();
 
-		retryPut:
+		// requests to responsible nodes are sent concurrently and
+		// a key is sent to the next candidate as soon as the previous request for it completed.
 		while (true) {
-			Set<MessagingAddress> targetSet = new HashSet<MessagingAddress>();
+			Map<MessagingAddress,List<Integer>> targetMap = new LinkedHashMap<MessagingAddress,List<Integer>>();
 			for (int i = 0; i < respCands.length; i++) {
-				if (respCands[i] == null) {
+				if (respCands[i] == null || inFlight[i]) {
 					continue;
 				}
 
@@ -412,27 +524,26 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 				} while (true);
 
 				if (p != null) {
-					targetSet.add(p.getAddress());
-				}
-			}
-
-			if (targetSet.isEmpty()) break;
+					respCands[i].poll();
 
-			for (MessagingAddress target: targetSet) {
-				List<Integer> indexList = new ArrayList<Integer>();
-				for (int i = 0; i < respCands.length; i++) {
-					if (respCands[i] != null) {
-						IDAddressPair p = respCands[i].peek();
-						if (p != null && target.equals(p.getAddress())) {
-							respCands[i].poll();
-							indexList.add(i);
-						}
+					List<Integer> indexList = targetMap.get(p.getAddress());
+					if (indexList == null) {
+						indexList = new ArrayList<Integer>();
+						targetMap.put(p.getAddress(), indexList);
 					}
+					indexList.add(i);
 				}
+			}
+
+			for (Map.Entry<MessagingAddress,List<Integer>> entry: targetMap.entrySet()) {
+				MessagingAddress target = entry.getKey();
+				List<Integer> indexList = entry.getValue();
 
 				int size= indexList.size();
-				DHT.PutRequest<V>[] packedRequests =
-					(doesRemove ? new DHT.RemoveRequest/*<V>*/[size] : new DHT.PutRequest/*<V>*/[size]);
+				DHT.PutRequest<V>[] packedRequests;
+				if (doesRemove) packedRequests = new DHT.RemoveRequest/*<V>*/[size];
+				else if (withCondition) packedRequests = (DHT.PutRequest[])new Memcached.PutRequest[size];
+				else packedRequests = new DHT.PutRequest/*<V>*/[size];
 				for (int i = 0; i < size; i++) {
 					packedRequests[i] = requests[indexList.get(i)];
 				}
@@ -450,30 +561,47 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 				}
 				else {
 					request = new RemoveMessage<V>(
-							(DHT.RemoveRequest<V>[])requests, hashedSecret, numReplica);
+							(DHT.RemoveRequest<V>[])packedRequests, hashedSecret, numReplica);
 				}
 
-				Message reply;
-				try {
-					reply = this.requestPutOrRemove(target, request);
-				}
-				catch (IOException e) {
-					continue retryPut;
-				}
+				for (int index: indexList) inFlight[index] = true;
+				numInFlight++;
 
-				Set<ValueInfo<V>>[] existedValues = ((DHTReplyMessage<V>)reply).existedValues;
-				if (existedValues != null) {
-					for (int i = 0; i < indexList.size(); i++) {
-						results[indexList.get(i)] = existedValues[i];
-					}
+				sender.sendAndReceiveAsync(target, request,
+						new RequestCallback("put/remove", target, indexList, completionQueue));
+			}	// for (... entry: targetMap.entrySet())
+
+			if (numInFlight <= 0) break;
+
+			// wait for a request to complete
+			RequestCallback completed;
+			try {
+				completed = completionQueue.take();
+			}
+			catch (InterruptedException e) {
+				logger.log(Level.WARNING, "Interrupted while waiting for replies to put/remove messages.");
+				break;
+			}
+			numInFlight--;
+
+			for (int index: completed.indexList) inFlight[index] = false;
+
+			if (completed.reply == null) {
+				continue;	// the keys are sent to the next responsible node candidates
+			}
+
+			Set<ValueInfo<V>>[] existedValues = completed.reply.existedValues;
+			if (existedValues != null) {
+				for (int i = 0; i < completed.indexList.size(); i++) {
+					results[completed.indexList.get(i)] = existedValues[i];
 				}
+			}
 
-				for (int index: indexList) {
-					if (++succeed[index] >= repeat) {
-						respCands[index] = null;
-					}
+			for (int index: completed.indexList) {
+				if (++succeed[index] >= repeat) {
+					respCands[index] = null;
 				}
-			}	// for (MessagingAddress target: targetSet)
+			}
 		}	// while (true)
 
 		// null in requests indicates that routing failure
@@ -494,27 +622,43 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 		return results;
 	}
 
-	private Message requestPutOrRemove(MessagingAddress target, Message request)
-			throws IOException {
-		Message reply = null;
-
-		try {
-			reply = sender.sendAndReceive(target, request);
-				// throws IOException
+	/**
+	 * Receives a reply to a get, put or remove message carrying keys at the indexes of a batch.
+	 */
+	private final class RequestCallback implements ReplyCallback {
+		private final String op;
+		private final MessagingAddress target;
+		private final List<Integer> indexList;
+		private final BlockingQueue<RequestCallback> completionQueue;
+		private DHTReplyMessage<V> reply;	// null if failed
+
+		RequestCallback(String op, MessagingAddress target, List<Integer> indexList,
+				BlockingQueue<RequestCallback> completionQueue) {
+			this.op = op;
+			this.target = target;
+			this.indexList = indexList;
+			this.completionQueue = completionQueue;
+		}
 
+		public void replied(Message reply) {
 			if (reply instanceof DHTReplyMessage) {
-				logger.log(Level.INFO, "put/remove succeeded on " + target);
+				logger.log(Level.INFO, this.op + " succeeded on " + this.target);
+
+				this.reply = (DHTReplyMessage<V>)reply;
 			}
 			else {
-				reply = null;
+				logger.log(Level.WARNING, "Reply to a " + this.op + " message is not DHT_REPLY: "
+						+ reply.getName() + " from " + this.target);
 			}
+
+			this.completionQueue.add(this);
 		}
-		catch (IOException e) {
-			logger.log(Level.WARNING, "Failed to send a put/remove message to " + target, e);
-			throw e;
-		}
 
-		return reply;
+		public void failed(IOException e) {
+			logger.log(Level.WARNING, "Failed to send a " + this.op + " message to " + this.target, e);
+
+			this.completionQueue.add(this);
+		}
 	}
 
 	/**
@@ -680,7 +824,13 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 			// put locally
 			Set<ValueInfo<V>>[] ret = new Set/*<ValueInfo<V>>*/[requests.length];
 
+			// commit the values together if the directory supports it
+			BatchableDirectory batch =
+				(globalDir instanceof BatchableDirectory ? (BatchableDirectory)globalDir : null);
+
 			try {
+				if (batch != null) batch.beginBatch();
+
 				ValueInfo.Attributes attr = new ValueInfo.Attributes(ttl, hashedSecret);
 
 				for (int i = 0; i < requests.length; i++) {
@@ -692,10 +842,8 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 					for (V v: requests[i].getValues()) {
 //System.out.println("  value: " + v);
 						if (v != null) {
-							ValueInfo<V> old = null;
-							synchronized (globalDir) {
-								old = globalDir.put(requests[i].getKey(), new ValueInfo<V>(v, attr), ttl);
-							}
+							ValueInfo<V> old =
+								globalDir.put(requests[i].getKey(), new ValueInfo<V>(v, attr), ttl);
 
 							if (old != null) {
 								ret[i].add(old);
@@ -708,6 +856,14 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 				// NOTREACHED
 				logger.log(Level.WARNING, "An Exception thrown by Directory#put().", e);
 			}
+			finally {
+				try {
+					if (batch != null) batch.endBatch();
+				}
+				catch (Exception e) {
+					logger.log(Level.WARNING, "An Exception thrown by BatchableDirectory#endBatch().", e);
+				}
+			}
 
 			return new DHTReplyMessage<V>(ret);
 		}
@@ -762,9 +918,7 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 									}
 
 									if (remove) {
-										synchronized (globalDir) {
-											globalDir.remove(key, v);
-										}
+										globalDir.remove(key, v);
 
 										ret[i].add(v);
 									}
@@ -775,14 +929,10 @@ public class BasicDHTImpl<V extends Serializable> implements DHT<V> {
 					else {
 						ret[i] = new HashSet<ValueInfo<V>>();
 
-						synchronized (globalDir) {
-							if (values != null) {
-								for (V val: values) {
-									ValueInfo<V> v =
-										globalDir.remove(key, new ValueInfo<V>(val, 0, hashedSecret));
-									if (v != null) ret[i].add(v);
-								}
-							}
+						for (V val: values) {
+							ValueInfo<V> v =
+								globalDir.remove(key, new ValueInfo<V>(val, 0, hashedSecret));
+							if (v != null) ret[i].add(v);
 						}
 					}
 				}
@@ -90,6 +90,7 @@ public final class CHTImpl<V extends Serializable> implements DHT<V> {
 		// initialize directories
 		DirectoryProvider dirProvider = DirectoryFactory.getProvider(config.getDirectoryType());
 		DirectoryConfiguration dirConfig = DirectoryConfiguration.getDefaultConfiguration();
+		dirConfig.setOffHeapCapacity(config.getDirectoryCapacity());
 
 		if (config.getDoExpire())
 			dirConfig.setExpirationTime(config.getDefaultTTL());
@@ -134,13 +135,16 @@ public final class CHTImpl<V extends Serializable> implements DHT<V> {
 		return this.put(key, values);
 	}
 	public Set<ValueInfo<V>> put(ID key, V[] values) {
+		return this.put(key, values, this.ttlForPut, this.hashedSecretForPut);
+	}
+	private Set<ValueInfo<V>> put(ID key, V[] values, long ttl, ByteArray hashedSecret) {
 		Set<ValueInfo<V>> existedValue = null;
 
 		try {
 			existedValue = this.globalDir.get(key);
 
 			for (V v: values) {
-				this.globalDir.put(key, new ValueInfo<V>(v, this.ttlForPut, this.hashedSecretForPut), this.ttlForPut);
+				this.globalDir.put(key, new ValueInfo<V>(v, ttl, hashedSecret), ttl);
 			}
 		}
 		catch (Exception e) {
@@ -153,11 +157,14 @@ public final class CHTImpl<V extends Serializable> implements DHT<V> {
 		return existedValue;
 	}
 	public Set<ValueInfo<V>>[] put(DHT.PutRequest<V>[] requests) {
+		return this.put(requests, this.ttlForPut, this.hashedSecretForPut);
+	}
+	public Set<ValueInfo<V>>[] put(DHT.PutRequest<V>[] requests, long ttl, ByteArray hashedSecret) {
 		Set<ValueInfo<V>>[] results = new Set/*<ValueInfo<V>>*/[requests.length];
 
 		for (int i = 0; i < requests.length; i++) {
 			DHT.PutRequest<V> req = requests[i];
-			results[i] = this.put(req.getKey(), req.getValues());
+			results[i] = this.put(req.getKey(), req.getValues(), ttl, hashedSecret);
 
 			if (results[i] == null) results[i] = new HashSet<ValueInfo<V>>();
 		}
@@ -271,9 +278,7 @@ public final class CHTImpl<V extends Serializable> implements DHT<V> {
 							}
 
 							if (remove) {
-								synchronized (globalDir) {
-									globalDir.remove(key, v);
-								}
+								globalDir.remove(key, v);
 
 								ret.add(v);
 							}
@@ -23,6 +23,7 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -41,11 +42,16 @@ import ow.dht.impl.message.PutMessage;
 import ow.dht.impl.message.PutValueInfoMessage;
 import ow.dht.impl.message.RemoveMessage;
 import ow.dht.impl.message.ReqTransferMessage;
+import ow.dht.impl.message.SyncDigestMessage;
+import ow.dht.impl.message.SyncDigestReplyMessage;
+import ow.dht.impl.message.SyncKeysMessage;
+import ow.dht.impl.message.SyncKeysReplyMessage;
 import ow.directory.DirectoryConfiguration;
 import ow.directory.DirectoryFactory;
 import ow.directory.DirectoryProvider;
 import ow.directory.MultiValueAdapterForSingleValueDirectory;
 import ow.directory.MultiValueDirectory;
+import ow.directory.RangeIndexedMultiValueDirectory;
 import ow.directory.SingleValueDirectory;
 import ow.id.ID;
 import ow.id.IDAddressPair;
@@ -56,19 +62,26 @@ import ow.routing.RoutingAlgorithm;
 import ow.routing.RoutingException;
 import ow.routing.RoutingResult;
 import ow.routing.RoutingService;
+import ow.routing.impl.message.AckMessage;
+import ow.routing.impl.message.PingMessage;
 import ow.util.Timer;
 
 /**
  * A churn-tolerant implementation of DHT service.
  * This implementations adds churn tolerance techniques to the basic implementation.
  * Those techniques include replication, join-time transfer, multiple get and repeated implicit put.
+ * Instead of repeated put by replicas, replicas can be synchronized by anti-entropy,
+ * in which a node compares Merkle trees of its keys with nodes holding replicas of them
+ * and exchanges only values in differing leaves.
  */
 public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V> {
 	private final static String LOCAL_DB_NAME = "local";
 
 	// members specific to DHT
 
-	private MultiValueDirectory<ID,ValueInfo<V>> localDir = null;	// just for reputting
+	private RangeIndexedMultiValueDirectory<ID,ValueInfo<V>> localDir = null;	// just for reputting
+	private RangeIndexedMultiValueDirectory<ID,ValueInfo<V>> globalIndex;	// wraps globalDir
+	private MerkleTree<V> merkleTree = null;	// for anti-entropy
 	private static Timer timer = null;
 	private boolean daemonsRunning = false;
 
@@ -86,9 +99,28 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 	}
 
 	private void init(DHTConfiguration config, RoutingService routingSvc) throws Exception {
+		// index keys in globalDir to be scanned in order
+		if (config.getDoAntiEntropyOnReplicas()) {
+			this.globalIndex = new RangeIndexedMultiValueDirectory<ID,ValueInfo<V>>(this.globalDir) {
+				protected void modified(ID key) {
+					MerkleTree<V> tree = merkleTree;
+					if (tree != null) tree.touch(key);
+				}
+			};
+			this.merkleTree = new MerkleTree<V>(this.globalIndex,
+					routingSvc.getRoutingAlgorithm().getConfiguration().getIDSizeInByte());
+		}
+		else {
+			this.globalIndex = new RangeIndexedMultiValueDirectory<ID,ValueInfo<V>>(this.globalDir);
+		}
+		this.globalDir = this.globalIndex;
+
 		// initialize directories
 		DirectoryProvider dirProvider = DirectoryFactory.getProvider(config.getDirectoryType());
 		DirectoryConfiguration dirConfig = DirectoryConfiguration.getDefaultConfiguration();
+		dirConfig.setOffHeapCapacity(config.getDirectoryCapacity());
+		dirConfig.setCacheSize(config.getDirectoryCacheSize());
+		dirConfig.setCheckpointBytesInterval(config.getDirectoryCheckpointBytesInterval());
 
 		if (config.getDoExpire())
 			dirConfig.setExpirationTime(config.getDefaultTTL());
@@ -96,8 +128,10 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 			dirConfig.setExpirationTime(-1);
 
 		if (this.config.getDoReputOnRequester()) {
+			MultiValueDirectory<ID,ValueInfo<V>> dir;
+
 			if (config.getMultipleValuesForASingleKey()) {
-				this.localDir = dirProvider.openMultiValueDirectory(
+				dir = dirProvider.openMultiValueDirectory(
 						ID.class, ValueInfo.class, config.getWorkingDirectory(), LOCAL_DB_NAME,
 						dirConfig);
 			}
@@ -107,8 +141,10 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 							 ID.class, config.getValueClass(), config.getWorkingDirectory(), LOCAL_DB_NAME,
 							 dirConfig);
 
-				this.localDir = new MultiValueAdapterForSingleValueDirectory<ID, ValueInfo<V>>(singleValueDir);
+				dir = new MultiValueAdapterForSingleValueDirectory<ID, ValueInfo<V>>(singleValueDir);
 			}
+
+			this.localDir = new RangeIndexedMultiValueDirectory<ID,ValueInfo<V>>(dir);
 		}
 
 		// initialize a Reputter
@@ -121,23 +157,32 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 			this.daemonsRunning = true;
 		}
 
-		if (config.getReputParameters()[0] > 0
-				&& (this.config.getDoReputOnRequester()
-					|| this.config.getDoReputOnReplicas())) {
-			if (config.getUseTimerInsteadOfThread()) {
-				synchronized (BasicDHTImpl.class) {
-					if (timer == null) timer = Timer.getSingletonTimer();
-				}
+		if (config.getReputParameters()[0] > 0) {
+			if (this.config.getDoReputOnRequester()
+					|| (this.config.getDoReputOnReplicas() && !this.config.getDoAntiEntropyOnReplicas())) {
+				this.startDaemon(new Reputter(), "Reputter", false);
+			}
 
-				Runnable r = new Reputter();
-				timer.schedule(r, Timer.currentTimeMillis(), true /*isDaemon*/);
+			if (this.config.getDoAntiEntropyOnReplicas()) {
+				// communicates on a pooled thread not to block the timer waiting for a timeout
+				this.startDaemon(new AntiEntropy(), "AntiEntropy", true);
 			}
-			else {
-				Thread t = new Thread(new Reputter());
-				t.setName("Reputter on " + this.getSelfIDAddressPair().getAddress());
-				t.setDaemon(true);
-				t.start();
+		}
+	}
+
+	private void startDaemon(Runnable r, String name, boolean executeConcurrently) {
+		if (config.getUseTimerInsteadOfThread()) {
+			synchronized (BasicDHTImpl.class) {
+				if (timer == null) timer = Timer.getSingletonTimer();
 			}
+
+			timer.schedule(r, Timer.currentTimeMillis(), true /*isDaemon*/, executeConcurrently);
+		}
+		else {
+			Thread t = new Thread(r);
+			t.setName(name + " on " + this.getSelfIDAddressPair().getAddress());
+			t.setDaemon(true);
+			t.start();
 		}
 	}
 
@@ -150,9 +195,11 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 		super.clearDHTState();
 
 		if (localDir != null) {
-			synchronized (localDir) {
-				localDir.clear();
-			}
+			localDir.clear();
+		}
+
+		if (this.merkleTree != null) {
+			this.merkleTree.clear();
 		}
 	}
 
@@ -266,13 +313,11 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 	public Set<ValueInfo<V>> put(ID key, V[] values) throws IOException {
 		// local
 		if (localDir != null) {
-			synchronized (localDir) {
-				for (V v: values) {
-					try {
-						localDir.put(key, new ValueInfo<V>(v, this.ttlForPut, this.hashedSecretForPut));
-					}
-					catch (Exception e) {/*ignore*/}
+			for (V v: values) {
+				try {
+					localDir.put(key, new ValueInfo<V>(v, this.ttlForPut, this.hashedSecretForPut));
 				}
+				catch (Exception e) {/*ignore*/}
 			}
 		}
 
@@ -300,16 +345,18 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 	}
 
 	public Set<ValueInfo<V>>[] put(DHT.PutRequest<V>[] requests) throws IOException {
+		return this.put(requests, this.ttlForPut, this.hashedSecretForPut);
+	}
+
+	public Set<ValueInfo<V>>[] put(DHT.PutRequest<V>[] requests, long ttl, ByteArray hashedSecret) throws IOException {
 		// local
 		if (localDir != null) {
-			synchronized (localDir) {
-				for (DHT.PutRequest<V> req: requests) {
-					for (V v: req.getValues()) {
-						try {
-							localDir.put(req.getKey(), new ValueInfo<V>(v, this.ttlForPut, this.hashedSecretForPut));
-						}
-						catch (Exception e) {/*ignore*/}
+			for (DHT.PutRequest<V> req: requests) {
+				for (V v: req.getValues()) {
+					try {
+						localDir.put(req.getKey(), new ValueInfo<V>(v, ttl, hashedSecret));
 					}
+					catch (Exception e) {/*ignore*/}
 				}
 			}
 		}
@@ -325,7 +372,7 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 			repeat = config.getNumReplica();
 		}
 
-		return this.putOrRemoveRemotely(requests, false, this.ttlForPut, this.hashedSecretForPut, true,
+		return this.putOrRemoveRemotely(requests, false, ttl, hashedSecret, true,
 				numReplica, repeat, false);
 	}
 
@@ -336,10 +383,8 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 				DHT.RemoveRequest<V> req = requests[i];
 				try {
 					if (req.getValues() != null) {
-						synchronized (localDir) {
-							for (V v: req.getValues()) {
-								localDir.remove(req.getKey(), new ValueInfo<V>(v, -1, hashedSecret));
-							}
+						for (V v: req.getValues()) {
+							localDir.remove(req.getKey(), new ValueInfo<V>(v, -1, hashedSecret));
 						}
 					}
 					else {
@@ -360,9 +405,7 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 
 								if ((req.getValueHash() == null || h.equals(req.getValueHash()))
 									&& hashedSecret.equals(v.getHashedSecret())) {
-									synchronized (localDir) {
-										localDir.remove(req.getKey(), v);
-									}
+									localDir.remove(req.getKey(), v);
 								}
 							}
 						}
@@ -462,18 +505,8 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 			public Message process(Message msg) {
 				IDAddressPair src = (IDAddressPair)msg.getSource();
 
-				// get key-value pairs to be transferred to the requesting node
-				Map<ID,Set<ValueInfo<V>>> valueMap = getValueLocallyToBeTransferredTo(src.getID());
-
-				MessagingAddress srcAddr = src.getAddress();
-				Message putValueInfoMsg = new PutValueInfoMessage<V>(valueMap);
-
-				try {
-					sender.send(srcAddr, putValueInfoMsg);
-				}
-				catch (IOException e) {
-					logger.log(Level.WARNING, "failed to send a PUT_VALUEINFO msg: " + srcAddr);
-				}
+				// transfer key-value pairs to the requesting node
+				transferValuesTo(src);
 
 				return null;
 			}
@@ -482,6 +515,15 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 
 		handler = new PutValueInfoMessageHandler();
 		routingSvc.addMessageHandler(PutValueInfoMessage.class, handler);
+
+		// for anti-entropy
+		if (this.config.getDoAntiEntropyOnReplicas()) {
+			handler = new SyncDigestMessageHandler();
+			routingSvc.addMessageHandler(SyncDigestMessage.class, handler);
+
+			handler = new SyncKeysMessageHandler();
+			routingSvc.addMessageHandler(SyncKeysMessage.class, handler);
+		}
 	}
 
 	protected class PutMessageHandler extends BasicDHTImpl.PutMessageHandler {
@@ -555,83 +597,404 @@ public class ChurnTolerantDHTImpl<V extends Serializable> extends BasicDHTImpl<V
 		public Message process(Message msg) {
 			Map<ID,Set<ValueInfo<V>>> valueMap = ((PutValueInfoMessage<V>)msg).keyValuesMap;
 
-			if (valueMap != null) {
-				for (Map.Entry<ID,Set<ValueInfo<V>>> entry: valueMap.entrySet()) {
+			putValueInfoLocally(valueMap);
+
+			return null;
+		}
+	}
+
+	private void putValueInfoLocally(Map<ID,Set<ValueInfo<V>>> valueMap) {
+		if (valueMap == null) return;
+
+		try {
+			this.globalIndex.beginBatch();
+		}
+		catch (Exception e) { /* ignore */ }
+
+		for (Map.Entry<ID,Set<ValueInfo<V>>> entry: valueMap.entrySet()) {
 /*
 System.out.println("PUT_VALUEINFO:");
-System.out.println("  from: " + msg.getSource().getAddress());
 System.out.println("  to  : " + getSelfIDAddressPair());
 System.out.println("  key : " + entry.getKey());
 */
-					ID key = entry.getKey();
-					Set<ValueInfo<V>> valSet = entry.getValue();
-					for (ValueInfo<V> val: valSet) {
-						try {
-							synchronized (globalDir) {
-								globalDir.put(key, val, val.getTTL());
-							}
-						}
-						catch (Exception e) { /* ignore */ }
-					}
-				}	// for
-			}	// if (valueMap != null)
+			ID key = entry.getKey();
+			Set<ValueInfo<V>> valSet = entry.getValue();
+			for (ValueInfo<V> val: valSet) {
+				try {
+					globalDir.put(key, val, val.getTTL());
+				}
+				catch (Exception e) { /* ignore */ }
+			}
+		}	// for
 
-			return null;
+		try {
+			this.globalIndex.endBatch();
+		}
+		catch (Exception e) {
+			logger.log(Level.WARNING, "An Exception thrown by BatchableDirectory#endBatch().", e);
 		}
 	}
 
 	// for value transfer
-	private Map<ID,Set<ValueInfo<V>>> getValueLocallyToBeTransferredTo(ID otherID) {
+	/**
+	 * Sends key-value pairs to be transferred to the joining node
+	 * in messages each of which contains a bounded number of keys.
+	 */
+	private void transferValuesTo(IDAddressPair other) {
+		ID otherID = other.getID();
 		ID selfID = this.getSelfIDAddressPair().getID();
 		RoutingAlgorithm algo = this.routingSvc.getRoutingAlgorithm();
+		int numKeysPerTransfer = Math.max(this.config.getNumKeysPerTransfer(), 1);
 
 		Map<ID,Set<ValueInfo<V>>> results = null;
 
 //System.out.println("joining node: " + otherID);
-		ID[] keys = null;
-		synchronized (globalDir) {
-			Set<ID> keySet = globalDir.keySet();
-			if (keySet != null) {
-				keys = new ID[keySet.size()];
-				keySet.toArray(keys);
-			}
+		Iterator<ID> keyIt;
+		if (algo.isRingBased()) {
+			// keys to be transferred form an arc ending at the joining node.
+			// scan keys backward from the joining node until one is not to be transferred.
+			keyIt = this.globalIndex.keysDescendingFrom(otherID);
+		}
+		else {
+			keyIt = this.globalIndex.keysAfter(null);
 		}
 
-		for (ID k: keys) {
+		while (keyIt.hasNext()) {
+			ID k = keyIt.next();
 //System.out.println("  key: " + k);
-			IDAddressPair[] betterRespNodes =
-				algo.responsibleNodeCandidates(k, config.getNumReplica() + 1 /* means the joining node */);
-			if (betterRespNodes != null && betterRespNodes.length > 0) {
-				for (IDAddressPair p: betterRespNodes) {
-					if (otherID.equals(p.getID())) {
+			if (!this.toBeTransferred(k, otherID, selfID, algo)) {
+				if (algo.isRingBased()) break;
+				else continue;
+			}
+
 //System.out.println("    -> transfer.");
-						try {
-							Set<ValueInfo<V>> s = globalDir.get(k);
+			try {
+				Set<ValueInfo<V>> s = globalDir.get(k);
 
-							if (s != null) {
-								if (results == null) results = new HashMap<ID,Set<ValueInfo<V>>>();
+				if (s != null) {
+					if (results == null) results = new HashMap<ID,Set<ValueInfo<V>>>();
 
-								results.put(k, s);
-							}
-						}
-						catch (Exception e) { /* ignore */ }
-					}
-					else if (selfID.equals(p.getID())) {
-						break;
+					results.put(k, s);
+					if (results.size() >= numKeysPerTransfer) {
+						this.sendValueInfo(other.getAddress(), results);
+						results = null;
 					}
 				}
+				else {
+					this.globalIndex.prune(k);
+				}
 			}
+			catch (Exception e) { /* ignore */ }
 		}
 
-		return results;
+		if (results != null) this.sendValueInfo(other.getAddress(), results);
+	}
+
+	private void sendValueInfo(MessagingAddress dest, Map<ID,Set<ValueInfo<V>>> valueMap) {
+		Message putValueInfoMsg = new PutValueInfoMessage<V>(valueMap);
+
+		try {
+			sender.send(dest, putValueInfoMsg);
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "failed to send a PUT_VALUEINFO msg: " + dest);
+		}
+	}
+
+	private boolean toBeTransferred(ID key, ID otherID, ID selfID, RoutingAlgorithm algo) {
+		IDAddressPair[] betterRespNodes =
+			algo.responsibleNodeCandidates(key, config.getNumReplica() + 1 /* means the joining node */);
+		if (betterRespNodes != null) {
+			for (IDAddressPair p: betterRespNodes) {
+				if (otherID.equals(p.getID())) {
+					return true;
+				}
+				else if (selfID.equals(p.getID())) {
+					break;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	//
+	// for anti-entropy
+	//
+
+	/**
+	 * Synchronizes keys this node is responsible for with the nodes holding replicas of them.
+	 * With a ring-based algorithm, the keys are in the arc from the predecessor to this node
+	 * and this node, the primary of the arc, decides the replica holders by its view of the ring.
+	 * Otherwise, whole ID space is compared with the closest nodes,
+	 * and keys only one of them is responsible for are compared in every round.
+	 */
+	private void synchronizeReplicas() {
+		RoutingAlgorithm algo = this.routingSvc.getRoutingAlgorithm();
+		ID selfID = this.getSelfIDAddressPair().getID();
+		int numPeers = Math.max(1, config.getNumReplica() - 1);
+
+		ID from = selfID;	// whole ID space
+		IDAddressPair[] peers;
+		if (algo.isRingBased()) {
+			// candidates are sorted clockwise from this node and the last one is the predecessor
+			peers = algo.responsibleNodeCandidates(selfID, Integer.MAX_VALUE);
+			if (peers == null || peers.length <= 1) return;
+
+			IDAddressPair pred = peers[peers.length - 1];
+			if (selfID.equals(pred.getID())) return;	// predecessor is not known
+
+			// confirm that the predecessor bounding the arc is alive
+			boolean alive;
+			try {
+				alive = (sender.sendAndReceive(pred.getAddress(), new PingMessage()) instanceof AckMessage);
+			}
+			catch (IOException e) {
+				alive = false;
+			}
+
+			if (!alive) {
+				algo.fail(pred);
+				return;
+			}
+
+			from = pred.getID();
+		}
+		else {
+			peers = algo.responsibleNodeCandidates(selfID, numPeers + 1);
+			if (peers == null) return;
+		}
+
+		this.merkleTree.refresh();
+
+		for (IDAddressPair p: peers) {
+			if (numPeers <= 0) break;
+			if (selfID.equals(p.getID())) continue;
+
+			try {
+				this.synchronizeWith(p.getAddress(), from, selfID);
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Anti-entropy with " + p.getAddress() + " failed.");
+
+				// try the next node instead
+				algo.fail(p);
+				continue;
+			}
+
+			numPeers--;
+		}
+	}
+
+	private void synchronizeWith(MessagingAddress peer, ID from, ID to) throws IOException {
+		// compare digests from the top and descend to differing leaves
+		List<Integer> leafList = new ArrayList<Integer>();
+
+		int[] nodes = this.merkleTree.cover(from, to);
+		while (nodes.length > 0) {
+			long[] hashes = this.merkleTree.digests(nodes, from, to);
+			Message reply = sender.sendAndReceive(peer, new SyncDigestMessage(from, to, nodes, hashes));
+			if (reply == null) throw new IOException("No reply from " + peer);
+
+			int[] differing;
+			try {
+				differing = ((SyncDigestReplyMessage)reply).differingNodes;
+			}
+			catch (ClassCastException e) {
+				logger.log(Level.WARNING, "Reply to a REPLICA_SYNC_DIGEST req is not REPLICA_SYNC_DIGEST_REPLY: " + reply.getName()
+						+ " from " + peer);
+				return;
+			}
+
+			nodes = MerkleTree.descend(differing, leafList);
+		}
+
+		if (leafList.isEmpty()) return;
+
+		// exchange keys in the differing leaves
+		int[] leaves = new int[leafList.size()];
+		List<ID> keyList = new ArrayList<ID>();
+		List<Long> hashList = new ArrayList<Long>();
+		for (int i = 0; i < leaves.length; i++) {
+			leaves[i] = leafList.get(i);
+			this.merkleTree.keyDigests(leaves[i], from, to, keyList, hashList);
+		}
+
+		ID[] keys = new ID[keyList.size()];
+		keyList.toArray(keys);
+		long[] hashes = new long[keys.length];
+		for (int i = 0; i < hashes.length; i++) hashes[i] = hashList.get(i);
+
+		Message reply = sender.sendAndReceive(peer, new SyncKeysMessage(from, to, leaves, keys, hashes));
+		if (reply == null) throw new IOException("No reply from " + peer);
+
+		SyncKeysReplyMessage<V> keysReply;
+		try {
+			keysReply = (SyncKeysReplyMessage<V>)reply;
+		}
+		catch (ClassCastException e) {
+			logger.log(Level.WARNING, "Reply to a REPLICA_SYNC_KEYS req is not REPLICA_SYNC_KEYS_REPLY: " + reply.getName()
+					+ " from " + peer);
+			return;
+		}
+
+		this.putValueInfoLocally(keysReply.keyValuesMap);
+
+		// send values requested by the peer
+		if (keysReply.requestedKeys != null && keysReply.requestedKeys.length > 0) {
+			Map<ID,Set<ValueInfo<V>>> valueMap = new HashMap<ID,Set<ValueInfo<V>>>();
+			for (ID k: keysReply.requestedKeys) {
+				Set<ValueInfo<V>> s = getValueLocally(k, globalDir);
+				if (s != null) valueMap.put(k, s);
+			}
+
+			if (!valueMap.isEmpty()) {
+				sender.send(peer, new PutValueInfoMessage<V>(valueMap));
+			}
+		}
+	}
+
+	private boolean isResponsible(ID key, ID nodeID, RoutingAlgorithm algo) {
+		IDAddressPair[] respNodes = algo.responsibleNodeCandidates(key, config.getNumReplica());
+		if (respNodes != null) {
+			for (IDAddressPair p: respNodes) {
+				if (nodeID.equals(p.getID())) return true;
+			}
+		}
+
+		return false;
+	}
+
+	private class SyncDigestMessageHandler implements MessageHandler {
+		public Message process(Message msg) {
+			SyncDigestMessage req = (SyncDigestMessage)msg;
+			MerkleTree<V> tree = merkleTree;
+			if (tree == null || req.nodes == null || req.hashes == null
+					|| req.nodes.length != req.hashes.length) return null;
+
+			tree.refresh();
+
+			List<Integer> differingList = new ArrayList<Integer>();
+			for (int i = 0; i < req.nodes.length; i++) {
+				int n = req.nodes[i];
+				if (!MerkleTree.isValidNode(n)) continue;
+
+				long h = tree.digests(new int[] { n }, req.from, req.to)[0];
+				if (h != req.hashes[i]) differingList.add(n);
+			}
+
+			int[] differing = new int[differingList.size()];
+			for (int i = 0; i < differing.length; i++) differing[i] = differingList.get(i);
+
+			return new SyncDigestReplyMessage(differing);
+		}
+	}
+
+	private class SyncKeysMessageHandler implements MessageHandler {
+		public Message process(Message msg) {
+			SyncKeysMessage req = (SyncKeysMessage)msg;
+			MerkleTree<V> tree = merkleTree;
+			if (tree == null || req.leaves == null || req.keys == null || req.hashes == null
+					|| req.keys.length != req.hashes.length) return null;
+
+			ID srcID = ((IDAddressPair)msg.getSource()).getID();
+			ID selfID = getSelfIDAddressPair().getID();
+			RoutingAlgorithm algo = routingSvc.getRoutingAlgorithm();
+
+			// on a ring, the requesting node is the primary of the arc and decides replica holders,
+			// because the routing table of this node may still hold departed nodes
+			boolean filter = !algo.isRingBased();
+
+			Map<ID,Long> theirs = new HashMap<ID,Long>();
+			for (int i = 0; i < req.keys.length; i++) theirs.put(req.keys[i], req.hashes[i]);
+
+			List<ID> keyList = new ArrayList<ID>();
+			List<Long> hashList = new ArrayList<Long>();
+			for (int leaf: req.leaves) {
+				if (leaf < 0 || leaf >= MerkleTree.NUM_LEAVES) continue;
+				tree.keyDigests(leaf, req.from, req.to, keyList, hashList);
+			}
+
+			// values the requesting node lacks
+			Map<ID,Set<ValueInfo<V>>> valueMap = new HashMap<ID,Set<ValueInfo<V>>>();
+			for (int i = 0; i < keyList.size(); i++) {
+				ID k = keyList.get(i);
+				Long h = theirs.get(k);
+
+				if (h != null && h.longValue() == hashList.get(i).longValue()) {
+					theirs.remove(k);
+					continue;
+				}
+
+				if (!filter || isResponsible(k, srcID, algo)) {
+					Set<ValueInfo<V>> s = getValueLocally(k, globalDir);
+					if (s != null) valueMap.put(k, s);
+				}
+			}
+
+			// keys this node lacks or has different values of
+			List<ID> requested = new ArrayList<ID>();
+			for (ID k: theirs.keySet()) {
+				if (!filter || isResponsible(k, selfID, algo)) requested.add(k);
+			}
+
+			ID[] requestedKeys = new ID[requested.size()];
+			requested.toArray(requestedKeys);
+
+			return new SyncKeysReplyMessage<V>(valueMap, requestedKeys);
+		}
+	}
+
+	private class AntiEntropy implements Runnable {
+		public void run() {
+			logger.log(Level.INFO, "AntiEntropy woke up.");
+
+			int interval = config.getReputParameters()[0];
+
+			try {
+				// initial sleep
+				if (!config.getUseTimerInsteadOfThread()) {
+					Thread.sleep((long)interval);
+				}
+
+				while (true) {
+					if (!daemonsRunning) break;
+
+					synchronizeReplicas();
+
+					// sleep
+					double playRatio = config.getReputIntervalPlayRatio();
+					double intervalRatio = 1.0 - playRatio + (playRatio * 2.0 * rnd.nextDouble());
+					long sleepPeriod = (long)(interval * intervalRatio);
+
+					if (config.getUseTimerInsteadOfThread()) {
+						timer.schedule(this, Timer.currentTimeMillis() + sleepPeriod,
+								true /*isDaemon*/, true /*executeConcurrently*/);
+						return;
+					}
+					else {
+						Thread.sleep((long)(sleepPeriod));
+					}
+				}	// while (true)
+			}
+			catch (InterruptedException e) {
+				logger.log(Level.WARNING, "AntiEntropy interrupted and die.", e);
+			}
+		}
 	}
 
 	private final static Random rnd = new Random();
 
+	/**
+	 * Sets the seed of random numbers to jitter intervals of anti-entropy and reputting.
+	 */
+	public static void setRandomSeed(long seed) {
+		rnd.setSeed(seed);
+	}
+
 	private class Reputter implements Runnable {
 		// context
-		private ID[] keys = null;
-		private int keyIndex = 0;
+		private ID lastKey = null;	// reput from the key following it
 
 		public void run() {
 			logger.log(Level.INFO, "Reputter woke up.");
@@ -639,12 +1002,12 @@ System.out.println("  key : " + entry.getKey());
 			int interval = config.getReputParameters()[0];
 			int numOfKeysPerInterval = config.getReputParameters()[1];
 
-			MultiValueDirectory<ID,ValueInfo<V>> dir;
+			RangeIndexedMultiValueDirectory<ID,ValueInfo<V>> dir;
 
 			if (config.getDoReputOnRequester())
 				dir = localDir;
 			else
-				dir = globalDir;
+				dir = globalIndex;
 
 			try {
 				// initial sleep
@@ -656,61 +1019,56 @@ System.out.println("  key : " + entry.getKey());
 				while (true) {
 					if (!daemonsRunning) break outer_most_loop;
 
-					// obtain an array of keys
-					synchronized (dir) {
-						Set<ID> keySet = dir.keySet();
-						if (keySet != null && keySet.size() > 0) {
-							keys = new ID[keySet.size()];
-							keySet.toArray(keys);
+					// reput values of the keys following the last one
+					Iterator<ID> keyIt = dir.keysAfter(lastKey);
+					for (int j = 0; j < numOfKeysPerInterval; j++) {
+						if (!keyIt.hasNext()) {
+							lastKey = null;
+							break;
 						}
-						else {
-							keys = null;
+
+						ID key = keyIt.next();
+						lastKey = key;
+//System.out.println("key: " + key);
+
+						Set<ValueInfo<V>> valueInfoSet = getValueLocally(key, dir);
+						if (valueInfoSet == null) {
+							try {
+								dir.prune(key);
+							}
+							catch (Exception e) { /* ignore */ }
+							continue;
 						}
-					}
 
-					// reput values
-					if (keys != null) {
-						for (int j = 0; j < numOfKeysPerInterval; j++, keyIndex++) {
-							if (keyIndex >= keys.length) {
-								keyIndex = 0;
-								break;
+						Map<ValueInfo.Attributes,Set<V>> attrValueMap =
+								new HashMap<ValueInfo.Attributes,Set<V>>();
+						for (ValueInfo<V> v: valueInfoSet) {
+							Set<V> vSet = attrValueMap.get(v.getAttributes());
+							if (vSet == null) {
+								vSet = new HashSet<V>();
+								attrValueMap.put(v.getAttributes(), vSet);
 							}
 
-//System.out.println("keyIndex: " + keyIndex);
-							ID key = keys[keyIndex];
+							vSet.add(v.getValue());
+						}
 
-							Set<ValueInfo<V>> valueInfoSet = getValueLocally(key, dir);
-							if (valueInfoSet == null) continue;
+						for (ValueInfo.Attributes attr: attrValueMap.keySet()) {
+							Set<V> vSet = attrValueMap.get(attr);
+							V[] values = (V[])new Serializable[vSet.size()];
+							vSet.toArray(values);
 
-							Map<ValueInfo.Attributes,Set<V>> attrValueMap =
-									new HashMap<ValueInfo.Attributes,Set<V>>();
-							for (ValueInfo<V> v: valueInfoSet) {
-								Set<V> vSet = attrValueMap.get(v.getAttributes());
-								if (vSet == null) {
-									vSet = new HashSet<V>();
-									attrValueMap.put(v.getAttributes(), vSet);
-								}
+							DHT.PutRequest<V>[] reqs = new DHT.PutRequest/*<V>*/[1];
+							reqs[0] = new DHT.PutRequest<V>(key, values);
 
-								vSet.add(v.getValue());
+							int numReplica, repeat;
+							if (config.getResponsibleNodeDoesReplication()) {
+								numReplica = config.getNumReplica();
+								repeat = 1;
+							}
+							else {
+								numReplica = 1;
+								repeat = config.getNumReplica();
 							}
-
-							for (ValueInfo.Attributes attr: attrValueMap.keySet()) {
-								Set<V> vSet = attrValueMap.get(attr);
-								V[] values = (V[])new Serializable[vSet.size()];
-								vSet.toArray(values);
-
-								DHT.PutRequest<V>[] reqs = new DHT.PutRequest/*<V>*/[1];
-								reqs[0] = new DHT.PutRequest<V>(key, values);
-
-								int numReplica, repeat;
-								if (config.getResponsibleNodeDoesReplication()) {
-									numReplica = config.getNumReplica();
-									repeat = 1;
-								}
-								else {
-									numReplica = 1;
-									repeat = config.getNumReplica();
-								}
 
 //System.out.println("reput:");
 //for (int j = 0; j < reqs.length; j++) {
@@ -720,18 +1078,17 @@ System.out.println("  key : " + entry.getKey());
 //	}
 //	System.out.println();
 //}
-								Set<ValueInfo<V>>[] ret =
-									putOrRemoveRemotely(reqs, false, attr.getTTL(), attr.getHashedSecret(), false,
-											numReplica, repeat, false);
-
-								for (int k = 0; k < reqs.length; k++) {
-									if (ret[k] == null) {
-										logger.log(Level.WARNING, "put() failed: " + reqs[j].getKey());
-									}
+							Set<ValueInfo<V>>[] ret =
+								putOrRemoveRemotely(reqs, false, attr.getTTL(), attr.getHashedSecret(), false,
+										numReplica, repeat, false);
+
+							for (int k = 0; k < reqs.length; k++) {
+								if (ret[k] == null) {
+									logger.log(Level.WARNING, "put() failed: " + reqs[j].getKey());
 								}
 							}
 						}
-					}	// if (keys != null)
+					}
 
 					// sleep
 					double playRatio = config.getReputIntervalPlayRatio();
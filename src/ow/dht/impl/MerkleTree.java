@@ -0,0 +1,304 @@
+/*
+ * Copyright 2006-2011,2013 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.dht.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ow.dht.ByteArray;
+import ow.dht.ValueInfo;
+import ow.directory.RangeIndexedMultiValueDirectory;
+import ow.id.ID;
+
+/**
+ * A Merkle tree over the ID space for anti-entropy between replicas.
+ * A leaf covers IDs sharing the top {@link #DEPTH DEPTH} bits
+ * and its hash is the XOR of hashes of the key-value pairs in it.
+ * An inner node is the XOR of its children, that is, a digest of its ID range.
+ * Modified leaves are just marked and rehashed by {@link #refresh() refresh()}
+ * scanning their keys in the index of the directory.
+ *
+ * Digests are compared over an arc (from, to] of the ID space, which is a whole space if from equals to.
+ * Leaves on both ends of an arc are hashed only over the keys in the arc.
+ */
+final class MerkleTree<V extends Serializable> {
+	final static int DEPTH = 12;
+	final static int NUM_LEAVES = 1 << DEPTH;
+	final static int STEP = 4;	// number of levels descended at once in a comparison
+
+	// for message digest
+	private static MessageDigest md = null;
+	private final static String mdAlgoName = "SHA1";
+	static {
+		try {
+			md = MessageDigest.getInstance(mdAlgoName);
+		}
+		catch (NoSuchAlgorithmException e) { /* NOTREACHED */ }
+	}
+
+	private final RangeIndexedMultiValueDirectory<ID,ValueInfo<V>> dir;
+	private final int idSizeInBit;
+	private final ID[] leafStarts = new ID[NUM_LEAVES];
+
+	private final AtomicLongArray nodes = new AtomicLongArray(2 * NUM_LEAVES);	// 1 is the root
+	private final AtomicIntegerArray dirty = new AtomicIntegerArray(NUM_LEAVES);
+
+	MerkleTree(RangeIndexedMultiValueDirectory<ID,ValueInfo<V>> dir, int idSizeInByte) {
+		this.dir = dir;
+		this.idSizeInBit = idSizeInByte * 8;
+
+		for (int i = 0; i < NUM_LEAVES; i++) {
+			this.leafStarts[i] = ID.getID(BigInteger.valueOf(i).shiftLeft(this.idSizeInBit - DEPTH), idSizeInByte);
+		}
+
+		this.clear();
+	}
+
+	int leafOf(ID key) {
+		return key.getBits(this.idSizeInBit - DEPTH, DEPTH);
+	}
+
+	static boolean isLeaf(int node) { return node >= NUM_LEAVES; }
+
+	static boolean isValidNode(int node) { return node >= 1 && node < 2 * NUM_LEAVES; }
+
+	void touch(ID key) {
+		this.dirty.set(this.leafOf(key), 1);
+	}
+
+	/**
+	 * Marks all the leaves to be rehashed.
+	 */
+	void clear() {
+		for (int i = 0; i < NUM_LEAVES; i++) this.dirty.set(i, 1);
+	}
+
+	/**
+	 * Rehashes modified leaves and their ancestors.
+	 */
+	synchronized void refresh() {
+		for (int i = 0; i < NUM_LEAVES; i++) {
+			if (this.dirty.getAndSet(i, 0) == 0) continue;
+
+			int node = NUM_LEAVES + i;
+			this.nodes.set(node, this.hashLeaf(i, null, null));
+
+			for (node >>>= 1; node >= 1; node >>>= 1) {
+				this.nodes.set(node, this.nodes.get(2 * node) ^ this.nodes.get(2 * node + 1));
+			}
+		}
+	}
+
+	/**
+	 * Returns nodes covering the arc (from, to]:
+	 * the leaves on both ends and the largest subtrees between them.
+	 */
+	int[] cover(ID from, ID to) {
+		List<Integer> result = new ArrayList<Integer>();
+
+		if (from.equals(to)) {
+			result.add(1);
+		}
+		else {
+			int first = this.leafOf(from), last = this.leafOf(to);
+
+			result.add(NUM_LEAVES + first);
+			if (last != first) result.add(NUM_LEAVES + last);
+
+			if (first < last) {
+				coverLeaves(first + 1, last, result);
+			}
+			else if (first > last || from.compareTo(to) > 0) {
+				// wrapping around
+				coverLeaves(first + 1, NUM_LEAVES, result);
+				coverLeaves(0, last, result);
+			}
+		}
+
+		return toArray(result);
+	}
+
+	private static void coverLeaves(int first, int end /* exclusive */, List<Integer> result) {
+		for (int l = first + NUM_LEAVES, r = end + NUM_LEAVES; l < r; l >>>= 1, r >>>= 1) {
+			if ((l & 1) != 0) result.add(l++);
+			if ((r & 1) != 0) result.add(--r);
+		}
+	}
+
+	/**
+	 * Returns hashes of the specified nodes restricted to the arc (from, to].
+	 */
+	long[] digests(int[] nodes, ID from, ID to) {
+		long[] result = new long[nodes.length];
+		int first = this.leafOf(from), last = this.leafOf(to);
+
+		for (int i = 0; i < nodes.length; i++) {
+			int n = nodes[i];
+
+			if (isLeaf(n) && !from.equals(to) && (n - NUM_LEAVES == first || n - NUM_LEAVES == last)) {
+				result[i] = this.hashLeaf(n - NUM_LEAVES, from, to);
+			}
+			else {
+				result[i] = this.nodes.get(n);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns descendants of the differing inner nodes {@link #STEP STEP} levels below,
+	 * and adds differing leaves to the list.
+	 */
+	static int[] descend(int[] differing, List<Integer> leaves) {
+		List<Integer> result = new ArrayList<Integer>();
+
+		for (int n: differing) {
+			if (!isValidNode(n)) continue;
+
+			if (isLeaf(n)) {
+				leaves.add(n - NUM_LEAVES);
+				continue;
+			}
+
+			int level = 31 - Integer.numberOfLeadingZeros(n);
+			int d = Math.min(STEP, DEPTH - level);
+			for (int c = n << d, end = (n + 1) << d; c < end; c++) result.add(c);
+		}
+
+		return toArray(result);
+	}
+
+	/**
+	 * Returns keys in the leaf and the arc (from, to] with their hashes.
+	 */
+	void keyDigests(int leaf, ID from, ID to, List<ID> keys, List<Long> digests) {
+		Iterator<ID> it = this.dir.keysBetween(this.leafStarts[leaf],
+				(leaf + 1 < NUM_LEAVES ? this.leafStarts[leaf + 1] : null));
+		while (it.hasNext()) {
+			ID key = it.next();
+			if (!inArc(key, from, to)) continue;
+
+			long h = this.hashKey(key);
+			if (h == 0L) continue;
+
+			keys.add(key);
+			digests.add(h);
+		}
+	}
+
+	private long hashLeaf(int leaf, ID from, ID to) {
+		long h = 0L;
+
+		Iterator<ID> it = this.dir.keysBetween(this.leafStarts[leaf],
+				(leaf + 1 < NUM_LEAVES ? this.leafStarts[leaf + 1] : null));
+		while (it.hasNext()) {
+			ID key = it.next();
+			if (from != null && !inArc(key, from, to)) continue;
+
+			h ^= this.hashKey(key);
+		}
+
+		return h;
+	}
+
+	/**
+	 * Returns the XOR of hashes of values associated with the key. 0 if none.
+	 */
+	long hashKey(ID key) {
+		Set<ValueInfo<V>> values = null;
+		try {
+			values = this.dir.get(key);
+		}
+		catch (Exception e) { /* ignore */ }
+
+		if (values == null) {
+			try {
+				this.dir.prune(key);
+			}
+			catch (Exception e) { /* ignore */ }
+
+			return 0L;
+		}
+
+		byte[] k = key.getValue();
+		long h = 0L;
+		for (ValueInfo<V> v: values) {
+			h ^= digest(k, v);
+		}
+
+		return h;
+	}
+
+	/**
+	 * Returns the top 64 bits of SHA-1 over the key, the serialized value and the hashed secret,
+	 * which do not depend on a JVM. TTL is ignored as ValueInfo#equals() does.
+	 */
+	private static long digest(byte[] key, ValueInfo<?> v) {
+		byte[] value;
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(v.getValue());
+			oos.close();
+			value = bos.toByteArray();
+		}
+		catch (IOException e) {
+			// not serializable
+			value = new byte[0];
+		}
+
+		ByteArray secret = v.getHashedSecret();
+
+		byte[] d;
+		synchronized (md) {
+			md.update(key);
+			md.update(value);
+			if (secret != null) md.update(secret.getBytes());
+			d = md.digest();
+		}
+
+		long h = 0L;
+		for (int i = 0; i < 8; i++) h = (h << 8) | (d[i] & 0xffL);
+		return h;
+	}
+
+	static boolean inArc(ID key, ID from, ID to) {
+		int c = from.compareTo(to);
+		if (c == 0) return true;
+		else if (c < 0) return key.compareTo(from) > 0 && key.compareTo(to) <= 0;
+		else return key.compareTo(from) > 0 || key.compareTo(to) <= 0;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] a = new int[list.size()];
+		for (int i = 0; i < a.length; i++) a[i] = list.get(i);
+		return a;
+	}
+}
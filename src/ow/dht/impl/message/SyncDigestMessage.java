@@ -0,0 +1,64 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.dht.impl.message;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import ow.id.ID;
+import ow.messaging.Message;
+
+/**
+ * Hashes of Merkle tree nodes over the arc (from, to] of the ID space, sent for anti-entropy.
+ * Replied with a REPLICA_SYNC_DIGEST_REPLY message.
+ */
+public final class SyncDigestMessage extends Message {
+	public final static String NAME = "REPLICA_SYNC_DIGEST";	// hashed to a tag not taken by the existing messages
+	public final static boolean TO_BE_REPORTED = true;
+	public final static Color COLOR = null;
+
+	// message members
+	public ID from, to;
+	public int[] nodes;
+	public long[] hashes;
+
+	public SyncDigestMessage() { super(); }	// for Class#newInstance()
+
+	public SyncDigestMessage(
+			ID from, ID to, int[] nodes, long[] hashes) {
+		this.from = from;
+		this.to = to;
+		this.nodes = nodes;
+		this.hashes = hashes;
+	}
+
+	public void encodeContents(ObjectOutputStream oos) throws IOException {
+		oos.writeObject(this.from);
+		oos.writeObject(this.to);
+		oos.writeObject(this.nodes);
+		oos.writeObject(this.hashes);
+	}
+
+	public void decodeContents(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+		this.from = (ID)ois.readObject();
+		this.to = (ID)ois.readObject();
+		this.nodes = (int[])ois.readObject();
+		this.hashes = (long[])ois.readObject();
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.dht.impl.message;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+import ow.dht.ValueInfo;
+import ow.id.ID;
+import ow.messaging.Message;
+
+/**
+ * Values which the requesting node lacks and keys whose values the replying node lacks.
+ */
+public final class SyncKeysReplyMessage<V extends Serializable> extends Message {
+	public final static String NAME = "REPLICA_SYNC_KEYS_REPLY";	// hashed to a tag not taken by the existing messages
+	public final static boolean TO_BE_REPORTED = true;
+	public final static Color COLOR = null;
+
+	// message members
+	public Map<ID,Set<ValueInfo<V>>> keyValuesMap;
+	public ID[] requestedKeys;
+
+	public SyncKeysReplyMessage() { super(); }	// for Class#newInstance()
+
+	public SyncKeysReplyMessage(
+			Map<ID,Set<ValueInfo<V>>> keyValuesMap, ID[] requestedKeys) {
+		this.keyValuesMap = keyValuesMap;
+		this.requestedKeys = requestedKeys;
+	}
+
+	public void encodeContents(ObjectOutputStream oos) throws IOException {
+		oos.writeObject(this.keyValuesMap);
+		oos.writeObject(this.requestedKeys);
+	}
+
+	public void decodeContents(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+		this.keyValuesMap = (Map<ID,Set<ValueInfo<V>>>)ois.readObject();
+		this.requestedKeys = (ID[])ois.readObject();
+	}
+}
@@ -56,6 +56,20 @@ public interface Memcached extends DHT<Item> {
 	Set<ValueInfo<Item>> put(ID key, Item value, int casUnique)
 		throws Exception;
 
+	/**
+	 * Puts on the condition with the specified TTL (in millisecond)
+	 * instead of one set by {@link #setTTLForPut(long) setTTLForPut(long)}.
+	 */
+	Set<ValueInfo<Item>> put(ID key, Item value, Condition cond, long ttl)
+		throws Exception;
+
+	/**
+	 * Puts with the CAS unique and the specified TTL (in millisecond)
+	 * instead of one set by {@link #setTTLForPut(long) setTTLForPut(long)}.
+	 */
+	Set<ValueInfo<Item>> put(ID key, Item value, int casUnique, long ttl)
+		throws Exception;
+
 	Set<ValueInfo<Item>> remove(ID key)
 		throws RoutingException;
 
@@ -22,10 +22,12 @@ import java.util.HashSet;
 import java.util.Set;
 
 import ow.dht.ByteArray;
+import ow.dht.DHT;
 import ow.dht.DHTConfiguration;
 import ow.dht.ValueInfo;
 import ow.dht.impl.ChurnTolerantDHTImpl;
 import ow.dht.impl.message.DHTReplyMessage;
+import ow.dht.impl.message.PutMessage;
 import ow.dht.memcached.Item;
 import ow.dht.memcached.Memcached;
 import ow.dht.memcached.impl.message.PutOnConditionMessage;
@@ -71,27 +73,44 @@ public final class MemcachedImpl extends ChurnTolerantDHTImpl<Item> implements M
 
 	public Set<ValueInfo<Item>> put(ID key, Item value, Condition cond)
 			throws Exception {
-		return this.put(key, value, cond, 0);
+		return this.put(key, value, cond, 0, this.ttlForPut);
 	}
 
 	public Set<ValueInfo<Item>> put(ID key, Item value, int casUnique)
 			throws Exception {
-		return this.put(key, value, Condition.CAS, casUnique);
+		return this.put(key, value, Condition.CAS, casUnique, this.ttlForPut);
 	}
 
-	private Set<ValueInfo<Item>> put(ID key, Item value, Condition cond, int casUnique)
+	public Set<ValueInfo<Item>> put(ID key, Item value, Condition cond, long ttl)
 			throws Exception {
-		if (cond == null || cond.equals(Condition.NONE)) return this.put(key, value);
+		return this.put(key, value, cond, 0, ttl);
+	}
+
+	public Set<ValueInfo<Item>> put(ID key, Item value, int casUnique, long ttl)
+			throws Exception {
+		return this.put(key, value, Condition.CAS, casUnique, ttl);
+	}
 
+	private Set<ValueInfo<Item>> put(ID key, Item value, Condition cond, int casUnique, long ttl)
+			throws Exception {
 		Item[] values = new Item[1];
 		values[0] = value;
 
+		if (cond == null || cond.equals(Condition.NONE)) {
+			DHT.PutRequest<Item>[] requests = new DHT.PutRequest/*<Item>*/[1];
+			requests[0] = new DHT.PutRequest<Item>(key, values);
+
+			Set<ValueInfo<Item>>[] ret = this.put(requests, ttl, this.hashedSecret);
+
+			if (ret[0] == null) throw new RoutingException();
+
+			return ret[0];
+		}
+
 		Memcached.PutRequest[] requests = new Memcached.PutRequest[1];
 		requests[0] = new Memcached.PutRequest(key, values, cond, casUnique);
 
-		Set<ValueInfo<Item>>[] ret = this.put(requests);	// calls BasicDHTImpl#call(DHT.PutRequest[])
-
-		if (requests[0] == null) throw new RoutingException();
+		Set<ValueInfo<Item>>[] ret = this.put(requests, ttl, this.hashedSecret);	// calls BasicDHTImpl#call(DHT.PutRequest[])
 
 		return ret[0];
 	}
@@ -196,7 +215,12 @@ public final class MemcachedImpl extends ChurnTolerantDHTImpl<Item> implements M
 			}
 
 			// put
-			Message ret = super.process(msg);
+			PutOnConditionMessage putOnCondMsg = (PutOnConditionMessage)msg;
+			PutMessage<Item> putMsg = new PutMessage<Item>(putOnCondMsg.requests,
+					putOnCondMsg.ttl, putOnCondMsg.hashedSecret, putOnCondMsg.numReplica);
+			putMsg.setSource(msg.getSource());
+
+			Message ret = super.process(putMsg);
 
 			Set<ValueInfo<Item>>[] retValues = ((DHTReplyMessage<Item>)ret).existedValues;
 			for (int i = 0; i < size; i++) {
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory;
+
+/**
+ * A directory which can apply updates by a thread collectively,
+ * for example, by writing them to disk at once (group commit).
+ * Updates between {@link #beginBatch() beginBatch()} and {@link #endBatch() endBatch()}
+ * are visible immediately but are made durable only by endBatch().
+ * Batches by a thread do not nest: inner pairs are merged into the outermost one.
+ */
+public interface BatchableDirectory {
+	void beginBatch() throws Exception;
+	void endBatch() throws Exception;
+}
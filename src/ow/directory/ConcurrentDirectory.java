@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory;
+
+/**
+ * A marker of directories which can be updated and iterated by multiple threads
+ * without locking the directory.
+ * Sets returned by keySet() and entrySet() are snapshots,
+ * and an iterator is not invalidated by concurrent updates.
+ */
+public interface ConcurrentDirectory<K> {
+	/**
+	 * Removes the values associated with the key which expired before the specified time.
+	 * The expiring time is checked on the stored values, not on a snapshot,
+	 * so that a value put again with a new TTL is not removed.
+	 *
+	 * @return true if a value was removed.
+	 */
+	boolean removeExpired(K key, long currentTime) throws Exception;
+}
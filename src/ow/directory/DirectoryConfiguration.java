@@ -34,6 +34,10 @@ public class DirectoryConfiguration implements Serializable {
 	public final static long DEFAULT_EXPIRATION_TIME = -1L;	// does not expire
 	public final static HeapOverflowAction DEFAULT_HEAP_OVERFLOW_ACTION = HeapOverflowAction.LRU;
 	public final static long DEFAULT_REQUIRED_FREE_HEAP_TO_PUT = 128 * 1024L;	// 128 KB
+	public final static long DEFAULT_OFF_HEAP_CAPACITY = 64 * 1024 * 1024L;	// 64 MB
+	public final static long DEFAULT_CACHE_SIZE = 0L;	// default of the backend
+	public final static long DEFAULT_CHECKPOINT_BYTES_INTERVAL = 0L;	// default of the backend
+	public final static long DEFAULT_SYNC_INTERVAL = 1000L;	// 1 sec
 
 
 	// Expiration time (in millisecond)
@@ -47,7 +51,7 @@ public class DirectoryConfiguration implements Serializable {
 
 	// How does the directory treat heap overflow
 	// Note: this flag works only with on-memory key-value store.
-	// In other words, works with "VolatileMap" and "PersistentMap" and does not work with "BerkeleyDB".
+	// In other words, works with "VolatileMap", "ConcurrentMap" and "PersistentMap" and does not work with "BerkeleyDB".
 	public HeapOverflowAction heapOverflowAction = DEFAULT_HEAP_OVERFLOW_ACTION;
 	public HeapOverflowAction getHeapOverflowAction() { return this.heapOverflowAction; }
 	public HeapOverflowAction setHeapOverflowAction(HeapOverflowAction flag) {
@@ -63,4 +67,46 @@ public class DirectoryConfiguration implements Serializable {
 		this.reqFreeHeap = mem;
 		return old;
 	}
+
+	// Bytes out of the Java heap to hold values
+	// Note: this works only with "OffHeapMap",
+	// on which the heap overflow action is taken when the capacity is exhausted.
+	private long offHeapCapacity = DEFAULT_OFF_HEAP_CAPACITY;
+	public long getOffHeapCapacity() { return this.offHeapCapacity; }
+	public long setOffHeapCapacity(long capacity) {
+		long old = this.offHeapCapacity;
+		this.offHeapCapacity = capacity;
+		return old;
+	}
+
+	// Bytes of the cache of a backend database, 0 for the default of the backend
+	// Note: this works only with "BerkeleyDB" and "DeferredWriteBerkeleyDB",
+	// and is shared by the directories in a working directory.
+	private long cacheSize = DEFAULT_CACHE_SIZE;
+	public long getCacheSize() { return this.cacheSize; }
+	public long setCacheSize(long size) {
+		long old = this.cacheSize;
+		this.cacheSize = size;
+		return old;
+	}
+
+	// Bytes written to the log between checkpoints, 0 for the default of the backend
+	// Note: this works only with "BerkeleyDB" and "DeferredWriteBerkeleyDB".
+	private long checkpointBytesInterval = DEFAULT_CHECKPOINT_BYTES_INTERVAL;
+	public long getCheckpointBytesInterval() { return this.checkpointBytesInterval; }
+	public long setCheckpointBytesInterval(long bytes) {
+		long old = this.checkpointBytesInterval;
+		this.checkpointBytesInterval = bytes;
+		return old;
+	}
+
+	// Interval (in millisecond) to write deferred updates to disk, 0 or negative to write them only on close
+	// Note: this works only with "DeferredWriteBerkeleyDB" and "MappedLog".
+	private long syncInterval = DEFAULT_SYNC_INTERVAL;
+	public long getSyncInterval() { return this.syncInterval; }
+	public long setSyncInterval(long interval) {
+		long old = this.syncInterval;
+		this.syncInterval = interval;
+		return old;
+	}
 }
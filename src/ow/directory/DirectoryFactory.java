@@ -28,7 +28,12 @@ public class DirectoryFactory {
 	private final static Class/*<DirectoryProvider>*/[] PROVIDERS = {
 		ow.directory.inmemory.VolatileMapProvider.class,		// "VolatileMap"
 		ow.directory.inmemory.PersistentMapProvider.class,	// "PersistentMap"
-		ow.directory.berkeleydb.BerkeleyDBProvider.class		// "BerkeleyDB"
+		ow.directory.inmemory.LoggedMapProvider.class,		// "LoggedMap"
+		ow.directory.inmemory.OffHeapMapProvider.class,		// "OffHeapMap"
+		ow.directory.inmemory.ConcurrentMapProvider.class,	// "ConcurrentMap"
+		ow.directory.berkeleydb.BerkeleyDBProvider.class,		// "BerkeleyDB"
+		ow.directory.berkeleydb.DeferredWriteBerkeleyDBProvider.class,	// "DeferredWriteBerkeleyDB"
+		ow.directory.mapped.MappedLogProvider.class			// "MappedLog"
 	};
 
 	private final static HashMap<String,DirectoryProvider> providerTable;
@@ -55,7 +60,7 @@ public class DirectoryFactory {
 
 	/**
 	 * Return a directory provider associate with the given name.
-	 * The name should be one of the following names: "BerkeleyDB", "PersistentMap" or "VolatileMap".
+	 * The name should be one of the following names: "BerkeleyDB", "DeferredWriteBerkeleyDB", "MappedLog", "PersistentMap", "LoggedMap", "OffHeapMap", "ConcurrentMap" or "VolatileMap".
 	 *
 	 * @param providerName name of a directory provider. 
 	 * @return a directory provider.
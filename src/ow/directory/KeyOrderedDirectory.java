@@ -0,0 +1,46 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory;
+
+import java.util.Iterator;
+
+/**
+ * A directory which enumerates its keys in order by itself, such as one on a B-tree.
+ * Iterators are weakly consistent and need not be exhausted.
+ * A wrapping directory implements this interface by delegation and returns null
+ * if the underlying directory does not keep its keys in order.
+ */
+public interface KeyOrderedDirectory<K> {
+	/**
+	 * Returns keys in ascending order.
+	 *
+	 * @param from null to start from the smallest key.
+	 * @param inclusive true if the keys include from.
+	 * @param to exclusive. null to continue to the largest key.
+	 */
+	Iterator<K> ascendingKeys(K from, boolean inclusive, K to);
+
+	/**
+	 * Returns keys in descending order.
+	 *
+	 * @param from null to start from the largest key.
+	 * @param inclusive true if the keys include from.
+	 * @param to exclusive. null to continue to the smallest key.
+	 */
+	Iterator<K> descendingKeys(K from, boolean inclusive, K to);
+}
@@ -24,12 +24,24 @@ import java.util.Set;
 /**
  * An adapter which converts a {@link SingleValueDirectory SingleValueDirectory}
  * to a {@link MultiValueDirectory MultiValueDirectory}.
+ * Puts and conditional removes of a key are serialized by one of striped locks.
  */
-public final class MultiValueAdapterForSingleValueDirectory<K,V> implements MultiValueDirectory<K,V> {
+public final class MultiValueAdapterForSingleValueDirectory<K,V> implements MultiValueDirectory<K,V>, BatchableDirectory, KeyOrderedDirectory<K> {
+	private final static int NUM_STRIPES = 64;
+
 	private final SingleValueDirectory<K,V> dir;
+	private final Object[] locks = new Object[NUM_STRIPES];
 
 	public MultiValueAdapterForSingleValueDirectory(SingleValueDirectory<K,V> dir) {
 		this.dir = dir;
+
+		for (int i = 0; i < NUM_STRIPES; i++) this.locks[i] = new Object();
+	}
+
+	private Object lockFor(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return this.locks[(h & 0x7fffffff) % NUM_STRIPES];
 	}
 
 	public Set<V> get(K key) throws Exception {
@@ -45,10 +57,26 @@ public final class MultiValueAdapterForSingleValueDirectory<K,V> implements Mult
 	}
 
 	public V remove(K key, V value) throws Exception {
-		if (value != null && value.equals(this.dir.get(key)))
-			return this.dir.remove(key);
-		else
-			return null;
+		if (value == null) return null;
+
+		synchronized (this.lockFor(key)) {
+			if (value.equals(this.dir.get(key)))
+				return this.dir.remove(key);
+			else
+				return null;
+		}
+	}
+
+	public V put(K key, V value) throws Exception {
+		synchronized (this.lockFor(key)) {
+			return this.dir.put(key, value);
+		}
+	}
+
+	public V put(K key, V value, long ttl) throws Exception {
+		synchronized (this.lockFor(key)) {
+			return this.dir.put(key, value, ttl);
+		}
 	}
 
 	public Set<V> remove(K key) throws Exception {
@@ -67,12 +95,28 @@ public final class MultiValueAdapterForSingleValueDirectory<K,V> implements Mult
 	// call directly the corresponding methods provided by the SingleValueDirectory
 	//
 
-	public V put(K key, V value) throws Exception { return this.dir.put(key, value); }
-	public V put(K key, V value, long ttl) throws Exception { return this.dir.put(key, value, ttl); }
 	public boolean isEmpty() { return this.dir.isEmpty(); }
 	public Set<K> keySet() { return this.dir.keySet(); }
 	public Set<Entry<K, V>> entrySet() { return this.dir.entrySet(); }
 	public void clear() { this.dir.clear(); }
 	public void close() { this.dir.close(); }
 	public Iterator<Entry<K, V>> iterator() { return this.dir.iterator(); }
+
+	public void beginBatch() throws Exception {
+		if (this.dir instanceof BatchableDirectory) ((BatchableDirectory)this.dir).beginBatch();
+	}
+
+	public void endBatch() throws Exception {
+		if (this.dir instanceof BatchableDirectory) ((BatchableDirectory)this.dir).endBatch();
+	}
+
+	public Iterator<K> ascendingKeys(K from, boolean inclusive, K to) {
+		if (!(this.dir instanceof KeyOrderedDirectory)) return null;
+		return ((KeyOrderedDirectory<K>)this.dir).ascendingKeys(from, inclusive, to);
+	}
+
+	public Iterator<K> descendingKeys(K from, boolean inclusive, K to) {
+		if (!(this.dir instanceof KeyOrderedDirectory)) return null;
+		return ((KeyOrderedDirectory<K>)this.dir).descendingKeys(from, inclusive, to);
+	}
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A directory which keeps keys of the underlying directory in order beside it,
+ * so that keys in a range can be enumerated without copying all the keys.
+ * If the underlying directory is a {@link KeyOrderedDirectory KeyOrderedDirectory},
+ * such as one on Berkeley DB, keys are scanned on it and no index is kept.
+ * The index is weakly consistent:
+ * it can contain keys whose values have been removed by expiration or by an iterator.
+ * Such keys are skipped and dropped from the index by iterators over keys,
+ * and can also be dropped by {@link #prune(Comparable) prune()}.
+ * A subclass can track modifications by overriding {@link #modified(Comparable) modified()}.
+ */
+public class RangeIndexedMultiValueDirectory<K extends Comparable<K>,V> implements MultiValueDirectory<K,V>, BatchableDirectory {
+	private final MultiValueDirectory<K,V> dir;
+	private final KeyOrderedDirectory<K> orderedDir;	// null if keys are indexed
+	private final ConcurrentSkipListSet<K> index;
+
+	public RangeIndexedMultiValueDirectory(MultiValueDirectory<K,V> dir) {
+		this.dir = dir;
+
+		if (dir instanceof KeyOrderedDirectory
+				&& ((KeyOrderedDirectory<K>)dir).ascendingKeys(null, true, null) != null) {
+			this.orderedDir = (KeyOrderedDirectory<K>)dir;
+			this.index = null;
+		}
+		else {
+			this.orderedDir = null;
+			this.index = new ConcurrentSkipListSet<K>();
+
+			// the underlying directory can be a persistent one
+			Set<K> keys = dir.keySet();
+			if (keys != null) this.index.addAll(keys);
+		}
+	}
+
+	public Set<V> get(K key) throws Exception {
+		return this.dir.get(key);
+	}
+
+	public V put(K key, V value) throws Exception {
+		V ret = this.dir.put(key, value);
+		if (this.index != null) this.index.add(key);
+		this.modified(key);
+		return ret;
+	}
+
+	public V put(K key, V value, long ttl) throws Exception {
+		V ret = this.dir.put(key, value, ttl);
+		if (this.index != null) this.index.add(key);
+		this.modified(key);
+		return ret;
+	}
+
+	public V remove(K key, V value) throws Exception {
+		V ret = this.dir.remove(key, value);
+		if (ret != null) {
+			this.prune(key);
+			this.modified(key);
+		}
+		return ret;
+	}
+
+	public Set<V> remove(K key) throws Exception {
+		Set<V> ret = this.dir.remove(key);
+		this.prune(key);
+		if (ret != null) this.modified(key);
+		return ret;
+	}
+
+	/**
+	 * Drops the specified key from the index if no value is associated with it.
+	 */
+	public void prune(K key) throws Exception {
+		if (this.index == null) return;	// not indexed
+
+		if (this.dir.get(key) == null) {
+			if (this.index.remove(key)) this.modified(key);
+
+			// a value can have been put concurrently
+			if (this.dir.get(key) != null) this.index.add(key);
+		}
+	}
+
+	/**
+	 * Called after a value associated with the key has been put or removed.
+	 * Expiration of values is noticed only when the key is pruned or skipped by an iterator over keys,
+	 * and is not noticed if keys are scanned on the underlying directory.
+	 */
+	protected void modified(K key) {}
+
+	/**
+	 * Returns keys following the specified key in ascending order.
+	 *
+	 * @param key null to start from the smallest key.
+	 */
+	public Iterator<K> keysAfter(K key) {
+		if (this.orderedDir != null) return this.orderedDir.ascendingKeys(key, false, null);
+
+		return this.pruning((key != null ? this.index.tailSet(key, false) : this.index).iterator());
+	}
+
+	/**
+	 * Returns keys from the specified key (inclusive) to another key (exclusive) in ascending order.
+	 *
+	 * @param to null to continue to the largest key.
+	 */
+	public Iterator<K> keysBetween(K from, K to) {
+		if (this.orderedDir != null) return this.orderedDir.ascendingKeys(from, true, to);
+
+		return this.pruning((to != null ? this.index.subSet(from, true, to, false) : this.index.tailSet(from, true)).iterator());
+	}
+
+	/**
+	 * Returns keys in descending order from the specified key (inclusive).
+	 * The keys wrap around from the smallest key to the largest one
+	 * and end before reaching the specified key again.
+	 */
+	public Iterator<K> keysDescendingFrom(K key) {
+		final Iterator<K> head, tail;
+		if (this.orderedDir != null) {
+			head = this.orderedDir.descendingKeys(key, true, null);
+			tail = this.orderedDir.descendingKeys(null, true, key);
+		}
+		else {
+			head = this.pruning(this.index.headSet(key, true).descendingIterator());
+			tail = this.pruning(this.index.tailSet(key, false).descendingIterator());
+		}
+
+		return new Iterator<K>() {
+			public boolean hasNext() { return head.hasNext() || tail.hasNext(); }
+			public K next() {
+				if (head.hasNext()) return head.next();
+				if (tail.hasNext()) return tail.next();
+				throw new NoSuchElementException();
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	/**
+	 * Returns an iterator over indexed keys which skips keys without values and prunes them.
+	 */
+	private Iterator<K> pruning(final Iterator<K> it) {
+		return new Iterator<K>() {
+			private K next = null;
+
+			public boolean hasNext() {
+				while (this.next == null && it.hasNext()) {
+					K key = it.next();
+					try {
+						if (dir.get(key) != null) this.next = key;
+						else prune(key);
+					}
+					catch (Exception e) {
+						this.next = key;	// leave it to the caller
+					}
+				}
+
+				return this.next != null;
+			}
+
+			public K next() {
+				if (!this.hasNext()) throw new NoSuchElementException();
+
+				K ret = this.next;
+				this.next = null;
+				return ret;
+			}
+
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	public boolean isEmpty() {
+		return this.dir.isEmpty();
+	}
+
+	public Set<K> keySet() {
+		return this.dir.keySet();
+	}
+
+	public Set<Map.Entry<K,V>> entrySet() {
+		return this.dir.entrySet();
+	}
+
+	public void clear() {
+		// clear the index first so that a key put concurrently is kept in it
+		if (this.index != null) this.index.clear();
+		this.dir.clear();
+	}
+
+	public void close() {
+		this.dir.close();
+	}
+
+	public Iterator<Map.Entry<K,V>> iterator() {
+		return this.dir.iterator();
+	}
+
+	public void beginBatch() throws Exception {
+		if (this.dir instanceof BatchableDirectory) ((BatchableDirectory)this.dir).beginBatch();
+	}
+
+	public void endBatch() throws Exception {
+		if (this.dir instanceof BatchableDirectory) ((BatchableDirectory)this.dir).endBatch();
+	}
+}
@@ -17,14 +17,20 @@
 
 package ow.directory.berkeleydb;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ow.directory.BatchableDirectory;
+import ow.directory.KeyOrderedDirectory;
 import ow.id.ID;
+import ow.util.Timer;
 
 import com.sleepycat.bind.ByteArrayBinding;
 import com.sleepycat.bind.EntryBinding;
@@ -35,18 +41,32 @@ import com.sleepycat.bind.tuple.StringBinding;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.collections.StoredSortedMap;
 import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
-import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 
-public abstract class AbstractJEDirectory<K,V> {
+/**
+ * The base of directories on Berkeley DB Java Edition.
+ * A directory is transactional and each update is committed (and forced to disk) by itself
+ * unless updates are batched by {@link #beginBatch() beginBatch()} and {@link #endBatch() endBatch()},
+ * in which the updates are committed without forcing and the log is forced once at the end.
+ * A directory in the deferred-write mode is not transactional and
+ * its updates are written to disk periodically, on eviction from the cache and on close.
+ *
+ * Keys and entries are scanned in the order of the underlying B-tree,
+ * in chunks of {@link #SCAN_CHUNK_SIZE SCAN_CHUNK_SIZE} keys by a cursor closed after each chunk,
+ * so that an iterator need not be exhausted nor closed.
+ */
+public abstract class AbstractJEDirectory<K,V> implements BatchableDirectory, KeyOrderedDirectory<K> {
 	final static Logger logger = Logger.getLogger("directory");
 
+	final static int SCAN_CHUNK_SIZE = 256;
+
 	private final String dbName;
 	Environment env;
 	Database db;
@@ -54,16 +74,24 @@ public abstract class AbstractJEDirectory<K,V> {
 	EntryBinding<K> keyBinding;
 	EntryBinding<V> dataBinding;
 
+	private final boolean transactional;
+	private final ThreadLocal<int[]> batchDepth = new ThreadLocal<int[]>() {
+		protected int[] initialValue() { return new int[1]; }
+	};
+	private Runnable syncTask = null;
+
 	private ClassCatalog catalog;
 	private boolean catalogPrepared = false;
 
 	protected AbstractJEDirectory(Class<K> typeK, Class<V> typeV, Environment env, String dbName,
-			boolean allowMultipleValues) throws Exception {
+			boolean allowMultipleValues, boolean deferredWrite, long syncInterval) throws Exception {
 		this.env = env;
+		this.transactional = !deferredWrite;
 
 		// prepare DatabaseConfig
 		DatabaseConfig dbConfig = new DatabaseConfig();
-		dbConfig.setTransactional(true);
+		dbConfig.setTransactional(this.transactional);
+		dbConfig.setDeferredWrite(deferredWrite);
 		dbConfig.setAllowCreate(BerkeleyDBProvider.ALLOW_CREATE);
 		if (allowMultipleValues)
 			dbConfig.setSortedDuplicates(true);
@@ -79,14 +107,30 @@ public abstract class AbstractJEDirectory<K,V> {
 		}
 
 		// open DB
-		Transaction txn = env.beginTransaction(null, null);
-
 		this.dbName = dbName;
 		this.db = env.openDatabase(null, this.dbName, dbConfig);
 
-		txn.commit();
-
 		this.map = new StoredSortedMap<K,V>(db, keyBinding, dataBinding, true);
+
+		// write deferred updates periodically
+		if (deferredWrite && syncInterval > 0L) {
+			this.syncTask = new Runnable() {
+				public void run() {
+					Database d = db;
+					if (d == null) return;
+
+					try {
+						d.sync();
+					}
+					catch (Exception e) {
+						logger.log(Level.WARNING, "Database#sync() failed.", e);
+					}
+				}
+			};
+
+			Timer.getSingletonTimer().scheduleAtFixedRate(this.syncTask,
+					Timer.currentTimeMillis() + syncInterval, syncInterval, true /*isDaemon*/);
+		}
 	}
 
 	/**
@@ -116,13 +160,18 @@ public abstract class AbstractJEDirectory<K,V> {
 	}
 
 	public void close() {
+		if (this.syncTask != null) {
+			Timer.getSingletonTimer().cancel(this.syncTask);
+			this.syncTask = null;
+		}
+
 		try {
 			if (this.catalog != null) {
 				this.catalog.close();  this.catalog = null;
 			}
 
 			if (this.db != null) {
-				this.db.close();  this.db = null;
+				this.db.close();  this.db = null;	// writes deferred updates
 			}
 		}
 		catch (DatabaseException e) {
@@ -132,138 +181,311 @@ public abstract class AbstractJEDirectory<K,V> {
 
 	public Set<Map.Entry<K,V>> entrySet() {
 		return this.map.entrySet();
-/*
-		Set<Map.Entry<K,V>> result = new HashSet<Map.Entry<K,V>>();
+	}
 
-		DatabaseEntry keyEntry = new DatabaseEntry();
-		DatabaseEntry dataEntry = new DatabaseEntry();
+	//
+	// Updates and batches
+	//
 
-		Transaction txn = env.beginTransaction(null, null);
-		Cursor cursor = this.db.openCursor(txn, null);
+	/**
+	 * Begins a transaction for an update.
+	 *
+	 * @return null in the deferred-write mode.
+	 */
+	Transaction beginUpdate() throws DatabaseException {
+		return (this.transactional ? this.env.beginTransaction(null, null) : null);
+	}
+
+	/**
+	 * Commits or aborts the transaction begun by {@link #beginUpdate() beginUpdate()}.
+	 * A commit in a batch does not force the log, which is forced by {@link #endBatch() endBatch()}.
+	 */
+	void endUpdate(Transaction txn, boolean commit) throws DatabaseException {
+		if (txn == null) return;
+
+		if (!commit)
+			txn.abort();
+		else if (this.batchDepth.get()[0] > 0)
+			txn.commitNoSync();
+		else
+			txn.commit();
+	}
 
-		OperationStatus status = cursor.getFirst(keyEntry, dataEntry, LockMode.DEFAULT);
-		while (status == OperationStatus.SUCCESS) {
-			K key = (K)this.keyBinding.entryToObject(keyEntry);
-			V value = (V)this.dataBinding.entryToObject(dataEntry);
+	public void beginBatch() {
+		this.batchDepth.get()[0]++;
+	}
+
+	public void endBatch() throws DatabaseException {
+		int[] depth = this.batchDepth.get();
+		if (depth[0] <= 0 || --depth[0] > 0) return;
 
-			result.add(new JEDirectoryEntry(key, value));
+		if (this.transactional) {
+			this.env.flushLog(true);	// group commit
 		}
+	}
+
+	public abstract V put(K key, V value) throws Exception;
+
+	/**
+	 * Removes a key-value pair found by an iterator.
+	 */
+	abstract void removeEntry(K key, V value) throws Exception;
 
-		cursor.close();
-		txn.commit();
+	//
+	// Scans
+	//
 
-		return result;
-*/
+	public Iterator<K> ascendingKeys(K from, boolean inclusive, K to) {
+		return new KeyScanner(from, inclusive, to, false);
 	}
 
+	public Iterator<K> descendingKeys(K from, boolean inclusive, K to) {
+		return new KeyScanner(from, inclusive, to, true);
+	}
+
+	/**
+	 * Returns all the key-value pairs in ascending order of keys.
+	 */
 	public Iterator<Map.Entry<K,V>> iterator() {
-		return new JEDirectoryIterator(); 
+		return new EntryScanner();
 	}
 
-	private class JEDirectoryIterator implements Iterator<Map.Entry<K,V>> {
-		Transaction txn = null;
-		Cursor cursor = null;
-		OperationStatus lastStatus;
-		DatabaseEntry keyEntry = new DatabaseEntry();
-		DatabaseEntry dataEntry = new DatabaseEntry();
+	private DatabaseEntry toEntry(K key) {
+		if (key == null) return null;
 
-		private JEDirectoryIterator() {
-			try {
-				this.txn = env.beginTransaction(null, null);
-				this.cursor = db.openCursor(this.txn, null);
-			}
-			catch (DatabaseException e) {
-				logger.log(Level.WARNING, "Could not begin transaction.");
-			}
+		DatabaseEntry e = new DatabaseEntry();
+		this.keyBinding.objectToEntry(key, e);
+		return e;
+	}
+
+	/**
+	 * Compares keys byte-wise as the default comparator of JE does.
+	 */
+	private static int compare(DatabaseEntry a, DatabaseEntry b) {
+		byte[] x = a.getData(), y = b.getData();
+		int xOff = a.getOffset(), yOff = b.getOffset();
+		int len = Math.min(a.getSize(), b.getSize());
+
+		for (int i = 0; i < len; i++) {
+			int c = (x[xOff + i] & 0xff) - (y[yOff + i] & 0xff);
+			if (c != 0) return c;
+		}
+
+		return a.getSize() - b.getSize();
+	}
+
+	private static DatabaseEntry copy(DatabaseEntry e) {
+		return new DatabaseEntry(e.getData(), e.getOffset(), e.getSize());
+	}
+
+	/**
+	 * Moves the cursor to the first key after (before if descending) the specified key
+	 * or on the key if inclusive.
+	 */
+	private static OperationStatus position(Cursor cursor, DatabaseEntry start, boolean inclusive, boolean descending,
+			DatabaseEntry keyEntry, DatabaseEntry dataEntry) throws DatabaseException {
+		if (start == null) {
+			return (descending ? cursor.getLast(keyEntry, dataEntry, null) : cursor.getFirst(keyEntry, dataEntry, null));
+		}
+
+		keyEntry.setData(start.getData(), start.getOffset(), start.getSize());
+		OperationStatus status = cursor.getSearchKeyRange(keyEntry, dataEntry, null);
+		if (status != OperationStatus.SUCCESS) {
+			// all the keys are smaller than start
+			return (descending ? cursor.getLast(keyEntry, dataEntry, null) : status);
+		}
+
+		boolean found = (compare(keyEntry, start) == 0);
+		if (found && inclusive) return status;
+
+		if (descending)
+			return cursor.getPrevNoDup(keyEntry, dataEntry, null);
+		else if (found)
+			return cursor.getNextNoDup(keyEntry, dataEntry, null);
+		else
+			return status;
+	}
+
+	private abstract class Scanner<T> implements Iterator<T> {
+		final boolean descending;
+		private final boolean keysOnly;
+		private final DatabaseEntry end;
+		private DatabaseEntry resumeKey;
+		private boolean inclusive;
+		private boolean exhausted = false;
+
+		private final List<T> chunk = new ArrayList<T>();
+		private int pos = 0;
+		T last = null;
+
+		Scanner(DatabaseEntry start, boolean inclusive, DatabaseEntry end, boolean descending, boolean keysOnly) {
+			this.resumeKey = start;
+			this.inclusive = inclusive;
+			this.end = end;
+			this.descending = descending;
+			this.keysOnly = keysOnly;
+		}
+
+		/**
+		 * Reads a chunk into the list.
+		 *
+		 * @return the key of the last record read, or null if the end has been reached.
+		 */
+		abstract DatabaseEntry read(Cursor cursor, OperationStatus status,
+				DatabaseEntry keyEntry, DatabaseEntry dataEntry, List<T> chunk) throws DatabaseException;
+
+		boolean beyondEnd(DatabaseEntry keyEntry) {
+			if (this.end == null) return false;
+
+			int c = compare(keyEntry, this.end);
+			return (this.descending ? c <= 0 : c >= 0);
 		}
 
-		protected void finalize() throws Throwable {
+		private void fill() {
+			this.chunk.clear();
+			this.pos = 0;
+
+			Database d = db;
+			if (d == null) { this.exhausted = true; return; }
+
+			DatabaseEntry keyEntry = new DatabaseEntry();
+			DatabaseEntry dataEntry = new DatabaseEntry();
+			if (this.keysOnly) dataEntry.setPartial(0, 0, true);
+
+			Cursor cursor = null;
 			try {
-				if (this.cursor != null)
-					this.cursor.close();
-					this.cursor = null;	// prevent re-invocation of close().
+				cursor = d.openCursor(null, CursorConfig.READ_COMMITTED);
+
+				OperationStatus status = position(cursor, this.resumeKey, this.inclusive, this.descending, keyEntry, dataEntry);
+				this.resumeKey = this.read(cursor, status, keyEntry, dataEntry, this.chunk);
+				this.inclusive = false;
 			}
 			catch (DatabaseException e) {
-				logger.log(Level.WARNING, "Cursor#close() failed." , e);
+				logger.log(Level.WARNING, "A scan over a JE database failed.", e);
+				this.resumeKey = null;
 			}
-			try {
-				if (this.txn != null)
-					this.txn.commit();
-					this.txn = null;		// prevent re-invocatoin of commit().
-			}
-			catch (DatabaseException e) {
-				logger.log(Level.WARNING, "Transaction#commit() failed." , e);
+			finally {
+				try {
+					if (cursor != null) cursor.close();
+				}
+				catch (DatabaseException e) { /* ignore */ }
 			}
+
+			if (this.resumeKey == null) this.exhausted = true;
 		}
 
 		public boolean hasNext() {
-			// proceed the cursor
+			while (this.pos >= this.chunk.size()) {
+				if (this.exhausted) return false;
+				this.fill();
+			}
+
+			return true;
+		}
+
+		public T next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+
+			this.last = this.chunk.get(this.pos++);
+			return this.last;
+		}
+	}
+
+	private final class KeyScanner extends Scanner<K> {
+		KeyScanner(K from, boolean inclusive, K to, boolean descending) {
+			super(toEntry(from), inclusive, toEntry(to), descending, true);
+		}
+
+		DatabaseEntry read(Cursor cursor, OperationStatus status,
+				DatabaseEntry keyEntry, DatabaseEntry dataEntry, List<K> chunk) throws DatabaseException {
+			DatabaseEntry lastKey = null;
+			while (status == OperationStatus.SUCCESS) {
+				if (this.beyondEnd(keyEntry)) return null;
+
+				chunk.add(keyBinding.entryToObject(keyEntry));
+				lastKey = copy(keyEntry);
+				if (chunk.size() >= SCAN_CHUNK_SIZE) return lastKey;
+
+				status = (this.descending ? cursor.getPrevNoDup(keyEntry, dataEntry, null)
+						: cursor.getNextNoDup(keyEntry, dataEntry, null));
+			}
+
+			return null;
+		}
+
+		public void remove() {
+			if (this.last == null) throw new IllegalStateException();
+
 			try {
-				lastStatus = this.cursor.getNext(keyEntry, dataEntry, LockMode.DEFAULT);
+				db.delete(null, toEntry(this.last));
 			}
 			catch (DatabaseException e) {
-				logger.log(Level.WARNING, "Cursor#getNext() throws a DatabaseException.", e);
+				logger.log(Level.WARNING, "Database#delete() failed.", e);
 			}
+			this.last = null;
+		}
+	}
 
-			if (lastStatus == OperationStatus.SUCCESS)
-				return true;
-			else {
-				try {
-					this.finalize();
-				}
-				catch (Throwable e) {}
-				return false;
-			}
+	private final class EntryScanner extends Scanner<Map.Entry<K,V>> {
+		EntryScanner() {
+			super(null, true, null, false, false);
 		}
 
-		public Map.Entry<K,V> next() {
-			K key = (K)keyBinding.entryToObject(this.keyEntry);
-			V value = (V)dataBinding.entryToObject(this.dataEntry);
+		/** Reads all the values of a key in a chunk. */
+		DatabaseEntry read(Cursor cursor, OperationStatus status,
+				DatabaseEntry keyEntry, DatabaseEntry dataEntry, List<Map.Entry<K,V>> chunk) throws DatabaseException {
+			DatabaseEntry lastKey = null;
+			int numKeys = 0;
+
+			while (status == OperationStatus.SUCCESS) {
+				if (lastKey == null || compare(keyEntry, lastKey) != 0) {
+					if (numKeys >= SCAN_CHUNK_SIZE) return lastKey;
+
+					lastKey = copy(keyEntry);
+					numKeys++;
+				}
+
+				chunk.add(new JEDirectoryEntry(keyBinding.entryToObject(keyEntry), dataBinding.entryToObject(dataEntry)));
+
+				status = cursor.getNext(keyEntry, dataEntry, null);
+			}
 
-			return new JEDirectoryEntry(this, key, value);
+			return null;
 		}
 
 		public void remove() {
+			if (this.last == null) throw new IllegalStateException();
+
 			try {
-				this.cursor.delete();
+				removeEntry(this.last.getKey(), this.last.getValue());
 			}
-			catch (DatabaseException e) {
-				logger.log(Level.WARNING, "Cursor#delete() or getNext() throws a DatabaseException.", e);
+			catch (Exception e) {
+				logger.log(Level.WARNING, "Could not remove an entry.", e);
 			}
+			this.last = null;
 		}
-
 	}
 
 	private class JEDirectoryEntry implements Map.Entry<K,V> {
 		K key;  V value;
-		JEDirectoryIterator it = null;
 
 		JEDirectoryEntry(K key, V value) {
 			this.key = key; this.value = value;
 		}
-		JEDirectoryEntry(JEDirectoryIterator it, K key, V value) {
-			this.it = it;
-			this.key = key; this.value = value;
-		}
 
 		public K getKey() { return this.key; }
 		public V getValue() { return this.value; }
 
 		public V setValue(V value) {
 			V ret = this.value;
-			this.value = value;
-
-			if (this.it != null) {
-				DatabaseEntry newDataEntry = new DatabaseEntry();
-				dataBinding.objectToEntry(value, newDataEntry);
-
-				try {
-					it.cursor.putCurrent(newDataEntry);
-				}
-				catch (DatabaseException e) {
-					throw new IllegalArgumentException(e);
-				}
+			try {
+				removeEntry(this.key, ret);
+				put(this.key, value);
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Could not put a value.", e);
 			}
+			this.value = value;
 
 			return ret;
 		}
@@ -292,7 +514,7 @@ public abstract class AbstractJEDirectory<K,V> {
 				if (!this.catalogPrepared) {
 					// prepare a ClassCatalog
 					DatabaseConfig dbConfig = new DatabaseConfig();
-					dbConfig.setTransactional(true);
+					dbConfig.setTransactional(this.transactional);
 					dbConfig.setAllowCreate(BerkeleyDBProvider.ALLOW_CREATE);
 
 					Database catalogDB = env.openDatabase(null, this.dbName + ".catalog", dbConfig);
@@ -28,10 +28,17 @@ import ow.directory.MultiValueDirectory;
 import ow.directory.SingleValueDirectory;
 
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.DatabaseNotFoundException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
-import com.sleepycat.je.Transaction;
 
+/**
+ * Provides transactional directories on Berkeley DB Java Edition.
+ * The cache size and the checkpoint interval of the JE environment for a working directory
+ * are taken from the configuration of the first directory opened in it.
+ *
+ * @see DeferredWriteBerkeleyDBProvider
+ */
 public class BerkeleyDBProvider extends DirectoryProvider {
 	private final static String NAME = "BerkeleyDB";
 
@@ -39,61 +46,67 @@ public class BerkeleyDBProvider extends DirectoryProvider {
 	protected final static boolean ALLOW_CREATE = true;
 
 	private final Map<File,Environment> envTable = Collections.synchronizedMap(new HashMap<File,Environment>());
-	private EnvironmentConfig envConfig = null;
-	private boolean initialized = false;
+	private final boolean deferredWrite;
+
+	public BerkeleyDBProvider() {
+		this(false);
+	}
+
+	protected BerkeleyDBProvider(boolean deferredWrite) {
+		this.deferredWrite = deferredWrite;
+	}
 
 	public String getName() {
 		return NAME;
 	}
 
 	protected <K,V> SingleValueDirectory<K,V> provideSingleValueDirectory(Class typeK, Class typeV, String workingDir, String dbName,
-			DirectoryConfiguration config /* ignored */) throws Exception {
-		init();
-
-		Environment env = this.getEnvironment(new File(workingDir));
-		return new SingleValueJEDirectory<K,V>(typeK, typeV, env, dbName);
+			DirectoryConfiguration config) throws Exception {
+		Environment env = this.getEnvironment(new File(workingDir), config);
+		return new SingleValueJEDirectory<K,V>(typeK, typeV, env, dbName,
+				this.deferredWrite, config.getSyncInterval());
 	}
 
 	protected <K,V> MultiValueDirectory<K,V> provideMultiValueDirectory(Class typeK, Class typeV, String workingDir, String dbName,
-			DirectoryConfiguration config /* ignored */) throws Exception {
-		init();
-
-		Environment env = this.getEnvironment(new File(workingDir));
-		return new MultiValueJEDirectory<K,V>(typeK, typeV, env, dbName);
-	}
-
-	private void init() {
-		if (!this.initialized) {
-			// prepare Environment config
-			this.envConfig = new EnvironmentConfig();
-			this.envConfig.setTransactional(true);
-			this.envConfig.setAllowCreate(BerkeleyDBProvider.ALLOW_CREATE);	// create a DB if it does not exist.
-
-			this.initialized = true;
-		}
+			DirectoryConfiguration config) throws Exception {
+		Environment env = this.getEnvironment(new File(workingDir), config);
+		return new MultiValueJEDirectory<K,V>(typeK, typeV, env, dbName,
+				this.deferredWrite, config.getSyncInterval());
 	}
 
 	public void removeDirectory(String dir, String dbName) throws Exception {
-		Environment env = this.getEnvironment(new File(dir));
+		Environment env = this.getEnvironment(new File(dir), DirectoryConfiguration.getDefaultConfiguration());
 			// throws DatabaseException
 
-		Transaction txn = env.beginTransaction(null, null);
-		env.removeDatabase(txn, dbName);
-		env.removeDatabase(txn, dbName + ".catalog");
-		txn.commit();
+		env.removeDatabase(null, dbName);
+		try {
+			env.removeDatabase(null, dbName + ".catalog");
+		}
+		catch (DatabaseNotFoundException e) { /* no catalog for keys and values of primitive types */ }
 	}
 
 	//
 	// Utility methods
 	//
 
-	private Environment getEnvironment(File dir) throws DatabaseException {
-		Environment env = this.envTable.get(dir);
-		if (env == null) {
-			env = new Environment(dir, this.envConfig);
-			this.envTable.put(dir, env);
+	private Environment getEnvironment(File dir, DirectoryConfiguration config) throws DatabaseException {
+		synchronized (this.envTable) {
+			Environment env = this.envTable.get(dir);
+			if (env == null) {
+				EnvironmentConfig envConfig = new EnvironmentConfig();
+				envConfig.setTransactional(!this.deferredWrite);
+				envConfig.setAllowCreate(BerkeleyDBProvider.ALLOW_CREATE);	// create a DB if it does not exist.
+				if (config.getCacheSize() > 0L)
+					envConfig.setCacheSize(config.getCacheSize());
+				if (config.getCheckpointBytesInterval() > 0L)
+					envConfig.setConfigParam(EnvironmentConfig.CHECKPOINTER_BYTES_INTERVAL,
+							Long.toString(config.getCheckpointBytesInterval()));
+
+				env = new Environment(dir, envConfig);
+				this.envTable.put(dir, env);
+			}
+
+			return env;
 		}
-
-		return env;
 	}
 }
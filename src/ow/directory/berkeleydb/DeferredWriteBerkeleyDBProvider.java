@@ -0,0 +1,37 @@
+/*
+ * Copyright 2006,2009 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.directory.berkeleydb;
+
+/**
+ * Provides directories on Berkeley DB Java Edition in the deferred-write mode ("DeferredWriteBerkeleyDB").
+ * The directories are not transactional and updates are kept in the JE cache
+ * and written to disk every {@link ow.directory.DirectoryConfiguration#getSyncInterval() sync interval},
+ * on eviction from the cache and on close.
+ * Updates in the last interval are lost on a crash.
+ */
+public final class DeferredWriteBerkeleyDBProvider extends BerkeleyDBProvider {
+	private final static String NAME = "DeferredWriteBerkeleyDB";
+
+	public DeferredWriteBerkeleyDBProvider() {
+		super(true);
+	}
+
+	public String getName() {
+		return NAME;
+	}
+}
@@ -32,8 +32,9 @@ import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 
 public class MultiValueJEDirectory<K,V> extends AbstractJEDirectory<K,V> implements MultiValueDirectory<K,V> {
-	protected MultiValueJEDirectory(Class<K> typeK, Class<V> typeV, Environment env, String dbName) throws Exception {
-		super(typeK, typeV, env, dbName, true);
+	protected MultiValueJEDirectory(Class<K> typeK, Class<V> typeV, Environment env, String dbName,
+			boolean deferredWrite, long syncInterval) throws Exception {
+		super(typeK, typeV, env, dbName, true, deferredWrite, syncInterval);
 	}
 
 	public Set<V> get(K key) throws DatabaseException {
@@ -48,40 +49,46 @@ public class MultiValueJEDirectory<K,V> extends AbstractJEDirectory<K,V> impleme
 
 		V ret = null;
 
-		Transaction txn = env.beginTransaction(null, null);
+		Transaction txn = this.beginUpdate();
 		Cursor cursor = db.openCursor(txn, null);
+		boolean succeeded = false;
 
-		if ((cursor.getSearchKey(keyEntry, dataEntry, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
-			V v = (V)dataBinding.entryToObject(dataEntry);
-			if (value.equals(v)) {		// found
-				ret = v;
-				cursor.delete();		// remove here. and put later.
-			}
-			else {
-				while ((cursor.getNextDup(keyEntry, dataEntry, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
-					v = (V)dataBinding.entryToObject(dataEntry);
-					if (value.equals(v)) {	// found
-						ret = v;
-						cursor.delete();	// remove here. and put later.
-						break;
+		try {
+			if ((cursor.getSearchKey(keyEntry, dataEntry, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
+				V v = (V)dataBinding.entryToObject(dataEntry);
+				if (value.equals(v)) {		// found
+					ret = v;
+					cursor.delete();		// remove here. and put later.
+				}
+				else {
+					while ((cursor.getNextDup(keyEntry, dataEntry, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
+						v = (V)dataBinding.entryToObject(dataEntry);
+						if (value.equals(v)) {	// found
+							ret = v;
+							cursor.delete();	// remove here. and put later.
+							break;
+						}
 					}
 				}
 			}
-		}
 
-		// put
-		keyBinding.objectToEntry(key, keyEntry);
-		dataBinding.objectToEntry(value, dataEntry);
+			// put
+			keyBinding.objectToEntry(key, keyEntry);
+			dataBinding.objectToEntry(value, dataEntry);
 
-		if ((cursor.put(keyEntry, dataEntry)) != OperationStatus.SUCCESS) {
-			// NOTREACHED
-			String msg = "Could not put: " + key + ", " + value;
-			logger.log(Level.SEVERE, msg);
-			//throw new DatabaseException(msg);
-		}
+			if ((cursor.put(keyEntry, dataEntry)) != OperationStatus.SUCCESS) {
+				// NOTREACHED
+				String msg = "Could not put: " + key + ", " + value;
+				logger.log(Level.SEVERE, msg);
+				//throw new DatabaseException(msg);
+			}
 
-		cursor.close();
-		txn.commit();
+			succeeded = true;
+		}
+		finally {
+			cursor.close();
+			this.endUpdate(txn, succeeded);
+		}
 
 		return ret;
 	}
@@ -103,60 +110,71 @@ public class MultiValueJEDirectory<K,V> extends AbstractJEDirectory<K,V> impleme
 
 		V ret = null;
 
-		Transaction txn = env.beginTransaction(null, null);
+		Transaction txn = this.beginUpdate();
 		Cursor cursor = db.openCursor(txn, null);
+		boolean succeeded = false;
 
-		if ((cursor.getSearchKey(keyEntry, foundEntry, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
-			do {
-				V v = (V)dataBinding.entryToObject(foundEntry);
-				if (value.equals(v)) {
-					ret = v;
-					cursor.delete();
-					break;
+		try {
+			if ((cursor.getSearchKey(keyEntry, foundEntry, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
+				do {
+					V v = (V)dataBinding.entryToObject(foundEntry);
+					if (value.equals(v)) {
+						ret = v;
+						cursor.delete();
+						break;
+					}
 				}
+				while ((cursor.getNextDup(keyEntry, foundEntry, LockMode.DEFAULT)) == OperationStatus.SUCCESS);
 			}
-			while ((cursor.getNextDup(keyEntry, foundEntry, LockMode.DEFAULT)) == OperationStatus.SUCCESS);
-		}
-		// Cannot use Cursor#getSearchBoth() because it compare values byte-wise without Object#equal(). 
+			// Cannot use Cursor#getSearchBoth() because it compare values byte-wise without Object#equal(). 
 
-		cursor.close();
-		txn.commit();
+			succeeded = true;
+		}
+		finally {
+			cursor.close();
+			this.endUpdate(txn, succeeded);
+		}
 
 		return ret;
 	}
 
+	void removeEntry(K key, V value) throws Exception {
+		this.remove(key, value);
+	}
+
 	private Set<V> getAndRemove(K key, boolean remove) throws DatabaseException {
 		DatabaseEntry searchKey = new DatabaseEntry();
 		keyBinding.objectToEntry(key, searchKey);
 		DatabaseEntry foundKey = new DatabaseEntry();
 		DatabaseEntry foundData = new DatabaseEntry();
 
-		Transaction txn = env.beginTransaction(null, null);
+		Transaction txn = (remove ? this.beginUpdate() : null);	// a get does not need a transaction
 		Cursor cursor = db.openCursor(txn, null);
+		boolean succeeded = false;
 
 		Set<V> s = null;
-		if ((cursor.getSearchKey(searchKey, foundData, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
-			s = new HashSet<V>();
-			s.add((V)dataBinding.entryToObject(foundData));
+		try {
+			if ((cursor.getSearchKey(searchKey, foundData, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
+				s = new HashSet<V>();
+				s.add((V)dataBinding.entryToObject(foundData));
 
-			while ((cursor.getNextDup(foundKey, foundData, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
-//				K k = (K)keyBinding.entryToObject(foundKey);
-//				if (!key.equals(k)) {
-//					break;
-//				}
+				while ((cursor.getNextDup(foundKey, foundData, LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
+					s.add((V)dataBinding.entryToObject(foundData));
+				}
+			}
 
-				s.add((V)dataBinding.entryToObject(foundData));
+			// remove all entries associated with the given key
+			if (remove && s != null) {
+				db.delete(txn, searchKey);
+					// does not check the result of this operation.
 			}
-		}
 
-		// remove all entries associated with the given key
-		if (remove) {
-			db.delete(txn, searchKey);
-				// does not check the result of this operation.
+			succeeded = true;
+		}
+		finally {
+			cursor.close();
+			this.endUpdate(txn, succeeded);
 		}
-
-		cursor.close();
-		txn.commit();
 
 		return s;
 	}
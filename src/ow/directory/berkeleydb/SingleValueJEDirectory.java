@@ -19,8 +19,11 @@ package ow.directory.berkeleydb;
 
 import ow.directory.SingleValueDirectory;
 
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.Transaction;
 
 /**
@@ -31,28 +34,17 @@ import com.sleepycat.je.Transaction;
  * @param <V> Type of values.
  */
 public class SingleValueJEDirectory<K,V> extends AbstractJEDirectory<K,V> implements SingleValueDirectory<K,V> {
-	protected SingleValueJEDirectory(Class<K> typeK, Class<V> typeV, Environment env, String dbName) throws Exception {
-		super(typeK, typeV, env, dbName, false);
+	protected SingleValueJEDirectory(Class<K> typeK, Class<V> typeV, Environment env, String dbName,
+			boolean deferredWrite, long syncInterval) throws Exception {
+		super(typeK, typeV, env, dbName, false, deferredWrite, syncInterval);
 	}
 
 	public V get(K key) throws DatabaseException {
-		V ret;
-
-		Transaction txn = super.env.beginTransaction(null, null);
-		ret = super.map.get(key);
-		txn.commit();
-
-		return ret;
+		return super.map.get(key);
 	}
 
 	public V put(K key, V value) throws Exception {
-		V ret;
-
-		Transaction txn = super.env.beginTransaction(null, null);
-		ret = super.map.put(key, value);
-		txn.commit();
-
-		return ret;
+		return this.putOrRemove(key, value);
 	}
 
 	/** For compatibility with ExpiringDirectory. */
@@ -62,11 +54,44 @@ public class SingleValueJEDirectory<K,V> extends AbstractJEDirectory<K,V> implem
 	}
 
 	public V remove(K key) throws Exception {
-		V ret;
+		return this.putOrRemove(key, null);
+	}
+
+	void removeEntry(K key, V value) throws Exception {
+		this.remove(key);
+	}
+
+	/**
+	 * Puts the value, or removes the key if the value is null, and returns the old value.
+	 */
+	private V putOrRemove(K key, V value) throws DatabaseException {
+		DatabaseEntry keyEntry = new DatabaseEntry();
+		DatabaseEntry dataEntry = new DatabaseEntry();
+		keyBinding.objectToEntry(key, keyEntry);
+
+		V ret = null;
+
+		Transaction txn = this.beginUpdate();
+		boolean succeeded = false;
+
+		try {
+			if (db.get(txn, keyEntry, dataEntry, (txn != null ? LockMode.RMW : LockMode.DEFAULT)) == OperationStatus.SUCCESS) {
+				ret = (V)dataBinding.entryToObject(dataEntry);
+			}
+
+			if (value != null) {
+				dataBinding.objectToEntry(value, dataEntry);
+				db.put(txn, keyEntry, dataEntry);
+			}
+			else if (ret != null) {
+				db.delete(txn, keyEntry);
+			}
 
-		Transaction txn = super.env.beginTransaction(null, null);
-		ret = super.map.remove(key);
-		txn.commit();
+			succeeded = true;
+		}
+		finally {
+			this.endUpdate(txn, succeeded);
+		}
 
 		return ret;
 	}
@@ -22,20 +22,33 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import ow.directory.ConcurrentDirectory;
 import ow.util.Timer;
 
 public abstract class AbstractExpiringDirectory<K,V> implements Iterable<Map.Entry<K,V>> {
+	private final static Logger logger = Logger.getLogger("directory");
+
 	protected long defaultTTL;
 	private Iterable<Map.Entry<K,ExpiringValue<V>>> iterable;
 	protected static Timer timer = Timer.getSingletonTimer();
 	private TimerTask expiringTask = null;
+	private volatile long taskScheduledTime = Long.MAX_VALUE;	// Long.MAX_VALUE if not scheduled
+	private long expiringTimeDuringRun = Long.MAX_VALUE;	// put while the task is running
+
+	// true if the underlying directory does not have to be locked to be updated or iterated
+	protected final boolean concurrent;
+	private final ConcurrentDirectory<K> concurrentDir;	// null if not concurrent
 
 	public AbstractExpiringDirectory(
 			Iterable<Map.Entry<K,ExpiringValue<V>>> directory /* SingleValueDirectory or MultiValueDirectory */,
 			long defaultTTL) {
 		this.iterable = directory;
 		this.defaultTTL = defaultTTL;
+		this.concurrent = (directory instanceof ConcurrentDirectory);
+		this.concurrentDir = (this.concurrent ? (ConcurrentDirectory<K>)directory : null);
 	}
 
 	public abstract boolean isEmpty();	// called by ExpiringTask#run()
@@ -44,14 +57,23 @@ public abstract class AbstractExpiringDirectory<K,V> implements Iterable<Map.Ent
 	}
 
 	protected void initExpiringTask(long expiringTime) {
+		if (expiringTime >= this.taskScheduledTime) return;	// without locking
+
 		synchronized (this) {
 			if (this.expiringTask != null) {
 				long scheduledTime = timer.getScheduledTime(this.expiringTask);
-				if (expiringTime < scheduledTime) {
+				if (scheduledTime < 0L) {
+					// running and to be rescheduled by itself
+					if (expiringTime < this.expiringTimeDuringRun) {
+						this.expiringTimeDuringRun = expiringTime;
+					}
+				}
+				else if (expiringTime < scheduledTime) {
 					// reschedule
 //System.out.println("[ExpiringTask rescheduled]");
 					timer.cancel(this.expiringTask);
 					timer.schedule(this.expiringTask, expiringTime, true /*isDaemon*/);
+					this.taskScheduledTime = expiringTime;
 				}
 			}
 			else {
@@ -59,6 +81,7 @@ public abstract class AbstractExpiringDirectory<K,V> implements Iterable<Map.Ent
 //System.out.println("[ExpiringTask started]");
 				this.expiringTask = new ExpiringTask(this, this.iterable);
 				timer.schedule(this.expiringTask, expiringTime, true /*isDaemon*/);
+				this.taskScheduledTime = expiringTime;
 			}
 		}
 	}
@@ -69,6 +92,16 @@ public abstract class AbstractExpiringDirectory<K,V> implements Iterable<Map.Ent
 //System.out.println("[ExpiringTask stopped]");
 				this.expiringTask.cancel();
 				this.expiringTask = null;
+				this.taskScheduledTime = Long.MAX_VALUE;
+				this.expiringTimeDuringRun = Long.MAX_VALUE;
+			}
+		}
+	}
+
+	protected void stopExpiringTaskIfEmpty() {
+		synchronized (this) {
+			if (this.isEmpty()) {
+				this.stopExpiringTask();
 			}
 		}
 	}
@@ -84,45 +117,77 @@ public abstract class AbstractExpiringDirectory<K,V> implements Iterable<Map.Ent
 		}
 
 		public void run() {
+			// values put from now on are noticed in initExpiringTask()
+			this.dir.taskScheduledTime = Long.MAX_VALUE;
+
 			// expire
 			long currentTime = Timer.currentTimeMillis();
-			long nearestExpiringTime = Long.MAX_VALUE;
+			long nearestExpiringTime;
 
-			synchronized (this.dir) {
-				// expecting user programs which use an Iterator over a Directory
-				// to lock the Directory.
-
-				synchronized (this.iterable) { 
-					for (Iterator<Map.Entry<K,ExpiringValue<V>>> it = this.iterable.iterator(); it.hasNext(); ) {
-						Map.Entry<K,ExpiringValue<V>> e = it.next();
-						long expiringTime = e.getValue().getExpiringTime();
-						if (expiringTime < currentTime) {
-							it.remove();	// expire
-						}
-						else if (expiringTime < nearestExpiringTime) {
-							nearestExpiringTime = expiringTime;
-						}
+			if (this.dir.concurrent) {
+				nearestExpiringTime = this.expire(currentTime);
+			}
+			else {
+				synchronized (this.dir) {
+					// expecting user programs which use an Iterator over a Directory
+					// to lock the Directory.
+
+					synchronized (this.iterable) {
+						nearestExpiringTime = this.expire(currentTime);
 					}
-				}	// synchronized (this.iterable)
+				}
+			}
+
+			synchronized (this.dir) {
+				if (this.dir.expiringTask != this) return;	// stopped
 
-				if (this.dir.isEmpty()) {
-					this.dir.stopExpiringTask();
+				if (this.dir.expiringTimeDuringRun < nearestExpiringTime) {
+					nearestExpiringTime = this.dir.expiringTimeDuringRun;
 				}
-			}	// synchronized (this.dir)
+				this.dir.expiringTimeDuringRun = Long.MAX_VALUE;
 
-			if (nearestExpiringTime < Long.MAX_VALUE) {
+				if (nearestExpiringTime < Long.MAX_VALUE && !this.dir.isEmpty()) {
 //System.out.println("[ExpiringTask rescheduled: " + (nearestExpiringTime - timer.currentTimeMillis()) + "]");
-				// reschedule
-				timer.schedule(this, nearestExpiringTime, true /*isDaemon*/);
-			}
-			else {
+					// reschedule
+					timer.schedule(this, nearestExpiringTime, true /*isDaemon*/);
+					this.dir.taskScheduledTime = nearestExpiringTime;
+				}
+				else {
 //System.out.println("[ExpiringTask stopping]");
-				// stop
-				synchronized (this.dir) {
+					// stop
 					this.dir.expiringTask = null;
 				}
 			}
 		}
+
+		private long expire(long currentTime) {
+			long nearestExpiringTime = Long.MAX_VALUE;
+
+			for (Iterator<Map.Entry<K,ExpiringValue<V>>> it = this.iterable.iterator(); it.hasNext(); ) {
+				Map.Entry<K,ExpiringValue<V>> e = it.next();
+				long expiringTime = e.getValue().getExpiringTime();
+				if (expiringTime < currentTime) {
+					// expire
+					if (this.dir.concurrentDir != null) {
+						// the value may have been put again with a new TTL after it was iterated
+						try {
+							this.dir.concurrentDir.removeExpired(e.getKey(), currentTime);
+						}
+						catch (Exception ex) {
+							logger.log(Level.WARNING, "Could not expire a value: " + e.getKey(), ex);
+						}
+					}
+					else {
+						it.remove();
+					}
+				}
+				else if (expiringTime < nearestExpiringTime) {
+					nearestExpiringTime = expiringTime;
+				}
+			}
+
+			return nearestExpiringTime;
+		}
 	}
 
 	public Set<Map.Entry<K,V>> entrySet() {
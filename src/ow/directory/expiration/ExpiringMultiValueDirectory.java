@@ -19,13 +19,16 @@ package ow.directory.expiration;
 
 import java.io.Serializable;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Set;
 
+import ow.directory.BatchableDirectory;
+import ow.directory.KeyOrderedDirectory;
 import ow.directory.MultiValueDirectory;
 import ow.util.Timer;
 
 public class ExpiringMultiValueDirectory<K,V> extends AbstractExpiringDirectory<K,V>
-		implements MultiValueDirectory<K,V>, Serializable {
+		implements MultiValueDirectory<K,V>, BatchableDirectory, KeyOrderedDirectory<K>, Serializable {
 	private MultiValueDirectory<K,ExpiringValue<V>> dir;
 
 	public ExpiringMultiValueDirectory(MultiValueDirectory<K,ExpiringValue<V>> dir,
@@ -42,11 +45,18 @@ public class ExpiringMultiValueDirectory<K,V> extends AbstractExpiringDirectory<
 		ExpiringValue<V> entry = new ExpiringValue<V>(value, ttl);
 		long expiringTime = entry.getExpiringTime();
 
-		synchronized (this) {
+		if (super.concurrent) {
 			entry = this.dir.put(key, entry);
 
 			super.initExpiringTask(expiringTime + 100L);
 		}
+		else {
+			synchronized (this) {
+				entry = this.dir.put(key, entry);
+
+				super.initExpiringTask(expiringTime + 100L);
+			}
+		}
 
 		V ret = null;
 		if (entry != null) {
@@ -78,11 +88,20 @@ public class ExpiringMultiValueDirectory<K,V> extends AbstractExpiringDirectory<
 	private Set<V> getAndRemove(K key, boolean remove) throws Exception {
 		Set<ExpiringValue<V>> c;
 		if (remove) {
-			synchronized (this) {
+			if (super.concurrent) {
 				c = this.dir.remove(key);
 
 				if (this.dir.isEmpty()) {
-					super.stopExpiringTask();
+					super.stopExpiringTaskIfEmpty();
+				}
+			}
+			else {
+				synchronized (this) {
+					c = this.dir.remove(key);
+
+					if (this.dir.isEmpty()) {
+						super.stopExpiringTask();
+					}
 				}
 			}
 		}
@@ -120,11 +139,20 @@ public class ExpiringMultiValueDirectory<K,V> extends AbstractExpiringDirectory<
 
 	public V remove(K key, V value) throws Exception {
 		ExpiringValue<V> entry = new ExpiringValue<V>(value, super.defaultTTL);
-		synchronized (this) {
+		if (super.concurrent) {
 			entry = this.dir.remove(key, entry);
 
 			if (this.dir.isEmpty()) {
-				super.stopExpiringTask();
+				super.stopExpiringTaskIfEmpty();
+			}
+		}
+		else {
+			synchronized (this) {
+				entry = this.dir.remove(key, entry);
+
+				if (this.dir.isEmpty()) {
+					super.stopExpiringTask();
+				}
 			}
 		}
 
@@ -146,8 +174,18 @@ public class ExpiringMultiValueDirectory<K,V> extends AbstractExpiringDirectory<
 		return this.dir.isEmpty();
 	}
 
+	/**
+	 * Returns a snapshot of keys, which is not affected by later updates.
+	 */
 	public Set<K> keySet() {
-		return this.dir.keySet();
+		if (super.concurrent) {
+			return this.dir.keySet();
+		}
+		else {
+			synchronized (this) {
+				return new HashSet<K>(this.dir.keySet());
+			}
+		}
 	}
 
 	public void clear() {
@@ -163,4 +201,22 @@ public class ExpiringMultiValueDirectory<K,V> extends AbstractExpiringDirectory<
 
 		this.dir.close();
 	}
+
+	public void beginBatch() throws Exception {
+		if (this.dir instanceof BatchableDirectory) ((BatchableDirectory)this.dir).beginBatch();
+	}
+
+	public void endBatch() throws Exception {
+		if (this.dir instanceof BatchableDirectory) ((BatchableDirectory)this.dir).endBatch();
+	}
+
+	public Iterator<K> ascendingKeys(K from, boolean inclusive, K to) {
+		if (!(this.dir instanceof KeyOrderedDirectory)) return null;
+		return ((KeyOrderedDirectory<K>)this.dir).ascendingKeys(from, inclusive, to);
+	}
+
+	public Iterator<K> descendingKeys(K from, boolean inclusive, K to) {
+		if (!(this.dir instanceof KeyOrderedDirectory)) return null;
+		return ((KeyOrderedDirectory<K>)this.dir).descendingKeys(from, inclusive, to);
+	}
 }
@@ -18,13 +18,16 @@
 package ow.directory.expiration;
 
 import java.io.Serializable;
+import java.util.Iterator;
 import java.util.Set;
 
+import ow.directory.BatchableDirectory;
+import ow.directory.KeyOrderedDirectory;
 import ow.directory.SingleValueDirectory;
 import ow.util.Timer;
 
 public class ExpiringSingleValueDirectory<K,V> extends AbstractExpiringDirectory<K,V>
-		implements SingleValueDirectory<K,V>, Serializable {
+		implements SingleValueDirectory<K,V>, BatchableDirectory, KeyOrderedDirectory<K>, Serializable {
 	private SingleValueDirectory<K,ExpiringValue<V>> internalDirectory;
 
 	public ExpiringSingleValueDirectory(SingleValueDirectory<K,ExpiringValue<V>> dir,
@@ -131,4 +134,22 @@ public class ExpiringSingleValueDirectory<K,V> extends AbstractExpiringDirectory
 
 		this.internalDirectory.close();
 	}
+
+	public void beginBatch() throws Exception {
+		if (this.internalDirectory instanceof BatchableDirectory) ((BatchableDirectory)this.internalDirectory).beginBatch();
+	}
+
+	public void endBatch() throws Exception {
+		if (this.internalDirectory instanceof BatchableDirectory) ((BatchableDirectory)this.internalDirectory).endBatch();
+	}
+
+	public Iterator<K> ascendingKeys(K from, boolean inclusive, K to) {
+		if (!(this.internalDirectory instanceof KeyOrderedDirectory)) return null;
+		return ((KeyOrderedDirectory<K>)this.internalDirectory).ascendingKeys(from, inclusive, to);
+	}
+
+	public Iterator<K> descendingKeys(K from, boolean inclusive, K to) {
+		if (!(this.internalDirectory instanceof KeyOrderedDirectory)) return null;
+		return ((KeyOrderedDirectory<K>)this.internalDirectory).descendingKeys(from, inclusive, to);
+	}
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.inmemory;
+
+import java.io.File;
+
+import ow.directory.DirectoryConfiguration;
+import ow.directory.DirectoryProvider;
+import ow.directory.MultiValueDirectory;
+import ow.directory.SingleValueDirectory;
+
+/**
+ * Provides in-memory directories persisted by an append-only log of updates
+ * instead of periodic snapshots of the whole map ("PersistentMap").
+ */
+public final class LoggedMapProvider extends DirectoryProvider {
+	private final static String NAME = "LoggedMap";
+
+	// configuration
+	private final static long COMMIT_INTERVAL = 10L;	// 10 msec
+	private final static long MIN_COMPACTION_SIZE = 4 * 1024 * 1024L;	// 4 MB
+
+	public String getName() { return NAME; }
+
+	protected <K,V> SingleValueDirectory<K,V> provideSingleValueDirectory(Class typeK, Class typeV, String dir, String dbName,
+			DirectoryConfiguration config) throws Exception {
+		return new LoggedSingleValueDirectory<K,V>(typeK, typeV, dir, dbName,
+				config, COMMIT_INTERVAL, MIN_COMPACTION_SIZE);
+	}
+
+	protected <K,V> MultiValueDirectory<K,V> provideMultiValueDirectory(Class typeK, Class typeV, String dir, String dbName,
+			DirectoryConfiguration config) throws Exception {
+		return new LoggedMultiValueDirectory<K,V>(typeK, typeV, dir, dbName,
+				config, COMMIT_INTERVAL, MIN_COMPACTION_SIZE);
+	}
+
+	public void removeDirectory(String dir, String dbName) throws Exception {
+		if (!dir.endsWith(File.separator)) {
+			dir += File.separator;
+		}
+
+		WriteAheadLog.remove(new File(dir + dbName));
+	}
+}
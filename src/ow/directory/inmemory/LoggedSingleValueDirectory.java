@@ -0,0 +1,182 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.inmemory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.directory.DirectoryConfiguration;
+import ow.directory.SingleValueDirectory;
+
+/**
+ * An in-memory directory which appends every update to a {@link WriteAheadLog WriteAheadLog}
+ * and replays the log on startup.
+ * Sets returned by {@link #keySet() keySet()} and {@link #entrySet() entrySet()} should not be modified
+ * because the modification is not logged.
+ * Every update is logged before it is applied, so a failed append leaves the directory unchanged.
+ * TTLs are not logged; see {@link #put(Object, Object, long) put(key, value, ttl)}.
+ */
+public final class LoggedSingleValueDirectory<K,V> implements SingleValueDirectory<K,V> {
+	private final static Logger logger = Logger.getLogger("directory");
+
+	private final SingleValueHashDirectory<K,V> dir;
+	private final WriteAheadLog log;
+
+	LoggedSingleValueDirectory(Class typeK, Class typeV, String workingDir, String dbName,
+			DirectoryConfiguration config, long commitInterval, long minCompactionSize) throws Exception {
+		this.dir = new SingleValueHashDirectory<K,V>(typeK, typeV, workingDir, dbName, null,
+				config, -1);
+
+		if (!workingDir.endsWith(File.separator)) {
+			workingDir += File.separator;
+		}
+		this.log = new WriteAheadLog(new File(workingDir + dbName), commitInterval, minCompactionSize);
+
+		// replay the log
+		this.log.replay(new WriteAheadLog.Replayer() {
+			public void replay(byte op, Object key, Object value) throws Exception {
+				switch (op) {
+				case WriteAheadLog.PUT:
+					dir.put((K)key, (V)value);
+					break;
+				case WriteAheadLog.REMOVE:
+					dir.remove((K)key);
+					break;
+				case WriteAheadLog.CLEAR:
+					dir.clear();
+					break;
+				default:
+					throw new IOException("Unknown operation: " + op);
+				}
+			}
+		});
+
+		this.log.start(new WriteAheadLog.SnapshotSource() {
+			public List<Map.Entry<Object,Object>> snapshot() {
+				synchronized (LoggedSingleValueDirectory.this) {
+					List<Map.Entry<Object,Object>> entries = new ArrayList<Map.Entry<Object,Object>>();
+					for (Map.Entry<K,V> e: dir.entrySet()) {
+						entries.add(new AbstractMap.SimpleImmutableEntry<Object,Object>(e.getKey(), e.getValue()));
+					}
+
+					log.beginCompaction();
+
+					return entries;
+				}
+			}
+		});
+	}
+
+	public V get(K key) {
+		return this.dir.get(key);
+	}
+
+	public synchronized V put(K key, V value) throws Exception {
+		// log first so that a failed append leaves the map as it was
+		this.log.append(WriteAheadLog.PUT, key, value);
+
+		return this.dir.put(key, value);
+	}
+
+	/**
+	 * For compatibility with ExpiringDirectory.
+	 * The TTL is not logged and is ignored here.
+	 * An expiring directory wraps this one in an {@link ow.directory.expiration.ExpiringSingleValueDirectory ExpiringSingleValueDirectory},
+	 * which stores the expiring time in the value and so in the log.
+	 */
+	public V put(K key, V value, long ttl) throws Exception {
+		return this.put(key, value);
+	}
+
+	public synchronized V remove(K key) throws Exception {
+		if (this.dir.get(key) == null) {
+			return null;
+		}
+
+		this.log.append(WriteAheadLog.REMOVE, key, null);
+
+		return this.dir.remove(key);
+	}
+
+	public boolean isEmpty() {
+		return this.dir.isEmpty();
+	}
+
+	public Set<K> keySet() {
+		return this.dir.keySet();
+	}
+
+	public Set<Map.Entry<K,V>> entrySet() {
+		return this.dir.entrySet();
+	}
+
+	public synchronized void clear() {
+		try {
+			this.log.append(WriteAheadLog.CLEAR, null, null);
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Could not log clear().", e);
+			throw new IllegalStateException("Could not log clear().", e);
+		}
+
+		this.dir.clear();
+	}
+
+	public void close() {
+		this.log.close();
+		this.dir.close();
+	}
+
+	public Iterator<Map.Entry<K,V>> iterator() {
+		final Iterator<Map.Entry<K,V>> it = this.dir.iterator();
+
+		return new Iterator<Map.Entry<K,V>>() {
+			private K lastKey;
+
+			public boolean hasNext() { return it.hasNext(); }
+
+			public Map.Entry<K,V> next() {
+				Map.Entry<K,V> entry = it.next();
+				this.lastKey = entry.getKey();
+				return entry;
+			}
+
+			public void remove() {
+				synchronized (LoggedSingleValueDirectory.this) {
+					try {
+						log.append(WriteAheadLog.REMOVE, this.lastKey, null);
+					}
+					catch (IOException e) {
+						logger.log(Level.WARNING, "Could not log a removal.", e);
+						throw new IllegalStateException("Could not log a removal.", e);
+					}
+
+					it.remove();
+				}
+			}
+		};
+	}
+}
@@ -40,14 +40,17 @@ public final class MultipleValueHashDirectory<K,V> implements MultiValueDirector
 	}
 
 	public Set<V> get(K key) throws Exception {
-		Map<V,V> map = this.internalDir.get(key);
-
 		Set<V> ret = null;
-		if (map != null) {
-			ret = new HashSet<V>();
-			ret.addAll(map.keySet());
-			// instantiates a new Set which is Serializable.
-			// because map.keySet() returns HashMap$KeySet and it is not Serializable.
+
+		synchronized (this) {	// the map can be being modified by put()
+			Map<V,V> map = this.internalDir.get(key);
+
+			if (map != null) {
+				ret = new HashSet<V>();
+				ret.addAll(map.keySet());
+				// instantiates a new Set which is Serializable.
+				// because map.keySet() returns HashMap$KeySet and it is not Serializable.
+			}
 		}
 
 		return ret;
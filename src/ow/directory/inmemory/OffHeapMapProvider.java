@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.directory.inmemory;
+
+import ow.directory.DirectoryConfiguration;
+import ow.directory.DirectoryProvider;
+import ow.directory.MultiValueDirectory;
+import ow.directory.SingleValueDirectory;
+
+/**
+ * Provides volatile directories which hold serialized values in direct buffers
+ * out of the Java heap, within the number of bytes given by
+ * {@link DirectoryConfiguration#getOffHeapCapacity() DirectoryConfiguration#getOffHeapCapacity()}.
+ */
+public final class OffHeapMapProvider extends DirectoryProvider {
+	private final static String NAME = "OffHeapMap";
+
+	// configuration
+	private final static int NUM_STRIPES = 16;
+	private final static int BLOCK_SIZE = 128;	// 128 bytes
+	private final static int SLAB_SIZE = 1024 * 1024;	// 1 MB
+
+	public String getName() { return NAME; }
+
+	protected <K,V> SingleValueDirectory<K,V> provideSingleValueDirectory(Class typeK, Class typeV, String dir, String dbName,
+			DirectoryConfiguration config) throws Exception {
+		return new OffHeapSingleValueDirectory<K,V>(typeK, typeV,
+				config, NUM_STRIPES, BLOCK_SIZE, SLAB_SIZE);
+	}
+
+	protected <K,V> MultiValueDirectory<K,V> provideMultiValueDirectory(Class typeK, Class typeV, String dir, String dbName,
+			DirectoryConfiguration config) throws Exception {
+		return new OffHeapMultiValueDirectory<K,V>(typeK, typeV,
+				config, NUM_STRIPES, BLOCK_SIZE, SLAB_SIZE);
+	}
+
+	public void removeDirectory(String dir, String dbName) throws Exception {
+		// do nothing
+	}
+}
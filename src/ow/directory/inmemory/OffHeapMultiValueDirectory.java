@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.directory.inmemory;
+
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import ow.directory.DirectoryConfiguration;
+import ow.directory.MultiValueDirectory;
+
+/**
+ * A directory which holds multiple values associated with a key out of the Java heap.
+ * All values of a key are serialized together as a Set.
+ * Updates to a key are serialized by one of striped locks.
+ */
+public final class OffHeapMultiValueDirectory<K,V> implements MultiValueDirectory<K,V> {
+	private final OffHeapSingleValueDirectory<K,HashSet<V>> internalDir;
+	private final Object[] locks;
+
+	OffHeapMultiValueDirectory(Class typeK, Class typeV, DirectoryConfiguration config,
+			int numStripes, int blockSize, int slabSize) {
+		this.internalDir = new OffHeapSingleValueDirectory<K,HashSet<V>>(typeK, null /* Set<V>.class */, config,
+				numStripes, blockSize, slabSize);
+
+		this.locks = new Object[numStripes];
+		for (int i = 0; i < numStripes; i++) this.locks[i] = new Object();
+	}
+
+	private Object lockFor(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return this.locks[(h & 0x7fffffff) % this.locks.length];
+	}
+
+	public Set<V> get(K key) throws Exception {
+		return this.internalDir.get(key);
+	}
+
+	public V put(K key, V value) throws Exception {
+		V ret = null;
+
+		synchronized (this.lockFor(key)) {
+			HashSet<V> set = this.internalDir.peek(key);
+			if (set == null) {
+				set = new HashSet<V>();
+			}
+			else {
+				for (V v: set) {
+					if (v.equals(value)) { ret = v; break; }
+				}
+				if (ret != null) set.remove(ret);
+			}
+
+			set.add(value);
+			this.internalDir.store(key, set);
+		}
+
+		return ret;
+	}
+
+	/** For compatibility with ExpiringMultiValueDirectory. */
+	public V put(K key, V value, long ttl) throws Exception {
+		// ignore ttl
+		return this.put(key, value);
+	}
+
+	public Set<V> remove(K key) throws Exception {
+		synchronized (this.lockFor(key)) {
+			return this.internalDir.remove(key);
+		}
+	}
+
+	public V remove(K key, V value) throws Exception {
+		V ret = null;
+
+		synchronized (this.lockFor(key)) {
+			HashSet<V> set = this.internalDir.peek(key);
+			if (set != null) {
+				for (V v: set) {
+					if (v.equals(value)) { ret = v; break; }
+				}
+
+				if (ret != null) {
+					set.remove(ret);
+
+					if (set.isEmpty())
+						this.internalDir.remove(key);
+					else
+						this.internalDir.store(key, set);
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	public boolean isEmpty() {
+		return this.internalDir.isEmpty();
+	}
+
+	/**
+	 * Returns the number of bytes taken by values.
+	 */
+	public long getUsedBytes() {
+		return this.internalDir.getUsedBytes();
+	}
+
+	public Set<K> keySet() {
+		return this.internalDir.keySet();
+	}
+
+	public Set<Map.Entry<K,V>> entrySet() {
+		Set<Map.Entry<K,V>> result = new HashSet<Map.Entry<K,V>>();
+		for (Map.Entry<K,V> entry: this) {
+			result.add(new AbstractMap.SimpleImmutableEntry<K,V>(entry.getKey(), entry.getValue()));
+		}
+		return result;
+	}
+
+	public void clear() {
+		this.internalDir.clear();
+	}
+
+	public void close() {
+		this.internalDir.close();
+	}
+
+	public Iterator<Map.Entry<K,V>> iterator() {
+		return new OffHeapMultiValueIterator();
+	}
+
+	private class OffHeapMultiValueIterator implements Iterator<Map.Entry<K,V>> {
+		private final Iterator<Map.Entry<K,HashSet<V>>> it0 = internalDir.iterator();
+		private K key;
+		private Iterator<V> it1;
+		private OffHeapMultiValueEntry lastEntry;
+
+		public boolean hasNext() {
+			while (this.it1 == null || !this.it1.hasNext()) {
+				if (!this.it0.hasNext()) return false;
+
+				Map.Entry<K,HashSet<V>> e0 = this.it0.next();
+				this.key = e0.getKey();
+				this.it1 = e0.getValue().iterator();
+			}
+
+			return true;
+		}
+
+		public Map.Entry<K,V> next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+
+			this.lastEntry = new OffHeapMultiValueEntry(this.key, this.it1.next());
+			return this.lastEntry;
+		}
+
+		public void remove() {
+			if (this.lastEntry == null) throw new IllegalStateException();
+
+			try {
+				OffHeapMultiValueDirectory.this.remove(this.lastEntry.getKey(), this.lastEntry.getValue());
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Could not remove a value.", e);
+			}
+			this.lastEntry = null;
+		}
+	}
+
+	private class OffHeapMultiValueEntry implements Map.Entry<K,V> {
+		private final K k;
+		private V v;
+
+		OffHeapMultiValueEntry(K k, V v) {
+			this.k = k; this.v = v;
+		}
+
+		public K getKey() { return this.k; }
+		public V getValue() { return this.v; }
+		public V setValue(V newValue) {
+			V ret = this.v;
+			try {
+				OffHeapMultiValueDirectory.this.remove(this.k, this.v);
+				OffHeapMultiValueDirectory.this.put(this.k, newValue);
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Could not put a value.", e);
+			}
+			this.v = newValue;
+			return ret;
+		}
+
+		public String toString() {
+			return this.k + "=" + this.v;
+		}
+	}
+}
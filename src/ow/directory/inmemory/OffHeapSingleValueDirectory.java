@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.directory.inmemory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import ow.directory.DirectoryConfiguration;
+import ow.directory.OutOfHeapException;
+import ow.directory.SingleValueDirectory;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
+
+/**
+ * A directory which holds values serialized out of the Java heap.
+ * Keys stay on the heap.
+ * The number of bytes for values is bounded by
+ * {@link DirectoryConfiguration#getOffHeapCapacity() DirectoryConfiguration#getOffHeapCapacity()},
+ * and the least recently used pairs are evicted to make room when the heap overflow action is LRU.
+ */
+public final class OffHeapSingleValueDirectory<K,V> implements SingleValueDirectory<K,V> {
+	private final static MessageCodec codec = MessageCodecFactory.getCodec("Binary");
+
+	private final OffHeapStore<K> store;
+
+	OffHeapSingleValueDirectory(Class typeK, Class typeV, DirectoryConfiguration config,
+			int numStripes, int blockSize, int slabSize) {
+		if (config == null) config = DirectoryConfiguration.getDefaultConfiguration();
+
+		this.store = new OffHeapStore<K>(config.getOffHeapCapacity(), numStripes, blockSize, slabSize,
+				config.getHeapOverflowAction());
+	}
+
+	public V get(K key) throws IOException {
+		return (V)decode(this.store.get(key));
+	}
+
+	/**
+	 * Returns the value without affecting the order of LRU eviction.
+	 */
+	V peek(K key) throws IOException {
+		return (V)decode(this.store.peek(key));
+	}
+
+	public V put(K key, V value) throws IOException, OutOfHeapException {
+		return (V)decode(this.store.put(key, encode(value)));
+	}
+
+	/**
+	 * Puts the value without decoding the previous one.
+	 */
+	void store(K key, V value) throws IOException, OutOfHeapException {
+		this.store.store(key, encode(value));
+	}
+
+	/** For compatibility with ExpiringDirectory. */
+	public V put(K key, V value, long ttl) throws IOException, OutOfHeapException {
+		// ignore ttl
+		return this.put(key, value);
+	}
+
+	public V remove(K key) throws IOException {
+		return (V)decode(this.store.remove(key));
+	}
+
+	public boolean isEmpty() {
+		return this.store.isEmpty();
+	}
+
+	/**
+	 * Returns the number of bytes taken by values.
+	 */
+	public long getUsedBytes() {
+		return this.store.usedBytes();
+	}
+
+	public Set<K> keySet() {
+		return new HashSet<K>(this.store.keys());
+	}
+
+	public Set<Map.Entry<K,V>> entrySet() {
+		Set<Map.Entry<K,V>> result = new HashSet<Map.Entry<K,V>>();
+		for (Map.Entry<K,V> entry: this) {
+			result.add(new AbstractMap.SimpleImmutableEntry<K,V>(entry.getKey(), entry.getValue()));
+		}
+		return result;
+	}
+
+	public void clear() {
+		this.store.clear();
+	}
+
+	public void close() {
+		this.store.clear();
+	}
+
+	/**
+	 * Returns an iterator over a snapshot of keys.
+	 * Pairs removed after the iterator was created are skipped.
+	 */
+	public Iterator<Map.Entry<K,V>> iterator() {
+		return new OffHeapIterator();
+	}
+
+	static byte[] encode(Object o) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = codec.getObjectOutputStream(bos);
+		oos.writeObject(o);
+		oos.flush();
+
+		return bos.toByteArray();
+	}
+
+	static Object decode(byte[] buf) throws IOException {
+		if (buf == null) return null;
+
+		ObjectInputStream ois = codec.getObjectInputStream(new ByteArrayInputStream(buf));
+		try {
+			return ois.readObject();
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("Could not decode a value: " + e);
+		}
+	}
+
+	private class OffHeapIterator implements Iterator<Map.Entry<K,V>> {
+		private final List<K> keys = OffHeapSingleValueDirectory.this.store.keys();
+		private int index = 0;
+		private OffHeapEntry nextEntry, lastEntry;
+
+		public boolean hasNext() {
+			while (this.nextEntry == null && this.index < this.keys.size()) {
+				K key = this.keys.get(this.index++);
+				try {
+					V value = OffHeapSingleValueDirectory.this.peek(key);
+					if (value != null) {
+						this.nextEntry = new OffHeapEntry(key, value);
+					}
+				}
+				catch (IOException e) {
+					throw new IllegalStateException("Could not decode a value.", e);
+				}
+			}
+
+			return this.nextEntry != null;
+		}
+
+		public Map.Entry<K,V> next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+
+			this.lastEntry = this.nextEntry;
+			this.nextEntry = null;
+			return this.lastEntry;
+		}
+
+		public void remove() {
+			if (this.lastEntry == null) throw new IllegalStateException();
+
+			OffHeapSingleValueDirectory.this.store.remove(this.lastEntry.getKey());
+			this.lastEntry = null;
+		}
+	}
+
+	private class OffHeapEntry implements Map.Entry<K,V> {
+		private final K k;
+		private V v;
+
+		OffHeapEntry(K k, V v) {
+			this.k = k; this.v = v;
+		}
+
+		public K getKey() { return this.k; }
+		public V getValue() { return this.v; }
+		public V setValue(V newValue) {
+			V ret = this.v;
+			try {
+				OffHeapSingleValueDirectory.this.put(this.k, newValue);
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Could not put a value.", e);
+			}
+			this.v = newValue;
+			return ret;
+		}
+
+		public String toString() {
+			return this.k + "=" + this.v;
+		}
+	}
+}
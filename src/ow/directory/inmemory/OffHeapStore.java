@@ -0,0 +1,318 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.directory.inmemory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import ow.directory.DirectoryConfiguration.HeapOverflowAction;
+import ow.directory.OutOfHeapException;
+
+/**
+ * Byte arrays associated with keys, held out of the Java heap.
+ * Keys are partitioned into stripes, each of which has its own lock,
+ * its own share of the capacity and its own LRU list.
+ * A stripe divides direct {@link ByteBuffer ByteBuffer}s (slabs) into fixed-size blocks,
+ * which are allocated on demand and never returned to the operating system.
+ * A value occupies as many blocks as it needs, and they need not be contiguous.
+ */
+final class OffHeapStore<K> {
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final int blockSize;
+	private final HeapOverflowAction overflowAction;
+
+	OffHeapStore(long capacity, int numStripes, int blockSize, int slabSize,
+			HeapOverflowAction overflowAction) {
+		int n = 1;
+		while (n < numStripes) n <<= 1;
+
+		this.stripes = (Stripe[])new OffHeapStore.Stripe[n];
+		this.stripeMask = n - 1;
+		this.blockSize = blockSize;
+		this.overflowAction = overflowAction;
+
+		long blocksPerStripe = capacity / n / blockSize;
+		if (blocksPerStripe > Integer.MAX_VALUE) blocksPerStripe = Integer.MAX_VALUE;
+		int blocksPerSlab = Math.max(1, slabSize / blockSize);
+
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new Stripe((int)blocksPerStripe, blocksPerSlab);
+		}
+	}
+
+	private Stripe stripeFor(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h ^= (h >>> 7);
+		return this.stripes[h & this.stripeMask];
+	}
+
+	/**
+	 * Returns the value and makes it the most recently used one.
+	 */
+	byte[] get(K key) {
+		return this.stripeFor(key).get(key, true);
+	}
+
+	/**
+	 * Returns the value without changing the order of LRU eviction.
+	 */
+	byte[] peek(K key) {
+		return this.stripeFor(key).get(key, false);
+	}
+
+	/**
+	 * Associates the value with the key.
+	 *
+	 * @return the previous value, or null if there was none or the value was not stored
+	 *   because of IGNORE overflow action.
+	 */
+	byte[] put(K key, byte[] value) throws OutOfHeapException {
+		return this.stripeFor(key).put(key, value, true);
+	}
+
+	/**
+	 * Associates the value with the key without reading the previous value.
+	 */
+	void store(K key, byte[] value) throws OutOfHeapException {
+		this.stripeFor(key).put(key, value, false);
+	}
+
+	byte[] remove(K key) {
+		return this.stripeFor(key).remove(key);
+	}
+
+	boolean containsKey(K key) {
+		return this.stripeFor(key).containsKey(key);
+	}
+
+	boolean isEmpty() {
+		for (Stripe s: this.stripes) {
+			if (!s.isEmpty()) return false;
+		}
+		return true;
+	}
+
+	int size() {
+		int size = 0;
+		for (Stripe s: this.stripes) size += s.size();
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes of the blocks in use.
+	 */
+	long usedBytes() {
+		long used = 0L;
+		for (Stripe s: this.stripes) used += s.usedBlocks();
+		return used * this.blockSize;
+	}
+
+	/**
+	 * Returns a snapshot of the keys, grouped by stripe.
+	 */
+	List<K> keys() {
+		List<K> keys = new ArrayList<K>();
+		for (Stripe s: this.stripes) s.addKeysTo(keys);
+		return keys;
+	}
+
+	void clear() {
+		for (Stripe s: this.stripes) s.clear();
+	}
+
+	private static final class Slot<K> {
+		final K key;
+		final int length;
+		final int[] blocks;
+		Slot<K> prev, next;
+
+		Slot(K key, int length, int[] blocks) {
+			this.key = key;
+			this.length = length;
+			this.blocks = blocks;
+		}
+	}
+
+	private final class Stripe {
+		private final int capacityInBlocks;
+		private final int blocksPerSlab;
+		private final ByteBuffer[] slabs;
+		private final HashMap<K,Slot<K>> map = new HashMap<K,Slot<K>>();
+		private final Slot<K> lru = new Slot<K>(null, 0, null);	// sentinel. lru.next is the most recently used.
+
+		private int[] freeBlocks = new int[16];
+		private int numFreeBlocks = 0;
+		private int numNeverUsedBlocks;		// blocks from the tail of capacity not handed out yet
+
+		Stripe(int capacityInBlocks, int blocksPerSlab) {
+			this.capacityInBlocks = capacityInBlocks;
+			this.blocksPerSlab = blocksPerSlab;
+			this.slabs = new ByteBuffer[(capacityInBlocks + blocksPerSlab - 1) / blocksPerSlab];
+			this.numNeverUsedBlocks = capacityInBlocks;
+
+			this.lru.prev = this.lru.next = this.lru;
+		}
+
+		synchronized byte[] get(K key, boolean touch) {
+			Slot<K> slot = this.map.get(key);
+			if (slot == null) return null;
+
+			if (touch) {
+				this.unlink(slot);
+				this.linkFirst(slot);
+			}
+
+			return this.read(slot);
+		}
+
+		synchronized byte[] put(K key, byte[] value, boolean returnOld) throws OutOfHeapException {
+			int needed = (value.length + blockSize - 1) / blockSize;
+			Slot<K> old = this.map.get(key);
+			int reusable = (old != null ? old.blocks.length : 0);
+
+			if (needed > this.numFreeBlocks + this.numNeverUsedBlocks + reusable) {
+				boolean fits = (needed <= this.capacityInBlocks);
+				if (!fits || overflowAction != HeapOverflowAction.LRU) {
+					if (overflowAction == HeapOverflowAction.IGNORE) {
+						return null;
+					}
+					throw new OutOfHeapException("Off-heap capacity exhausted: " + this.usedBlocks() * blockSize
+							+ " bytes used, " + value.length + " bytes requested, key: " + key);
+				}
+			}
+
+			byte[] ret = null;
+			if (old != null) {
+				if (returnOld) ret = this.read(old);
+				this.release(old);
+			}
+
+			// LRU eviction
+			while (needed > this.numFreeBlocks + this.numNeverUsedBlocks) {
+				this.release(this.lru.prev);
+			}
+
+			int[] blocks = new int[needed];
+			for (int i = 0; i < needed; i++) blocks[i] = this.allocate();
+
+			Slot<K> slot = new Slot<K>(key, value.length, blocks);
+			this.write(slot, value);
+			this.map.put(key, slot);
+			this.linkFirst(slot);
+
+			return ret;
+		}
+
+		synchronized byte[] remove(K key) {
+			Slot<K> slot = this.map.get(key);
+			if (slot == null) return null;
+
+			byte[] ret = this.read(slot);
+			this.release(slot);
+
+			return ret;
+		}
+
+		synchronized boolean containsKey(K key) { return this.map.containsKey(key); }
+		synchronized boolean isEmpty() { return this.map.isEmpty(); }
+		synchronized int size() { return this.map.size(); }
+
+		synchronized int usedBlocks() {
+			return this.capacityInBlocks - this.numFreeBlocks - this.numNeverUsedBlocks;
+		}
+
+		synchronized void addKeysTo(List<K> keys) {
+			keys.addAll(this.map.keySet());
+		}
+
+		synchronized void clear() {
+			while (this.lru.next != this.lru) {
+				this.release(this.lru.next);
+			}
+		}
+
+		private void release(Slot<K> slot) {
+			this.map.remove(slot.key);
+			this.unlink(slot);
+
+			if (this.freeBlocks.length < this.numFreeBlocks + slot.blocks.length) {
+				int[] newFreeBlocks = new int[Math.max(this.freeBlocks.length * 2, this.numFreeBlocks + slot.blocks.length)];
+				System.arraycopy(this.freeBlocks, 0, newFreeBlocks, 0, this.numFreeBlocks);
+				this.freeBlocks = newFreeBlocks;
+			}
+			for (int b: slot.blocks) {
+				this.freeBlocks[this.numFreeBlocks++] = b;
+			}
+		}
+
+		private int allocate() {
+			if (this.numFreeBlocks > 0) {
+				return this.freeBlocks[--this.numFreeBlocks];
+			}
+
+			int b = this.capacityInBlocks - this.numNeverUsedBlocks--;
+			int slabIndex = b / this.blocksPerSlab;
+			if (this.slabs[slabIndex] == null) {
+				int blocksInSlab = Math.min(this.blocksPerSlab, this.capacityInBlocks - slabIndex * this.blocksPerSlab);
+				this.slabs[slabIndex] = ByteBuffer.allocateDirect(blocksInSlab * blockSize);
+			}
+
+			return b;
+		}
+
+		private void write(Slot<K> slot, byte[] value) {
+			int off = 0;
+			for (int b: slot.blocks) {
+				int len = Math.min(blockSize, value.length - off);
+				ByteBuffer slab = this.slabs[b / this.blocksPerSlab];
+				slab.position((b % this.blocksPerSlab) * blockSize);
+				slab.put(value, off, len);
+				off += len;
+			}
+		}
+
+		private byte[] read(Slot<K> slot) {
+			byte[] value = new byte[slot.length];
+			int off = 0;
+			for (int b: slot.blocks) {
+				int len = Math.min(blockSize, value.length - off);
+				ByteBuffer slab = this.slabs[b / this.blocksPerSlab];
+				slab.position((b % this.blocksPerSlab) * blockSize);
+				slab.get(value, off, len);
+				off += len;
+			}
+			return value;
+		}
+
+		private void linkFirst(Slot<K> slot) {
+			slot.prev = this.lru;
+			slot.next = this.lru.next;
+			this.lru.next.prev = slot;
+			this.lru.next = slot;
+		}
+
+		private void unlink(Slot<K> slot) {
+			slot.prev.next = slot.next;
+			slot.next.prev = slot.prev;
+			slot.prev = slot.next = null;
+		}
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.inmemory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ow.directory.ConcurrentDirectory;
+import ow.directory.DirectoryConfiguration;
+import ow.directory.MultiValueDirectory;
+import ow.directory.OutOfHeapException;
+import ow.directory.DirectoryConfiguration.HeapOverflowAction;
+import ow.directory.expiration.ExpiringValue;
+
+/**
+ * A volatile directory which holds multiple values associated with a key
+ * in a number of hash tables, each of which is guarded by its own lock.
+ * Operations on a key lock only the stripe the key belongs to.
+ * keySet() and entrySet() lock all the stripes to take a consistent snapshot,
+ * and an iterator takes a snapshot of one stripe at a time.
+ * With {@link HeapOverflowAction#LRU HeapOverflowAction.LRU},
+ * the least recently used key in the stripe is evicted.
+ */
+public final class StripedMultiValueDirectory<K,V> implements MultiValueDirectory<K,V>, ConcurrentDirectory<K> {
+	private final DirectoryConfiguration config;
+	private final Stripe<K,V>[] stripes;
+	private final int mask;
+
+	StripedMultiValueDirectory(Class typeK, Class typeV, DirectoryConfiguration config, int numStripes) {
+		this.config = (config != null ? config : DirectoryConfiguration.getDefaultConfiguration());
+
+		int size = 1;
+		while (size < numStripes) size <<= 1;
+
+		this.stripes = new Stripe/*<K,V>*/[size];
+		for (int i = 0; i < size; i++) this.stripes[i] = new Stripe<K,V>(this.config);
+		this.mask = size - 1;
+	}
+
+	private final static class Stripe<K,V> extends ReentrantLock {
+		final Map<K,Map<V,V>> map;
+			// value should be Map, not Set
+			// because put() and remove() have to return the value contained.
+
+		Stripe(DirectoryConfiguration config) {
+			if (config.getHeapOverflowAction() == HeapOverflowAction.LRU)
+				this.map = new LRUExpiringMap<K,Map<V,V>>(config.getRequiredFreeHeapToPut());
+			else
+				this.map = new HashMap<K,Map<V,V>>();
+		}
+	}
+
+	private final static class LRUExpiringMap<K,V> extends LinkedHashMap<K,V> {
+		private final long requiredFreeHeap;
+
+		LRUExpiringMap(long reqFreeHeap) {
+			super(16, 0.75f, true /* access order */);
+			this.requiredFreeHeap = reqFreeHeap;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+			Runtime r = Runtime.getRuntime();
+			if (r.freeMemory() < this.requiredFreeHeap) {
+				System.gc();
+				if (r.freeMemory() < this.requiredFreeHeap) {
+					// out of heap
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	private Stripe<K,V> stripeFor(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return this.stripes[h & this.mask];
+	}
+
+	private void lockAll() {
+		for (Stripe<K,V> s: this.stripes) s.lock();
+	}
+
+	private void unlockAll() {
+		for (int i = this.stripes.length - 1; i >= 0; i--) this.stripes[i].unlock();
+	}
+
+	public Set<V> get(K key) {
+		Stripe<K,V> s = this.stripeFor(key);
+
+		s.lock();
+		try {
+			Map<V,V> map = s.map.get(key);
+			return (map != null ? new HashSet<V>(map.keySet()) : null);
+		}
+		finally {
+			s.unlock();
+		}
+	}
+
+	public V put(K key, V value) throws OutOfHeapException {
+		HeapOverflowAction a = this.config.getHeapOverflowAction();
+		if (a == HeapOverflowAction.IGNORE
+				|| a == HeapOverflowAction.THROW_AN_OUT_OF_HEAP_EXCEPTION) {
+			Runtime r = Runtime.getRuntime();
+
+			if (r.freeMemory() < this.config.getRequiredFreeHeapToPut()) {
+				System.gc();
+				if (r.freeMemory() < this.config.getRequiredFreeHeapToPut()) {
+					// out of heap
+					if (a == HeapOverflowAction.THROW_AN_OUT_OF_HEAP_EXCEPTION)
+						throw new OutOfHeapException("Remaining heap: " + Runtime.getRuntime().freeMemory() + "key: " + key);
+					else
+						return null;
+				}
+			}
+		}
+
+		Stripe<K,V> s = this.stripeFor(key);
+
+		s.lock();
+		try {
+			Map<V,V> map = s.map.get(key);
+			if (map == null) {
+				map = new HashMap<V,V>();
+				s.map.put(key, map);
+			}
+
+			V ret = map.remove(value);
+			map.put(value, value);
+
+			return ret;
+		}
+		finally {
+			s.unlock();
+		}
+	}
+
+	/** For compatibility with ExpiringMultiValueDirectory. */
+	public V put(K key, V value, long ttl) throws OutOfHeapException {
+		// ignore ttl
+		return this.put(key, value);
+	}
+
+	public Set<V> remove(K key) {
+		Stripe<K,V> s = this.stripeFor(key);
+
+		s.lock();
+		try {
+			Map<V,V> map = s.map.remove(key);
+			return (map != null ? new HashSet<V>(map.keySet()) : null);
+		}
+		finally {
+			s.unlock();
+		}
+	}
+
+	public V remove(K key, V value) {
+		Stripe<K,V> s = this.stripeFor(key);
+
+		s.lock();
+		try {
+			Map<V,V> map = s.map.get(key);
+			if (map == null) return null;
+
+			V ret = map.remove(value);
+			if (map.isEmpty()) s.map.remove(key);
+
+			return ret;
+		}
+		finally {
+			s.unlock();
+		}
+	}
+
+	public boolean removeExpired(K key, long currentTime) {
+		Stripe<K,V> s = this.stripeFor(key);
+
+		s.lock();
+		try {
+			Map<V,V> map = s.map.get(key);
+			if (map == null) return false;
+
+			boolean removed = false;
+			for (Iterator<V> it = map.values().iterator(); it.hasNext(); ) {
+				V v = it.next();
+				if (v instanceof ExpiringValue && ((ExpiringValue)v).getExpiringTime() < currentTime) {
+					it.remove();
+					removed = true;
+				}
+			}
+			if (map.isEmpty()) s.map.remove(key);
+
+			return removed;
+		}
+		finally {
+			s.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		for (Stripe<K,V> s: this.stripes) {
+			s.lock();
+			try {
+				if (!s.map.isEmpty()) return false;
+			}
+			finally {
+				s.unlock();
+			}
+		}
+
+		return true;
+	}
+
+	public Set<K> keySet() {
+		Set<K> result = new HashSet<K>();
+
+		this.lockAll();
+		try {
+			for (Stripe<K,V> s: this.stripes) result.addAll(s.map.keySet());
+		}
+		finally {
+			this.unlockAll();
+		}
+
+		return result;
+	}
+
+	public Set<Map.Entry<K,V>> entrySet() {
+		Set<Map.Entry<K,V>> result = new HashSet<Map.Entry<K,V>>();
+
+		this.lockAll();
+		try {
+			for (Stripe<K,V> s: this.stripes) {
+				for (Map.Entry<K,Map<V,V>> e: s.map.entrySet()) {
+					for (V v: e.getValue().keySet()) {
+						result.add(new AbstractMap.SimpleImmutableEntry<K,V>(e.getKey(), v));
+					}
+				}
+			}
+		}
+		finally {
+			this.unlockAll();
+		}
+
+		return result;
+	}
+
+	public void clear() {
+		this.lockAll();
+		try {
+			for (Stripe<K,V> s: this.stripes) s.map.clear();
+		}
+		finally {
+			this.unlockAll();
+		}
+	}
+
+	public void close() {
+		// do nothing
+	}
+
+	public Iterator<Map.Entry<K,V>> iterator() {
+		return new StripedIterator();
+	}
+
+	private class StripedIterator implements Iterator<Map.Entry<K,V>> {
+		private int stripeIndex = 0;
+		private Iterator<StripedEntry> it = null;
+		private StripedEntry lastEntry = null;
+
+		public boolean hasNext() {
+			while (this.it == null || !this.it.hasNext()) {
+				if (this.stripeIndex >= stripes.length) return false;
+
+				this.it = this.snapshot(stripes[this.stripeIndex++]).iterator();
+			}
+
+			return true;
+		}
+
+		private List<StripedEntry> snapshot(Stripe<K,V> s) {
+			List<StripedEntry> entries = new ArrayList<StripedEntry>();
+
+			s.lock();
+			try {
+				for (Map.Entry<K,Map<V,V>> e: s.map.entrySet()) {
+					for (V v: e.getValue().keySet()) {
+						entries.add(new StripedEntry(e.getKey(), v));
+					}
+				}
+			}
+			finally {
+				s.unlock();
+			}
+
+			return entries;
+		}
+
+		public Map.Entry<K,V> next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+
+			this.lastEntry = this.it.next();
+			return this.lastEntry;
+		}
+
+		public void remove() {
+			if (this.lastEntry == null) throw new IllegalStateException();
+
+			StripedMultiValueDirectory.this.remove(this.lastEntry.getKey(), this.lastEntry.getValue());
+			this.lastEntry = null;
+		}
+	}
+
+	private class StripedEntry implements Map.Entry<K,V> {
+		private final K k;
+		private V v;
+
+		StripedEntry(K k, V v) {
+			this.k = k; this.v = v;
+		}
+
+		public K getKey() { return this.k; }
+		public V getValue() { return this.v; }
+		public V setValue(V newValue) {
+			V ret = this.v;
+			StripedMultiValueDirectory.this.remove(this.k, this.v);
+			try {
+				StripedMultiValueDirectory.this.put(this.k, newValue);
+			}
+			catch (OutOfHeapException e) {
+				throw new IllegalStateException("Could not put a value.", e);
+			}
+			this.v = newValue;
+			return ret;
+		}
+
+		public String toString() {
+			return this.k + "=" + this.v;
+		}
+	}
+}
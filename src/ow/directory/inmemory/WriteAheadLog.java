@@ -0,0 +1,379 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.inmemory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
+
+/**
+ * An append-only log of put and remove operations on a directory.
+ * A record consists of its length, CRC32 of its payload and the payload
+ * (an operation, a key and a value written with the binary codec).
+ * Records are buffered and a committer thread writes and forces them together (group commit).
+ * The log is compacted into a snapshot of the directory when it has grown enough.
+ */
+final class WriteAheadLog implements Runnable {
+	private final static Logger logger = Logger.getLogger("directory");
+
+	// operations
+	final static byte PUT = 1;
+	final static byte REMOVE = 2;
+	final static byte REMOVE_VALUE = 3;
+	final static byte CLEAR = 4;
+
+	private final static int RECORD_HEADER_SIZE = 8;	// length and CRC32
+	private final static int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	private final static int BUFFER_SIZE = 64 * 1024;
+	private final static int COMPACTION_RATIO = 2;
+
+	/** Applies a replayed operation to a directory. */
+	interface Replayer {
+		void replay(byte op, Object key, Object value) throws Exception;
+	}
+
+	/**
+	 * Provides a snapshot of a directory for compaction.
+	 * An implementation copies the entries and calls {@link WriteAheadLog#beginCompaction() beginCompaction()}
+	 * holding the lock under which operations are appended.
+	 */
+	interface SnapshotSource {
+		List<Map.Entry<Object,Object>> snapshot();
+	}
+
+	private final File file, tmpFile;
+	private final long commitInterval;
+	private final long minCompactionSize;
+	private final MessageCodec codec = MessageCodecFactory.getCodec("Binary");
+	private SnapshotSource snapshotSource;
+
+	private FileChannel channel;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);	// records to be committed
+	private ByteArrayOutputStream backlog;	// records appended during compaction
+	private long logSize;
+	private long sizeAfterCompaction;
+	private boolean closed = false;
+	private Thread committer;
+
+	WriteAheadLog(File file, long commitInterval, long minCompactionSize) {
+		this.file = file;
+		this.tmpFile = new File(file.getPath() + ".tmp");
+		this.commitInterval = commitInterval;
+		this.minCompactionSize = minCompactionSize;
+	}
+
+	/**
+	 * Reads the log as a stream and passes operations to the given replayer.
+	 * A torn or corrupted record at the tail, written on a crash, and the following bytes are discarded.
+	 */
+	void replay(Replayer replayer) throws IOException {
+		long validSize = 0L;
+		int numRecords = 0;
+
+		if (this.file.exists()) {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(this.file), BUFFER_SIZE));
+			CRC32 crc = new CRC32();
+
+			try {
+				while (true) {
+					int len;
+					try {
+						len = in.readInt();
+					}
+					catch (EOFException e) {
+						break;	// end of the log
+					}
+					int checksum = in.readInt();
+
+					if (len <= 0 || len > MAX_RECORD_SIZE) {
+						throw new IOException("Invalid record length: " + len);
+					}
+
+					byte[] payload = new byte[len];
+					in.readFully(payload);
+
+					crc.reset();
+					crc.update(payload, 0, len);
+					if ((int)crc.getValue() != checksum) {
+						throw new IOException("Checksum mismatch.");
+					}
+
+					ObjectInputStream ois = this.codec.getObjectInputStream(
+							new ByteArrayInputStream(payload, 1, len - 1));
+					try {
+						replayer.replay(payload[0], ois.readObject(), ois.readObject());
+					}
+					catch (Exception e) {
+						throw new IOException("Could not replay a record: " + e);
+					}
+
+					validSize += RECORD_HEADER_SIZE + len;
+					numRecords++;
+				}
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "The log " + this.file + " is torn or corrupted at " + validSize
+						+ " byte and the rest is discarded: " + e.getMessage());
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		logger.log(Level.INFO, "Replayed " + numRecords + " records from " + this.file);
+
+		// open
+		this.channel = FileChannel.open(this.file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		this.channel.truncate(validSize);
+		this.channel.position(validSize);
+
+		this.logSize = validSize;
+		this.sizeAfterCompaction = validSize;
+	}
+
+	/**
+	 * Starts the committer thread. Called after {@link #replay(Replayer) replay()}.
+	 */
+	void start(SnapshotSource source) {
+		this.snapshotSource = source;
+
+		this.committer = new Thread(this);
+		this.committer.setDaemon(true);
+		this.committer.setName("Log committer: " + this.file.getName());
+		this.committer.start();
+	}
+
+	/**
+	 * Appends an operation. It is written to the file within the commit interval.
+	 */
+	void append(byte op, Object key, Object value) throws IOException {
+		byte[] record = this.encodeRecord(op, key, value);
+
+		synchronized (this) {
+			if (this.closed) throw new IOException("Log already closed: " + this.file);
+
+			this.buffer.write(record);
+			if (this.backlog != null) this.backlog.write(record);
+			this.logSize += record.length;
+
+			if (this.buffer.size() >= BUFFER_SIZE) this.notifyAll();
+		}
+	}
+
+	synchronized void beginCompaction() {
+		this.backlog = new ByteArrayOutputStream();
+	}
+
+	private byte[] encodeRecord(byte op, Object key, Object value) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(new byte[RECORD_HEADER_SIZE]);	// filled later
+		bos.write(op);
+
+		ObjectOutputStream oos = this.codec.getObjectOutputStream(bos);
+		oos.writeObject(key);
+		oos.writeObject(value);
+		oos.flush();
+
+		byte[] record = bos.toByteArray();
+		int len = record.length - RECORD_HEADER_SIZE;
+
+		CRC32 crc = new CRC32();
+		crc.update(record, RECORD_HEADER_SIZE, len);
+
+		ByteBuffer header = ByteBuffer.wrap(record, 0, RECORD_HEADER_SIZE);
+		header.putInt(len);
+		header.putInt((int)crc.getValue());
+
+		return record;
+	}
+
+	public void run() {
+		while (true) {
+			synchronized (this) {
+				if (!this.closed && this.buffer.size() < BUFFER_SIZE) {
+					try {
+						this.wait(this.commitInterval);
+					}
+					catch (InterruptedException e) { /* ignore */ }
+				}
+
+				if (this.closed) break;
+			}
+
+			try {
+				this.commit();
+
+				if (this.needsCompaction()) {
+					this.compact();
+				}
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Could not write to the log " + this.file, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes buffered records and forces them to the device.
+	 */
+	private void commit() throws IOException {
+		byte[] records;
+		synchronized (this) {
+			if (this.buffer.size() <= 0) return;
+
+			records = this.buffer.toByteArray();
+			this.buffer.reset();
+		}
+
+		write(this.channel, records);
+		this.channel.force(false);
+	}
+
+	private synchronized boolean needsCompaction() {
+		return this.logSize >= this.minCompactionSize
+			&& this.logSize >= COMPACTION_RATIO * this.sizeAfterCompaction;
+	}
+
+	/**
+	 * Writes a snapshot and the records appended meanwhile to a new log, and replaces the log with it.
+	 * The current log is kept committed until the replacement.
+	 */
+	private void compact() throws IOException {
+		List<Map.Entry<Object,Object>> snapshot = this.snapshotSource.snapshot();
+			// beginCompaction() has been called
+
+		long size = 0L;
+		FileChannel tmp = null;
+		try {
+			tmp = FileChannel.open(this.tmpFile.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+			ByteArrayOutputStream chunk = new ByteArrayOutputStream(BUFFER_SIZE);
+			for (Map.Entry<Object,Object> entry: snapshot) {
+				chunk.write(this.encodeRecord(PUT, entry.getKey(), entry.getValue()));
+
+				if (chunk.size() >= BUFFER_SIZE) {
+					size += chunk.size();
+					write(tmp, chunk.toByteArray());
+					chunk.reset();
+
+					this.commit();
+				}
+			}
+			size += chunk.size();
+			write(tmp, chunk.toByteArray());
+			snapshot = null;
+
+			synchronized (this) {
+				byte[] records = this.backlog.toByteArray();
+				size += records.length;
+				write(tmp, records);
+				tmp.force(true);
+				tmp.close();
+
+				this.channel.close();
+				Files.move(this.tmpFile.toPath(), this.file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE);
+				this.channel.position(size);
+
+				// the backlog includes buffered records
+				this.buffer.reset();
+				this.backlog = null;
+				this.logSize = size;
+				this.sizeAfterCompaction = size;
+			}
+
+			logger.log(Level.INFO, "Compacted the log " + this.file + " into " + size + " byte.");
+		}
+		finally {
+			synchronized (this) {
+				if (this.backlog != null) {	// failed
+					this.backlog = null;
+					this.tmpFile.delete();
+				}
+			}
+			if (tmp != null && tmp.isOpen()) tmp.close();
+		}
+	}
+
+	private static void write(FileChannel ch, byte[] bytes) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+	}
+
+	/**
+	 * Commits buffered records and closes the log.
+	 */
+	void close() {
+		Thread t;
+		synchronized (this) {
+			if (this.closed) return;
+
+			this.closed = true;
+			this.notifyAll();
+
+			t = this.committer;
+		}
+
+		try {
+			if (t != null) t.join();
+		}
+		catch (InterruptedException e) { /* ignore */ }
+
+		try {
+			this.commit();
+			this.channel.close();
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Could not close the log " + this.file, e);
+		}
+	}
+
+	/**
+	 * Deletes the files of the log.
+	 */
+	static void remove(File file) {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+}
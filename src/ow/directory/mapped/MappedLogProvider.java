@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.mapped;
+
+import java.io.File;
+
+import ow.directory.DirectoryConfiguration;
+import ow.directory.DirectoryProvider;
+import ow.directory.MultiValueDirectory;
+import ow.directory.SingleValueDirectory;
+
+/**
+ * Provides persistent directories on memory-mapped, append-only segment files ("MappedLog").
+ * Only an index of keys stays on the heap, so that a directory can be larger than the heap.
+ * Updates are written to disk every {@link DirectoryConfiguration#getSyncInterval() sync interval}
+ * and on close, and ones in the last interval can be lost on a crash.
+ * Segments mostly superseded or expired are compacted in the background.
+ */
+public final class MappedLogProvider extends DirectoryProvider {
+	private final static String NAME = "MappedLog";
+
+	// configuration
+	private final static int SEGMENT_SIZE = 64 * 1024 * 1024;	// 64 MB
+	private final static int NUM_STRIPES = 64;
+	private final static long COMPACTION_INTERVAL = 10 * 1000L;	// 10 sec
+	private final static double GARBAGE_RATIO = 0.5;
+
+	public String getName() { return NAME; }
+
+	protected <K,V> SingleValueDirectory<K,V> provideSingleValueDirectory(Class typeK, Class typeV, String dir, String dbName,
+			DirectoryConfiguration config) throws Exception {
+		return new MappedSingleValueDirectory<K,V>(typeK, typeV, makeDirectory(dir), dbName,
+				SEGMENT_SIZE, NUM_STRIPES, config.getSyncInterval(), COMPACTION_INTERVAL, GARBAGE_RATIO);
+	}
+
+	protected <K,V> MultiValueDirectory<K,V> provideMultiValueDirectory(Class typeK, Class typeV, String dir, String dbName,
+			DirectoryConfiguration config) throws Exception {
+		return new MappedMultiValueDirectory<K,V>(typeK, typeV, makeDirectory(dir), dbName,
+				SEGMENT_SIZE, NUM_STRIPES, config.getSyncInterval(), COMPACTION_INTERVAL, GARBAGE_RATIO);
+	}
+
+	public void removeDirectory(String dir, String dbName) throws Exception {
+		SegmentStore.remove(new File(dir), dbName);
+	}
+
+	private static File makeDirectory(String dir) {
+		File f = new File(dir);
+		f.mkdirs();
+		return f;
+	}
+}
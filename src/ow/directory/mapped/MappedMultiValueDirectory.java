@@ -0,0 +1,266 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import ow.directory.ConcurrentDirectory;
+import ow.directory.MultiValueDirectory;
+import ow.directory.expiration.ExpiringValue;
+
+/**
+ * A directory on memory-mapped, append-only segment files,
+ * which holds multiple values associated with a key.
+ * All values of a key are serialized together as a Set, which expires when all the values expired.
+ * Updates to a key are serialized by one of striped locks.
+ */
+public final class MappedMultiValueDirectory<K,V> implements MultiValueDirectory<K,V>, ConcurrentDirectory<K> {
+	private final MappedSingleValueDirectory<K,HashSet<V>> internalDir;
+	private final Object[] locks;
+
+	MappedMultiValueDirectory(Class typeK, Class typeV, File dir, String dbName,
+			int segmentSize, int numStripes, long syncInterval, long compactionInterval, double garbageRatio)
+				throws IOException {
+		this.internalDir = new MappedSingleValueDirectory<K,HashSet<V>>(typeK, null /* Set<V>.class */, dir, dbName,
+				segmentSize, numStripes, syncInterval, compactionInterval, garbageRatio);
+
+		this.locks = new Object[numStripes];
+		for (int i = 0; i < numStripes; i++) this.locks[i] = new Object();
+	}
+
+	private Object lockFor(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return this.locks[(h & 0x7fffffff) % this.locks.length];
+	}
+
+	public Set<V> get(K key) throws Exception {
+		return this.internalDir.get(key);
+	}
+
+	public V put(K key, V value) throws Exception {
+		V ret = null;
+
+		synchronized (this.lockFor(key)) {
+			HashSet<V> set = this.internalDir.get(key);
+			if (set == null) {
+				set = new HashSet<V>();
+			}
+			else {
+				for (V v: set) {
+					if (v.equals(value)) { ret = v; break; }
+				}
+				if (ret != null) set.remove(ret);
+			}
+
+			set.add(value);
+			this.internalDir.putUntil(key, set, expiringTime(set));
+		}
+
+		return ret;
+	}
+
+	/** For compatibility with ExpiringMultiValueDirectory. */
+	public V put(K key, V value, long ttl) throws Exception {
+		// ignore ttl
+		return this.put(key, value);
+	}
+
+	public Set<V> remove(K key) throws Exception {
+		synchronized (this.lockFor(key)) {
+			return this.internalDir.remove(key);
+		}
+	}
+
+	public V remove(K key, V value) throws Exception {
+		V ret = null;
+
+		synchronized (this.lockFor(key)) {
+			HashSet<V> set = this.internalDir.get(key);
+			if (set != null) {
+				for (V v: set) {
+					if (v.equals(value)) { ret = v; break; }
+				}
+
+				if (ret != null) {
+					set.remove(ret);
+
+					if (set.isEmpty())
+						this.internalDir.remove(key);
+					else
+						this.internalDir.putUntil(key, set, expiringTime(set));
+				}
+			}
+		}
+
+		return ret;
+	}
+
+	public boolean removeExpired(K key, long currentTime) throws Exception {
+		synchronized (this.lockFor(key)) {
+			HashSet<V> set = this.internalDir.get(key);
+			if (set == null) return false;
+
+			boolean removed = false;
+			for (Iterator<V> it = set.iterator(); it.hasNext(); ) {
+				V v = it.next();
+				if (v instanceof ExpiringValue && ((ExpiringValue)v).getExpiringTime() < currentTime) {
+					it.remove();
+					removed = true;
+				}
+			}
+
+			if (removed) {
+				if (set.isEmpty())
+					this.internalDir.remove(key);
+				else
+					this.internalDir.putUntil(key, set, expiringTime(set));
+			}
+
+			return removed;
+		}
+	}
+
+	/**
+	 * Returns the latest expiring time of the values, or Long.MAX_VALUE if a value does not expire.
+	 */
+	private static long expiringTime(Set<?> set) {
+		long time = Long.MIN_VALUE;
+		for (Object v: set) {
+			if (!(v instanceof ExpiringValue)) return Long.MAX_VALUE;
+
+			time = Math.max(time, ((ExpiringValue)v).getExpiringTime());
+		}
+		return time;
+	}
+
+	public boolean isEmpty() {
+		return this.internalDir.isEmpty();
+	}
+
+	/**
+	 * Returns the number of bytes of the segment files.
+	 */
+	public long getDiskBytes() {
+		return this.internalDir.getDiskBytes();
+	}
+
+	/**
+	 * Compacts sealed segments now, which is usually done by a background thread.
+	 */
+	public void compact() throws IOException {
+		this.internalDir.compact();
+	}
+
+	public Set<K> keySet() {
+		return this.internalDir.keySet();
+	}
+
+	public Set<Map.Entry<K,V>> entrySet() {
+		Set<Map.Entry<K,V>> result = new HashSet<Map.Entry<K,V>>();
+		for (Map.Entry<K,V> entry: this) {
+			result.add(new AbstractMap.SimpleImmutableEntry<K,V>(entry.getKey(), entry.getValue()));
+		}
+		return result;
+	}
+
+	public void clear() {
+		this.internalDir.clear();
+	}
+
+	public void close() {
+		this.internalDir.close();
+	}
+
+	public Iterator<Map.Entry<K,V>> iterator() {
+		return new MappedMultiValueIterator();
+	}
+
+	private class MappedMultiValueIterator implements Iterator<Map.Entry<K,V>> {
+		private final Iterator<Map.Entry<K,HashSet<V>>> it0 = internalDir.iterator();
+		private K key;
+		private Iterator<V> it1;
+		private MappedMultiValueEntry lastEntry;
+
+		public boolean hasNext() {
+			while (this.it1 == null || !this.it1.hasNext()) {
+				if (!this.it0.hasNext()) return false;
+
+				Map.Entry<K,HashSet<V>> e0 = this.it0.next();
+				this.key = e0.getKey();
+				this.it1 = e0.getValue().iterator();
+			}
+
+			return true;
+		}
+
+		public Map.Entry<K,V> next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+
+			this.lastEntry = new MappedMultiValueEntry(this.key, this.it1.next());
+			return this.lastEntry;
+		}
+
+		public void remove() {
+			if (this.lastEntry == null) throw new IllegalStateException();
+
+			try {
+				MappedMultiValueDirectory.this.remove(this.lastEntry.getKey(), this.lastEntry.getValue());
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Could not remove a value.", e);
+			}
+			this.lastEntry = null;
+		}
+	}
+
+	private class MappedMultiValueEntry implements Map.Entry<K,V> {
+		private final K k;
+		private V v;
+
+		MappedMultiValueEntry(K k, V v) {
+			this.k = k; this.v = v;
+		}
+
+		public K getKey() { return this.k; }
+		public V getValue() { return this.v; }
+		public V setValue(V newValue) {
+			V ret = this.v;
+			try {
+				MappedMultiValueDirectory.this.remove(this.k, this.v);
+				MappedMultiValueDirectory.this.put(this.k, newValue);
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("Could not put a value.", e);
+			}
+			this.v = newValue;
+			return ret;
+		}
+
+		public String toString() {
+			return this.k + "=" + this.v;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.mapped;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import ow.directory.ConcurrentDirectory;
+import ow.directory.SingleValueDirectory;
+import ow.directory.expiration.ExpiringValue;
+import ow.id.ID;
+
+/**
+ * A directory on memory-mapped, append-only segment files.
+ * Keys of type {@link ID ID} are stored as their bytes and values are serialized by Java serialization,
+ * so that the files do not depend on the message codec in use.
+ * A value wrapped by {@link ExpiringValue ExpiringValue} is stored with its expiring time,
+ * so that the record is dropped by compaction and recovery after it expired.
+ */
+public final class MappedSingleValueDirectory<K,V> implements SingleValueDirectory<K,V>, ConcurrentDirectory<K> {
+	private final boolean idKey;
+	private final SegmentStore store;
+
+	MappedSingleValueDirectory(Class typeK, Class typeV, File dir, String dbName,
+			int segmentSize, int numStripes, long syncInterval, long compactionInterval, double garbageRatio)
+				throws IOException {
+		this.idKey = ID.class.equals(typeK);
+		this.store = new SegmentStore(dir, dbName, segmentSize, numStripes,
+				syncInterval, compactionInterval, garbageRatio);
+	}
+
+	public V get(K key) throws IOException {
+		return (V)decode(this.store.get(this.encodeKey(key)));
+	}
+
+	public V put(K key, V value) throws IOException {
+		long expiringTime = Long.MAX_VALUE;
+		if (value instanceof ExpiringValue) {
+			expiringTime = ((ExpiringValue)value).getExpiringTime();
+		}
+
+		return this.putUntil(key, value, expiringTime);
+	}
+
+	/** For compatibility with ExpiringDirectory. */
+	public V put(K key, V value, long ttl) throws IOException {
+		// ignore ttl
+		return this.put(key, value);
+	}
+
+	/**
+	 * Puts a pair which expires on the specified time.
+	 */
+	V putUntil(K key, V value, long expiringTime) throws IOException {
+		return (V)decode(this.store.put(this.encodeKey(key), encode(value), expiringTime));
+	}
+
+	public V remove(K key) throws IOException {
+		return (V)decode(this.store.remove(this.encodeKey(key)));
+	}
+
+	public boolean removeExpired(K key, long currentTime) throws IOException {
+		return this.store.removeIfExpired(this.encodeKey(key), currentTime);
+	}
+
+	public boolean isEmpty() {
+		return this.store.isEmpty();
+	}
+
+	/**
+	 * Returns the number of bytes of the segment files.
+	 */
+	public long getDiskBytes() {
+		return this.store.diskBytes();
+	}
+
+	/**
+	 * Compacts sealed segments now, which is usually done by a background thread.
+	 */
+	public void compact() throws IOException {
+		this.store.compact();
+	}
+
+	public Set<K> keySet() {
+		Set<K> result = new HashSet<K>();
+		for (Iterator<Map.Entry<byte[],byte[]>> it = this.store.scan(true); it.hasNext(); ) {
+			try {
+				result.add(this.decodeKey(it.next().getKey()));
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Could not decode a key.", e);
+			}
+		}
+		return result;
+	}
+
+	public Set<Map.Entry<K,V>> entrySet() {
+		Set<Map.Entry<K,V>> result = new HashSet<Map.Entry<K,V>>();
+		for (Map.Entry<K,V> entry: this) {
+			result.add(entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all the pairs, appending a tombstone for each of them.
+	 */
+	public void clear() {
+		try {
+			this.store.clear();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not clear the directory.", e);
+		}
+	}
+
+	public void close() {
+		this.store.close();
+	}
+
+	/**
+	 * Returns an iterator reading the segments sequentially.
+	 * Pairs put after the iterator was created are not returned.
+	 */
+	public Iterator<Map.Entry<K,V>> iterator() {
+		return new MappedIterator();
+	}
+
+	private byte[] encodeKey(K key) throws IOException {
+		if (this.idKey) return ((ID)key).getValue();
+		return encode(key);
+	}
+
+	private K decodeKey(byte[] key) throws IOException {
+		if (this.idKey) return (K)ID.getID(key, key.length);
+		return (K)decode(key);
+	}
+
+	static byte[] encode(Object o) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(o);
+		oos.flush();
+
+		return bos.toByteArray();
+	}
+
+	static Object decode(byte[] buf) throws IOException {
+		if (buf == null) return null;
+
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buf));
+		try {
+			return ois.readObject();
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException("Could not decode a value: " + e);
+		}
+	}
+
+	private class MappedIterator implements Iterator<Map.Entry<K,V>> {
+		private final Iterator<Map.Entry<byte[],byte[]>> it = store.scan(false);
+		private K lastKey;
+
+		public boolean hasNext() {
+			return this.it.hasNext();
+		}
+
+		public Map.Entry<K,V> next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+
+			Map.Entry<byte[],byte[]> e = this.it.next();
+			try {
+				this.lastKey = decodeKey(e.getKey());
+				return new AbstractMap.SimpleImmutableEntry<K,V>(this.lastKey, (V)decode(e.getValue()));
+			}
+			catch (IOException ex) {
+				throw new IllegalStateException("Could not decode a pair.", ex);
+			}
+		}
+
+		public void remove() {
+			if (this.lastKey == null) throw new IllegalStateException();
+
+			try {
+				MappedSingleValueDirectory.this.remove(this.lastKey);
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Could not remove a pair.", e);
+			}
+			this.lastKey = null;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.mapped;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only segment file mapped into memory.
+ * A record consists of its length, CRC32 of the rest of the record, an operation,
+ * the time on which the record expires, the length of the key, the key and the value.
+ * A segment is written only by {@link SegmentStore SegmentStore} holding its append lock,
+ * and is read concurrently by absolute accesses to the buffer.
+ */
+final class Segment {
+	// operations
+	final static byte PUT = 1;
+	final static byte REMOVE = 2;
+
+	final static int HEADER_SIZE = 21;	// length, CRC32, operation, expiring time and key length
+	private final static int OFFSET_CRC = 4;
+	private final static int OFFSET_OP = 8;
+	private final static int OFFSET_EXPIRE = 9;
+	private final static int OFFSET_KEY_LENGTH = 17;
+
+	final int id;
+	final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buf;
+	final int capacity;
+
+	// guarded by the append lock of the store
+	int writePos = 0;
+
+	volatile long maxExpiringTime = Long.MIN_VALUE;	// of PUT records. MIN_VALUE if none
+	final AtomicLong garbage = new AtomicLong();	// bytes of superseded PUT records
+	final AtomicLong tombstones = new AtomicLong();	// bytes of REMOVE records
+	volatile boolean dirty = false;
+
+	Segment(int id, File file, int capacity) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+
+		long len = Math.max(this.raf.length(), capacity);
+		if (len > Integer.MAX_VALUE) throw new IOException("Too large segment: " + file);
+
+		this.capacity = (int)len;
+		this.buf = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, this.capacity);
+	}
+
+	static byte[] encode(byte op, byte[] key, byte[] value, long expiringTime) {
+		int len = HEADER_SIZE + key.length + (value != null ? value.length : 0);
+		byte[] record = new byte[len];
+
+		ByteBuffer b = ByteBuffer.wrap(record);
+		b.putInt(len);
+		b.putInt(0);	// CRC32, filled later
+		b.put(op);
+		b.putLong(expiringTime);
+		b.putInt(key.length);
+		b.put(key);
+		if (value != null) b.put(value);
+
+		CRC32 crc = new CRC32();
+		crc.update(record, OFFSET_OP, len - OFFSET_OP);
+		b.putInt(OFFSET_CRC, (int)crc.getValue());
+
+		return record;
+	}
+
+	boolean hasRoom(int len) {
+		return this.writePos + len <= this.capacity;
+	}
+
+	/**
+	 * Appends a record. Called holding the append lock.
+	 *
+	 * @return the offset of the record.
+	 */
+	int append(byte[] record) {
+		int off = this.writePos;
+
+		ByteBuffer b = this.buf.duplicate();
+		b.position(off);
+		b.put(record);
+
+		this.writePos = off + record.length;
+		this.dirty = true;
+
+		return off;
+	}
+
+	/**
+	 * Returns the length of a valid record at the offset, or 0 if the record is torn or corrupted.
+	 */
+	int validate(int off) {
+		if (off + HEADER_SIZE > this.capacity) return 0;
+
+		int len = this.buf.getInt(off);
+		if (len < HEADER_SIZE || len > this.capacity - off) return 0;
+
+		int keyLen = this.buf.getInt(off + OFFSET_KEY_LENGTH);
+		if (keyLen < 0 || keyLen > len - HEADER_SIZE) return 0;
+
+		ByteBuffer b = this.buf.duplicate();
+		b.limit(off + len);
+		b.position(off + OFFSET_OP);
+
+		CRC32 crc = new CRC32();
+		crc.update(b);
+
+		return ((int)crc.getValue() == this.buf.getInt(off + OFFSET_CRC) ? len : 0);
+	}
+
+	int length(int off) { return this.buf.getInt(off); }
+	byte op(int off) { return this.buf.get(off + OFFSET_OP); }
+	long expiringTime(int off) { return this.buf.getLong(off + OFFSET_EXPIRE); }
+
+	byte[] key(int off) {
+		return this.read(off + HEADER_SIZE, this.buf.getInt(off + OFFSET_KEY_LENGTH));
+	}
+
+	byte[] value(int off) {
+		int keyLen = this.buf.getInt(off + OFFSET_KEY_LENGTH);
+		return this.read(off + HEADER_SIZE + keyLen, this.length(off) - HEADER_SIZE - keyLen);
+	}
+
+	/**
+	 * Returns a copy of the whole record.
+	 */
+	byte[] record(int off) {
+		return this.read(off, this.length(off));
+	}
+
+	boolean keyEquals(int off, byte[] key) {
+		if (this.buf.getInt(off + OFFSET_KEY_LENGTH) != key.length) return false;
+
+		int p = off + HEADER_SIZE;
+		for (int i = 0; i < key.length; i++) {
+			if (this.buf.get(p + i) != key[i]) return false;
+		}
+
+		return true;
+	}
+
+	private byte[] read(int off, int len) {
+		byte[] bytes = new byte[len];
+
+		ByteBuffer b = this.buf.duplicate();
+		b.position(off);
+		b.get(bytes);
+
+		return bytes;
+	}
+
+	/**
+	 * Forces written records to the device.
+	 */
+	void force() {
+		if (this.dirty) {
+			this.dirty = false;
+			this.buf.force();
+		}
+	}
+
+	/**
+	 * Closes the file. The mapping stays valid for readers which have looked the segment up.
+	 */
+	void close() throws IOException {
+		this.force();
+		this.raf.close();
+	}
+
+	void delete() throws IOException {
+		this.raf.close();
+		this.file.delete();
+	}
+}
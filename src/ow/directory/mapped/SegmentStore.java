@@ -0,0 +1,702 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory.mapped;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.util.Timer;
+
+/**
+ * Byte arrays associated with byte array keys, held in append-only {@link Segment segment} files
+ * mapped into memory. Only a small index stays on the heap:
+ * keys are partitioned into stripes, each of which has its own lock and an open addressing table
+ * from 64-bit hashes of keys to locations of the latest records, whose keys are compared on the mapping.
+ *
+ * An update appends a record to the active segment, which is sealed and replaced by a new one when full.
+ * On startup, the index is rebuilt by scanning the segments in order, and a torn or corrupted record
+ * at the tail and the following bytes are discarded.
+ * A maintainer thread forces written records to the device every sync interval
+ * and compacts sealed segments which are mostly superseded or expired,
+ * moving their live records to the active segment and deleting them.
+ * A record past its expiring time is treated as absent and dropped by compaction and recovery.
+ */
+final class SegmentStore implements Runnable {
+	private final static Logger logger = Logger.getLogger("directory");
+
+	private final static String SUFFIX = ".seg";
+	private final static int INITIAL_INDEX_CAPACITY = 256;	// slots per stripe
+
+	private final File dir;
+	private final String dbName;
+	private final int segmentSize;
+	private final long syncInterval;
+	private final long compactionInterval;
+	private final double garbageRatio;
+
+	private final ConcurrentSkipListMap<Integer,Segment> segments = new ConcurrentSkipListMap<Integer,Segment>();
+	private final Object appendLock = new Object();
+	private Segment active;	// guarded by appendLock
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+
+	private volatile boolean closed = false;
+	private Thread maintainer;
+
+	SegmentStore(File dir, String dbName, int segmentSize, int numStripes,
+			long syncInterval, long compactionInterval, double garbageRatio) throws IOException {
+		this.dir = dir;
+		this.dbName = dbName;
+		this.segmentSize = segmentSize;
+		this.syncInterval = syncInterval;
+		this.compactionInterval = compactionInterval;
+		this.garbageRatio = garbageRatio;
+
+		int n = 1;
+		while (n < numStripes) n <<= 1;
+		this.stripes = new Stripe[n];
+		this.stripeMask = n - 1;
+		for (int i = 0; i < n; i++) this.stripes[i] = new Stripe();
+
+		this.recover();
+
+		this.maintainer = new Thread(this);
+		this.maintainer.setDaemon(true);
+		this.maintainer.setName("Segment maintainer: " + dbName);
+		this.maintainer.start();
+	}
+
+	//
+	// Operations
+	//
+
+	byte[] get(byte[] key) {
+		long h = hash(key);
+		Stripe st = this.stripeFor(h);
+
+		synchronized (st) {
+			int i = st.find(h, key);
+			return (i >= 0 ? this.liveValue(st.locs[i]) : null);
+		}
+	}
+
+	/**
+	 * Associates the value with the key.
+	 *
+	 * @param expiringTime absolute time on which the record expires. Long.MAX_VALUE if it does not expire.
+	 * @return the previous value, or null if there was none.
+	 */
+	byte[] put(byte[] key, byte[] value, long expiringTime) throws IOException {
+		byte[] record = Segment.encode(Segment.PUT, key, value, expiringTime);
+		long h = hash(key);
+		Stripe st = this.stripeFor(h);
+
+		synchronized (st) {
+			int i = st.find(h, key);
+			byte[] ret = (i >= 0 ? this.liveValue(st.locs[i]) : null);
+
+			long loc = this.append(record, expiringTime, false);
+			if (i >= 0) {
+				this.discard(st.locs[i]);
+				st.locs[i] = loc;
+			}
+			else {
+				st.insert(h, loc);
+			}
+
+			return ret;
+		}
+	}
+
+	byte[] remove(byte[] key) throws IOException {
+		long h = hash(key);
+		Stripe st = this.stripeFor(h);
+
+		synchronized (st) {
+			int i = st.find(h, key);
+			if (i < 0) return null;
+
+			long loc = st.locs[i];
+			byte[] ret = this.liveValue(loc);
+
+			this.append(Segment.encode(Segment.REMOVE, key, null, 0L), 0L, true);
+			this.discard(loc);
+			st.delete(i);
+
+			return ret;
+		}
+	}
+
+	/**
+	 * Removes the key if its record expired before the specified time.
+	 *
+	 * @return true if the key was removed.
+	 */
+	boolean removeIfExpired(byte[] key, long currentTime) throws IOException {
+		long h = hash(key);
+		Stripe st = this.stripeFor(h);
+
+		synchronized (st) {
+			int i = st.find(h, key);
+			if (i < 0) return false;
+
+			long loc = st.locs[i];
+			if (this.segmentOf(loc).expiringTime((int)loc) >= currentTime) return false;
+
+			this.append(Segment.encode(Segment.REMOVE, key, null, 0L), 0L, true);
+			this.discard(loc);
+			st.delete(i);
+
+			return true;
+		}
+	}
+
+	boolean isEmpty() {
+		return this.size() <= 0;
+	}
+
+	/**
+	 * Returns the number of keys, including ones expired but not dropped yet.
+	 */
+	int size() {
+		int size = 0;
+		for (Stripe st: this.stripes) {
+			synchronized (st) {
+				size += st.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes of the segment files.
+	 */
+	long diskBytes() {
+		long bytes = 0L;
+		for (Segment s: this.segments.values()) bytes += s.capacity;
+		return bytes;
+	}
+
+	/**
+	 * Removes all the keys. A tombstone is appended for each key.
+	 */
+	void clear() throws IOException {
+		for (Iterator<Map.Entry<byte[],byte[]>> it = this.scan(true); it.hasNext(); ) {
+			this.remove(it.next().getKey());
+		}
+	}
+
+	/**
+	 * Returns live key-value pairs by reading the segments sequentially.
+	 * Records appended after this call are not returned,
+	 * and records moved by a concurrent compaction can be missed.
+	 *
+	 * @param keysOnly true if values are not needed, in which case values of the pairs are null.
+	 */
+	Iterator<Map.Entry<byte[],byte[]>> scan(boolean keysOnly) {
+		return new Scanner(keysOnly);
+	}
+
+	//
+	// Segments and records
+	//
+
+	private static long location(int segmentID, int off) {
+		return ((long)segmentID << 32) | (off & 0xffffffffL);
+	}
+
+	private Segment segmentOf(long loc) {
+		return this.segments.get((int)(loc >>> 32));
+	}
+
+	private byte[] liveValue(long loc) {
+		Segment s = this.segmentOf(loc);
+		int off = (int)loc;
+
+		if (s.expiringTime(off) < Timer.currentTimeMillis()) return null;
+		return s.value(off);
+	}
+
+	/**
+	 * Counts a superseded record as garbage of its segment.
+	 */
+	private void discard(long loc) {
+		Segment s = this.segmentOf(loc);
+		if (s != null) s.garbage.addAndGet(s.length((int)loc));
+	}
+
+	private long append(byte[] record, long expiringTime, boolean tombstone) throws IOException {
+		synchronized (this.appendLock) {
+			if (this.closed) throw new IOException("Store already closed: " + this.dbName);
+			if (record.length > this.segmentSize) {
+				throw new IOException("Too large record: " + record.length + " bytes");
+			}
+
+			if (!this.active.hasRoom(record.length)) {
+				this.active = this.newSegment(this.active.id + 1);
+			}
+
+			Segment s = this.active;
+			int off = s.append(record);
+			if (tombstone) {
+				s.tombstones.addAndGet(record.length);
+			}
+			else if (expiringTime > s.maxExpiringTime) {
+				s.maxExpiringTime = expiringTime;
+			}
+
+			return location(s.id, off);
+		}
+	}
+
+	private Segment newSegment(int id) throws IOException {
+		Segment s = new Segment(id, this.fileOf(id), this.segmentSize);
+		this.segments.put(id, s);
+		return s;
+	}
+
+	private File fileOf(int id) {
+		return new File(this.dir, this.dbName + "." + String.format("%08d", id) + SUFFIX);
+	}
+
+	private static File[] listFiles(File dir, final String dbName) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return idOf(name, dbName) > 0;
+			}
+		});
+		return (files != null ? files : new File[0]);
+	}
+
+	/**
+	 * Returns the ID of a segment file, or 0 if the name is not of a segment.
+	 */
+	private static int idOf(String name, String dbName) {
+		if (!name.startsWith(dbName + ".") || !name.endsWith(SUFFIX)) return 0;
+
+		try {
+			return Integer.parseInt(name.substring(dbName.length() + 1, name.length() - SUFFIX.length()));
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Rebuilds the index by scanning the segments in order.
+	 */
+	private void recover() throws IOException {
+		for (File f: listFiles(this.dir, this.dbName)) {
+			int id = idOf(f.getName(), this.dbName);
+			this.segments.put(id, new Segment(id, f, this.segmentSize));
+		}
+
+		long now = Timer.currentTimeMillis();
+		int numSegments = this.segments.size(), numRecords = 0;
+		boolean torn = false;
+
+		for (Segment s: this.segments.values()) {
+			int off = 0, len;
+			while ((len = s.validate(off)) > 0) {
+				this.replay(s, off, len, now);
+				off += len;
+				numRecords++;
+			}
+			s.writePos = off;
+
+			if (off + 4 <= s.capacity && s.length(off) != 0) {
+				logger.log(Level.WARNING, "The segment " + s.file + " is torn or corrupted at " + off
+						+ " byte and the rest is discarded.");
+				torn = true;
+			}
+		}
+
+		// append to a new segment rather than after a torn record
+		if (this.segments.isEmpty())
+			this.active = this.newSegment(1);
+		else if (torn)
+			this.active = this.newSegment(this.segments.lastKey() + 1);
+		else
+			this.active = this.segments.lastEntry().getValue();
+
+		logger.log(Level.INFO, "Recovered " + numRecords + " records from " + numSegments
+				+ " segments of " + this.dbName);
+	}
+
+	private void replay(Segment s, int off, int len, long now) {
+		byte[] key = s.key(off);
+		long h = hash(key);
+		Stripe st = this.stripeFor(h);
+
+		int i = st.find(h, key);
+		if (i >= 0) {
+			this.discard(st.locs[i]);
+			st.delete(i);
+		}
+
+		if (s.op(off) == Segment.PUT) {
+			long expiringTime = s.expiringTime(off);
+			if (expiringTime > s.maxExpiringTime) s.maxExpiringTime = expiringTime;
+
+			if (expiringTime >= now)
+				st.insert(h, location(s.id, off));
+			else
+				s.tombstones.addAndGet(len);	// hides an older record of the key as a tombstone does
+		}
+		else {
+			s.tombstones.addAndGet(len);
+		}
+	}
+
+	//
+	// Maintenance
+	//
+
+	public void run() {
+		long interval = this.compactionInterval;
+		if (this.syncInterval > 0L && this.syncInterval < interval) interval = this.syncInterval;
+
+		long lastCompaction = System.currentTimeMillis();
+
+		while (true) {
+			synchronized (this) {
+				if (!this.closed) {
+					try {
+						this.wait(interval);
+					}
+					catch (InterruptedException e) { /* ignore */ }
+				}
+
+				if (this.closed) break;
+			}
+
+			if (this.syncInterval > 0L) this.force();
+
+			long now = System.currentTimeMillis();
+			if (now - lastCompaction >= this.compactionInterval) {
+				lastCompaction = now;
+
+				try {
+					this.compact();
+				}
+				catch (IOException e) {
+					logger.log(Level.WARNING, "Could not compact segments of " + this.dbName, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forces written records of all the segments to the device.
+	 */
+	void force() {
+		for (Segment s: this.segments.values()) s.force();
+	}
+
+	/**
+	 * Compacts sealed segments which are expired as a whole
+	 * or of which superseded records exceed the garbage ratio.
+	 * Tombstones are counted as garbage only in the oldest segment,
+	 * because a tombstone has to be kept while an older segment can hold a record of the key.
+	 */
+	void compact() throws IOException {
+		long now = Timer.currentTimeMillis();
+
+		int activeID;
+		synchronized (this.appendLock) {
+			activeID = this.active.id;
+		}
+
+		for (Segment s: this.segments.values()) {
+			if (s.id >= activeID || this.closed) break;
+
+			boolean oldest = (s.id == this.segments.firstKey());
+			long reclaimable = s.garbage.get() + (oldest ? s.tombstones.get() : 0L);
+			boolean expired = (s.maxExpiringTime != Long.MIN_VALUE && s.maxExpiringTime < now);
+
+			if (expired || (s.writePos > 0 && reclaimable >= this.garbageRatio * s.writePos)) {
+				this.compact(s, !oldest, now);
+			}
+		}
+	}
+
+	/**
+	 * Moves live records of the segment to the active segment and deletes the segment.
+	 */
+	private void compact(Segment s, boolean hasOlder, long now) throws IOException {
+		int numMoved = 0;
+
+		for (int off = 0; off < s.writePos; off += s.length(off)) {
+			byte[] key = s.key(off);
+			long h = hash(key);
+			Stripe st = this.stripeFor(h);
+
+			synchronized (st) {
+				int i = st.find(h, key);
+
+				if (s.op(off) == Segment.PUT) {
+					if (i < 0) {
+						// removed later, or expired before recovery and not indexed
+						if (hasOlder && s.expiringTime(off) < now) {
+							this.append(Segment.encode(Segment.REMOVE, key, null, 0L), 0L, true);
+						}
+						continue;
+					}
+					if (st.locs[i] != location(s.id, off)) continue;	// superseded
+
+					long expiringTime = s.expiringTime(off);
+					if (expiringTime < now) {
+						if (hasOlder) this.append(Segment.encode(Segment.REMOVE, key, null, 0L), 0L, true);
+						st.delete(i);
+					}
+					else {
+						st.locs[i] = this.append(s.record(off), expiringTime, false);
+						numMoved++;
+					}
+				}
+				else if (i < 0 && hasOlder) {
+					this.append(s.record(off), 0L, true);
+				}
+			}
+		}
+
+		// the moved records have to be durable before the segment is deleted
+		this.force();
+
+		this.segments.remove(s.id);
+		s.delete();
+
+		logger.log(Level.INFO, "Compacted the segment " + s.file + ", " + numMoved + " records moved.");
+	}
+
+	/**
+	 * Stops the maintainer thread, forces written records and closes the segments.
+	 */
+	void close() {
+		Thread t;
+		synchronized (this) {
+			if (this.closed) return;
+
+			this.closed = true;
+			this.notifyAll();
+
+			t = this.maintainer;
+		}
+
+		try {
+			if (t != null) t.join();
+		}
+		catch (InterruptedException e) { /* ignore */ }
+
+		synchronized (this.appendLock) {
+			for (Segment s: this.segments.values()) {
+				try {
+					s.close();
+				}
+				catch (IOException e) {
+					logger.log(Level.WARNING, "Could not close the segment " + s.file, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the segment files.
+	 */
+	static void remove(File dir, String dbName) {
+		for (File f: listFiles(dir, dbName)) f.delete();
+	}
+
+	//
+	// Index
+	//
+
+	private static long hash(byte[] key) {
+		long h = 0xcbf29ce484222325L;	// FNV-1a
+		for (byte b: key) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private Stripe stripeFor(long h) {
+		return this.stripes[(int)(h >>> 40) & this.stripeMask];
+	}
+
+	/**
+	 * An open addressing table with linear probing.
+	 * An empty slot has location 0, which no record has because segment IDs start from 1.
+	 */
+	private final class Stripe {
+		long[] hashes = new long[INITIAL_INDEX_CAPACITY];
+		long[] locs = new long[INITIAL_INDEX_CAPACITY];
+		int size = 0;
+
+		/**
+		 * Returns the slot of the key, or -1 if not found.
+		 */
+		int find(long h, byte[] key) {
+			int mask = this.locs.length - 1;
+
+			for (int i = (int)h & mask; this.locs[i] != 0L; i = (i + 1) & mask) {
+				if (this.hashes[i] == h) {
+					long loc = this.locs[i];
+					if (segmentOf(loc).keyEquals((int)loc, key)) return i;
+				}
+			}
+
+			return -1;
+		}
+
+		void insert(long h, long loc) {
+			if (3 * (this.size + 1) > 2 * this.locs.length) this.grow();
+
+			int mask = this.locs.length - 1;
+			int i = (int)h & mask;
+			while (this.locs[i] != 0L) i = (i + 1) & mask;
+
+			this.hashes[i] = h;
+			this.locs[i] = loc;
+			this.size++;
+		}
+
+		/**
+		 * Empties the slot, shifting back the following entries of the cluster.
+		 */
+		void delete(int i) {
+			int mask = this.locs.length - 1;
+
+			for (int j = (i + 1) & mask; this.locs[j] != 0L; j = (j + 1) & mask) {
+				int home = (int)this.hashes[j] & mask;
+
+				// keep the entry if its home is cyclically in (i, j]
+				if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+
+				this.hashes[i] = this.hashes[j];
+				this.locs[i] = this.locs[j];
+				i = j;
+			}
+
+			this.locs[i] = 0L;
+			this.size--;
+		}
+
+		private void grow() {
+			long[] oldHashes = this.hashes, oldLocs = this.locs;
+			this.hashes = new long[oldLocs.length * 2];
+			this.locs = new long[oldLocs.length * 2];
+			int mask = this.locs.length - 1;
+
+			for (int k = 0; k < oldLocs.length; k++) {
+				if (oldLocs[k] == 0L) continue;
+
+				int i = (int)oldHashes[k] & mask;
+				while (this.locs[i] != 0L) i = (i + 1) & mask;
+
+				this.hashes[i] = oldHashes[k];
+				this.locs[i] = oldLocs[k];
+			}
+		}
+	}
+
+	//
+	// Scan
+	//
+
+	private final class Scanner implements Iterator<Map.Entry<byte[],byte[]>> {
+		private final boolean keysOnly;
+		private final Iterator<Segment> segIt;
+		private final int lastID, lastWritePos;
+		private Segment seg = null;
+		private int off, end;
+		private Map.Entry<byte[],byte[]> next = null;
+
+		Scanner(boolean keysOnly) {
+			this.keysOnly = keysOnly;
+
+			synchronized (appendLock) {
+				this.lastID = active.id;
+				this.lastWritePos = active.writePos;
+			}
+
+			this.segIt = new ArrayList<Segment>(segments.values()).iterator();
+		}
+
+		public boolean hasNext() {
+			while (this.next == null) {
+				if (this.seg == null || this.off >= this.end) {
+					if (!this.segIt.hasNext()) return false;
+
+					this.seg = this.segIt.next();
+					if (this.seg.id > this.lastID) return false;
+
+					this.off = 0;
+					this.end = (this.seg.id == this.lastID ? this.lastWritePos : this.seg.writePos);
+					continue;
+				}
+
+				int off = this.off;
+				this.off += this.seg.length(off);
+				if (this.seg.op(off) != Segment.PUT) continue;
+
+				byte[] key = this.seg.key(off);
+				long h = hash(key);
+				Stripe st = stripeFor(h);
+
+				synchronized (st) {
+					int i = st.find(h, key);
+					if (i < 0 || st.locs[i] != location(this.seg.id, off)) continue;	// superseded
+
+					if (this.seg.expiringTime(off) < Timer.currentTimeMillis()) continue;
+
+					this.next = new AbstractMap.SimpleImmutableEntry<byte[],byte[]>(key,
+							(this.keysOnly ? null : this.seg.value(off)));
+				}
+			}
+
+			return true;
+		}
+
+		public Map.Entry<byte[],byte[]> next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+
+			Map.Entry<byte[],byte[]> ret = this.next;
+			this.next = null;
+			return ret;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
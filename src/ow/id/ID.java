@@ -53,8 +53,11 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 //	private volatile int intSize;
 //	private volatile int[] intValue;
 		// big endian
+	private long[] limbs;
+		// little endian 64-bit limbs for IDDistance
 	private volatile BigInteger bigInteger;
 		// can keep a BigInteger because it is immutable
+		// created lazily
 	private volatile int hashCode;
 
 	/**
@@ -104,8 +107,13 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 //			}
 //		}
 
-		// create a BigInteger
-		this.bigInteger = new BigInteger(1 /*positive*/, this.value);
+		// generate limbs
+		this.limbs = new long[(this.size + 7) / 8];
+		for (int i = 0; i < this.size; i++) {
+			int idx = this.size - 1 - i;	// byte index from LSB
+			this.limbs[i >>> 3] |= (0xffL & this.value[idx]) << ((i & 7) * 8);
+		}
+		this.bigInteger = null;
 
 		// calculate the hashed value
 		int hashedvalue = 0;
@@ -197,7 +205,14 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	}
 
 	private static Random rnd = new Random();
-	
+
+	/**
+	 * Sets the seed of random numbers for {@link #getRandomID(int) getRandomID()}.
+	 */
+	public static void setRandomSeed(long seed) {
+		rnd.setSeed(seed);
+	}
+
 	/**
 	 * Returns a new ID having random value.
 	 */
@@ -279,6 +294,12 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 
 	public byte[] getValue() { return this.value; }
 
+	/**
+	 * Returns the value as 64-bit limbs in the format of {@link IDDistance IDDistance}.
+	 * Do not modify the returned array.
+	 */
+	public long[] getLimbs() { return this.limbs; }
+
 	/**
 	 * Returns bits.
 	 *
@@ -286,13 +307,22 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	 * @param len number of bits.
 	 */
 	public int getBits(int from, int len) {
+		if (from >= 0 && len < 32) {
+			// extract from limbs at once
+			int idx = from >>> 6, shift = from & 63;
+			long v = (idx < this.limbs.length ? this.limbs[idx] >>> shift : 0L);
+			if (shift + len > 64 && idx + 1 < this.limbs.length) v |= this.limbs[idx + 1] << (64 - shift);
+
+			return (int)(v & ((1L << len) - 1L));
+		}
+
 		int result = 0;
 
 		for (int i = 0; i < len; i++) {
 			int index = from + i;
 
 			if (index >= 0) {
-				if (this.bigInteger.testBit(from + i)) {
+				if (IDDistance.testBit(this.limbs, index)) {
 					result |= (1 << i);
 				}
 			}
@@ -378,7 +408,12 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	}
 
 	public BigInteger toBigInteger() {
-		return this.bigInteger;
+		BigInteger b = this.bigInteger;
+		if (b == null) {
+			this.bigInteger = b = new BigInteger(1 /*positive*/, this.value);
+		}
+
+		return b;
 	}
 
 	public boolean equals(Object obj) {
@@ -458,6 +493,6 @@ public final class ID implements java.io.Externalizable, Comparable<ID> {
 	}
 
 	public int compareTo(ID other) {
-		return this.toBigInteger().compareTo(other.toBigInteger());
+		return IDDistance.compare(this.limbs, other.limbs);
 	}
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.id;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Arithmetic on fixed-width unsigned integers represented as arrays of 64-bit limbs,
+ * which does not allocate any object.
+ * The limb at index 0 holds the least significant 64 bits
+ * and missing limbs of a shorter array are regarded as zero.
+ * Values of IDs in this form are obtained by {@link ID#getLimbs() ID#getLimbs()}.
+ * A distance has a limb more than an ID so that it can hold 2 ^ (ID size in bit).
+ */
+public final class IDDistance {
+	private IDDistance() {}
+
+	/**
+	 * Returns the number of limbs of a distance between IDs of the specified size.
+	 */
+	public static int lengthFor(int idSizeInBit) {
+		return (idSizeInBit >>> 6) + 1;
+	}
+
+	/**
+	 * Compares two unsigned integers.
+	 */
+	public static int compare(long[] a, long[] b) {
+		for (int i = Math.max(a.length, b.length) - 1; i >= 0; i--) {
+			long va = (i < a.length ? a[i] : 0L);
+			long vb = (i < b.length ? b[i] : 0L);
+			if (va != vb) {
+				return ((va ^ Long.MIN_VALUE) < (vb ^ Long.MIN_VALUE) ? -1 : 1);
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Sets (a xor b) to result.
+	 */
+	public static void xor(long[] a, long[] b, long[] result) {
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (i < a.length ? a[i] : 0L) ^ (i < b.length ? b[i] : 0L);
+		}
+	}
+
+	/**
+	 * Sets (to - from) modulo 2 ^ sizeInBit to result,
+	 * which is the clockwise distance from from to to on a ring of the size.
+	 */
+	public static void clockwise(long[] to, long[] from, int sizeInBit, long[] result) {
+		long borrow = 0L;
+		for (int i = 0; i < result.length; i++) {
+			long t = (i < to.length ? to[i] : 0L);
+			long f = (i < from.length ? from[i] : 0L);
+			long d = t - f - borrow;
+			borrow = (((~t & f) | (~(t ^ f) & d)) >>> 63);
+			result[i] = d;
+		}
+
+		// modulo 2 ^ sizeInBit
+		int idx = sizeInBit >>> 6;
+		if (idx < result.length) {
+			result[idx] &= ~(-1L << (sizeInBit & 63));
+			for (int i = idx + 1; i < result.length; i++) result[i] = 0L;
+		}
+	}
+
+	/**
+	 * Compares clockwise distances from a and b to target on a ring,
+	 * namely (target - a) and (target - b) modulo the size of the ring,
+	 * without calculating them.
+	 */
+	public static int compareClockwiseToward(long[] target, long[] a, long[] b) {
+		boolean aBeyond = (compare(a, target) > 0);
+		boolean bBeyond = (compare(b, target) > 0);
+
+		if (aBeyond == bBeyond) return compare(b, a);
+		else return (aBeyond ? 1 : -1);
+	}
+
+	/**
+	 * Compares clockwise distances from source to a and b on a ring,
+	 * namely (a - source) and (b - source) modulo the size of the ring,
+	 * without calculating them.
+	 */
+	public static int compareClockwiseFrom(long[] source, long[] a, long[] b) {
+		boolean aBehind = (compare(a, source) < 0);
+		boolean bBehind = (compare(b, source) < 0);
+
+		if (aBehind == bBehind) return compare(a, b);
+		else return (aBehind ? 1 : -1);
+	}
+
+	/**
+	 * Returns the index of the most significant set bit. -1 if the value is zero.
+	 * It is equivalent to {@link BigInteger#bitLength() BigInteger#bitLength()} - 1.
+	 */
+	public static int leadingBitIndex(long[] a) {
+		for (int i = a.length - 1; i >= 0; i--) {
+			if (a[i] != 0L) {
+				return (i << 6) + 63 - Long.numberOfLeadingZeros(a[i]);
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the most significant set bit of (a xor b). -1 if a and b are equal.
+	 */
+	public static int xorLeadingBitIndex(long[] a, long[] b) {
+		for (int i = Math.max(a.length, b.length) - 1; i >= 0; i--) {
+			long x = (i < a.length ? a[i] : 0L) ^ (i < b.length ? b[i] : 0L);
+			if (x != 0L) {
+				return (i << 6) + 63 - Long.numberOfLeadingZeros(x);
+			}
+		}
+
+		return -1;
+	}
+
+	public static boolean isZero(long[] a) {
+		for (long v: a) {
+			if (v != 0L) return false;
+		}
+
+		return true;
+	}
+
+	public static boolean testBit(long[] a, int n) {
+		int idx = n >>> 6;
+		return (idx < a.length) && ((a[idx] >>> (n & 63)) & 1L) != 0L;
+	}
+
+	public static void setBit(long[] a, int n) {
+		a[n >>> 6] |= (1L << (n & 63));
+	}
+
+	/**
+	 * Sets the bits of value shifted left by n bits to a.
+	 */
+	public static void or(long[] a, long value, int n) {
+		int idx = n >>> 6;
+		int shift = n & 63;
+
+		if (idx < a.length) a[idx] |= (value << shift);
+		if (shift != 0 && idx + 1 < a.length) a[idx + 1] |= (value >>> (64 - shift));
+	}
+
+	/**
+	 * Shifts a left by a bit. The most significant bit is lost.
+	 */
+	public static void shiftLeftOne(long[] a) {
+		for (int i = a.length - 1; i > 0; i--) {
+			a[i] = (a[i] << 1) | (a[i - 1] >>> 63);
+		}
+		if (a.length > 0) a[0] <<= 1;
+	}
+
+	/**
+	 * Subtracts 1 from a. Zero wraps around.
+	 */
+	public static void decrement(long[] a) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i]-- != 0L) break;
+		}
+	}
+
+	public static void clear(long[] a) {
+		Arrays.fill(a, 0L);
+	}
+
+	public static BigInteger toBigInteger(long[] a) {
+		byte[] bytes = new byte[a.length * 8];
+		for (int i = 0; i < a.length; i++) {
+			long v = a[i];
+			for (int j = 0; j < 8; j++) {
+				bytes[bytes.length - 1 - (i * 8 + j)] = (byte)(v >>> (j * 8));
+			}
+		}
+
+		return new BigInteger(1 /*positive*/, bytes);
+	}
+
+	//
+	// Working buffers
+	//
+
+	private final static ThreadLocal<long[][]> scratchBuffers = new ThreadLocal<long[][]>() {
+		protected long[][] initialValue() {
+			return new long[2][0];
+		}
+	};
+
+	/**
+	 * Returns a pair of working buffers owned by the calling thread.
+	 * Their contents are undefined and
+	 * they are shared by all the callers on the thread,
+	 * so that a caller must not call into code which uses them while it uses them.
+	 *
+	 * @param length minimum length of each buffer.
+	 */
+	public static long[][] getScratchBuffers(int length) {
+		long[][] bufs = scratchBuffers.get();
+		if (bufs[0].length < length) {
+			bufs[0] = new long[length];
+			bufs[1] = new long[length];
+		}
+
+		return bufs;
+	}
+}
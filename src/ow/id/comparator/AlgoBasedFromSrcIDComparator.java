@@ -17,25 +17,28 @@
 
 package ow.id.comparator;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 import ow.id.ID;
+import ow.id.IDDistance;
 import ow.routing.RoutingAlgorithm;
 
 public final class AlgoBasedFromSrcIDComparator implements Comparator<ID> {
 	private RoutingAlgorithm algo;
 	private ID sourceID;
+	private int distanceLength;
 
 	public AlgoBasedFromSrcIDComparator(RoutingAlgorithm algo, ID sourceID) {
 		this.algo = algo;
 		this.sourceID = sourceID;
+		this.distanceLength = IDDistance.lengthFor(sourceID.getSize() * 8);
 	}
 
 	public int compare(ID i1, ID i2) {
-		BigInteger dist1 = algo.distance(i1, this.sourceID);
-		BigInteger dist2 = algo.distance(i2, this.sourceID);
+		long[][] bufs = IDDistance.getScratchBuffers(this.distanceLength);
+		algo.distance(i1, this.sourceID, bufs[0]);
+		algo.distance(i2, this.sourceID, bufs[1]);
 
-		return dist1.compareTo(dist2);
+		return IDDistance.compare(bufs[0], bufs[1]);
 	}
 }
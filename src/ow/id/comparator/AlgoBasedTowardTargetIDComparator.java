@@ -17,25 +17,28 @@
 
 package ow.id.comparator;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 import ow.id.ID;
+import ow.id.IDDistance;
 import ow.routing.RoutingAlgorithm;
 
 public final class AlgoBasedTowardTargetIDComparator implements Comparator<ID> {
 	private RoutingAlgorithm algo;
 	private ID targetID;
+	private int distanceLength;
 
 	public AlgoBasedTowardTargetIDComparator(RoutingAlgorithm algo, ID targetID) {
 		this.algo = algo;
 		this.targetID = targetID;
+		this.distanceLength = IDDistance.lengthFor(targetID.getSize() * 8);
 	}
 
 	public int compare(ID i1, ID i2) {
-		BigInteger dist1 = algo.distance(this.targetID, i1);
-		BigInteger dist2 = algo.distance(this.targetID, i2);
+		long[][] bufs = IDDistance.getScratchBuffers(this.distanceLength);
+		algo.distance(this.targetID, i1, bufs[0]);
+		algo.distance(this.targetID, i2, bufs[1]);
 
-		return dist1.compareTo(dist2);
+		return IDDistance.compare(bufs[0], bufs[1]);
 	}
 }
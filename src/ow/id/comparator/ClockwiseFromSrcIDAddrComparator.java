@@ -17,33 +17,23 @@
 
 package ow.id.comparator;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 
 public final class ClockwiseFromSrcIDAddrComparator implements Comparator<IDAddressPair> {
-	private BigInteger sourceIDInteger;
-	private final BigInteger ID_SPACE_SIZE;
+	private long[] sourceIDLimbs;
 
+	/**
+	 * @param idSizeInBit ignored because the comparison does not depend on the size of the ID space.
+	 */
 	public ClockwiseFromSrcIDAddrComparator(int idSizeInBit, ID sourceID) {
-		this.sourceIDInteger = sourceID.toBigInteger();
-
-		this.ID_SPACE_SIZE = BigInteger.ONE.shiftLeft(idSizeInBit);
+		this.sourceIDLimbs = sourceID.getLimbs();
 	}
 
 	public int compare(IDAddressPair p1, IDAddressPair p2) {
-		BigInteger dist1 = p1.getID().toBigInteger().subtract(this.sourceIDInteger);
-		if (dist1.compareTo(BigInteger.ZERO) < 0) {
-			dist1 = dist1.add(this.ID_SPACE_SIZE);
-		}
-
-		BigInteger dist2 = p2.getID().toBigInteger().subtract(this.sourceIDInteger);
-		if (dist2.compareTo(BigInteger.ZERO) < 0) {
-			dist2 = dist2.add(this.ID_SPACE_SIZE);
-		}
-
-		return dist1.compareTo(dist2);
+		return IDDistance.compareClockwiseFrom(this.sourceIDLimbs, p1.getID().getLimbs(), p2.getID().getLimbs());
 	}
 }
@@ -17,33 +17,23 @@
 
 package ow.id.comparator;
 
-import java.math.BigInteger;
 import java.util.Comparator;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 
 public final class ClockwiseTowardTargetIDAddrComparator implements Comparator<IDAddressPair> {
-	private BigInteger targetIDInteger;
-	private final BigInteger ID_SPACE_SIZE;
+	private long[] targetIDLimbs;
 
+	/**
+	 * @param idSizeInBit ignored because the comparison does not depend on the size of the ID space.
+	 */
 	public ClockwiseTowardTargetIDAddrComparator(int idSizeInBit, ID targetID) {
-		this.targetIDInteger = targetID.toBigInteger();
-
-		this.ID_SPACE_SIZE = BigInteger.ONE.shiftLeft(idSizeInBit);
+		this.targetIDLimbs = targetID.getLimbs();
 	}
 
 	public int compare(IDAddressPair p1, IDAddressPair p2) {
-		BigInteger dist1 = this.targetIDInteger.subtract(p1.getID().toBigInteger());
-		if (dist1.compareTo(BigInteger.ZERO) < 0) {
-			dist1 = dist1.add(this.ID_SPACE_SIZE);
-		}
-
-		BigInteger dist2 = this.targetIDInteger.subtract(p2.getID().toBigInteger());
-		if (dist2.compareTo(BigInteger.ZERO) < 0) {
-			dist2 = dist2.add(this.ID_SPACE_SIZE);
-		}
-
-		return dist1.compareTo(dist2);
+		return IDDistance.compareClockwiseToward(this.targetIDLimbs, p1.getID().getLimbs(), p2.getID().getLimbs());
 	}
 }
@@ -18,6 +18,7 @@
 package ow.mcast;
 
 import ow.util.HighLevelServiceConfiguration;
+import ow.util.Timer;
 
 public final class McastConfiguration extends HighLevelServiceConfiguration {
 	// for Mcast
@@ -75,7 +76,10 @@ public final class McastConfiguration extends HighLevelServiceConfiguration {
 	}
 
 	private boolean useTimer = DEFAULT_USE_TIMER_INSTEAD_OF_THREAD;
-	public boolean getUseTimerInsteadOfThread() { return this.useTimer; }
+	/**
+	 * Returns true also in event driven mode of {@link Timer Timer}, in which no thread should wait in real time.
+	 */
+	public boolean getUseTimerInsteadOfThread() { return this.useTimer || Timer.isEventDriven(); }
 	public boolean setUseTimerInsteadOfThread(boolean flag) {
 		boolean old = this.useTimer;
 		this.useTimer = flag;
@@ -22,6 +22,7 @@ import java.net.UnknownHostException;
 
 import ow.messaging.util.MessagingUtility;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 /**
@@ -81,7 +82,7 @@ public final class InetMessagingAddress implements MessagingAddress, java.io.Ext
 			}
 		};
 
-		SingletonThreadPoolExecutors.getThreadPool(
+		SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MESSAGING_IO,
 				ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, true).submit(r);
 	}
 
@@ -25,24 +25,46 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
+import ow.messaging.codec.SerializingMessageCodec;
+import ow.messaging.util.TemporarySelectors;
+import ow.stat.StatFactory;
 
 public abstract class Message implements Serializable {
 	private final static Logger logger = Logger.getLogger("messaging");
 
 	public final static boolean GZIP_MESSAGE = true;
 
+	// extended header
+	private final static int EXTENDED_HEADER = 0x80;	// tag is 7 bit
+	private final static int FORMAT_MASK = 0x0f;
+	private final static int FLAG_COMPRESSED = 0x10;
+	private final static int FLAG_REPLY = 0x20;
+
+	// advertisement of formats in the padding of the original format, which is ignored by older nodes
+	private final static int ADVERTISEMENT = 0xa5;
+
 	private byte[] signature;
 	private int tag;
 	private MessagingAddress src;	// set by a MessageSender
+	private transient MessageCodec codec;	// set when decoded
+	private transient int requestID;	// set when decoded
+	private transient boolean reply;	// set when decoded
+	private transient int supportedFormats;	// set when decoded
 
 	/**
 	 * Instantiate a Message class.
@@ -74,6 +96,38 @@ public abstract class Message implements Serializable {
 		return this.signature;
 	}
 
+	/**
+	 * Returns the codec with which this message was decoded,
+	 * or null if this message was not decoded from bytes.
+	 */
+	public MessageCodec getCodec() {
+		return this.codec;
+	}
+
+	/**
+	 * Returns the request ID with which this message was decoded.
+	 * 0 means that the sender of this message does not distinguish replies by request IDs.
+	 */
+	public int getRequestID() {
+		return this.requestID;
+	}
+
+	/**
+	 * Returns true if this message was decoded from a reply to a request with the request ID.
+	 * Needed on a transport which receives both requests and replies on the same socket.
+	 */
+	public boolean isReply() {
+		return this.reply;
+	}
+
+	/**
+	 * Returns a bit mask of format IDs of codecs which the sender of this message can decode,
+	 * or 0 if the sender did not advertise them.
+	 */
+	public int getSupportedFormats() {
+		return this.supportedFormats;
+	}
+
 	/**
 	 * Returns the tag.
 	 */
@@ -109,19 +163,102 @@ public abstract class Message implements Serializable {
 	protected abstract void encodeContents(ObjectOutputStream oos) throws IOException ;
 
 	/**
-	 * Convert this Message to a ByteBuffer.
+	 * Convert this Message to a ByteBuffer in the original format,
+	 * which is compressed with GZIP and can be decoded by any node.
 	 */
 	public ByteBuffer encode() {
+		return this.encode(MessageCodecFactory.getSerializingCodec(), -1);
+	}
+
+	/**
+	 * Convert this Message to a ByteBuffer with the given codec.
+	 * A message encoded with a codec other than the original one has an extended header
+	 * and its source and contents are compressed if their size is equal to or larger than
+	 * compressionThreshold.
+	 *
+	 * @param compressionThreshold threshold in byte. No compression if negative.
+	 */
+	public ByteBuffer encode(MessageCodec codec, int compressionThreshold) {
+		return this.encode(codec, compressionThreshold, 0);
+	}
+
+	/**
+	 * Convert this Message to a ByteBuffer with the given codec and request ID.
+	 * A request ID is carried only by the extended header
+	 * and a reply to the message is encoded with the same request ID.
+	 *
+	 * @param requestID a request ID (1 - 65535), or 0 if the sender does not wait for a reply with the ID.
+	 */
+	public ByteBuffer encode(MessageCodec codec, int compressionThreshold, int requestID) {
+		return this.encode(codec, compressionThreshold, requestID, false);
+	}
+
+	/**
+	 * Convert this Message to a ByteBuffer with the given codec and request ID.
+	 *
+	 * The message is not counted in the metrics here, but by the transport which sends it.
+	 *
+	 * @param reply true if this message is a reply to a request with the request ID.
+	 */
+	public ByteBuffer encode(MessageCodec codec, int compressionThreshold, int requestID, boolean reply) {
+		boolean original = (codec.getFormatID() == SerializingMessageCodec.FORMAT_ID);
+
 		// serializes src and contents
+		byte[] srcAndContents = this.encodeSourceAndContents(codec, original && GZIP_MESSAGE);
+		int flags = codec.getFormatID();
+		if (reply) flags |= FLAG_REPLY;
+
+		if (!original && compressionThreshold >= 0 && srcAndContents.length >= compressionThreshold) {
+			byte[] compressed = deflate(srcAndContents);
+			if (compressed.length < srcAndContents.length) {
+				srcAndContents = compressed;
+				flags |= FLAG_COMPRESSED;
+			}
+		}
+
+		int sigLen = Signature.getSignatureLength();
+
+		// pack all elements
+		ByteBuffer buf = ByteBuffer.allocate(
+				 sigLen + 8 + srcAndContents.length);
+		if (this.signature != null) {
+			buf.put(this.signature, 0, sigLen);
+		}
+		else {
+			buf.put(new byte[sigLen]);
+		}
+		if (original) {
+			// sig, tag, len, src and contents, and 3 byte padding carrying formats this node decodes
+			buf.put((byte)this.tag);
+			buf.putInt(srcAndContents.length);
+			buf.put(srcAndContents);
+			buf.put((byte)ADVERTISEMENT);
+			buf.putShort((short)MessageCodecFactory.getSupportedFormats());
+		}
+		else {
+			// sig, tag with extended header flag, len, flags, request ID, and src and contents
+			buf.put((byte)(this.tag | EXTENDED_HEADER));
+			buf.putInt(srcAndContents.length);
+			buf.put((byte)flags);
+			buf.putShort((short)requestID);
+			buf.put(srcAndContents);
+		}
+
+		buf.rewind();
+
+		return buf;
+	}
+
+	private byte[] encodeSourceAndContents(MessageCodec codec, boolean gzip) {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		OutputStream os = bos;
 
 		try {
-			if (GZIP_MESSAGE) {
+			if (gzip) {
 				os = new GZIPOutputStream(os);
 			}
 
-			ObjectOutputStream oos = new ObjectOutputStream(os);
+			ObjectOutputStream oos = codec.getObjectOutputStream(os);
 			oos.writeObject(this.src);
 
 			this.encodeContents(oos);
@@ -135,40 +272,60 @@ public abstract class Message implements Serializable {
 					"Serialization failed: " + this.tag);
 		}
 
-		byte[] srcAndContents = bos.toByteArray();
-		int sigLen = Signature.getSignatureLength();
+		return bos.toByteArray();
+	}
 
-		// pack all elements
-		ByteBuffer buf = ByteBuffer.allocate(
-				 sigLen + 8 + srcAndContents.length);
-		if (this.signature != null) {
-			buf.put(this.signature, 0, sigLen);
-		}
-		else {
-			buf.put(new byte[sigLen]);
-		}
-		buf.put((byte)this.tag);
-		buf.putInt(srcAndContents.length);
-		buf.put(srcAndContents);
+	private static byte[] deflate(byte[] input) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(input);
+		deflater.finish();
 
-		buf.rewind();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
+		byte[] buf = new byte[1024];
+		while (!deflater.finished()) {
+			int len = deflater.deflate(buf);
+			bos.write(buf, 0, len);
+		}
+		deflater.end();
 
-		return buf;
+		return bos.toByteArray();
 	}
 
 	/**
 	 * This is a utility method which writes this Message into a byte stream.
 	 */
-	public ByteBuffer encode(ByteChannel out) throws IOException {
+	public ByteBuffer encode(WritableByteChannel out) throws IOException {
+		return this.encode(out, MessageCodecFactory.getSerializingCodec(), -1);
+	}
+
+	/**
+	 * This is a utility method which writes this Message into a byte stream with the given codec.
+	 */
+	public ByteBuffer encode(WritableByteChannel out, MessageCodec codec, int compressionThreshold) throws IOException {
+		return this.encode(out, codec, compressionThreshold, 0);
+	}
+
+	/**
+	 * This is a utility method which writes this Message into a byte stream with the given codec and request ID.
+	 * A non-blocking channel is waited for until its send buffer becomes available.
+	 */
+	public ByteBuffer encode(WritableByteChannel out, MessageCodec codec, int compressionThreshold, int requestID) throws IOException {
 		logger.log(Level.INFO, "tag:" + MessageDirectory.getName(this.tag));
 
-		ByteBuffer buf = this.encode();
+		long start = System.nanoTime();
+		ByteBuffer buf = this.encode(codec, compressionThreshold, requestID);
+		long encodeTime = System.nanoTime() - start;
 
 		try {
 			synchronized (out) {
-				do {
-					out.write(buf);
-				} while (buf.hasRemaining());
+				while (buf.hasRemaining()) {
+					if (out.write(buf) > 0) continue;
+
+					// the send buffer of a non-blocking channel is full
+					if (out instanceof SelectableChannel) {
+						TemporarySelectors.await((SelectableChannel)out, SelectionKey.OP_WRITE, 0L);
+					}
+				}
 			}
 		}
 		catch (IOException e) {
@@ -178,6 +335,8 @@ public abstract class Message implements Serializable {
 
 		buf.rewind();
 
+		StatFactory.getMetricsRegistry().messageSent(this.tag, buf.remaining(), encodeTime);
+
 		return buf;
 	}
 
@@ -196,20 +355,50 @@ public abstract class Message implements Serializable {
 		byte[] signature = new byte[sigLen];
 		buf.get(signature, 0, sigLen);
 
-		int tag = buf.get();
+		int tag = buf.get() & 0xff;
 		int len = buf.getInt();
 
+		int flags = SerializingMessageCodec.FORMAT_ID;
+		int requestID = 0;
+		boolean original = true;
+		if ((tag & EXTENDED_HEADER) != 0) {
+			tag &= ~EXTENDED_HEADER;
+			flags = buf.get() & 0xff;
+			requestID = buf.getShort() & 0xffff;
+			original = false;
+		}
+
 		byte[] srcAndContent = new byte[len];
 		buf.get(srcAndContent);
 
+		int supportedFormats = 0;
+		if (original) {
+			if (buf.remaining() >= 3 && (buf.get() & 0xff) == ADVERTISEMENT) {
+				supportedFormats = buf.getShort() & 0xffff;
+			}
+		}
+		else {
+			supportedFormats = 1 << (flags & FORMAT_MASK);
+		}
+
 		buf.reset();
 
+		MessageCodec codec = MessageCodecFactory.getCodec(flags & FORMAT_MASK);
+		if (codec == null) {
+			logger.log(Level.WARNING, "Unknown message format: " + (flags & FORMAT_MASK));
+			throw new IOException("Unknown message format: " + (flags & FORMAT_MASK));
+		}
+
 		// instantiate a Message
 		Message msg;
 		try {
 			msg = MessageDirectory.getClassByTag(tag).newInstance();
 			msg.setSignature(signature);
 			msg.tag = tag;
+			msg.codec = codec;
+			msg.requestID = requestID;
+			msg.reply = ((flags & FLAG_REPLY) != 0);
+			msg.supportedFormats = supportedFormats;
 		}
 		catch (Exception e) {
 			logger.log(Level.SEVERE, "Message instantiation failed. tag: " + tag);
@@ -218,10 +407,15 @@ public abstract class Message implements Serializable {
 
 		InputStream is = new ByteArrayInputStream(srcAndContent);
 		try {
-			if (GZIP_MESSAGE) {
-				is = new GZIPInputStream(is);
+			if (original) {
+				if (GZIP_MESSAGE) {
+					is = new GZIPInputStream(is);
+				}
+			}
+			else if ((flags & FLAG_COMPRESSED) != 0) {
+				is = new InflaterInputStream(is);
 			}
-			ObjectInputStream ois = new ObjectInputStream(is);
+			ObjectInputStream ois = codec.getObjectInputStream(is);
 
 			MessagingAddress src = (MessagingAddress)ois.readObject(); 
 			msg.setSource(src);
@@ -241,6 +435,8 @@ public abstract class Message implements Serializable {
 			throw new IOException("Class not found: " + e);
 		}
 
+		StatFactory.getMetricsRegistry().messageReceived(tag, sigLen + 8 + len);
+
 		return msg;
 	}
 
@@ -253,65 +449,78 @@ public abstract class Message implements Serializable {
 
 	/**
 	 * This is a utility method which reads a Message from the given input stream.
+	 * The whole message has to be read in the specified time.
+	 * A thread waits on a selector for the deadline and is not interrupted.
+	 *
+	 * @param timeout timeout in millisecond. No timeout if zero or negative.
+	 * @throws SocketTimeoutException if timed out.
+	 *   Its bytesTransferred is 0 if no byte of a message has been read and the stream can be read further.
 	 */
 	public static Message decode(SocketChannel in, long timeout) throws IOException {
+		long deadline = (timeout > 0L ? System.nanoTime() + timeout * 1000000L : 0L);
+
 		// read header
 		int sigLen = Signature.getSignatureLength();
 		ByteBuffer headerBuf = ByteBuffer.allocate(sigLen + 8);
-		fillBuffer(in, headerBuf, timeout);
+		fillBuffer(in, headerBuf, deadline);
 
-		headerBuf.position(sigLen + 4);
+		headerBuf.position(sigLen + 1);
 		int len = headerBuf.getInt();
 
 		// read source and content
+		// (the header has been followed by 3 bytes of padding or extended header)
 		ByteBuffer buf = ByteBuffer.allocate(sigLen + 8 + len);
 
 		headerBuf.rewind();
 		buf.rewind();
 		buf.put(headerBuf);
 
-		fillBuffer(in, buf, -1L);
+		fillBuffer(in, buf, deadline);
 		buf.rewind();
 
 		return Message.decode(buf);
 	}
 
-	private static void fillBuffer(SocketChannel in, ByteBuffer buf, long timeout)
+	private static void fillBuffer(SocketChannel in, ByteBuffer buf, long deadline /* by System.nanoTime(), 0 if none */)
 			throws IOException {
-		// select
-		if (timeout > 0) {
+		boolean blocking = in.isBlocking();
+		if (deadline != 0L && blocking) {
 			in.configureBlocking(false);
-
-			Selector sel = Selector.open();
-			in.register(sel, SelectionKey.OP_READ);
-			int nKeys = sel.select(timeout);
-
-			sel.close();
-				// prevents an IllegalBlockingModeException thrown
-				// when calling in.configureBlocking(true).
-			in.configureBlocking(true);
-
-			if (nKeys <= 0) {
-				throw new IOException("Read timed out (keep-alive time has passed).");
-			}
 		}
 
-		// read
-		int len = buf.remaining();
-
 		try {
-			do {
+			while (buf.hasRemaining()) {
 				int r = in.read(buf);
 				if (r < 0) {
 					logger.log(Level.INFO, "Reached end-of-stream.");
 					throw new IOException("End-of-stream.");
 				}
-				len -= r;
-			} while (len > 0);
+				else if (r > 0) {
+					continue;
+				}
+
+				// wait for data
+				long timeout = 0L;
+				if (deadline != 0L) {
+					timeout = (deadline - System.nanoTime()) / 1000000L;
+					if (timeout <= 0L) {
+						SocketTimeoutException e = new SocketTimeoutException("Read timed out.");
+						e.bytesTransferred = buf.position();
+						throw e;
+					}
+				}
+
+				TemporarySelectors.await(in, SelectionKey.OP_READ, timeout);
+			}
 		}
 		catch (IOException e) {	// catch just for logging
 			logger.log(Level.INFO, "Could not read a message.");
 			throw e;
 		}
+		finally {
+			if (deadline != 0L && blocking && in.isOpen()) {
+				in.configureBlocking(true);
+			}
+		}
 	}
 }
@@ -22,8 +22,10 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -166,4 +168,5 @@ public final class MessageDirectory {
 	public static String getName(int tag) { return nameTable.get(tag); }
 	static boolean getToBeReported(int tag) { return toBeReportedTable.get(tag); }
 	public static Color getColor(int tag) { return colorTable.get(tag); }
+	public static Set<Integer> getTags() { return Collections.unmodifiableSet(tagToClassTable.keySet()); }
 }
@@ -57,6 +57,11 @@ public interface MessageReceiver {
 
 	MessagingReporter getMessagingReporter();
 
+	/**
+	 * Returns the table of RTTs to other nodes measured by the sender of this receiver.
+	 */
+	ProximityTable getProximityTable();
+
 	/**
 	 * Stops this receiver.
 	 */
@@ -34,4 +34,14 @@ public interface MessageSender {
 	 * @throws IOException
 	 */
 	Message sendAndReceive(MessagingAddress dest, Message msg) throws IOException;
+
+	/**
+	 * Send the given message and return without waiting for a reply.
+	 * The reply is set to the returned future and passed to the callback.
+	 * A time-out or failure is reported as an IOException
+	 * both by the future and by the callback.
+	 *
+	 * @param callback a callback, or null.
+	 */
+	ReplyFuture sendAndReceiveAsync(MessagingAddress dest, Message msg, ReplyCallback callback);
 }
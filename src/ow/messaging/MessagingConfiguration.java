@@ -28,6 +28,11 @@ public class MessagingConfiguration {
 	public final static int DEFAULT_RTT_TABLE_SIZE = 100;
 	public final static boolean DEFAULT_USE_THREAD_POOL = true;
 	public final static int DEFAULT_RECEIVER_THREAD_PRIORITY = 1;
+	public final static String DEFAULT_MESSAGE_CODEC = "Binary";	// "Binary" or "Serialization"
+		// A peer is sent messages with the codec after it advertised the codec, and with "Serialization" before.
+	public final static int DEFAULT_COMPRESSION_THRESHOLD = -1;
+		// Compression is disabled if a negative value is specified.
+	public final static boolean DEFAULT_BATCH_STAT_REPORTING = false;
 
 	public final static boolean DO_HOSTNAME_LOOKUP = true;
 
@@ -113,4 +118,43 @@ public class MessagingConfiguration {
 		this.receiverThreadPriority = prio;
 		return old;
 	}
+
+	private String messageCodec = DEFAULT_MESSAGE_CODEC;
+	/**
+	 * The codec with which messages to a peer are encoded
+	 * after the peer advertised that it decodes the codec.
+	 * Messages to a peer from which no message has been received are encoded with "Serialization",
+	 * the original format which older nodes also decode.
+	 */
+	public String getMessageCodec() { return this.messageCodec; }
+	public String setMessageCodec(String codec) {
+		String old = this.messageCodec;
+		this.messageCodec = codec;
+		return old;
+	}
+
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	/**
+	 * A message encoded by a codec other than "Serialization" is compressed
+	 * if its size in byte is equal to or larger than this threshold.
+	 */
+	public int getCompressionThreshold() { return this.compressionThreshold; }
+	public int setCompressionThreshold(int threshold) {
+		int old = this.compressionThreshold;
+		this.compressionThreshold = threshold;
+		return old;
+	}
+
+	private boolean batchStatReporting = DEFAULT_BATCH_STAT_REPORTING;
+	/**
+	 * Whether if reports to a stat collector are buffered and sent in batches.
+	 *
+	 * @see ow.stat.StatConfiguration#setBatchReporting(boolean)
+	 */
+	public boolean getBatchStatReporting() { return this.batchStatReporting; }
+	public boolean setBatchStatReporting(boolean flag) {
+		boolean old = this.batchStatReporting;
+		this.batchStatReporting = flag;
+		return old;
+	}
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A table of round-trip times to other nodes,
+ * measured by a {@link MessageSender MessageSender} in request-reply communications.
+ * Each {@link MessageReceiver MessageReceiver} has an instance,
+ * through which routing algorithms consider proximity of other nodes.
+ * RTTs are smoothed in TCP style (RTT = 7/8 RTT + 1/8 new)
+ * and records are evicted in LRU order when the table is full.
+ */
+public final class ProximityTable {
+	/** Returned by {@link #getRTTMicros(MessagingAddress) getRTTMicros()} if RTT has not been measured. */
+	public final static int UNKNOWN = -1;
+
+	private final Map<MessagingAddress,int[]> table;
+
+	public ProximityTable(final int size) {
+		this.table = new LinkedHashMap<MessagingAddress,int[]>(16, 0.75f, true /*access order*/) {
+			protected boolean removeEldestEntry(Map.Entry<MessagingAddress,int[]> eldest) {
+				return this.size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Registers a measured RTT.
+	 *
+	 * @param target the remote node. An enclosing address like IDAddressPair is unwrapped.
+	 * @param rttMicros RTT in microsecond.
+	 */
+	public void updateRTT(MessagingAddress target, int rttMicros) {
+		if (target == null || rttMicros < 0) return;
+		target = target.getMessagingAddress();
+
+		synchronized (this.table) {
+			int[] rtt = this.table.get(target);
+			if (rtt == null) {
+				this.table.put(target, new int[] { rttMicros });
+			}
+			else {
+				rtt[0] += (rttMicros - rtt[0]) >> 3;
+			}
+		}
+	}
+
+	/**
+	 * Returns the smoothed RTT in microsecond, or {@link #UNKNOWN UNKNOWN}.
+	 */
+	public int getRTTMicros(MessagingAddress target) {
+		if (target == null) return UNKNOWN;
+		target = target.getMessagingAddress();
+
+		synchronized (this.table) {
+			int[] rtt = this.table.get(target);
+			return (rtt != null ? rtt[0] : UNKNOWN);
+		}
+	}
+
+	/**
+	 * Compares proximity of two nodes. A node whose RTT is unknown is the farthest.
+	 */
+	public int compare(MessagingAddress a, MessagingAddress b) {
+		int rttA = this.getRTTMicros(a);
+		int rttB = this.getRTTMicros(b);
+
+		if (rttA == rttB) return 0;
+		if (rttA == UNKNOWN) return 1;
+		if (rttB == UNKNOWN) return -1;
+		return (rttA < rttB ? -1 : 1);
+	}
+
+	public void clear() {
+		synchronized (this.table) {
+			this.table.clear();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+import java.io.IOException;
+
+/**
+ * A callback invoked when a reply to a message sent by
+ * {@link MessageSender#sendAndReceiveAsync(MessagingAddress, Message, ReplyCallback) MessageSender#sendAndReceiveAsync()}
+ * arrives or the message fails.
+ */
+public interface ReplyCallback {
+	/**
+	 * Called when a reply has been received.
+	 */
+	void replied(Message reply);
+
+	/**
+	 * Called when sending failed or no reply has been received before a time-out.
+	 */
+	void failed(IOException e);
+}
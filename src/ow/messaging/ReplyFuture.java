@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.util.DiscreteEventScheduler;
+import ow.util.Timer;
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * A Future of a reply returned by
+ * {@link MessageSender#sendAndReceiveAsync(MessagingAddress, Message, ReplyCallback) MessageSender#sendAndReceiveAsync()}.
+ * {@link Future#get() get()} throws an ExecutionException whose cause is an IOException
+ * if sending failed or timed out.
+ */
+public final class ReplyFuture implements Future<Message> {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final ReplyCallback callback;
+
+	private boolean done = false;
+	private boolean cancelled = false;
+	private Message reply;
+	private IOException exception;
+
+	public ReplyFuture(ReplyCallback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Sets the reply and calls the callback.
+	 *
+	 * @return false if this future has already been completed or cancelled.
+	 */
+	public boolean set(Message reply) {
+		synchronized (this) {
+			if (this.done) return false;
+
+			this.reply = reply;
+			this.done = true;
+			this.notifyAll();
+		}
+		this.signal();
+
+		if (this.callback != null) {
+			try {
+				this.callback.replied(reply);
+			}
+			catch (Throwable e) {
+				logger.log(Level.WARNING, "A ReplyCallback#replied() threw an Exception.", e);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sets the exception and calls the callback.
+	 *
+	 * @return false if this future has already been completed or cancelled.
+	 */
+	public boolean setException(IOException e) {
+		synchronized (this) {
+			if (this.done) return false;
+
+			this.exception = e;
+			this.done = true;
+			this.notifyAll();
+		}
+		this.signal();
+
+		if (this.callback != null) {
+			try {
+				this.callback.failed(e);
+			}
+			catch (Throwable t) {
+				logger.log(Level.WARNING, "A ReplyCallback#failed() threw an Exception.", t);
+			}
+		}
+
+		return true;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (this.done) return false;
+
+			this.cancelled = true;
+			this.done = true;
+			this.notifyAll();
+		}
+		this.signal();
+
+		return true;
+	}
+
+	private void signal() {
+		DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		if (scheduler != null) scheduler.signal(this);
+	}
+
+	/**
+	 * Returns true if a callback has been given.
+	 * A completion with a callback should not be done on a thread which should not block.
+	 */
+	public boolean hasCallback() { return this.callback != null; }
+
+	public synchronized boolean isCancelled() { return this.cancelled; }
+	public synchronized boolean isDone() { return this.done; }
+
+	public Message get() throws InterruptedException, ExecutionException {
+		DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		if (scheduler != null) {
+			// waits in virtual time.
+			// await() checks isDone() again under its lock, so a completion just before it is not missed.
+			while (!this.isDone()) scheduler.await(this, -1L);
+		}
+
+		synchronized (this) {
+			while (!this.done) {
+				this.wait();
+			}
+
+			return this.getResult();
+		}
+	}
+
+	public Message get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		if (scheduler != null) {
+			// waits in virtual time
+			long deadline = scheduler.currentTimeMicros() + unit.toMicros(timeout);
+
+			while (!this.isDone()) {
+				long rest = deadline - scheduler.currentTimeMicros();
+				if (rest <= 0L) throw new TimeoutException();
+
+				scheduler.await(this, rest);
+			}
+		}
+
+		return this.getInRealTime(timeout, unit);
+	}
+
+	private synchronized Message getInRealTime(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+		while (!this.done) {
+			long rest = deadline - System.currentTimeMillis();
+			if (rest <= 0L) throw new TimeoutException();
+
+			this.wait(rest);
+		}
+
+		return this.getResult();
+	}
+
+	private Message getResult() throws ExecutionException {
+		if (this.cancelled) throw new java.util.concurrent.CancellationException();
+		if (this.exception != null) throw new ExecutionException(this.exception);
+
+		return this.reply;
+	}
+
+	/**
+	 * A utility method for a MessageSender which does not multiplex requests.
+	 * It calls {@link MessageSender#sendAndReceive(MessagingAddress, Message) sendAndReceive()} on a pooled thread.
+	 */
+	public static ReplyFuture sendAndReceiveOnPooledThread(
+			final MessageSender sender, final MessagingAddress dest, final Message msg, ReplyCallback callback) {
+		final ReplyFuture future = new ReplyFuture(callback);
+
+		Runnable r = new Runnable() {
+			public void run() {
+				if (future.isDone()) return;	// cancelled
+
+				try {
+					future.set(sender.sendAndReceive(dest, msg));
+				}
+				catch (IOException e) {
+					future.setException(e);
+				}
+			}
+		};
+
+		// a thread blocks for a reply and should not wait for other tasks in a bounded pool
+		SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.HANDLER_DISPATCH,
+				ExecutorBlockingMode.UNLIMITED, true).submit(r);
+
+		return future;
+	}
+}
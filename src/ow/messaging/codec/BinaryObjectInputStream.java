@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+
+import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.messaging.InetMessagingAddress;
+import ow.messaging.MessagingAddress;
+
+/**
+ * An ObjectInputStream which reads objects written by {@link BinaryObjectOutputStream BinaryObjectOutputStream}.
+ */
+public final class BinaryObjectInputStream extends ObjectInputStream {
+	private final DataInputStream in;
+
+	public BinaryObjectInputStream(InputStream in) throws IOException {
+		super();	// enables readObjectOverride()
+
+		this.in = new DataInputStream(in);
+	}
+
+	protected Object readObjectOverride() throws IOException, ClassNotFoundException {
+		int type = this.in.readUnsignedByte();
+		return this.readObject(type);
+	}
+
+	private Object readObject(int type) throws IOException, ClassNotFoundException {
+		switch (type) {
+		case BinaryObjectOutputStream.TYPE_NULL:
+			return null;
+		case BinaryObjectOutputStream.TYPE_ID:
+			return this.readID();
+		case BinaryObjectOutputStream.TYPE_ID_ADDRESS_PAIR:
+			return this.readIDAddressPair();
+		case BinaryObjectOutputStream.TYPE_INET_ADDRESS:
+			InetMessagingAddress addr = new InetMessagingAddress();
+			addr.readExternal(this);
+			return addr;
+		case BinaryObjectOutputStream.TYPE_STRING:
+			return this.readUTF();
+		case BinaryObjectOutputStream.TYPE_INTEGER:
+			return this.readInt();
+		case BinaryObjectOutputStream.TYPE_LONG:
+			return this.readLong();
+		case BinaryObjectOutputStream.TYPE_BOOLEAN:
+			return this.in.readBoolean();
+		case BinaryObjectOutputStream.TYPE_BYTE_ARRAY:
+			byte[] bytes = new byte[this.readLength()];
+			this.in.readFully(bytes);
+			return bytes;
+		case BinaryObjectOutputStream.TYPE_ARRAY:
+			return this.readArray();
+		case BinaryObjectOutputStream.TYPE_SERIALIZED:
+			byte[] serialized = new byte[this.readLength()];
+			this.in.readFully(serialized);
+
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized));
+			Object obj = ois.readObject();
+			ois.close();
+
+			return obj;
+		default:
+			throw new StreamCorruptedException("Unknown type code: " + type);
+		}
+	}
+
+	private Object readArray() throws IOException, ClassNotFoundException {
+		int elemType = this.in.readUnsignedByte();
+		Class<?> componentType;
+		switch (elemType) {
+		case BinaryObjectOutputStream.TYPE_ID:
+			componentType = ID.class; break;
+		case BinaryObjectOutputStream.TYPE_ID_ADDRESS_PAIR:
+			componentType = IDAddressPair.class; break;
+		case BinaryObjectOutputStream.TYPE_INET_ADDRESS:
+			componentType = InetMessagingAddress.class; break;
+		case BinaryObjectOutputStream.TYPE_STRING:
+			componentType = String.class; break;
+		default:
+			throw new StreamCorruptedException("Unknown element type code: " + elemType);
+		}
+
+		int len = this.readLength();
+		Object[] array = (Object[])Array.newInstance(componentType, len);
+		for (int i = 0; i < len; i++) {
+			array[i] = this.readObjectOverride();
+		}
+
+		return array;
+	}
+
+	private ID readID() throws IOException {
+		ID id = new ID();
+		try {
+			id.readExternal(this);
+		}
+		catch (ClassNotFoundException e) { /* NOTREACHED */ }
+
+		return id;
+	}
+
+	private IDAddressPair readIDAddressPair() throws IOException, ClassNotFoundException {
+		ID id = null;
+		if (this.in.readBoolean()) {
+			id = this.readID();
+		}
+
+		MessagingAddress addr = (MessagingAddress)this.readObjectOverride();
+
+		return IDAddressPair.getIDAddressPair(id, addr);
+	}
+
+	private int readLength() throws IOException {
+		long len = this.readVarLong();
+		if (len < 0 || len > Integer.MAX_VALUE) {
+			throw new StreamCorruptedException("Invalid length: " + len);
+		}
+
+		return (int)len;
+	}
+
+	private long readVarLong() throws IOException {
+		long v = 0L;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = this.in.readUnsignedByte();
+			v |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+
+		throw new StreamCorruptedException("Malformed variable-length integer.");
+	}
+
+	public Object readUnshared() throws IOException, ClassNotFoundException { return this.readObjectOverride(); }
+
+	public int read() throws IOException { return this.in.read(); }
+	public int read(byte[] buf, int off, int len) throws IOException { return this.in.read(buf, off, len); }
+	public void readFully(byte[] buf) throws IOException { this.in.readFully(buf); }
+	public void readFully(byte[] buf, int off, int len) throws IOException { this.in.readFully(buf, off, len); }
+	public int skipBytes(int len) throws IOException { return this.in.skipBytes(len); }
+	public boolean readBoolean() throws IOException { return this.in.readBoolean(); }
+	public byte readByte() throws IOException { return this.in.readByte(); }
+	public int readUnsignedByte() throws IOException { return this.in.readUnsignedByte(); }
+	public short readShort() throws IOException { return this.in.readShort(); }
+	public int readUnsignedShort() throws IOException { return this.in.readUnsignedShort(); }
+	public char readChar() throws IOException { return this.in.readChar(); }
+	public int readInt() throws IOException { int v = (int)this.readVarLong(); return (v >>> 1) ^ -(v & 1); }
+	public long readLong() throws IOException { long v = this.readVarLong(); return (v >>> 1) ^ -(v & 1L); }
+	public float readFloat() throws IOException { return this.in.readFloat(); }
+	public double readDouble() throws IOException { return this.in.readDouble(); }
+	public String readUTF() throws IOException {
+		byte[] bytes = new byte[this.readLength()];
+		this.in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	public int available() throws IOException { return this.in.available(); }
+	public void close() throws IOException { this.in.close(); }
+}
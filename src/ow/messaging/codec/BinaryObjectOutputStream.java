@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.messaging.InetMessagingAddress;
+
+/**
+ * An ObjectOutputStream which writes objects in the compact format of {@link BinaryMessageCodec BinaryMessageCodec}.
+ * IDs, IDAddressPairs, InetMessagingAddresses, Strings, boxed integers, byte arrays
+ * and arrays of them are written with a 1 byte type code,
+ * int and long values are written as zigzag-encoded variable-length integers,
+ * Strings are written as UTF-8 bytes preceded by their length, which is not limited to 64 KB,
+ * and other objects are written with Java object serialization.
+ */
+public final class BinaryObjectOutputStream extends ObjectOutputStream {
+	// type codes
+	final static int TYPE_NULL = 0;
+	final static int TYPE_ID = 1;
+	final static int TYPE_ID_ADDRESS_PAIR = 2;
+	final static int TYPE_INET_ADDRESS = 3;
+	final static int TYPE_STRING = 4;
+	final static int TYPE_INTEGER = 5;
+	final static int TYPE_LONG = 6;
+	final static int TYPE_BOOLEAN = 7;
+	final static int TYPE_BYTE_ARRAY = 8;
+	final static int TYPE_ARRAY = 9;
+	final static int TYPE_SERIALIZED = 0x7f;
+
+	private final DataOutputStream out;
+
+	public BinaryObjectOutputStream(OutputStream out) throws IOException {
+		super();	// enables writeObjectOverride()
+
+		this.out = new DataOutputStream(out);
+	}
+
+	protected void writeObjectOverride(Object obj) throws IOException {
+		if (obj == null) {
+			this.out.writeByte(TYPE_NULL);
+		}
+		else if (obj instanceof ID) {
+			this.out.writeByte(TYPE_ID);
+			this.writeID((ID)obj);
+		}
+		else if (obj instanceof IDAddressPair) {
+			this.out.writeByte(TYPE_ID_ADDRESS_PAIR);
+			this.writeIDAddressPair((IDAddressPair)obj);
+		}
+		else if (obj instanceof InetMessagingAddress) {
+			this.out.writeByte(TYPE_INET_ADDRESS);
+			((InetMessagingAddress)obj).writeExternal(this);
+		}
+		else if (obj instanceof String) {
+			this.out.writeByte(TYPE_STRING);
+			this.writeUTF((String)obj);
+		}
+		else if (obj instanceof Integer) {
+			this.out.writeByte(TYPE_INTEGER);
+			this.writeInt((Integer)obj);
+		}
+		else if (obj instanceof Long) {
+			this.out.writeByte(TYPE_LONG);
+			this.writeLong((Long)obj);
+		}
+		else if (obj instanceof Boolean) {
+			this.out.writeByte(TYPE_BOOLEAN);
+			this.out.writeBoolean((Boolean)obj);
+		}
+		else if (obj instanceof byte[]) {
+			byte[] bytes = (byte[])obj;
+
+			this.out.writeByte(TYPE_BYTE_ARRAY);
+			this.writeVarLong(bytes.length);
+			this.out.write(bytes);
+		}
+		else if (obj instanceof Object[] && getElementType(obj.getClass().getComponentType()) != TYPE_NULL) {
+			Object[] array = (Object[])obj;
+
+			this.out.writeByte(TYPE_ARRAY);
+			this.out.writeByte(getElementType(obj.getClass().getComponentType()));
+			this.writeVarLong(array.length);
+			for (Object elem: array) {
+				this.writeObjectOverride(elem);
+			}
+		}
+		else {
+			// Java object serialization
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(obj);
+			oos.close();
+
+			byte[] serialized = bos.toByteArray();
+
+			this.out.writeByte(TYPE_SERIALIZED);
+			this.writeVarLong(serialized.length);
+			this.out.write(serialized);
+		}
+	}
+
+	/**
+	 * Returns the type code of elements of an array
+	 * or TYPE_NULL if an array of the given type cannot be written element by element.
+	 */
+	static int getElementType(Class<?> componentType) {
+		if (componentType == ID.class) return TYPE_ID;
+		else if (componentType == IDAddressPair.class) return TYPE_ID_ADDRESS_PAIR;
+		else if (componentType == InetMessagingAddress.class) return TYPE_INET_ADDRESS;
+		else if (componentType == String.class) return TYPE_STRING;
+		else return TYPE_NULL;
+	}
+
+	private void writeID(ID id) throws IOException {
+		id.writeExternal(this);
+	}
+
+	private void writeIDAddressPair(IDAddressPair pair) throws IOException {
+		ID id = pair.getID();
+		if (id != null) {
+			this.out.writeBoolean(true);
+			this.writeID(id);
+		}
+		else {
+			this.out.writeBoolean(false);
+		}
+
+		this.writeObjectOverride(pair.getAddress());
+	}
+
+	private void writeVarLong(long v) throws IOException {
+		while ((v & ~0x7fL) != 0L) {
+			this.out.writeByte((int)((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		this.out.writeByte((int)v);
+	}
+
+	public void writeUnshared(Object obj) throws IOException { this.writeObjectOverride(obj); }
+
+	public void write(int val) throws IOException { this.out.write(val); }
+	public void write(byte[] buf) throws IOException { this.out.write(buf); }
+	public void write(byte[] buf, int off, int len) throws IOException { this.out.write(buf, off, len); }
+	public void writeBoolean(boolean val) throws IOException { this.out.writeBoolean(val); }
+	public void writeByte(int val) throws IOException { this.out.writeByte(val); }
+	public void writeShort(int val) throws IOException { this.out.writeShort(val); }
+	public void writeChar(int val) throws IOException { this.out.writeChar(val); }
+	public void writeInt(int val) throws IOException { this.writeVarLong(0xffffffffL & ((val << 1) ^ (val >> 31))); }
+	public void writeLong(long val) throws IOException { this.writeVarLong((val << 1) ^ (val >> 63)); }
+	public void writeFloat(float val) throws IOException { this.out.writeFloat(val); }
+	public void writeDouble(double val) throws IOException { this.out.writeDouble(val); }
+	public void writeBytes(String str) throws IOException { this.out.writeBytes(str); }
+	public void writeChars(String str) throws IOException { this.out.writeChars(str); }
+	public void writeUTF(String str) throws IOException {
+		byte[] bytes = str.getBytes("UTF-8");
+		this.writeVarLong(bytes.length);
+		this.out.write(bytes);
+	}
+
+	public void flush() throws IOException { this.out.flush(); }
+	public void close() throws IOException { this.out.close(); }
+}
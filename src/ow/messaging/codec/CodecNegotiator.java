@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ow.messaging.Message;
+import ow.messaging.MessagingAddress;
+import ow.messaging.MessagingConfiguration;
+
+/**
+ * Chooses a codec per remote peer.
+ * A message to a peer is encoded in the original format until a message is received from the peer,
+ * because older nodes decode only the format.
+ * Then a message is encoded with the configured codec if the peer advertised that it decodes the codec,
+ * or with the codec of the latest message received from the peer.
+ * A reply is always encoded with the codec of the request.
+ */
+public final class CodecNegotiator {
+	private final MessagingConfiguration config;
+	private final MessageCodec preferredCodec;
+	private final MessageCodec initialCodec = MessageCodecFactory.getSerializingCodec();
+	private final Map<MessagingAddress,MessageCodec> peerTable;
+
+	public CodecNegotiator(final MessagingConfiguration config) {
+		this.config = config;
+		this.preferredCodec = MessageCodecFactory.getCodec(config.getMessageCodec());
+		this.peerTable = new LinkedHashMap<MessagingAddress,MessageCodec>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<MessagingAddress,MessageCodec> eldest) {
+				return this.size() > config.getRTTTableSize();
+			}
+		};
+	}
+
+	/**
+	 * Returns the codec to encode a message to the given peer.
+	 */
+	public MessageCodec getCodec(MessagingAddress dest) {
+		MessageCodec codec = null;
+
+		if (dest != null) {
+			synchronized (this.peerTable) {
+				codec = this.peerTable.get(dest.getMessagingAddress());
+			}
+		}
+
+		return (codec != null ? codec : this.initialCodec);
+	}
+
+	/**
+	 * Records the codec to encode messages to the given peer, which sent the message.
+	 */
+	public void learn(MessagingAddress src, Message msg) {
+		MessageCodec codec = msg.getCodec();
+		if (src == null || codec == null) return;
+
+		if ((msg.getSupportedFormats() & (1 << this.preferredCodec.getFormatID())) != 0) {
+			codec = this.preferredCodec;
+		}
+
+		MessagingAddress addr = src.getMessagingAddress();
+		if (addr == null) return;
+
+		synchronized (this.peerTable) {
+			this.peerTable.put(addr, codec);
+		}
+	}
+
+	/**
+	 * Returns the size threshold above which an encoded message is compressed.
+	 */
+	public int getCompressionThreshold() { return this.config.getCompressionThreshold(); }
+}
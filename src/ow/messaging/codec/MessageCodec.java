@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * A codec which converts the source address and the contents of a
+ * {@link ow.messaging.Message Message} to and from bytes.
+ * A message carries the format ID of the codec which encoded it
+ * and the receiver decodes the message with the corresponding codec.
+ */
+public interface MessageCodec {
+	/**
+	 * Returns the name of this codec.
+	 */
+	String getName();
+
+	/**
+	 * Returns the format ID embedded in an encoded message (0 - 15).
+	 */
+	int getFormatID();
+
+	/**
+	 * Returns a stream to which a message writes its source address and contents.
+	 */
+	ObjectOutputStream getObjectOutputStream(OutputStream out) throws IOException;
+
+	/**
+	 * Returns a stream from which a message reads its source address and contents.
+	 */
+	ObjectInputStream getObjectInputStream(InputStream in) throws IOException;
+}
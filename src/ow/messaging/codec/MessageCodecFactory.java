@@ -0,0 +1,90 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The factory which provides a message codec.
+ */
+public final class MessageCodecFactory {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final static Class/*<MessageCodec>*/[] CODECS = {
+		SerializingMessageCodec.class,	// "Serialization"
+		BinaryMessageCodec.class		// "Binary"
+	};
+
+	private final static Map<String,MessageCodec> nameTable = new HashMap<String,MessageCodec>();
+	private final static MessageCodec[] formatTable = new MessageCodec[16];
+	private static int supportedFormats = 0;
+
+	static {
+		for (Class clazz: CODECS) {
+			MessageCodec codec;
+			try {
+				codec = (MessageCodec)clazz.newInstance();
+			}
+			catch (Exception e) {
+				logger.log(Level.WARNING, "Could not instantiate an object of the class: " + clazz, e);
+				continue;
+			}
+
+			nameTable.put(codec.getName(), codec);
+			formatTable[codec.getFormatID()] = codec;
+			supportedFormats |= 1 << codec.getFormatID();
+		}
+	}
+
+	/**
+	 * Returns the codec associated to the given name,
+	 * "Serialization" or "Binary".
+	 */
+	public static MessageCodec getCodec(String name) {
+		MessageCodec codec = nameTable.get(name);
+		if (codec == null) {
+			throw new IllegalArgumentException("No such codec: " + name);
+		}
+
+		return codec;
+	}
+
+	/**
+	 * Returns the codec associated to the given format ID or null if there is no such codec.
+	 */
+	public static MessageCodec getCodec(int formatID) {
+		if (formatID < 0 || formatID >= formatTable.length) return null;
+		return formatTable[formatID];
+	}
+
+	/**
+	 * Returns a bit mask of format IDs of the available codecs.
+	 */
+	public static int getSupportedFormats() {
+		return supportedFormats;
+	}
+
+	/**
+	 * Returns the original codec based on Java object serialization.
+	 */
+	public static MessageCodec getSerializingCodec() {
+		return formatTable[SerializingMessageCodec.FORMAT_ID];
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The original codec based on Java object serialization.
+ * A message encoded by this codec is compressed with GZIP
+ * and can be decoded by a node which does not support other codecs.
+ */
+public final class SerializingMessageCodec implements MessageCodec {
+	public final static String NAME = "Serialization";
+	public final static int FORMAT_ID = 0;
+
+	public String getName() { return NAME; }
+	public int getFormatID() { return FORMAT_ID; }
+
+	public ObjectOutputStream getObjectOutputStream(OutputStream out) throws IOException {
+		return new ObjectOutputStream(out);
+	}
+
+	public ObjectInputStream getObjectInputStream(InputStream in) throws IOException {
+		return new ObjectInputStream(in);
+	}
+}
@@ -28,6 +28,7 @@ import ow.messaging.MessageHandler;
 import ow.messaging.MessageReceiver;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ProximityTable;
 import ow.messaging.MessagingProvider;
 import ow.messaging.distemulator.message.EncapsulatedMessage;
 import ow.messaging.emulator.EmuMessageReceiver;
@@ -74,6 +75,8 @@ public final class DEmuMessageReceiver implements MessageReceiver {
 
 	public MessagingReporter getMessagingReporter() { return this.msgReporter; }
 
+	public ProximityTable getProximityTable() { return this.emuReceiver.getProximityTable(); }
+
 	public MessageSender getSender() {
 		EmuMessageSender emuSender = (EmuMessageSender)this.emuReceiver.getSender();
 		MessageSender netSender = this.netReceiver.getSender();
@@ -26,6 +26,8 @@ import ow.messaging.Message;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
 import ow.messaging.MessagingProvider;
+import ow.messaging.ReplyCallback;
+import ow.messaging.ReplyFuture;
 import ow.messaging.distemulator.message.EncapsulatedMessage;
 import ow.messaging.emulator.EmuMessageReceiver;
 import ow.messaging.emulator.EmuMessageSender;
@@ -135,7 +137,9 @@ public final class DEmuMessageSender implements MessageSender {
 				MessagingAddress netAddress = this.netProvider.getMessagingAddress(
 						netDest.getHostName(), netDest.getPort());
 
+				long start = System.nanoTime();
 				encapsulated = this.netSender.sendAndReceive(netAddress, encapsulated);
+				this.emuReceiver.getProximityTable().updateRTT(dest, (int)((System.nanoTime() - start) / 1000L));
 
 				// decapsulate
 				if (encapsulated instanceof EncapsulatedMessage) {
@@ -161,6 +165,10 @@ public final class DEmuMessageSender implements MessageSender {
 		return ret;
 	}
 
+	public ReplyFuture sendAndReceiveAsync(MessagingAddress dest, Message msg, ReplyCallback callback) {
+		return ReplyFuture.sendAndReceiveOnPooledThread(this, dest, msg, callback);
+	}
+
 	private HostAndPort getEmulatorHostAndPort(MessagingAddress dest) {
 		EmuMessagingAddress emuDest = (EmuMessagingAddress)dest;
 		int destID = emuDest.getEmuHostID().getHostID();
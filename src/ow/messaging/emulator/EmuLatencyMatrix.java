@@ -0,0 +1,94 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.emulator;
+
+import java.util.Random;
+
+import ow.messaging.MessagingAddress;
+
+/**
+ * One-way latencies between sites (e.g. datacenters) for the emulator.
+ * An emulated node belongs to the site (host ID + port number) modulo the number of sites,
+ * so that both nodes on their own virtual hosts and nodes on a single host with consecutive ports
+ * are distributed over the sites in round-robin.
+ *
+ * @see EmuMessagingConfiguration#setLatencyMatrix(EmuLatencyMatrix)
+ */
+public final class EmuLatencyMatrix {
+	private final int[][] latencyMicros;
+
+	/**
+	 * @param latencyMicros latencyMicros[i][j] is one-way latency from site i to site j in microsecond.
+	 */
+	public EmuLatencyMatrix(int[][] latencyMicros) {
+		for (int[] row: latencyMicros) {
+			if (row.length != latencyMicros.length)
+				throw new IllegalArgumentException("A latency matrix is not square.");
+		}
+
+		this.latencyMicros = latencyMicros;
+	}
+
+	/**
+	 * Returns a synthetic matrix.
+	 * Sites are scattered at random in a square and
+	 * latency between two sites is proportional to the Euclidean distance between them.
+	 *
+	 * @param intraSiteMicros latency between nodes in a site.
+	 * @param maxInterSiteMicros latency between the farthest corners of the square.
+	 */
+	public static EmuLatencyMatrix getSyntheticMatrix(int numSites, int intraSiteMicros, int maxInterSiteMicros, long seed) {
+		Random rnd = new Random(seed);
+
+		double[] x = new double[numSites], y = new double[numSites];
+		for (int i = 0; i < numSites; i++) {
+			x[i] = rnd.nextDouble();
+			y[i] = rnd.nextDouble();
+		}
+
+		int[][] matrix = new int[numSites][numSites];
+		for (int i = 0; i < numSites; i++) {
+			for (int j = 0; j < numSites; j++) {
+				double d = Math.hypot(x[i] - x[j], y[i] - y[j]) / Math.sqrt(2.0);
+				matrix[i][j] = intraSiteMicros + (int)(d * maxInterSiteMicros);
+			}
+		}
+
+		return new EmuLatencyMatrix(matrix);
+	}
+
+	public int getNumOfSites() { return this.latencyMicros.length; }
+
+	/**
+	 * Returns the site to which the specified node belongs.
+	 */
+	public int getSite(MessagingAddress addr) {
+		MessagingAddress a = (addr != null ? addr.getMessagingAddress() : null);
+		if (!(a instanceof EmuMessagingAddress)) return 0;
+
+		EmuMessagingAddress emuAddr = (EmuMessagingAddress)a;
+		return (emuAddr.getEmuHostID().getHostID() + emuAddr.getPort()) % this.latencyMicros.length;
+	}
+
+	/**
+	 * Returns one-way latency between the specified nodes in microsecond.
+	 */
+	public int getLatencyMicros(MessagingAddress from, MessagingAddress to) {
+		return this.latencyMicros[this.getSite(from)][this.getSite(to)];
+	}
+}
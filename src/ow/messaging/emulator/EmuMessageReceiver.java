@@ -30,10 +30,12 @@ import ow.messaging.MessageHandler;
 import ow.messaging.MessageReceiver;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ProximityTable;
 import ow.stat.MessagingReporter;
 import ow.stat.StatConfiguration;
 import ow.stat.StatFactory;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 /**
@@ -47,17 +49,19 @@ public final class EmuMessageReceiver implements MessageReceiver {
 
 	final EmuMessagingConfiguration config;
 	private MessagingAddress selfAddr;
+	private final EmuMessagingAddress addrInTable;	// selfAddr may be replaced with an IDAddressPair later
 	protected final EmuMessagingProvider provider;
 	private final EmuMessageSender singletonSender;
 
 	private final MessagingReporter msgReporter;
+	private final ProximityTable proximityTable;
 
 	private List<MessageHandler> handlerList = new ArrayList<MessageHandler>();
 	private List<ExtendedMessageHandler> extendedHandlerList = new ArrayList<ExtendedMessageHandler>();
 	private int numExtendedHandler = 0;
 
-	private int latencyMillis;
-	private int latencyNanos;
+	private int latencyMicros;
+	private final EmuLatencyMatrix latencyMatrix;
 	private final SleepPeriodMeasure sleepPeriodMeasure;
 	final boolean communicationCanFail;
 
@@ -66,18 +70,19 @@ public final class EmuMessageReceiver implements MessageReceiver {
 	protected EmuMessageReceiver(EmuMessagingConfiguration config,
 			EmuHostID selfInetAddr, int port, EmuMessagingProvider provider) {
 		this.config = config;
-		this.selfAddr = new EmuMessagingAddress(selfInetAddr, port);
+		this.addrInTable = new EmuMessagingAddress(selfInetAddr, port);
+		this.selfAddr = this.addrInTable;
 		this.provider = provider;
 		this.singletonSender = new EmuMessageSender(this);
 
 		StatConfiguration conf = StatFactory.getDefaultConfiguration();
+		conf.setBatchReporting(config.getBatchStatReporting());
 		this.msgReporter = StatFactory.getMessagingReporter(conf, this.provider, this.getSender());
+		this.proximityTable = new ProximityTable(config.getRTTTableSize());
 
-		int latencyMicros = config.getAdditionalLatencyMicros();
-		if (latencyMicros > 0) {
-			this.latencyMillis = latencyMicros / 1000;
-			this.latencyNanos = (int)(latencyMicros - (1000 * this.latencyMillis)) * 1000;
-
+		this.latencyMicros = config.getAdditionalLatencyMicros();
+		this.latencyMatrix = config.getLatencyMatrix();
+		if (this.latencyMicros > 0 || this.latencyMatrix != null) {
 			this.sleepPeriodMeasure = new SleepPeriodMeasure();
 		}
 		else {
@@ -106,15 +111,17 @@ public final class EmuMessageReceiver implements MessageReceiver {
 
 	public MessagingReporter getMessagingReporter() { return this.msgReporter; }
 
+	public ProximityTable getProximityTable() { return this.proximityTable; }
+
 	public void start() {
 		synchronized (receiverTable) {
-			receiverTable.put((EmuMessagingAddress)this.selfAddr, this);
+			receiverTable.put(this.addrInTable, this);
 		}
 	}
 
 	public synchronized void stop() {
 		synchronized (receiverTable) {
-			receiverTable.remove(this.selfAddr);
+			receiverTable.remove(this.addrInTable);
 		}
 	}
 
@@ -154,7 +161,12 @@ public final class EmuMessageReceiver implements MessageReceiver {
 		return receiver;
 	}
 
-	protected Message processAMessage(final Message msg) {
+	/**
+	 * Processes a message.
+	 *
+	 * @param processingNanos if not null, time spent by handlers except emulated latency is set to its first element.
+	 */
+	protected Message processAMessage(final Message msg, long[] processingNanos) {
 		// check signature
 //		byte[] sig = msg.getSignature();
 //		byte[] acceptableSig = this.provider.getMessageSignature();
@@ -164,13 +176,28 @@ public final class EmuMessageReceiver implements MessageReceiver {
 		// add latency
 		// note: This code can stop a Timer thread.
 		// It is better for a Timer to use multiple threads if adding latency.
-		if (this.sleepPeriodMeasure != null) {
-			try {
-				sleepPeriodMeasure.sleep(latencyMillis, latencyNanos);
-			}
-			catch (InterruptedException e) {/*ignore*/}
-		}
+		this.addLatency(msg);
+
+		long start = System.nanoTime();
+
+		Message ret = this.process(msg);
+
+		if (processingNanos != null) processingNanos[0] = System.nanoTime() - start;
+
+		// add latency
+		this.addLatency(msg);
+
+		// set signature
+//		ret.setSignature(acceptableSig);
+
+		return ret;
+	}
 
+	/**
+	 * Processes a message without emulated latency,
+	 * which is emulated by the sender in event driven mode.
+	 */
+	Message process(final Message msg) {
 		// process the received message
 		Message ret = null;
 
@@ -221,7 +248,7 @@ public final class EmuMessageReceiver implements MessageReceiver {
 
 				try {
 					if (this.config.getUseThreadPool()) {
-						ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(
+						ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.HANDLER_DISPATCH,
 								ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, Thread.currentThread().isDaemon());
 						ex.submit(r);
 					}
@@ -264,17 +291,31 @@ public final class EmuMessageReceiver implements MessageReceiver {
 			}	// if (true)
 		}	// if (numExtendedHandler > 0)
 
-		// add latency
-		if (this.sleepPeriodMeasure != null) {
+		return ret;
+	}
+
+	/**
+	 * Returns one-way latency from the specified node to this node in microsecond.
+	 */
+	int getLatencyMicros(MessagingAddress src) {
+		int micros = this.latencyMicros;
+		if (this.latencyMatrix != null) {
+			micros += this.latencyMatrix.getLatencyMicros(src, this.selfAddr);
+		}
+
+		return micros;
+	}
+
+	private void addLatency(Message msg) {
+		if (this.sleepPeriodMeasure == null) return;
+
+		int micros = this.getLatencyMicros(msg.getSource());
+
+		if (micros > 0) {
 			try {
-				sleepPeriodMeasure.sleep(latencyMillis, latencyNanos);
+				sleepPeriodMeasure.sleep(micros / 1000, (micros % 1000) * 1000);
 			}
 			catch (InterruptedException e) {/*ignore*/}
 		}
-
-		// set signature
-//		ret.setSignature(acceptableSig);
-
-		return ret;
 	}
 }
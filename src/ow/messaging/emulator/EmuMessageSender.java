@@ -18,23 +18,50 @@ package ow.messaging.emulator;
 
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import ow.messaging.Message;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
+import ow.messaging.ReplyFuture;
 import ow.stat.MessagingReporter;
+import ow.util.DiscreteEventScheduler;
+import ow.util.Timer;
 
 /**
  * A {@link MessageSender MessageSender} class for distributed environment emulation.
  * Note that this class does not implement timeout in messaging.
+ * A message is processed by the sending thread.
+ * In event driven mode of {@link Timer Timer}, a message and its reply are delivered
+ * as events after emulated latency, and a sender waiting for the reply is suspended in virtual time.
  */
 public final class EmuMessageSender implements MessageSender {
 	private final static Logger logger = Logger.getLogger("messaging");
 
 	private final static Random random = new Random();	// for emulating communication failure
 
+	private static volatile boolean measureMessageLength = false;
+
+	/**
+	 * Sets the seed of random numbers to emulate communication failure.
+	 */
+	public static void setRandomSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Encodes messages only to measure their length, which is reported to a stat collector.
+	 * Emulated messages are not counted in {@link ow.stat.MetricsRegistry MetricsRegistry}.
+	 */
+	public static boolean setMeasureMessageLength(boolean measure) {
+		boolean old = measureMessageLength;
+		measureMessageLength = measure;
+		return old;
+	}
+
 	private final EmuMessageReceiver receiver;
 
 	protected EmuMessageSender(EmuMessageReceiver receiver) {
@@ -42,31 +69,124 @@ public final class EmuMessageSender implements MessageSender {
 	}
 
 	public void send(MessagingAddress dest, Message msg) throws IOException {
+		DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		if (scheduler != null) {
+			this.sendAsEvent(scheduler, dest, msg, null);
+			return;
+		}
+
 		this.send0(dest, msg, false);
 	}
 
 	public Message sendAndReceive(MessagingAddress dest, Message msg) throws IOException {
+		if (Timer.isEventDriven()) {
+			try {
+				return this.sendAndReceiveAsync(dest, msg, null).get();
+			}
+			catch (ExecutionException e) {
+				throw (IOException)e.getCause();
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for a reply from " + dest);
+			}
+		}
+
 		return this.send0(dest, msg, true);
 	}
 
-	private Message send0(MessagingAddress dest, Message msg, boolean doReceive) throws IOException {
-		// set source address
-		if (msg.getSource() == null)
-			msg.setSource(this.receiver.getSelfAddress());
+	public ReplyFuture sendAndReceiveAsync(MessagingAddress dest, Message msg, ReplyCallback callback) {
+		DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		if (scheduler != null) {
+			ReplyFuture future = new ReplyFuture(callback);
+			try {
+				this.sendAsEvent(scheduler, dest, msg, future);
+			}
+			catch (IOException e) {
+				future.setException(e);
+			}
 
-		// get a receiver
-		EmuMessageReceiver receiver = EmuMessageReceiver.getReceiver(dest);
+			return future;
+		}
 
-		if (receiver == null) {
-			logger.log(Level.WARNING, "No such node: " + dest);
+		return ReplyFuture.sendAndReceiveOnPooledThread(this, dest, msg, callback);
+	}
 
-			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
-			if (msgReporter != null) {
-				msgReporter.notifyStatCollectorOfDeletedNode(dest);
+	/**
+	 * Emulates communication in event driven mode.
+	 * The message is processed by an event after the emulated latency
+	 * and the reply completes the future by another event, if the future is not null.
+	 */
+	private void sendAsEvent(final DiscreteEventScheduler scheduler,
+			final MessagingAddress dest, final Message msg, final ReplyFuture future) throws IOException {
+		final EmuMessageReceiver receiver = this.getReceiver(dest, msg);
+		final long sendTime = scheduler.currentTimeMicros();
+		final long timeoutMicros = receiver.config.getStaticTimeout() * 1000L;
+
+		// cause communication failure artificially in sending
+		if (receiver.communicationCanFail
+				&& random.nextDouble() < receiver.config.getCommunicationFailureRate()) {
+			// failed to send
+			if (future != null) {
+				scheduler.scheduleAfter(new Runnable() {
+					public void run() {
+						future.setException(new IOException("failed to send to " + dest));
+					}
+				}, timeoutMicros);
 			}
 
-			throw new IOException("No such node: " + dest);
+			return;	// sender is not aware of the failure
+		}
+
+		int len = 0;
+		if (measureMessageLength) {
+			len = msg.encode().remaining();
+		}
+
+		// send
+		scheduler.scheduleAfter(new Runnable() {
+			public void run() {
+				long start = scheduler.currentTimeMicros();
+				final Message ret = receiver.process(msg);
+				if (future == null) return;
+
+				final long processingMicros = scheduler.currentTimeMicros() - start;
+				if (measureMessageLength && ret != null) ret.encode();
+
+				// cause communication failure artificially in receiving
+				if (receiver.communicationCanFail
+						&& random.nextDouble() < receiver.config.getCommunicationFailureRate()) {
+					// failed to receive
+					scheduler.scheduleAfter(new Runnable() {
+						public void run() {
+							future.setException(new IOException("failed to receive from " + dest));
+						}
+					}, sendTime + timeoutMicros - scheduler.currentTimeMicros());
+
+					return;
+				}
+
+				// reply
+				scheduler.scheduleAfter(new Runnable() {
+					public void run() {
+						// RTT excluding processing on the receiver
+						long rttMicros = scheduler.currentTimeMicros() - sendTime - processingMicros;
+						EmuMessageSender.this.receiver.getProximityTable().updateRTT(dest, (int)rttMicros);
+
+						future.set(ret);
+					}
+				}, EmuMessageSender.this.receiver.getLatencyMicros(receiver.getSelfAddress()));
+			}
+		}, receiver.getLatencyMicros(msg.getSource()));
+
+		// notify statistics collector
+		MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+		if (msgReporter != null && !this.receiver.getSelfAddress().equals(dest)) {
+			msgReporter.notifyStatCollectorOfMessageSent(dest, msg, len);
 		}
+	}
+
+	private Message send0(MessagingAddress dest, Message msg, boolean doReceive) throws IOException {
+		EmuMessageReceiver receiver = this.getReceiver(dest, msg);
 
 		// set signature
 //		byte[] sig = this.receiver.provider.getMessageSignature();
@@ -89,8 +209,22 @@ public final class EmuMessageSender implements MessageSender {
 			}
 		}
 
+		int len = 0;
+		if (measureMessageLength) {
+			len = msg.encode().remaining();
+		}
+
 		// send
-		Message ret = receiver.processAMessage(msg);
+		long start = System.nanoTime();
+		long[] processingNanos = new long[1];
+		Message ret = receiver.processAMessage(msg, processingNanos);
+		if (doReceive) {
+			// RTT excluding processing on the receiver
+			long rttNanos = System.nanoTime() - start - processingNanos[0];
+			this.receiver.getProximityTable().updateRTT(dest, (int)(rttNanos / 1000L));
+
+			if (measureMessageLength && ret != null) ret.encode();
+		}
 
 //		logger.log(Level.INFO, "send: " + Tag.getStringByNumber(emuMsg.getMessage().getTag()) +
 //				" from " + this.receiver.getSelfAddress() + " to " + emuAddr);
@@ -111,10 +245,34 @@ public final class EmuMessageSender implements MessageSender {
 		// notify statistics collector
 		MessagingReporter msgReporter = this.receiver.getMessagingReporter();
 		if (msgReporter != null && !this.receiver.getSelfAddress().equals(dest)) {
-			// TODO: measures the length of the message.
-			msgReporter.notifyStatCollectorOfMessageSent(dest, msg, 0);
+			msgReporter.notifyStatCollectorOfMessageSent(dest, msg, len);
 		}
 
 		return ret;
 	}
+
+	/**
+	 * Sets the source address of the message and returns the receiver of the destination.
+	 */
+	private EmuMessageReceiver getReceiver(MessagingAddress dest, Message msg) throws IOException {
+		// set source address
+		if (msg.getSource() == null)
+			msg.setSource(this.receiver.getSelfAddress());
+
+		// get a receiver
+		EmuMessageReceiver receiver = EmuMessageReceiver.getReceiver(dest);
+
+		if (receiver == null) {
+			logger.log(Level.WARNING, "No such node: " + dest);
+
+			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+			if (msgReporter != null) {
+				msgReporter.notifyStatCollectorOfDeletedNode(dest);
+			}
+
+			throw new IOException("No such node: " + dest);
+		}
+
+		return receiver;
+	}
 }
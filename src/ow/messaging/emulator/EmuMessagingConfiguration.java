@@ -53,6 +53,19 @@ public class EmuMessagingConfiguration extends MessagingConfiguration {
 		return old;
 	}
 
+	private EmuLatencyMatrix latencyMatrix = null;
+	/**
+	 * Latencies between sites added to messages in addition to
+	 * {@link #getAdditionalLatencyMicros() getAdditionalLatencyMicros()}.
+	 * Null (default) means no latency matrix.
+	 */
+	public final EmuLatencyMatrix getLatencyMatrix() { return this.latencyMatrix; }
+	public final EmuLatencyMatrix setLatencyMatrix(EmuLatencyMatrix matrix) {
+		EmuLatencyMatrix old = this.latencyMatrix;
+		this.latencyMatrix = matrix;
+		return old;
+	}
+
 	private double communicationFailureRate = DEFAULT_COMMUNICATION_FAILURE_RATE;
 	public final double getCommunicationFailureRate() { return this.communicationFailureRate; }
 	public final double setCommunicationFailureRate(double r) {
@@ -0,0 +1,506 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.tcp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.messaging.Message;
+import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
+import ow.messaging.ReplyFuture;
+import ow.messaging.Signature;
+import ow.messaging.codec.MessageCodec;
+import ow.stat.MessagingReporter;
+import ow.stat.StatFactory;
+import ow.util.Timer;
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * Multiplexes outstanding requests to a peer over a single connection.
+ * A request carries a request ID in its header and the receiver returns a reply with the same ID.
+ * Replies on all connections are read by a single thread with a selector.
+ */
+final class ConnectionMultiplexer implements Runnable {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final static int INITIAL_BUFFER_SIZE = 64 * 1024;
+	private final static int MAX_REQUEST_ID = 0xffff;
+
+	private final static Timer timer = Timer.getSingletonTimer();
+
+	private final TCPMessageReceiver receiver;
+	private final long keepAliveTime;
+
+	private final Selector selector;
+	private final Map<SocketAddress,MultiplexedConnection> connectionMap =
+		new HashMap<SocketAddress,MultiplexedConnection>();
+	private final List<MultiplexedConnection> registrationQueue =
+		new ArrayList<MultiplexedConnection>();
+	private Thread selectorThread;
+
+	ConnectionMultiplexer(TCPMessageReceiver receiver) throws IOException {
+		this.receiver = receiver;
+		this.keepAliveTime = receiver.config.getSenderKeepAliveTime();
+
+		this.selector = Selector.open();
+
+		this.selectorThread = new Thread(this);
+		this.selectorThread.setDaemon(true);
+		this.selectorThread.setName("TCPConnectionMultiplexer");
+		this.selectorThread.start();
+	}
+
+	/**
+	 * Sends a message and returns a future which a reply is set to.
+	 */
+	public ReplyFuture sendAndReceive(MessagingAddress dest, SocketAddress sockAddr,
+			Message msg, MessageCodec codec, int compressionThreshold, long timeout, ReplyCallback callback) {
+		ReplyFuture future = new ReplyFuture(callback);
+
+		int retryCount = 0;
+		while (true) {
+			MultiplexedConnection conn;
+			boolean connected;
+			try {
+				synchronized (this.connectionMap) {
+					conn = this.connectionMap.get(sockAddr);
+				}
+				connected = (conn == null);
+				if (connected) {
+					conn = this.connect(sockAddr);
+				}
+			}
+			catch (IOException e) {
+				logger.log(Level.INFO, "Failed to connect: " + dest);
+
+				this.notifyOfDeletedNode(dest);
+				future.setException(e);
+
+				return future;
+			}
+
+			PendingReply pending = new PendingReply(conn, dest, msg.getTag(), future);
+			int requestID = conn.register(pending);
+
+			long start = System.nanoTime();
+			ByteBuffer buf = msg.encode(codec, compressionThreshold, requestID);
+			long encodeTime = System.nanoTime() - start;
+
+			try {
+				conn.write(buf);
+			}
+			catch (IOException e) {
+				conn.unregister(requestID);
+				conn.close(e);
+
+				if (!connected && retryCount <= 0) {
+					// the pooled connection is stale. retry once.
+					retryCount++;
+					continue;
+				}
+
+				logger.log(Level.WARNING, "Could not write a message.");
+
+				this.notifyOfDeletedNode(dest);
+				future.setException(e);
+
+				return future;
+			}
+
+			StatFactory.getMetricsRegistry().messageSent(msg.getTag(), buf.limit(), encodeTime);
+
+			// notify statistics collector
+			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+			if (msgReporter != null) {
+				msgReporter.notifyStatCollectorOfMessageSent(dest, msg, buf.limit());
+			}
+
+			pending.scheduleTimeout(timeout);
+
+			break;
+		}
+
+		return future;
+	}
+
+	private MultiplexedConnection connect(SocketAddress sockAddr) throws IOException {
+		SocketChannel sock = SocketChannel.open(sockAddr);
+		sock.configureBlocking(false);
+
+		MultiplexedConnection conn = new MultiplexedConnection(sockAddr, sock);
+		MultiplexedConnection existing;
+
+		synchronized (this.connectionMap) {
+			existing = this.connectionMap.get(sockAddr);
+			if (existing == null) {
+				this.connectionMap.put(sockAddr, conn);
+			}
+		}
+
+		if (existing != null) {
+			// another thread has connected concurrently
+			try { sock.close(); } catch (IOException e) { /* ignore */ }
+			return existing;
+		}
+
+		synchronized (this.registrationQueue) {
+			this.registrationQueue.add(conn);
+		}
+		this.selector.wakeup();
+
+		logger.log(Level.INFO, "A new multiplexed connection created: " + sockAddr);
+
+		return conn;
+	}
+
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			t = this.selectorThread;
+			this.selectorThread = null;
+		}
+		if (t == null) return;
+
+		t.interrupt();
+		try { this.selector.close(); } catch (IOException e) { /* ignore */ }
+
+		List<MultiplexedConnection> conns;
+		synchronized (this.connectionMap) {
+			conns = new ArrayList<MultiplexedConnection>(this.connectionMap.values());
+		}
+		for (MultiplexedConnection conn: conns) {
+			conn.close(new IOException("Messaging stopped."));
+		}
+	}
+
+	public void run() {
+		long selectTimeout = Math.max(this.keepAliveTime / 2, 100L);
+
+		while (true) {
+			synchronized (this) {
+				if (this.selectorThread != Thread.currentThread()) break;
+			}
+
+			// register new connections
+			synchronized (this.registrationQueue) {
+				for (MultiplexedConnection conn: this.registrationQueue) {
+					try {
+						conn.sock.register(this.selector, SelectionKey.OP_READ, conn);
+					}
+					catch (ClosedChannelException e) {
+						conn.close(e);
+					}
+					catch (ClosedSelectorException e) {
+						return;	// stopped
+					}
+				}
+				this.registrationQueue.clear();
+			}
+
+			Iterator<SelectionKey> it;
+			try {
+				this.selector.select(selectTimeout);
+				it = this.selector.selectedKeys().iterator();
+			}
+			catch (Exception e) {	// IOException and ClosedSelectorException
+				logger.log(Level.INFO, "Selector#select() threw an Exception and the multiplexer will die.");
+				break;
+			}
+
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				MultiplexedConnection conn = (MultiplexedConnection)key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) conn.read();
+				}
+				catch (IOException e) {
+					logger.log(Level.INFO, "A multiplexed connection was closed: " + conn.sockAddr);
+					conn.close(e);
+				}
+				catch (RuntimeException e) {
+					// only the connection fails, not the others sharing this thread
+					logger.log(Level.WARNING, "Reading a reply threw an exception and the connection is closed: "
+							+ conn.sockAddr, e);
+					conn.close(new IOException("Invalid reply: " + e));
+				}
+			}
+
+			this.closeIdleConnections();
+		}
+	}
+
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		List<MultiplexedConnection> idleList = null;
+
+		synchronized (this.connectionMap) {
+			for (MultiplexedConnection conn: this.connectionMap.values()) {
+				if (conn.isIdleSince(now - this.keepAliveTime)) {
+					if (idleList == null) idleList = new ArrayList<MultiplexedConnection>();
+					idleList.add(conn);
+				}
+			}
+		}
+
+		if (idleList != null) {
+			for (MultiplexedConnection conn: idleList) {
+				conn.close(new IOException("Connection expired."));
+			}
+		}
+	}
+
+	private void notifyOfDeletedNode(MessagingAddress dest) {
+		MessagingReporter msgReporter = this.receiver.getMessagingReporter();
+		if (msgReporter != null) {
+			msgReporter.notifyStatCollectorOfDeletedNode(dest);
+		}
+	}
+
+	private final class MultiplexedConnection {
+		private final SocketAddress sockAddr;
+		private final SocketChannel sock;
+
+		private final Map<Integer,PendingReply> pendingMap = new HashMap<Integer,PendingReply>();
+		private int lastRequestID = 0;
+		private long lastUsedTime = System.currentTimeMillis();
+		private boolean closed = false;
+
+		private ByteBuffer readBuf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		private Selector writeSelector;	// created when the send buffer is full
+
+		MultiplexedConnection(SocketAddress sockAddr, SocketChannel sock) {
+			this.sockAddr = sockAddr;
+			this.sock = sock;
+		}
+
+		int register(PendingReply pending) {
+			synchronized (this.pendingMap) {
+				if (this.closed) return 0;	// write() will fail
+
+				int id = this.lastRequestID;
+				do {
+					if (++id > MAX_REQUEST_ID) id = 1;
+				} while (this.pendingMap.containsKey(id));
+
+				this.lastRequestID = id;
+				this.lastUsedTime = System.currentTimeMillis();
+
+				pending.requestID = id;
+				this.pendingMap.put(id, pending);
+
+				return id;
+			}
+		}
+
+		PendingReply unregister(int requestID) {
+			synchronized (this.pendingMap) {
+				this.lastUsedTime = System.currentTimeMillis();
+
+				return this.pendingMap.remove(requestID);
+			}
+		}
+
+		boolean isIdleSince(long time) {
+			synchronized (this.pendingMap) {
+				return this.pendingMap.isEmpty() && this.lastUsedTime < time;
+			}
+		}
+
+		void write(ByteBuffer buf) throws IOException {
+			synchronized (this) {
+				if (this.closed) throw new ClosedChannelException();
+
+				while (buf.hasRemaining()) {
+					if (this.sock.write(buf) > 0) continue;
+
+					// wait until the send buffer becomes available
+					if (this.writeSelector == null) {
+						this.writeSelector = Selector.open();
+						this.sock.register(this.writeSelector, SelectionKey.OP_WRITE);
+					}
+					this.writeSelector.select(keepAliveTime);
+				}
+			}
+
+			buf.rewind();
+		}
+
+		/**
+		 * Reads available bytes and completes pending replies. Called by the selector thread.
+		 */
+		void read() throws IOException {
+			int r = this.sock.read(this.readBuf);
+			if (r < 0) {
+				throw new IOException("End-of-stream.");
+			}
+
+			int headerLen = Signature.getSignatureLength() + 8;
+
+			this.readBuf.flip();
+			while (this.readBuf.remaining() >= headerLen) {
+				int start = this.readBuf.position();
+				int frameLen = ReceiverSelectorLoop.frameLength(this.readBuf, start,
+						receiver.provider.getMessageSignature());
+
+				if (frameLen > this.readBuf.capacity()) {
+					// extend the buffer
+					ByteBuffer newBuf = ByteBuffer.allocate(frameLen);
+					newBuf.put(this.readBuf);
+					newBuf.flip();
+					this.readBuf = newBuf;
+					continue;
+				}
+				if (this.readBuf.remaining() < frameLen) break;
+
+				ByteBuffer frame = this.readBuf.slice();
+				frame.limit(frameLen);
+				this.readBuf.position(start + frameLen);
+
+				Message reply = Message.decode(frame);
+				this.dispatch(reply);
+			}
+			this.readBuf.compact();
+		}
+
+		private void dispatch(final Message reply) {
+			final PendingReply pending = this.unregister(reply.getRequestID());
+			if (pending == null) {
+				logger.log(Level.INFO, "A reply for no pending request (timed out ?): " + reply.getRequestID());
+				return;
+			}
+
+			if (pending.future.hasCallback()) {
+				Runnable r = new Runnable() {
+					public void run() { pending.replied(reply); }
+				};
+
+				// not on the pool of message handlers, which may wait for this reply
+				SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MESSAGING_IO,
+						ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(r);
+			}
+			else {
+				pending.replied(reply);
+			}
+		}
+
+		void close(IOException cause) {
+			List<PendingReply> failed;
+
+			synchronized (this.pendingMap) {
+				if (this.closed) return;
+				this.closed = true;
+
+				failed = new ArrayList<PendingReply>(this.pendingMap.values());
+				this.pendingMap.clear();
+			}
+
+			synchronized (connectionMap) {
+				if (connectionMap.get(this.sockAddr) == this) {
+					connectionMap.remove(this.sockAddr);
+				}
+			}
+
+			try { this.sock.close(); } catch (IOException e) { /* ignore */ }
+			synchronized (this) {
+				if (this.writeSelector != null) {
+					try { this.writeSelector.close(); } catch (IOException e) { /* ignore */ }
+				}
+			}
+
+			for (PendingReply pending: failed) {
+				pending.failed(cause);
+			}
+		}
+	}
+
+	private final class PendingReply implements Runnable {
+		private final MultiplexedConnection conn;
+		private final MessagingAddress dest;
+		private final int tag;	// of the request
+		private final ReplyFuture future;
+		private final long start = Timer.currentTimeMillis();
+		private int requestID;
+		private long timeout;
+
+		PendingReply(MultiplexedConnection conn, MessagingAddress dest, int tag, ReplyFuture future) {
+			this.conn = conn;
+			this.dest = dest;
+			this.tag = tag;
+			this.future = future;
+		}
+
+		void scheduleTimeout(long timeout) {
+			this.timeout = timeout;
+
+			// does nothing if a reply has arrived before scheduling
+			timer.schedule(this, Timer.currentTimeMillis() + timeout, true /*isDaemon*/);
+		}
+
+		void replied(Message reply) {
+			timer.cancel(this);
+
+			// timeout calculation
+			int rtt = (int)(Timer.currentTimeMillis() - this.start);
+			receiver.provider.getTimeoutCalculator().updateRTT(this.dest, rtt);
+			receiver.getProximityTable().updateRTT(this.dest, rtt * 1000);
+			StatFactory.getMetricsRegistry().rtt(this.tag, rtt * 1000L);
+
+			this.future.set(reply);
+		}
+
+		void failed(IOException e) {
+			timer.cancel(this);
+
+			notifyOfDeletedNode(this.dest);
+
+			this.future.setException(e);
+		}
+
+		// timeout
+		public void run() {
+			synchronized (this.conn.pendingMap) {
+				if (this.conn.pendingMap.get(this.requestID) != this) return;
+				this.conn.pendingMap.remove(this.requestID);
+			}
+
+			logger.log(Level.INFO, "Timeout: " + this.timeout + " msec.");
+			StatFactory.getMetricsRegistry().timeout(this.tag);
+
+			notifyOfDeletedNode(this.dest);
+
+			this.future.setException(new IOException("Timeout: " + this.timeout + " msec."));
+		}
+	}
+}
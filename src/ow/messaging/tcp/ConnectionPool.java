@@ -19,39 +19,110 @@ package ow.messaging.tcp;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Map;
-import java.util.Random;
-import java.util.Set;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ow.stat.MetricsRegistry;
+import ow.stat.StatFactory;
 import ow.util.Timer;
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 /**
  * Establish an outgoing connection, pool it and return it.
+ * A peer can have multiple pooled connections so that concurrent requests to the peer do not connect.
+ * Connections to a peer are kept in a lock-free deque, in which the most recently returned one comes first.
+ * If the pool is full, the least recently returned connection among all the peers is closed.
+ *
+ * A background task closes expired connections and ones closed by the peer or with stray data,
+ * and connects in advance to peers used since the last check ({@link #warmConnections warm-up}).
  */
 final class ConnectionPool {
 	private final static Logger logger = Logger.getLogger("messaging");
 
 	private final int size;
+	private final int maxPerPeer;
 	private final long expirationTime;
+	private final long healthCheckInterval;
+	private final int warmConnections;
 
-	private Map<SocketAddress,ExpiringSocketChannel> connectionMap;
-	private final Random rnd;
+	private final ConcurrentMap<SocketAddress,PeerConnections> peerMap =
+		new ConcurrentHashMap<SocketAddress,PeerConnections>();
+	private final AtomicInteger numPooled = new AtomicInteger(0);
 
 	private final static Timer timer = Timer.getSingletonTimer();
-	private ExpiringTask expiringTask = null;
+	private HealthCheckTask healthCheckTask = null;
+	private boolean stopped = false;
 
-	ConnectionPool(int size, long expirationTime) {
+	ConnectionPool(int size, int maxPerPeer, long expirationTime, long healthCheckInterval, int warmConnections) {
 		this.size = size;
+		this.maxPerPeer = Math.max(1, maxPerPeer);
 		this.expirationTime = expirationTime;
+		this.healthCheckInterval = (healthCheckInterval > 0L ? healthCheckInterval : expirationTime);
+		this.warmConnections = Math.min(warmConnections, this.maxPerPeer);
+	}
 
-		if (size > 0) this.connectionMap = new HashMap<SocketAddress,ExpiringSocketChannel>();
-		this.rnd = new Random();
+	private final static class PeerConnections {
+		final ConcurrentLinkedDeque<PooledChannel> deque = new ConcurrentLinkedDeque<PooledChannel>();
+		final AtomicInteger numIdle = new AtomicInteger(0);
+		final AtomicInteger numWarming = new AtomicInteger(0);
+		volatile long lastUsedTime = 0L;
+	}
+
+	private final static class PooledChannel {
+		final SocketChannel sock;
+		final long returnedTime;
+		final long expiringTime;
+		private boolean taken = false;	// guarded by sock.blockingLock()
+
+		PooledChannel(SocketChannel sock, long returnedTime, long expiringTime) {
+			this.sock = sock;
+			this.returnedTime = returnedTime;
+			this.expiringTime = expiringTime;
+		}
+
+		/**
+		 * Marks this connection checked out so that the health check does not read it any more.
+		 */
+		void take() {
+			synchronized (this.sock.blockingLock()) {
+				this.taken = true;
+			}
+		}
+
+		/**
+		 * Closes this connection if it is unhealthy and has not been checked out.
+		 *
+		 * @return false if closed.
+		 */
+		boolean checkHealth() {
+			synchronized (this.sock.blockingLock()) {
+				if (this.taken || isHealthy(this.sock)) return true;
+
+				close(this.sock);
+				return false;
+			}
+		}
+	}
+
+	private PeerConnections getPeer(SocketAddress addr) {
+		PeerConnections peer = this.peerMap.get(addr);
+		if (peer == null) {
+			PeerConnections newPeer = new PeerConnections();
+			peer = this.peerMap.putIfAbsent(addr, newPeer);
+			if (peer == null) peer = newPeer;
+		}
+
+		return peer;
 	}
 
 	/**
@@ -60,174 +131,255 @@ final class ConnectionPool {
 	 * Note that the returned Socket is possible to be already closed.
 	 */
 	public SocketChannel get(SocketAddress dest) throws IOException {
-		if (this.size <= 0) return SocketChannel.open(dest);
+		MetricsRegistry metrics = StatFactory.getMetricsRegistry();
+
+		if (this.size > 0) {
+			PeerConnections peer = this.getPeer(dest);
+			peer.lastUsedTime = System.currentTimeMillis();
+
+			PooledChannel pc;
+			while ((pc = peer.deque.pollFirst()) != null) {
+				peer.numIdle.decrementAndGet();
+				this.numPooled.decrementAndGet();
+				pc.take();
+
+				if (pc.sock.isOpen() && System.currentTimeMillis() < pc.expiringTime) {
+					logger.log(Level.INFO, "A Socket found in the pool: ", pc.sock);
+					metrics.connectionPoolHit();
+					return pc.sock;
+				}
 
-		SocketChannel sock = null;
-		synchronized (this.connectionMap) {
-			ExpiringSocketChannel es = this.connectionMap.remove(dest);	// retrieve a Socket
-			if (es != null) sock = es.getSocketChannel();
-		}
+				close(pc.sock);
+				metrics.connectionEvicted("expired");
+			}
 
-		if (sock != null) {
-			logger.log(Level.INFO, "A Socket found in the hash table: ", sock);
-			return sock;
+			this.scheduleHealthCheck();
 		}
-		else {
-			try {
-				sock = SocketChannel.open(dest);
-				logger.log(Level.INFO, "A new Socket created: " + dest);
-			}
-			catch (IOException e) {
-				logger.log(Level.INFO, "Could not create a Socket: " + dest);
-				throw e;
-			}
 
-			return sock;
+		metrics.connectionPoolMiss();
+
+		return connect(dest);
+	}
+
+	private static SocketChannel connect(SocketAddress dest) throws IOException {
+		SocketChannel sock;
+		long start = System.nanoTime();
+
+		try {
+			sock = SocketChannel.open(dest);
+			logger.log(Level.INFO, "A new Socket created: " + dest);
+		}
+		catch (IOException e) {
+			logger.log(Level.INFO, "Could not create a Socket: " + dest);
+			throw e;
 		}
+
+		StatFactory.getMetricsRegistry().connected((System.nanoTime() - start) / 1000L);
+
+		return sock;
 	}
 
 	public void put(SocketAddress addr, SocketChannel sock) {
-		if (this.size <= 0) {
-			try {
-				sock.close();
-			}
-			catch (IOException e) { /* ignore */ }
-
+		if (this.size <= 0 || this.stopped) {
+			close(sock);
 			return;
 		}
 
-		long expiringTime;
-		SocketChannel existedChannel = null;
+		PeerConnections peer = this.getPeer(addr);
 
-		synchronized (this.connectionMap) {
-			ExpiringSocketChannel es;
+		if (peer.numIdle.incrementAndGet() > this.maxPerPeer) {
+			peer.numIdle.decrementAndGet();
+			close(sock);
+			StatFactory.getMetricsRegistry().connectionEvicted("peer_full");
+			return;
+		}
 
-			es = this.connectionMap.remove(addr);
-			if (es != null) existedChannel = es.getSocketChannel();
+		long now = System.currentTimeMillis();
+		PooledChannel pc = new PooledChannel(sock, now, now + this.expirationTime);
+		peer.deque.offerFirst(pc);
+		this.numPooled.incrementAndGet();
 
-			// keep table size 
-			while (this.connectionMap.size() >= this.size) {
-				logger.log(Level.INFO, "Connection pool is full. Remove an entry.");
+		// the peer has been removed by the health check in the meantime
+		if (this.peerMap.get(addr) != peer) {
+			this.remove(peer, pc, "expired");
+		}
 
-				// remove an entry randomly
-				//synchronized (this.connectionMap) {
-					int removeIdx = rnd.nextInt(this.connectionMap.size());
+		// keep the pool size
+		while (this.numPooled.get() > this.size) {
+			logger.log(Level.INFO, "Connection pool is full. Remove an entry.");
+			if (!this.evictLeastRecentlyUsed()) break;
+		}
 
-					SocketAddress removedKey = null;
-					for (SocketAddress key: this.connectionMap.keySet()) {
-						if (removeIdx == 0) {
-							removedKey = key;
-							break;
-						}
-						removeIdx--;
-					}
+		this.scheduleHealthCheck();
+	}
 
-					if (removedKey != null) {
-						es = this.connectionMap.remove(removedKey);
-						if (es != null) existedChannel = es.getSocketChannel();
-					}
-				//}
+	/**
+	 * Closes the least recently returned connection of all the peers.
+	 */
+	private boolean evictLeastRecentlyUsed() {
+		PeerConnections lruPeer = null;
+		PooledChannel lru = null;
+
+		for (PeerConnections peer: this.peerMap.values()) {
+			PooledChannel pc = peer.deque.peekLast();
+			if (pc != null && (lru == null || pc.returnedTime < lru.returnedTime)) {
+				lruPeer = peer;
+				lru = pc;
 			}
+		}
 
-			// put
-			expiringTime = System.currentTimeMillis() + this.expirationTime;
-			this.connectionMap.put(addr, new ExpiringSocketChannel(sock, expiringTime));
-		}	// synchronized (this.connectionMap)
+		if (lru == null) return false;
 
-		initExpiringTask(expiringTime + 100L);
+		this.remove(lruPeer, lru, "lru");
 
-		// disposes an existing connection
-		if (existedChannel != null) {
-			try {
-				existedChannel.close();
-			}
-			catch (IOException e) { /* ignore */ }
-		}
+		return true;
+	}
+
+	/**
+	 * Removes the connection from the pool and closes it unless it has been taken by another thread.
+	 */
+	private boolean remove(PeerConnections peer, PooledChannel pc, String reason) {
+		if (!peer.deque.removeLastOccurrence(pc)) return false;
+
+		peer.numIdle.decrementAndGet();
+		this.numPooled.decrementAndGet();
+
+		close(pc.sock);
+		StatFactory.getMetricsRegistry().connectionEvicted(reason);
+
+		return true;
 	}
 
 	public void clear() {
-		if (this.size <= 0) return;
+		synchronized (this) {
+			this.stopped = true;
 
-		synchronized (connectionMap) {
-			for (ExpiringSocketChannel es: this.connectionMap.values()) {
-				SocketChannel sock = es.getSocketChannel();
-				try { sock.close(); } catch (IOException e) { /* ignore */ }
+			if (this.healthCheckTask != null) {
+				timer.cancel(this.healthCheckTask);
+				this.healthCheckTask = null;
 			}
+		}
 
-			this.connectionMap.clear();
+		for (PeerConnections peer: this.peerMap.values()) {
+			PooledChannel pc;
+			while ((pc = peer.deque.pollFirst()) != null) {
+				peer.numIdle.decrementAndGet();
+				this.numPooled.decrementAndGet();
+				close(pc.sock);
+			}
 		}
+
+		this.peerMap.clear();
+	}
+
+	private static void close(SocketChannel sock) {
+		try { sock.close(); } catch (IOException e) { /* ignore */ }
 	}
 
 	//
-	// Expiration-related methods and classes
+	// Health check
 	//
 
-	private void initExpiringTask(long expiringTime) {
+	private void scheduleHealthCheck() {
 		synchronized (this) {
-			if (this.expiringTask != null) {
-				long scheduledTime = timer.getScheduledTime(this.expiringTask);
-				if (expiringTime < scheduledTime) {
-					// reschedule
-					timer.cancel(this.expiringTask);
-					timer.schedule(this.expiringTask, expiringTime, true /*isDaemon*/);
-				}
-			}
-			else {
-				// create an ExpiringTask and schedule it
-				this.expiringTask = new ExpiringTask();
-				timer.schedule(this.expiringTask, expiringTime, true /*isDaemon*/);
-			}
+			if (this.healthCheckTask != null || this.stopped) return;
+
+			this.healthCheckTask = new HealthCheckTask();
+			timer.schedule(this.healthCheckTask,
+					System.currentTimeMillis() + this.healthCheckInterval, true /*isDaemon*/);
 		}
 	}
 
-	private class ExpiringTask extends TimerTask {
+	private class HealthCheckTask implements Runnable {
+		private long lastCheckTime = System.currentTimeMillis();
+
 		public void run() {
-			long currentTime = System.currentTimeMillis();
-			Set<SocketAddress> removeSet = new HashSet<SocketAddress>();
-			long nearestExpiringTime = Long.MAX_VALUE;
-
-			synchronized (connectionMap) {
-				for (Map.Entry<SocketAddress,ExpiringSocketChannel> ent: connectionMap.entrySet()) {
-					long expiringTime = ent.getValue().expiringTime;
-					if (currentTime >= expiringTime) {
-						// to expire
-						removeSet.add(ent.getKey());
+			long now = System.currentTimeMillis();
+
+			for (Map.Entry<SocketAddress,PeerConnections> entry: peerMap.entrySet()) {
+				SocketAddress addr = entry.getKey();
+				PeerConnections peer = entry.getValue();
+
+				// a snapshot, in which healthy connections stay in place
+				for (PooledChannel pc: new ArrayList<PooledChannel>(peer.deque)) {
+					if (now >= pc.expiringTime || !pc.sock.isOpen()) {
+						remove(peer, pc, "expired");
 					}
-					else if (expiringTime < nearestExpiringTime) {
-						nearestExpiringTime = expiringTime;
+					else if (!pc.checkHealth()) {
+						remove(peer, pc, "unhealthy");
 					}
 				}
 
-				for (SocketAddress addr: removeSet) {
-					ExpiringSocketChannel es = connectionMap.remove(addr);
-					SocketChannel sock = es.getSocketChannel();
-					try { sock.close(); } catch (IOException e) { /* ignore */ }
+				if (peer.lastUsedTime >= this.lastCheckTime) {
+					warmUp(addr, peer);
+				}
+				else if (peer.numIdle.get() <= 0 && peer.numWarming.get() <= 0) {
+					peerMap.remove(addr, peer);
 				}
 			}
 
-			if (nearestExpiringTime < Long.MAX_VALUE) {
-				// reschedule
-				timer.schedule(this, nearestExpiringTime, true /*isDaemon*/);
-			}
-			else {
-				// stop
-				synchronized (ConnectionPool.this) {
-					ConnectionPool.this.expiringTask = null;
+			this.lastCheckTime = now;
+
+			synchronized (ConnectionPool.this) {
+				if (stopped) return;
+
+				if (!peerMap.isEmpty()) {
+					// reschedule
+					timer.schedule(this, now + healthCheckInterval, true /*isDaemon*/);
+				}
+				else {
+					// stop
+					healthCheckTask = null;
 				}
 			}
 		}
 	}
 
-	private static class ExpiringSocketChannel {
-		private SocketChannel sock;
-		private long expiringTime;
+	/**
+	 * Returns false if the peer has closed the connection or data remain unread in the connection.
+	 * The connection has to have been removed from the pool.
+	 */
+	private static boolean isHealthy(SocketChannel sock) {
+		try {
+			synchronized (sock.blockingLock()) {
+				boolean blocking = sock.isBlocking();
+				if (blocking) sock.configureBlocking(false);
 
-		ExpiringSocketChannel(SocketChannel sock, long expiringTime) {
-			this.sock = sock;
-			this.expiringTime = expiringTime;
+				int read = sock.read(ByteBuffer.allocate(1));
+
+				if (blocking) sock.configureBlocking(true);
+
+				return read == 0;
+			}
 		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Connects to the peer in background until it has {@link #warmConnections warmConnections} idle connections.
+	 */
+	private void warmUp(final SocketAddress addr, final PeerConnections peer) {
+		int lack = this.warmConnections - peer.numIdle.get() - peer.numWarming.get();
+
+		for (int i = 0; i < lack && this.numPooled.get() + peer.numWarming.get() < this.size; i++) {
+			peer.numWarming.incrementAndGet();
 
-		public SocketChannel getSocketChannel() { return this.sock; }
-		public long getExpiringTime() { return this.expiringTime; }
+			Runnable r = new Runnable() {
+				public void run() {
+					try {
+						put(addr, connect(addr));
+					}
+					catch (IOException e) { /* ignore */ }
+					finally {
+						peer.numWarming.decrementAndGet();
+					}
+				}
+			};
+
+			SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MESSAGING_IO,
+					ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, true).submit(r);
+		}
 	}
 }
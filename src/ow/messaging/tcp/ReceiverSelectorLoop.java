@@ -0,0 +1,371 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.messaging.Message;
+import ow.messaging.Signature;
+import ow.stat.StatFactory;
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * A selector thread which reads incoming messages on many connections
+ * and dispatches only complete messages to pooled threads.
+ * A connection keeps a buffer only while a message is partially received.
+ * Messages with a request ID are processed concurrently
+ * and the others are processed one by one in the received order.
+ * A connection is closed if a header has an unacceptable signature or length
+ * or if reading from it throws an exception.
+ */
+final class ReceiverSelectorLoop implements Runnable {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final static int SHARED_BUFFER_SIZE = 64 * 1024;
+	private final static int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+	private final TCPMessageReceiver receiver;
+	private final long keepAliveTime;
+	private final int headerLen = Signature.getSignatureLength() + 8;
+
+	private final Selector selector;
+	private final ByteBuffer sharedBuf = ByteBuffer.allocateDirect(SHARED_BUFFER_SIZE);
+	private final List<SocketChannel> registrationQueue = new ArrayList<SocketChannel>();
+	private volatile boolean stopped = false;
+
+	ReceiverSelectorLoop(TCPMessageReceiver receiver) throws IOException {
+		this.receiver = receiver;
+		this.keepAliveTime = receiver.config.getReceiverKeepAliveTime();
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Hands an accepted connection to this selector thread.
+	 */
+	void register(SocketChannel sock) throws IOException {
+		sock.configureBlocking(false);
+
+		synchronized (this.registrationQueue) {
+			this.registrationQueue.add(sock);
+		}
+		this.selector.wakeup();
+	}
+
+	void stop() {
+		this.stopped = true;
+		this.selector.wakeup();
+	}
+
+	public void run() {
+		long selectTimeout = Math.max(this.keepAliveTime / 2, 100L);
+
+		while (!this.stopped) {
+			// register accepted connections
+			synchronized (this.registrationQueue) {
+				for (SocketChannel sock: this.registrationQueue) {
+					try {
+						sock.register(this.selector, SelectionKey.OP_READ, new Connection(sock));
+					}
+					catch (ClosedChannelException e) { /* ignore */ }
+				}
+				this.registrationQueue.clear();
+			}
+
+			try {
+				this.selector.select(selectTimeout);
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Selector#select() threw an Exception and the selector thread will die.");
+				break;
+			}
+
+			Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				Connection conn = (Connection)key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) conn.read();
+				}
+				catch (IOException e) {
+					logger.log(Level.INFO, "No Message could not be decoded (or just closed).");
+					conn.close();
+				}
+				catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Reading a message threw an exception and the connection is closed.", e);
+					conn.close();
+				}
+			}
+
+			// close idle connections
+			long idleSince = System.currentTimeMillis() - this.keepAliveTime;
+			for (SelectionKey key: this.selector.keys()) {
+				Connection conn = (Connection)key.attachment();
+				if (conn != null && conn.isIdleSince(idleSince)) {
+					conn.close();
+				}
+			}
+		}
+
+		// shut down
+		for (SelectionKey key: this.selector.keys()) {
+			Connection conn = (Connection)key.attachment();
+			if (conn != null) conn.close();
+		}
+		try { this.selector.close(); } catch (IOException e) { /* ignore */ }
+	}
+
+	/**
+	 * Returns the length of the message whose header is at the position in the buffer,
+	 * after checking the signature and the length in the header.
+	 * Also used by {@link ConnectionMultiplexer ConnectionMultiplexer} to read replies.
+	 */
+	static int frameLength(ByteBuffer buf, int pos, byte[] signature) throws IOException {
+		int sigLen = Signature.getSignatureLength();
+
+		byte[] sig = new byte[sigLen];
+		for (int i = 0; i < sig.length; i++) sig[i] = buf.get(pos + i);
+		if (!Signature.match(sig, signature)) {
+			throw new IOException("Signature does not match: " + Signature.toString(sig));
+		}
+
+		int len = buf.getInt(pos + sigLen + 1);
+		if (len < 0 || len > MAX_MESSAGE_SIZE - (sigLen + 8)) {
+			throw new IOException("Invalid message length: " + len);
+		}
+
+		return sigLen + 8 + len;
+	}
+
+	/**
+	 * A connection, which is also a channel for replies.
+	 * A write blocks until all bytes are written even though the channel is non-blocking.
+	 */
+	private final class Connection implements WritableByteChannel {
+		private final SocketChannel sock;
+
+		private ByteBuffer partialBuf = null;	// a partially received message
+		private int frameLen = 0;	// length of the partially received message, 0 if unknown
+
+		private final LinkedList<ByteBuffer> serialQueue = new LinkedList<ByteBuffer>();
+		private boolean serialRunning = false;
+		private int numProcessing = 0;
+		private long lastReceivedTime = System.currentTimeMillis();
+
+		private Selector writeSelector;	// created when the send buffer is full
+
+		Connection(SocketChannel sock) {
+			this.sock = sock;
+		}
+
+		void read() throws IOException {
+			this.lastReceivedTime = System.currentTimeMillis();
+
+			if (this.partialBuf != null) {
+				if (this.sock.read(this.partialBuf) < 0) throw new IOException("End-of-stream.");
+
+				if (this.frameLen == 0 && this.partialBuf.position() >= headerLen) {
+					// header completed
+					this.frameLen = frameLength(this.partialBuf, 0, receiver.provider.getMessageSignature());
+
+					ByteBuffer buf = ByteBuffer.allocate(this.frameLen);
+					this.partialBuf.flip();
+					buf.put(this.partialBuf);
+					this.partialBuf = buf;
+
+					if (this.sock.read(this.partialBuf) < 0) throw new IOException("End-of-stream.");
+				}
+
+				if (this.frameLen > 0 && !this.partialBuf.hasRemaining()) {
+					this.partialBuf.flip();
+					this.dispatch(this.partialBuf);
+
+					this.partialBuf = null;
+					this.frameLen = 0;
+				}
+
+				return;
+			}
+
+			ByteBuffer buf = sharedBuf;
+			buf.clear();
+			if (this.sock.read(buf) < 0) throw new IOException("End-of-stream.");
+			buf.flip();
+
+			while (buf.remaining() >= headerLen) {
+				int len = frameLength(buf, buf.position(), receiver.provider.getMessageSignature());
+				if (buf.remaining() < len) break;
+
+				ByteBuffer frame = ByteBuffer.allocate(len);
+				int limit = buf.limit();
+				buf.limit(buf.position() + len);
+				frame.put(buf);
+				buf.limit(limit);
+
+				frame.flip();
+				this.dispatch(frame);
+			}
+
+			if (buf.hasRemaining()) {
+				// keep the partially received message
+				if (buf.remaining() >= headerLen) {
+					this.frameLen = frameLength(buf, buf.position(), receiver.provider.getMessageSignature());
+					this.partialBuf = ByteBuffer.allocate(this.frameLen);
+				}
+				else {
+					this.frameLen = 0;
+					this.partialBuf = ByteBuffer.allocate(headerLen);
+				}
+				this.partialBuf.put(buf);
+			}
+		}
+
+		private void dispatch(final ByteBuffer frame) {
+			// the request ID is in the extended header
+			int requestID = 0;
+			if ((frame.get(headerLen - 8) & 0x80) != 0) {
+				requestID = frame.getShort(headerLen - 8 + 6) & 0xffff;
+			}
+
+			Runnable r;
+			synchronized (this) {
+				this.numProcessing++;
+
+				if (requestID != 0) {
+					final long queuedTime = System.nanoTime();
+					r = new Runnable() {
+						public void run() {
+							StatFactory.getMetricsRegistry().queueWait(
+									frame.get(headerLen - 8) & 0x7f, System.nanoTime() - queuedTime);
+							process(frame);
+							finished();
+						}
+					};
+				}
+				else {
+					this.serialQueue.add(frame);
+					if (this.serialRunning) return;
+
+					this.serialRunning = true;
+					r = new Runnable() {
+						public void run() {
+							processSerially();
+						}
+					};
+				}
+			}
+
+			if (receiver.config.getUseThreadPool()) {
+				SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.HANDLER_DISPATCH,
+						ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(r);
+			}
+			else {
+				Thread t = new Thread(r);
+				t.setName("TCPMessageHandler: " + this.sock.socket().getInetAddress());
+				t.setDaemon(false);
+				t.start();
+			}
+		}
+
+		private void processSerially() {
+			while (true) {
+				ByteBuffer frame;
+				synchronized (this) {
+					frame = this.serialQueue.poll();
+					if (frame == null) {
+						this.serialRunning = false;
+						return;
+					}
+				}
+
+				this.process(frame);
+				this.finished();
+			}
+		}
+
+		private void process(ByteBuffer frame) {
+			Message msg;
+			try {
+				msg = Message.decode(frame);
+			}
+			catch (Exception e) {
+				logger.log(Level.WARNING, "Could not decode the received message (corrupted ?).", e);
+				return;
+			}
+
+			if (receiver.accept(msg)) {
+				receiver.processAndReply(this, msg);
+			}
+		}
+
+		private synchronized void finished() {
+			this.numProcessing--;
+			this.lastReceivedTime = System.currentTimeMillis();
+		}
+
+		synchronized boolean isIdleSince(long time) {
+			return this.numProcessing <= 0 && this.partialBuf == null && this.lastReceivedTime < time;
+		}
+
+		public int write(ByteBuffer src) throws IOException {
+			int len = src.remaining();
+
+			synchronized (this.sock) {
+				while (src.hasRemaining()) {
+					if (this.sock.write(src) > 0) continue;
+
+					// wait until the send buffer becomes available
+					if (this.writeSelector == null) {
+						this.writeSelector = Selector.open();
+						this.sock.register(this.writeSelector, SelectionKey.OP_WRITE);
+					}
+					this.writeSelector.select(keepAliveTime);
+				}
+			}
+
+			return len;
+		}
+
+		public boolean isOpen() { return this.sock.isOpen(); }
+
+		public void close() {
+			try { this.sock.close(); } catch (IOException e) { /* ignore */ }
+
+			synchronized (this.sock) {
+				if (this.writeSelector != null) {
+					try { this.writeSelector.close(); } catch (IOException e) { /* ignore */ }
+					this.writeSelector = null;
+				}
+			}
+		}
+	}
+}
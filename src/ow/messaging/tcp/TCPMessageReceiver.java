@@ -24,6 +24,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -39,13 +40,16 @@ import ow.messaging.MessageHandler;
 import ow.messaging.MessageReceiver;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ProximityTable;
 import ow.messaging.Signature;
+import ow.messaging.codec.CodecNegotiator;
 import ow.messaging.upnp.Mapping;
 import ow.messaging.util.UPnPAddressPortMapper;
 import ow.stat.MessagingReporter;
 import ow.stat.StatConfiguration;
 import ow.stat.StatFactory;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 public class TCPMessageReceiver implements MessageReceiver, Runnable {
@@ -56,13 +60,19 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 	protected TCPMessagingConfiguration config;
 	protected TCPMessagingProvider provider;
 	protected ConnectionPool connPool;
+	protected CodecNegotiator codecNegotiator;
+	private ConnectionMultiplexer multiplexer;
 	private Thread receiverThread;
+	private ReceiverSelectorLoop[] selectorLoops;
+	private int nextSelectorLoop = 0;
 	private Set<Thread> handlerThreads = Collections.synchronizedSet(new HashSet<Thread>());
+	private Set<SocketChannel> handlerSockets = Collections.synchronizedSet(new HashSet<SocketChannel>());
 
 	private List<MessageHandler> handlerList = new ArrayList<MessageHandler>();
 	protected boolean extMessageHandlerRegistered = false;
 
 	private final MessagingReporter msgReporter;
+	private final ProximityTable proximityTable;
 
 	private static boolean oomPrinted = false;
 
@@ -101,10 +111,15 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 		}
 
 		this.connPool = new ConnectionPool(
-				config.getConnectionPoolSize(), config.getSenderKeepAliveTime());
+				config.getConnectionPoolSize(), config.getMaxConnectionsPerPeer(), config.getSenderKeepAliveTime(),
+				config.getConnectionHealthCheckInterval(), config.getNumOfWarmConnections());
+
+		this.codecNegotiator = new CodecNegotiator(config);
 
 		StatConfiguration conf = StatFactory.getDefaultConfiguration();
+		conf.setBatchReporting(config.getBatchStatReporting());
 		this.msgReporter = StatFactory.getMessagingReporter(conf, this.provider, this.getSender());
+		this.proximityTable = new ProximityTable(config.getRTTTableSize());
 
 		// for UPnP Address Port Mapping
 		if (this.config.getDoUPnPNATTraversal()) {
@@ -162,6 +177,21 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 
 	public MessagingReporter getMessagingReporter() { return this.msgReporter; }
 
+	public ProximityTable getProximityTable() { return this.proximityTable; }
+
+	/**
+	 * Returns the multiplexer of outgoing requests, which is instantiated on demand.
+	 */
+	protected ConnectionMultiplexer getConnectionMultiplexer() throws IOException {
+		synchronized (this) {
+			if (this.multiplexer == null) {
+				this.multiplexer = new ConnectionMultiplexer(this);
+			}
+
+			return this.multiplexer;
+		}
+	}
+
 	public MessageSender getSender() {
 		// does not share a sender
 		return new TCPMessageSender(this);
@@ -179,6 +209,31 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 						+ this.config.getReceiverThreadPriority());
 
 				receiverThread.start();
+
+				// start selector threads
+				int numLoops = this.config.getNumOfSelectorThreads();
+				if (numLoops > 0) {
+					this.selectorLoops = new ReceiverSelectorLoop[numLoops];
+					try {
+						for (int i = 0; i < numLoops; i++) {
+							this.selectorLoops[i] = new ReceiverSelectorLoop(this);
+
+							Thread t = new Thread(this.selectorLoops[i]);
+							t.setDaemon(true);
+							t.setName("TCPMessageReceiver selector " + i);
+							t.setPriority(receiverThread.getPriority());
+							t.start();
+						}
+					}
+					catch (IOException e) {
+						logger.log(Level.WARNING, "Could not open a selector and a thread is assigned to each connection.", e);
+
+						for (ReceiverSelectorLoop loop: this.selectorLoops) {
+							if (loop != null) loop.stop();
+						}
+						this.selectorLoops = null;
+					}
+				}
 			}
 		}
 	}
@@ -189,6 +244,13 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 				this.receiverThread.interrupt();
 				this.receiverThread = null;
 			}
+
+			if (this.selectorLoops != null) {
+				for (ReceiverSelectorLoop loop: this.selectorLoops) {
+					loop.stop();
+				}
+				this.selectorLoops = null;
+			}
 		}
 
 		Thread[] handlerArray = new Thread[this.handlerThreads.size()];
@@ -200,11 +262,28 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 
 		this.handlerThreads.clear();
 
+		// close accepted connections, on which pooled threads may be handling messages
+		SocketChannel[] sockArray = new SocketChannel[this.handlerSockets.size()];
+		this.handlerSockets.toArray(sockArray);
+
+		for (SocketChannel sock: sockArray) {
+			try { sock.close(); } catch (IOException e) { /* ignore */ }
+		}
+
+		this.handlerSockets.clear();
+
 		// notify statistics collector
 		this.msgReporter.notifyStatCollectorOfDeletedNode(this.selfAddr);
 
 		// close all sockets in the connection pool
 		this.connPool.clear();
+
+		synchronized (this) {
+			if (this.multiplexer != null) {
+				this.multiplexer.stop();
+				this.multiplexer = null;
+			}
+		}
 	}
 
 	public void run() {
@@ -218,12 +297,33 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 				return;
 			}
 
+			// hand the connection to a selector thread
+			ReceiverSelectorLoop loop = null;
+			synchronized (this) {
+				if (this.selectorLoops != null) {
+					loop = this.selectorLoops[this.nextSelectorLoop];
+					this.nextSelectorLoop = (this.nextSelectorLoop + 1) % this.selectorLoops.length;
+				}
+			}
+
+			if (loop != null) {
+				try {
+					loop.register(sock);
+				}
+				catch (IOException e) {
+					logger.log(Level.WARNING, "Could not register a connection to a selector.");
+					try { sock.close(); } catch (IOException e1) { /* ignore */ }
+				}
+
+				continue;
+			}
+
 			// invoke a Thread handling an incoming Message
 			Runnable r = new TCPMessageHandler(sock);
 
 			try {
 				if (this.config.getUseThreadPool()) {
-					SingletonThreadPoolExecutors.getThreadPool(
+					SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MESSAGING_IO,
 							ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(r);
 				}
 				else {
@@ -299,6 +399,17 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 			String origName = th.getName();
 			th.setName("TCPMessageHandler: " + this.sock.socket().getInetAddress());
 
+			handlerSockets.add(this.sock);
+
+			// kept non-blocking rather than switched while reading,
+			// because pipelined replies are written by other threads in the meantime
+			try {
+				this.sock.configureBlocking(false);
+			}
+			catch (IOException e) {
+				try { this.sock.close(); } catch (IOException e1) {}
+			}
+
 			int times = 0;	// # of times a message is received on this socket.
 			while (!Thread.interrupted()) {
 				times++;
@@ -319,58 +430,121 @@ public class TCPMessageReceiver implements MessageReceiver, Runnable {
 					break;
 				}
 
-				// check signature
-				byte[] sig = msg.getSignature();
-				byte[] acceptableSig = TCPMessageReceiver.this.provider.getMessageSignature();
-				if (!Signature.match(sig, acceptableSig))
+				if (!TCPMessageReceiver.this.accept(msg))
 					continue;
 
-				// process the received message
-				Message ret = TCPMessageReceiver.this.processMessage(msg);
+				if (msg.getRequestID() != 0) {
+					// the sender multiplexes requests and the reply can be returned out of order
+					Runnable r = new PipelinedRequestHandler(this.sock, msg);
 
-				// return a Message (from the last handler)
-				if (ret != null) {
-					logger.log(Level.INFO, "Return a message: " + ret);
+					if (config.getUseThreadPool()) {
+						SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.HANDLER_DISPATCH,
+								ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(r);
+					}
+					else {
+						Thread t = new Thread(r);
+						t.setName("PipelinedRequestHandler: " + this.sock.socket().getInetAddress());
+						t.setDaemon(false);
+						t.start();
+					}
 
-					// set source address
-					ret.setSource(TCPMessageReceiver.this.getSelfAddress());
+					continue;
+				}
 
-					MessagingAddress src =
-						(msg.getSource() != null ? msg.getSource().getMessagingAddress() : null);
-					try {
-						ByteBuffer buf = ret.encode(sock);
+				if (!TCPMessageReceiver.this.processAndReply(this.sock, msg)) break;
+			}	// while (true)
 
-						// notify statistics collector
-						if (src != null) {
-							msgReporter.notifyStatCollectorOfMessageSent(src, ret, buf.remaining());
-						}
-					}
-					catch (IOException e) {
-						logger.log(Level.WARNING, "Could not return a message (or just closed).");
+			handlerThreads.remove(Thread.currentThread());
+			handlerSockets.remove(this.sock);
 
-						// close Socket
-						try { sock.close(); } catch (IOException e1) {}
+			th.setName(origName);
+		}
+	}
 
-						// notify statistics collector
-						if (src != null) {
-							msgReporter.notifyStatCollectorOfDeletedNode(src);
-						}
+	private class PipelinedRequestHandler implements Runnable {
+		private final SocketChannel sock;
+		private final Message msg;
+		private final long queuedTime = System.nanoTime();
 
-						break;
-					}
-				}
-				else {
-					logger.log(Level.INFO, "Return no message.");
+		PipelinedRequestHandler(SocketChannel sock, Message msg) {
+			this.sock = sock;
+			this.msg = msg;
+		}
+
+		public void run() {
+			StatFactory.getMetricsRegistry().queueWait(this.msg.getTag(), System.nanoTime() - this.queuedTime);
+
+			TCPMessageReceiver.this.processAndReply(this.sock, this.msg);
+		}
+	}
+
+	/**
+	 * Checks the signature of a received message and records the codec of the source.
+	 *
+	 * @return false if the message should be discarded.
+	 */
+	boolean accept(Message msg) {
+		// check signature
+		byte[] sig = msg.getSignature();
+		byte[] acceptableSig = this.provider.getMessageSignature();
+		if (!Signature.match(sig, acceptableSig))
+			return false;
+
+		this.codecNegotiator.learn(msg.getSource(), msg);
+
+		return true;
+	}
+
+	/**
+	 * Processes a received message, returns a reply and post-processes the message.
+	 *
+	 * @return false if the socket has been closed.
+	 */
+	boolean processAndReply(WritableByteChannel sock, Message msg) {
+		// process the received message
+		Message ret = this.processMessage(msg);
+
+		// return a Message (from the last handler)
+		if (ret != null) {
+			logger.log(Level.INFO, "Return a message: " + ret);
+
+			// set source address
+			ret.setSource(this.getSelfAddress());
+
+			MessagingAddress src =
+				(msg.getSource() != null ? msg.getSource().getMessagingAddress() : null);
+			try {
+				ByteBuffer buf = ret.encode(sock,
+						msg.getCodec(), this.codecNegotiator.getCompressionThreshold(),
+						msg.getRequestID());
+
+				// notify statistics collector
+				if (src != null) {
+					msgReporter.notifyStatCollectorOfMessageSent(src, ret, buf.remaining());
 				}
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Could not return a message (or just closed).");
 
-				// post-process
-				TCPMessageReceiver.this.postProcessMessage(msg);
-			}	// while (true)
+				// close Socket
+				try { sock.close(); } catch (IOException e1) {}
 
-			handlerThreads.remove(Thread.currentThread());
+				// notify statistics collector
+				if (src != null) {
+					msgReporter.notifyStatCollectorOfDeletedNode(src);
+				}
 
-			th.setName(origName);
+				return false;
+			}
+		}
+		else {
+			logger.log(Level.INFO, "Return no message.");
 		}
+
+		// post-process
+		this.postProcessMessage(msg);
+
+		return true;
 	}
 
 	protected Message processMessage(Message msg) {
@@ -19,9 +19,11 @@ package ow.messaging.tcp;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,15 +32,23 @@ import ow.messaging.Message;
 import ow.messaging.MessageDirectory;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
+import ow.messaging.ReplyFuture;
+import ow.messaging.codec.CodecNegotiator;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.SerializingMessageCodec;
 import ow.stat.MessagingReporter;
-import ow.util.AlarmClock;
+import ow.stat.StatFactory;
 import ow.util.Timer;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 public class TCPMessageSender implements MessageSender {
 	private final static Logger logger = Logger.getLogger("messaging");
 
+	private final static AtomicInteger lastRequestID = new AtomicInteger();
+
 	private final TCPMessageReceiver receiver;
 
 	protected TCPMessageSender(TCPMessageReceiver receiver) {
@@ -83,7 +93,7 @@ public class TCPMessageSender implements MessageSender {
 			}
 
 			try {
-				this.send(sock, dest, msg);
+				this.send(sock, dest, msg, this.receiver.codecNegotiator.getCodec(dest), 0);
 
 				break;
 			}
@@ -102,7 +112,8 @@ public class TCPMessageSender implements MessageSender {
 		this.receiver.connPool.put(sockAddr, sock);
 	}
 
-	private void send(SocketChannel sock, MessagingAddress dest, Message msg)  throws IOException {
+	private void send(SocketChannel sock, MessagingAddress dest, Message msg,
+			MessageCodec codec, int requestID)  throws IOException {
 		logger.log(Level.INFO, "send(" + dest + ", " + MessageDirectory.getName(msg.getTag()) + ")");
 
 		// set signature
@@ -111,7 +122,8 @@ public class TCPMessageSender implements MessageSender {
 
 		// send
 		try {
-			ByteBuffer buf = msg.encode(sock);
+			ByteBuffer buf = msg.encode(sock,
+					codec, this.receiver.codecNegotiator.getCompressionThreshold(), requestID);
 
 			// notify statistics collector
 			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
@@ -155,7 +167,7 @@ public class TCPMessageSender implements MessageSender {
 				};
 
 				if (TCPMessageSender.this.receiver.config.getUseThreadPool()) {
-					SingletonThreadPoolExecutors.getThreadPool(
+					SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.HANDLER_DISPATCH,
 							ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(r);
 				}
 				else {
@@ -173,6 +185,16 @@ public class TCPMessageSender implements MessageSender {
 		SocketAddress sockAddr = ((InetMessagingAddress)dest).getInetSocketAddress();
 		SocketChannel sock = null;
 
+		// a reply is identified by the request ID unless the codec is the original one,
+		// so that a late reply is skipped and the connection survives a timeout.
+		MessageCodec codec = this.receiver.codecNegotiator.getCodec(dest);
+		int requestID = 0;
+		if (codec.getFormatID() != SerializingMessageCodec.FORMAT_ID) {
+			do {
+				requestID = lastRequestID.incrementAndGet() & 0xffff;
+			} while (requestID == 0);
+		}
+
 		int retryCount = 0;
 		while (true) {
 			// prepare socket
@@ -192,21 +214,23 @@ public class TCPMessageSender implements MessageSender {
 				throw e;
 			}
 
-			// receive and dispose remaining data
-			ByteBuffer buf = ByteBuffer.allocate(1024);
-			sock.configureBlocking(false);
-			while (true) {
-				int read = sock.read(buf);
-				if (read <= 0) break;
-				buf.clear();
+			if (requestID == 0) {
+				// receive and dispose remaining data
+				ByteBuffer buf = ByteBuffer.allocate(1024);
+				sock.configureBlocking(false);
+				while (true) {
+					int read = sock.read(buf);
+					if (read <= 0) break;
+					buf.clear();
 
-				logger.log(Level.INFO, "Data have remained in a pooled stream: " + read);
+					logger.log(Level.INFO, "Data have remained in a pooled stream: " + read);
+				}
+				sock.configureBlocking(true);
 			}
-			sock.configureBlocking(true);
 
 			// send
 			try {
-				this.send(sock, dest, msg);
+				this.send(sock, dest, msg, codec, requestID);
 			}
 			catch (ClosedChannelException e) {
 				// sock is stale. retry once.
@@ -221,40 +245,32 @@ public class TCPMessageSender implements MessageSender {
 
 			// receive
 			long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
+			long start = Timer.currentTimeMillis();
+			long deadline = System.currentTimeMillis() + timeout;
 
 			try {
-				long start = Timer.currentTimeMillis();
+				while (true) {
+					ret = Message.decode(sock, Math.max(1L, deadline - System.currentTimeMillis()));
 
-				AlarmClock.setAlarm(timeout);
+					if (requestID == 0 || ret.getRequestID() == requestID) break;
 
-				try {
-					ret = Message.decode(sock);
+					// a reply to a request which has timed out
+					logger.log(Level.INFO, "Skipped a reply to another request: " + ret.getRequestID());
 				}
-				catch (IOException e) {
-					// sock has been closed by the receiver.
-					try { sock.close(); } catch (IOException e1) {}
 
-					if (retryCount <= 0) {
-						retryCount++;
-						continue;
-					}
-					else {
-						throw e;
-					}
-				}
-				finally {
-					AlarmClock.clearAlarm();
-				}
-
-				this.receiver.connPool.put(sockAddr, sock);
-
-				// timeout calculation
-				this.receiver.provider.getTimeoutCalculator().updateRTT(dest, (int)(Timer.currentTimeMillis() - start));
+				this.receiver.codecNegotiator.learn(dest, ret);
 			}
-			catch (Exception e) {	// interrupted by alarm
-				Thread.interrupted();
-
+			catch (SocketTimeoutException e) {
 				logger.log(Level.INFO, "Timeout: " + timeout + " msec.");
+				StatFactory.getMetricsRegistry().timeout(msg.getTag());
+
+				if (requestID != 0 && e.bytesTransferred == 0) {
+					// the connection is still usable. a late reply will be skipped.
+					this.receiver.connPool.put(sockAddr, sock);
+				}
+				else {
+					try { sock.close(); } catch (IOException e1) {}
+				}
 
 				// notify statistics collector
 				MessagingReporter msgReporter = this.receiver.getMessagingReporter();
@@ -264,6 +280,26 @@ public class TCPMessageSender implements MessageSender {
 
 				throw new IOException("Timeout: " + timeout + " msec.");
 			}
+			catch (IOException e) {
+				// sock has been closed by the receiver.
+				try { sock.close(); } catch (IOException e1) {}
+
+				if (retryCount <= 0) {
+					retryCount++;
+					continue;
+				}
+				else {
+					throw e;
+				}
+			}
+
+			this.receiver.connPool.put(sockAddr, sock);
+
+			// timeout calculation
+			int rtt = (int)(Timer.currentTimeMillis() - start);
+			this.receiver.provider.getTimeoutCalculator().updateRTT(dest, rtt);
+			this.receiver.getProximityTable().updateRTT(dest, rtt * 1000);
+			StatFactory.getMetricsRegistry().rtt(msg.getTag(), rtt * 1000L);
 
 			break;
 		}
@@ -271,6 +307,46 @@ public class TCPMessageSender implements MessageSender {
 		return ret;
 	}
 
+	public ReplyFuture sendAndReceiveAsync(MessagingAddress dest, final Message msg, ReplyCallback callback) {
+		this.adjustLoopbackAddress((InetMessagingAddress)dest);
+
+		// set source address
+		if (msg.getSource() == null)
+			msg.setSource(this.receiver.getSelfAddress());
+
+		// destination is local, or the destination does not understand request IDs
+		CodecNegotiator negotiator = this.receiver.codecNegotiator;
+		MessageCodec codec = negotiator.getCodec(dest);
+		if (dest.equals(this.receiver.getSelfAddress())
+				|| codec.getFormatID() == SerializingMessageCodec.FORMAT_ID) {
+			return ReplyFuture.sendAndReceiveOnPooledThread(this, dest, msg, callback);
+		}
+
+		// destination is remote
+		ConnectionMultiplexer multiplexer;
+		try {
+			multiplexer = this.receiver.getConnectionMultiplexer();
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Could not open a selector.", e);
+
+			ReplyFuture future = new ReplyFuture(callback);
+			future.setException(e);
+			return future;
+		}
+
+		logger.log(Level.INFO, "sendAndReceiveAsync(" + dest + ", " + MessageDirectory.getName(msg.getTag()) + ")");
+
+		// set signature
+		byte[] sig = this.receiver.provider.getMessageSignature();
+		msg.setSignature(sig);
+
+		long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
+
+		return multiplexer.sendAndReceive(dest, ((InetMessagingAddress)dest).getInetSocketAddress(),
+				msg, codec, negotiator.getCompressionThreshold(), timeout, callback);
+	}
+
 	private void adjustLoopbackAddress(InetMessagingAddress dest) {
 		// adjust loopback address (e.g. 127.0.0.1) to a real address
 		if (dest.getInetAddress().isLoopbackAddress()) {
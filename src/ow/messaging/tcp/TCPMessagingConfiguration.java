@@ -20,14 +20,19 @@ package ow.messaging.tcp;
 import ow.messaging.MessagingConfiguration;
 
 public final class TCPMessagingConfiguration extends MessagingConfiguration {
-	public final static int DEFAULT_CONNECTION_POOL_SIZE = 3;
+	public final static int DEFAULT_CONNECTION_POOL_SIZE = 16;
 		// Connection pool is disabled if 0 or a negative value is specified.
+	public final static int DEFAULT_MAX_CONNECTIONS_PER_PEER = 4;
+	public final static long DEFAULT_CONNECTION_HEALTH_CHECK_INTERVAL = 5 * 1000L;	// 5 sec
+	public final static int DEFAULT_NUM_OF_WARM_CONNECTIONS = 0;
 	public final static long DEFAULT_RECEIVER_KEEP_ALIVE_TIME = 20 * 1000L;	// 20 sec
 	public final static long DEFAULT_SENDER_KEEP_ALIVE_TIME = 15 * 1000L;	// 15 sec
 		// SENDER_KEEP_ALIVE_TIME should be less than RECEIVER_KEEP_ALIVE_TIME.
 		// If not, after a receiver closes a socket first,
 		// a receiver is in FIN_WAIT2 state, a sender is in CLOSE_WAIT state,
 		// and the sender can send a message and it is not received by the receiver.
+	public final static int DEFAULT_NUM_OF_SELECTOR_THREADS = 0;
+		// A thread is assigned to each incoming connection if 0 is specified.
 
 	private int connectionPoolSize = DEFAULT_CONNECTION_POOL_SIZE;
 	public int getConnectionPoolSize() { return this.connectionPoolSize; }
@@ -37,6 +42,41 @@ public final class TCPMessagingConfiguration extends MessagingConfiguration {
 		return old;
 	}
 
+	private int maxConnectionsPerPeer = DEFAULT_MAX_CONNECTIONS_PER_PEER;
+	/**
+	 * Maximum number of pooled connections to a peer.
+	 * The total number of pooled connections is limited by the connection pool size.
+	 */
+	public int getMaxConnectionsPerPeer() { return this.maxConnectionsPerPeer; }
+	public int setMaxConnectionsPerPeer(int num) {
+		int old = this.maxConnectionsPerPeer;
+		this.maxConnectionsPerPeer = num;
+		return old;
+	}
+
+	private long connectionHealthCheckInterval = DEFAULT_CONNECTION_HEALTH_CHECK_INTERVAL;
+	/**
+	 * Interval of the check which closes pooled connections expired, closed by the peer or with stray data.
+	 */
+	public long getConnectionHealthCheckInterval() { return this.connectionHealthCheckInterval; }
+	public long setConnectionHealthCheckInterval(long interval) {
+		long old = this.connectionHealthCheckInterval;
+		this.connectionHealthCheckInterval = interval;
+		return old;
+	}
+
+	private int numOfWarmConnections = DEFAULT_NUM_OF_WARM_CONNECTIONS;
+	/**
+	 * Number of idle connections kept in advance to each peer communicated recently.
+	 * Warm-up is disabled if 0.
+	 */
+	public int getNumOfWarmConnections() { return this.numOfWarmConnections; }
+	public int setNumOfWarmConnections(int num) {
+		int old = this.numOfWarmConnections;
+		this.numOfWarmConnections = num;
+		return old;
+	}
+
 	private long receiverKeepAliveTime = DEFAULT_RECEIVER_KEEP_ALIVE_TIME;
 	public long getReceiverKeepAliveTime() { return this.receiverKeepAliveTime; }
 	public long setReceiverKeepAliveTime(long time) {
@@ -52,4 +92,18 @@ public final class TCPMessagingConfiguration extends MessagingConfiguration {
 		this.senderKeepAliveTime = time;
 		return old;
 	}
+
+	private int numOfSelectorThreads = DEFAULT_NUM_OF_SELECTOR_THREADS;
+	/**
+	 * Number of selector threads which read incoming messages on all connections.
+	 * Complete messages are handed to pooled threads and
+	 * a connection does not occupy a thread while it is idle.
+	 * If 0, a receiver assigns a thread to each incoming connection.
+	 */
+	public int getNumOfSelectorThreads() { return this.numOfSelectorThreads; }
+	public int setNumOfSelectorThreads(int num) {
+		int old = this.numOfSelectorThreads;
+		this.numOfSelectorThreads = num;
+		return old;
+	}
 }
@@ -39,7 +39,9 @@ import ow.messaging.MessageHandler;
 import ow.messaging.MessageReceiver;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ProximityTable;
 import ow.messaging.Signature;
+import ow.messaging.codec.CodecNegotiator;
 import ow.messaging.udp.message.PunchHoleRepMessage;
 import ow.messaging.udp.message.PunchHoleReqMessage;
 import ow.messaging.upnp.Mapping;
@@ -49,6 +51,7 @@ import ow.stat.StatConfiguration;
 import ow.stat.StatFactory;
 import ow.util.Timer;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 public final class UDPMessageReceiver implements MessageReceiver, Runnable {
@@ -60,6 +63,8 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 	UDPMessagingProvider provider;
 	private UDPMessageSender sender;
 	SocketPool sockPool;
+	CodecNegotiator codecNegotiator;
+	UDPRequestDemultiplexer demultiplexer;
 	private Thread receiverThread;
 	private Set<Thread> handlerThreads = Collections.synchronizedSet(new HashSet<Thread>());
 
@@ -67,6 +72,7 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 	boolean extMessageHandlerRegistered = false;
 
 	private final MessagingReporter msgReporter;
+	private final ProximityTable proximityTable;
 
 	private static boolean oomPrinted = false;
 
@@ -109,8 +115,14 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 
 		this.sockPool = new SocketPool(config.getSocketPoolSize());
 
+		this.codecNegotiator = new CodecNegotiator(config);
+
+		this.demultiplexer = new UDPRequestDemultiplexer(this);
+
 		StatConfiguration conf = StatFactory.getDefaultConfiguration();
+		conf.setBatchReporting(config.getBatchStatReporting());
 		this.msgReporter = StatFactory.getMessagingReporter(conf, provider, this.getSender());
+		this.proximityTable = new ProximityTable(config.getRTTTableSize());
 
 		this.sender = (UDPMessageSender)this.getSender(true);
 
@@ -174,6 +186,8 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 
 	public MessagingReporter getMessagingReporter() { return this.msgReporter; }
 
+	public ProximityTable getProximityTable() { return this.proximityTable; }
+
 	public MessageSender getSender() {
 		return getSender(false);
 	}
@@ -199,6 +213,13 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 		}
 	}
 
+	/**
+	 * Returns true if the receiver thread, which routes replies to waiting requests, is running.
+	 */
+	synchronized boolean isRunning() {
+		return this.receiverThread != null;
+	}
+
 	public void stop() {
 		synchronized (this) {
 			if (this.receiverThread != null) {
@@ -207,6 +228,8 @@ public final class UDPMessageReceiver implements MessageReceiver, Runnable {
 			}
 		}
 
+		this.demultiplexer.clear();
+
 		Thread[] handlerArray = new Thread[this.handlerThreads.size()];
 		this.handlerThreads.toArray(handlerArray);
 		for (int i = 0; i < handlerArray.length; i++) {
@@ -307,12 +330,20 @@ System.out.println();
 			if (!Signature.match(sig, acceptableSig))
 				continue;
 
+			this.codecNegotiator.learn(msg.getSource(), msg);
+
+			// a reply to a request sent on this socket
+			if (msg.isReply()) {
+				this.demultiplexer.dispatch(msg, srcAddr);
+				continue;
+			}
+
 			// invoke a Thread handling the incoming Message
 			Runnable r = new UDPMessageHandler(srcAddr, msg);
 
 			try {
 				if (this.config.getUseThreadPool()) {	// note: does not register to handlerThreads
-					SingletonThreadPoolExecutors.getThreadPool(
+					SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.HANDLER_DISPATCH,
 							ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(r);
 				}
 				else {
@@ -346,6 +377,7 @@ System.out.println();
 	private class UDPMessageHandler implements Runnable {
 		private InetSocketAddress srcAddr;
 		private Message msg;
+		private final long queuedTime = System.nanoTime();
 
 		UDPMessageHandler(InetSocketAddress srcAddress, Message message) {
 			this.srcAddr = srcAddress;
@@ -353,6 +385,8 @@ System.out.println();
 		}
 
 		public void run() {
+			StatFactory.getMetricsRegistry().queueWait(this.msg.getTag(), System.nanoTime() - this.queuedTime);
+
 			Thread th = Thread.currentThread();
 			String origName = th.getName();
 			th.setName("UDPMessageHandler: " + this.srcAddr);
@@ -421,7 +455,7 @@ System.out.println();
 				MessagingAddress src =
 					(msg.getSource() != null ? msg.getSource().getMessagingAddress() : null);
 				try {
-					ByteBuffer buf = sender.send(sock, this.srcAddr, src, ret, true);
+					ByteBuffer buf = sender.send(sock, this.srcAddr, src, ret, msg.getCodec(), msg.getRequestID(), true);
 
 					// notify statistics collector
 					if (src != null) {
@@ -21,6 +21,8 @@ import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -29,11 +31,17 @@ import ow.messaging.Message;
 import ow.messaging.MessageDirectory;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
+import ow.messaging.ReplyFuture;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.SerializingMessageCodec;
 import ow.messaging.udp.message.PunchHoleRepMessage;
 import ow.messaging.udp.message.PunchHoleReqMessage;
+import ow.messaging.util.TemporarySelectors;
 import ow.stat.MessagingReporter;
-import ow.util.AlarmClock;
+import ow.stat.StatFactory;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 public final class UDPMessageSender implements MessageSender {
@@ -77,7 +85,8 @@ public final class UDPMessageSender implements MessageSender {
 		}
 
 		try {
-			send(sock, ((InetMessagingAddress)dest).getInetSocketAddress(), dest, msg, false);
+			send(sock, ((InetMessagingAddress)dest).getInetSocketAddress(), dest, msg,
+					this.receiver.codecNegotiator.getCodec(dest), 0, false);
 		}
 		catch (IOException e) {
 			// rethrow Exception and dispose socket
@@ -90,7 +99,7 @@ public final class UDPMessageSender implements MessageSender {
 	}
 
 	ByteBuffer send(DatagramChannel sock, SocketAddress sockAddr /* actual destination */,
-			MessagingAddress dest, Message msg, boolean isReply) throws IOException {
+			MessagingAddress dest, Message msg, MessageCodec codec, int requestID, boolean isReply) throws IOException {
 		// UDP hole punching
 		if (!(msg instanceof PunchHoleReqMessage)
 				&& !(msg instanceof PunchHoleRepMessage)
@@ -119,18 +128,29 @@ public final class UDPMessageSender implements MessageSender {
 		msg.setSignature(sig);
 
 		// send
-		ByteBuffer buf = msg.encode();
+		long start = System.nanoTime();
+		ByteBuffer buf = msg.encode(codec, this.receiver.codecNegotiator.getCompressionThreshold(),
+				requestID, isReply && requestID != 0);
 		int payloadLen = buf.remaining();
 
+		if (payloadLen >= UDPMessageSender.MAX_MSG_SIZE) {
+			// compress a message which does not fit in a datagram even if compression is disabled
+			buf = msg.encode(codec, 0, requestID, isReply && requestID != 0);
+			payloadLen = buf.remaining();
+		}
+
 		if (payloadLen >= UDPMessageSender.MAX_MSG_SIZE) {
 			logger.log(Level.WARNING, "message is too large: " + payloadLen);
 			throw new IOException("message is too large: " + payloadLen);
 		}
+		long encodeTime = System.nanoTime() - start;
 
 		try {
 			sock.send(buf, sockAddr);
 			buf.rewind();
 
+			StatFactory.getMetricsRegistry().messageSent(msg.getTag(), payloadLen, encodeTime);
+
 			if (dest != null) {
 				this.receiver.setLastSend((InetMessagingAddress)dest);	// for UDP hole punching
 
@@ -178,7 +198,7 @@ public final class UDPMessageSender implements MessageSender {
 				};
 
 				if (UDPMessageSender.this.receiver.config.getUseThreadPool()) {
-					SingletonThreadPoolExecutors.getThreadPool(
+					SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.HANDLER_DISPATCH,
 							ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(r);
 				}
 				else {
@@ -193,6 +213,29 @@ public final class UDPMessageSender implements MessageSender {
 		}
 
 		// destination is remote
+		MessageCodec codec = this.receiver.codecNegotiator.getCodec(dest);
+		if (codec.getFormatID() != SerializingMessageCodec.FORMAT_ID	// the original format carries no request ID
+				&& this.receiver.isRunning()) {
+			try {
+				return this.sendAndReceiveOnReceiverSocket(dest, msg, codec, null).get();
+			}
+			catch (ExecutionException e) {
+				throw (IOException)e.getCause();
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted.");
+			}
+		}
+
+		return this.sendAndReceiveOnPooledSocket(dest, msg, codec);
+	}
+
+	/**
+	 * Sends a request and receives a reply on a socket dedicated to the request.
+	 */
+	private Message sendAndReceiveOnPooledSocket(MessagingAddress dest, Message msg, MessageCodec codec)
+			throws IOException {
+		Message ret;
 
 		// prepare socket
 		DatagramChannel sock;
@@ -220,7 +263,7 @@ public final class UDPMessageSender implements MessageSender {
 		long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
 		long start = System.currentTimeMillis();
 		try {
-			send(sock, ((InetMessagingAddress)dest).getInetSocketAddress(), dest, msg, false);
+			send(sock, ((InetMessagingAddress)dest).getInetSocketAddress(), dest, msg, codec, 0, false);
 		}
 		catch (IOException e) {
 			// rethrow Exception and dispose socket
@@ -228,24 +271,45 @@ public final class UDPMessageSender implements MessageSender {
 		}
 
 		// receive
+		// wait on a selector instead of being interrupted, which closes the socket.
+		ret = null;
+		long deadline = start + timeout;
+		sock.configureBlocking(false);
 		try {
-			AlarmClock.setAlarm(timeout);
-
-			sock.receive(buf);
-				// should try to fill the buffer?
-			buf.rewind();
+			while (true) {
+				buf.clear();
+				if (sock.receive(buf) != null) {
+					buf.flip();
+					try {
+						ret = Message.decode(buf);
+						break;
+					}
+					catch (IOException e) {
+						logger.log(Level.INFO, "Could not decode a received datagram.", e);
+						continue;
+					}
+				}
 
-			ret = Message.decode(buf);
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0L) break;
 
-			AlarmClock.clearAlarm();
+				TemporarySelectors.await(sock, SelectionKey.OP_READ, remaining);
+			}
+		}
+		catch (IOException e) {
+			logger.log(Level.INFO, "Could not receive a reply.", e);
+		}
+		finally {
+			if (sock.isOpen()) sock.configureBlocking(true);
+		}
 
-			// timeout calculation
-			this.receiver.provider.getTimeoutCalculator().updateRTT(dest, (int)(System.currentTimeMillis() - start));
+		if (!this.forReceiver && sock.isOpen()) {
+			this.receiver.sockPool.put(sock);
 		}
-		catch (Exception e) {
-			Thread.interrupted();
 
+		if (ret == null) {
 			logger.log(Level.INFO, "Timeout: " + timeout + " msec.");
+			StatFactory.getMetricsRegistry().timeout(msg.getTag());
 
 			// notify statistics collector
 			MessagingReporter msgReporter = this.receiver.getMessagingReporter();
@@ -256,13 +320,69 @@ public final class UDPMessageSender implements MessageSender {
 			throw new IOException("Timeout:" + timeout + " msec.");
 		}
 
-		if (!this.forReceiver) {
-			this.receiver.sockPool.put(sock);
-		}
+		this.receiver.codecNegotiator.learn(dest, ret);
+
+		// timeout calculation
+		int rtt = (int)(System.currentTimeMillis() - start);
+		this.receiver.provider.getTimeoutCalculator().updateRTT(dest, rtt);
+		this.receiver.getProximityTable().updateRTT(dest, rtt * 1000);
+		StatFactory.getMetricsRegistry().rtt(msg.getTag(), rtt * 1000L);
 
 		return ret;
 	}
 
+	public ReplyFuture sendAndReceiveAsync(MessagingAddress dest, Message msg, ReplyCallback callback) {
+		this.adjustLoopbackAddress((InetMessagingAddress)dest);
+
+		// set source address
+		if (msg.getSource() == null)
+			msg.setSource(this.receiver.getSelfAddress());
+
+		MessageCodec codec = this.receiver.codecNegotiator.getCodec(dest);
+
+		if (dest.equals(this.receiver.getSelfAddress())
+				|| codec.getFormatID() == SerializingMessageCodec.FORMAT_ID
+				|| !this.receiver.isRunning()) {
+			return ReplyFuture.sendAndReceiveOnPooledThread(this, dest, msg, callback);
+		}
+
+		return this.sendAndReceiveOnReceiverSocket(dest, msg, codec, callback);
+	}
+
+	/**
+	 * Sends a request with a request ID on the receiver socket.
+	 * The receiver thread sets a reply with the same ID to the returned future.
+	 */
+	private ReplyFuture sendAndReceiveOnReceiverSocket(MessagingAddress dest, Message msg,
+			MessageCodec codec, ReplyCallback callback) {
+		UDPRequestDemultiplexer.PendingReply pending;
+		try {
+			pending = this.receiver.demultiplexer.register(dest, msg.getTag(), callback);
+		}
+		catch (IOException e) {
+			ReplyFuture future = new ReplyFuture(callback);
+			future.setException(e);
+			return future;
+		}
+
+		long timeout = this.receiver.provider.getTimeoutCalculator().calculateTimeout(dest);
+
+		try {
+			send(this.receiver.sock, ((InetMessagingAddress)dest).getInetSocketAddress(), dest, msg,
+					codec, pending.getRequestID(), false);
+		}
+		catch (IOException e) {
+			this.receiver.demultiplexer.unregister(pending);
+			pending.getFuture().setException(e);
+
+			return pending.getFuture();
+		}
+
+		pending.scheduleTimeout(timeout);
+
+		return pending.getFuture();
+	}
+
 	private void adjustLoopbackAddress(InetMessagingAddress dest) {
 		// adjust loopback address (e.g. 127.0.0.1) to a real address
 		if (dest.getInetAddress().isLoopbackAddress()) {
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.messaging.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.messaging.InetMessagingAddress;
+import ow.messaging.Message;
+import ow.messaging.MessagingAddress;
+import ow.messaging.ReplyCallback;
+import ow.messaging.ReplyFuture;
+import ow.stat.MessagingReporter;
+import ow.stat.StatFactory;
+import ow.util.Timer;
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * A table of requests waiting for replies on the receiver socket.
+ * A request is sent with a request ID in its extended header and
+ * the receiver thread routes a reply with the same ID to the waiting future,
+ * so that outstanding requests occupy neither a socket nor a thread.
+ * A reply is accepted only from the address the request was sent to,
+ * because request IDs are sequential and shared by all the destinations.
+ */
+final class UDPRequestDemultiplexer {
+	private final static Logger logger = Logger.getLogger("messaging");
+
+	private final static int MAX_REQUEST_ID = 0xffff;
+
+	private final UDPMessageReceiver receiver;
+	private final Timer timer = Timer.getSingletonTimer();
+
+	private final Map<Integer,PendingReply> pendingMap = new HashMap<Integer,PendingReply>();
+	private int lastRequestID = 0;
+
+	UDPRequestDemultiplexer(UDPMessageReceiver receiver) {
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Registers a request and returns a future which a reply is set to.
+	 * The caller sends the request with {@link PendingReply#getRequestID() the request ID}
+	 * and then calls {@link PendingReply#scheduleTimeout(long) scheduleTimeout()}.
+	 */
+	PendingReply register(MessagingAddress dest, int tag, ReplyCallback callback) throws IOException {
+		PendingReply pending = new PendingReply(dest, tag, new ReplyFuture(callback));
+
+		synchronized (this.pendingMap) {
+			if (this.pendingMap.size() >= MAX_REQUEST_ID) {
+				throw new IOException("Too many outstanding requests: " + this.pendingMap.size());
+			}
+
+			int id = this.lastRequestID;
+			do {
+				if (++id > MAX_REQUEST_ID) id = 1;
+			} while (this.pendingMap.containsKey(id));
+
+			this.lastRequestID = id;
+
+			pending.requestID = id;
+			this.pendingMap.put(id, pending);
+		}
+
+		return pending;
+	}
+
+	void unregister(PendingReply pending) {
+		synchronized (this.pendingMap) {
+			if (this.pendingMap.get(pending.requestID) == pending) {
+				this.pendingMap.remove(pending.requestID);
+			}
+		}
+
+		this.timer.cancel(pending);
+	}
+
+	/**
+	 * Called by the receiver thread.
+	 *
+	 * @param srcAddr the address from which the reply was received.
+	 * @return false if no request is waiting for the reply.
+	 */
+	boolean dispatch(final Message reply, InetSocketAddress srcAddr) {
+		final PendingReply pending;
+		synchronized (this.pendingMap) {
+			PendingReply p = this.pendingMap.get(reply.getRequestID());
+			if (p != null && !p.isSentTo(srcAddr)) {
+				logger.log(Level.WARNING, "A reply from " + srcAddr + " to a request sent to " + p.dest
+						+ ": " + reply.getRequestID());
+				return false;
+			}
+
+			pending = this.pendingMap.remove(reply.getRequestID());
+		}
+
+		if (pending == null) {
+			logger.log(Level.INFO, "A reply for no pending request (timed out ?): " + reply.getRequestID());
+			return false;
+		}
+
+		if (pending.future.hasCallback()) {
+			// does not block the receiver thread
+			Runnable r = new Runnable() {
+				public void run() { pending.replied(reply); }
+			};
+
+			// not on the pool of message handlers, which may wait for this reply
+			SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MESSAGING_IO,
+					ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(r);
+		}
+		else {
+			pending.replied(reply);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fails all the outstanding requests.
+	 */
+	void clear() {
+		List<PendingReply> failed;
+
+		synchronized (this.pendingMap) {
+			failed = new ArrayList<PendingReply>(this.pendingMap.values());
+			this.pendingMap.clear();
+		}
+
+		for (PendingReply pending: failed) {
+			this.timer.cancel(pending);
+			pending.future.setException(new IOException("Receiver stopped."));
+		}
+	}
+
+	final class PendingReply implements Runnable {
+		private final MessagingAddress dest;
+		private final int tag;	// of the request
+		private final ReplyFuture future;
+		private final long start = Timer.currentTimeMillis();
+		private int requestID;
+		private long timeout;
+
+		private PendingReply(MessagingAddress dest, int tag, ReplyFuture future) {
+			this.dest = dest;
+			this.tag = tag;
+			this.future = future;
+		}
+
+		int getRequestID() { return this.requestID; }
+
+		private boolean isSentTo(InetSocketAddress addr) {
+			MessagingAddress d = this.dest.getMessagingAddress();
+			return (d instanceof InetMessagingAddress) && ((InetMessagingAddress)d).getInetSocketAddress().equals(addr);
+		}
+
+		ReplyFuture getFuture() { return this.future; }
+
+		void scheduleTimeout(long timeout) {
+			this.timeout = timeout;
+
+			timer.schedule(this, Timer.currentTimeMillis() + timeout, true /*isDaemon*/);
+		}
+
+		private void replied(Message reply) {
+			timer.cancel(this);
+
+			// timeout calculation
+			int rtt = (int)(Timer.currentTimeMillis() - this.start);
+			receiver.provider.getTimeoutCalculator().updateRTT(this.dest, rtt);
+			receiver.getProximityTable().updateRTT(this.dest, rtt * 1000);
+			StatFactory.getMetricsRegistry().rtt(this.tag, rtt * 1000L);
+
+			this.future.set(reply);
+		}
+
+		// timeout
+		public void run() {
+			synchronized (pendingMap) {
+				if (pendingMap.get(this.requestID) != this) return;
+				pendingMap.remove(this.requestID);
+			}
+
+			logger.log(Level.INFO, "Timeout: " + this.timeout + " msec.");
+			StatFactory.getMetricsRegistry().timeout(this.tag);
+
+			// notify statistics collector
+			MessagingReporter msgReporter = receiver.getMessagingReporter();
+			if (msgReporter != null) {
+				msgReporter.notifyStatCollectorOfDeletedNode(this.dest);
+			}
+
+			this.future.setException(new IOException("Timeout: " + this.timeout + " msec."));
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging.util;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selectors with which a thread waits for a single channel with a timeout,
+ * instead of being interrupted by a timer.
+ * Selectors are pooled because opening one costs file descriptors and system calls.
+ */
+public final class TemporarySelectors {
+	private final static Queue<Selector> pool = new ConcurrentLinkedQueue<Selector>();
+
+	private TemporarySelectors() {}
+
+	/**
+	 * Waits until the specified non-blocking channel is ready for the operations
+	 * or the timeout passes.
+	 * This method can return early, and the caller should check the channel and its deadline again.
+	 *
+	 * @param ops operations such as {@link SelectionKey#OP_READ SelectionKey.OP_READ}.
+	 * @param timeout timeout in millisecond. Waits indefinitely if 0.
+	 * @return true if the channel is ready.
+	 */
+	public static boolean await(SelectableChannel ch, int ops, long timeout) throws IOException {
+		Selector sel = pool.poll();
+		if (sel == null) {
+			sel = Selector.open();
+		}
+
+		SelectionKey key = null;
+		try {
+			key = ch.register(sel, ops);
+			return sel.select(timeout) > 0;
+		}
+		finally {
+			if (key != null) key.cancel();
+
+			try {
+				// deregisters the channel, which can be put back in blocking mode after this.
+				sel.selectNow();
+				pool.offer(sel);
+			}
+			catch (IOException e) {
+				try { sel.close(); } catch (IOException e1) {}
+			}
+		}
+	}
+}
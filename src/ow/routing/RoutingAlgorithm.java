@@ -30,12 +30,25 @@ import ow.id.IDAddressPair;
 public interface RoutingAlgorithm {
 	/**
 	 * Returns the distance between given two IDs.
+	 * This method is kept for compatibility and allocates a BigInteger.
+	 * Use {@link #distance(ID, ID, long[]) distance(ID, ID, long[])} in performance-sensitive code.
 	 *
 	 * @param to target.
 	 * @param from starting point.
 	 */
 	BigInteger distance(ID to, ID from);
 
+	/**
+	 * Sets the distance between given two IDs to the given array
+	 * in the format of {@link ow.id.IDDistance IDDistance}.
+	 * This method should not allocate any object.
+	 *
+	 * @param to target.
+	 * @param from starting point.
+	 * @param result an array at least {@link ow.id.IDDistance#lengthFor(int) IDDistance#lengthFor(ID size in bit)} long.
+	 */
+	void distance(ID to, ID from, long[] result);
+
 	/**
 	 * Returns the initial routing context.
 	 *
@@ -59,6 +72,13 @@ public interface RoutingAlgorithm {
 	 */
 	IDAddressPair[] responsibleNodeCandidates(ID target, int maxNumber);
 
+	/**
+	 * Returns true if the responsible node candidates for an ID are the nodes following the ID
+	 * on the ring of IDs, as in Chord.
+	 * Then the IDs a node is responsible for form an arc which ends at the node.
+	 */
+	boolean isRingBased();
+
 	/**
 	 * This method is called on the joining node.
 	 * Note that the first element of the given neighbors is
@@ -17,6 +17,8 @@
 
 package ow.routing;
 
+import ow.util.Timer;
+
 /**
  * An instance of this class holds a configuration of a routing algorithm.
  */
@@ -25,6 +27,7 @@ public class RoutingAlgorithmConfiguration {	// not an abstract class for ow.dht
 	public final static int DEFAULT_NUM_OF_FAILURES_BEFORE_FORGET_NODE = 1;
 	public final static long DEFAULT_FAILURE_EXPIRATION = 10 * 1000L;
 	public final static boolean DEFAULT_USE_TIMER_INSTEAD_OF_THREAD = true;
+	public final static boolean DEFAULT_USE_PROXIMITY = false;
 
 	private int idSize = DEFAULT_ID_SIZE;
 	public int getIDSizeInByte() { return this.idSize; }
@@ -51,13 +54,32 @@ public class RoutingAlgorithmConfiguration {	// not an abstract class for ow.dht
 	}
 
 	private boolean useTimer = DEFAULT_USE_TIMER_INSTEAD_OF_THREAD;
-	public boolean getUseTimerInsteadOfThread() { return this.useTimer; }
+	/**
+	 * Returns true also in event driven mode of {@link Timer Timer}, in which no thread should wait in real time.
+	 */
+	public boolean getUseTimerInsteadOfThread() { return this.useTimer || Timer.isEventDriven(); }
 	public boolean setUseTimerInsteadOfThread(boolean flag) {
 		boolean old = this.useTimer;
 		this.useTimer = flag;
 		return old;
 	}
 
+	private boolean useProximity = DEFAULT_USE_PROXIMITY;
+	/**
+	 * Whether if an algorithm prefers nodes with lower RTT measured by the messaging layer
+	 * among equally good candidates.
+	 * This property is valid for
+	 * {@link ow.routing.kademlia.Kademlia Kademlia} (k-bucket replacement and next hop ordering),
+	 * {@link ow.routing.pastry.Pastry Pastry} and {@link ow.routing.tapestry.Tapestry Tapestry}
+	 * (routing table fill and next hop ordering).
+	 */
+	public boolean getUseProximity() { return this.useProximity; }
+	public boolean setUseProximity(boolean flag) {
+		boolean old = this.useProximity;
+		this.useProximity = flag;
+		return old;
+	}
+
 	/**
 	 * Whether if a routing driver asks to all contacts it is maintaining.
 	 * This property should be true for {@link ow.routing.kademlia.KademliaConfiguration Kademlia}.
@@ -24,6 +24,7 @@ import ow.id.IDAddressPair;
 import ow.messaging.Message;
 import ow.messaging.MessageHandler;
 import ow.messaging.MessageSender;
+import ow.messaging.ProximityTable;
 
 /**
  * An interface through which a routing algorithm (like Kademlia) works on a routing runtime,
@@ -38,6 +39,11 @@ public interface RoutingRuntime {
 
 	void addMessageHandler(Class<? extends Message> messageClass, MessageHandler handler);
 
+	/**
+	 * Returns RTTs to other nodes measured by the messaging layer. Possibly null.
+	 */
+	ProximityTable getProximityTable();
+
 	//
 	// Routing
 	//
@@ -22,7 +22,8 @@ public class RoutingServiceConfiguration {
 	public final static int DEFAULT_NUM_OF_NEXT_HOP_CANDIDATES_REQUESTED = 8;
 	public final static int DEFAULT_NUM_OF_RESPONSIBLE_NODE_CANDIDATES_REQUESTED_WHEN_JOINING = 4;
 	public final static int DEFAULT_NUM_OF_NODES_MAINTAINED = 20;
-//	public final static int DEFAULT_QUERY_CONCURRENCY = 3;	// 3 in the Kademlia paper
+	public final static int DEFAULT_QUERY_CONCURRENCY = 1;	// 3 in the Kademlia paper
+	public final static boolean DEFAULT_STRICT_QUERY_TERMINATION = false;
 	public final static boolean DEFAULT_USE_THREAD_POOL = true;
 	public final static long DEFAULT_ROUTING_TIMEOUT = 30 * 1000L;
 
@@ -64,20 +65,36 @@ public class RoutingServiceConfiguration {
 		return old;
 	}
 
-//	private int queryConcurrency = DEFAULT_QUERY_CONCURRENCY;
-//	/**
-//	 * Concurrency of simultaneous queries.
-//	 * This property is valid only for combinations of
-//	 * {@link ow.routing.impl.IterativeRoutingDriver IterativeRoutingDriver}
-//	 * and a routing algorithm which query to all contacts
-//	 * (e.g. {@link ow.routing.kademlia.Kademlia Kademlia}).
-//	 */
-//	public int getQueryConcurrency() { return this.queryConcurrency; }
-//	public int setQueryConcurrency(int concurrency) {
-//		int old = this.queryConcurrency;
-//		this.queryConcurrency = concurrency;
-//		return old;
-//	}
+	private int queryConcurrency = DEFAULT_QUERY_CONCURRENCY;
+	/**
+	 * Concurrency of simultaneous queries.
+	 * This property is valid only for combinations of
+	 * {@link ow.routing.impl.IterativeRoutingDriver IterativeRoutingDriver}
+	 * and a routing algorithm which query to all contacts
+	 * (e.g. {@link ow.routing.kademlia.Kademlia Kademlia}).
+	 * 1 means serial queries.
+	 */
+	public int getQueryConcurrency() { return this.queryConcurrency; }
+	public int setQueryConcurrency(int concurrency) {
+		int old = this.queryConcurrency;
+		this.queryConcurrency = concurrency;
+		return old;
+	}
+
+	private boolean strictQueryTermination = DEFAULT_STRICT_QUERY_TERMINATION;
+	/**
+	 * If true, concurrent queries continue until all of the nodes maintained
+	 * ({@link #getNumOfNodesMaintained() getNumOfNodesMaintained()}) closest to a target have replied.
+	 * Otherwise, they stop once the closest responsible node candidates have replied
+	 * and no closer node is left to be queried.
+	 * This property is valid only if query concurrency is more than 1.
+	 */
+	public boolean getStrictQueryTermination() { return this.strictQueryTermination; }
+	public boolean setStrictQueryTermination(boolean strict) {
+		boolean old = this.strictQueryTermination;
+		this.strictQueryTermination = strict;
+		return old;
+	}
 
 	private boolean useThreadPool = DEFAULT_USE_THREAD_POOL;
 	public boolean getUseThreadPool() { return this.useThreadPool; }
@@ -24,6 +24,7 @@ import java.util.logging.Level;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 import ow.messaging.Message;
 import ow.messaging.MessageHandler;
 import ow.routing.RoutingAlgorithmConfiguration;
@@ -217,15 +218,18 @@ public final class ChordInAggressiveJoiningMode extends AbstractChord {
 
 						IDAddressPair existingNode = fingerTable.get(largestIndex);
 
-						BigInteger distanceOfCandidate = distance(candidateNode.getID(), selfIDAddress.getID());
-						BigInteger distanceOfExisting = distance(existingNode.getID(), selfIDAddress.getID());
+						long[][] bufs = IDDistance.getScratchBuffers(IDDistance.lengthFor(idSizeInBit));
+						long[] distanceOfCandidate = bufs[0];
+						long[] distanceOfExisting = bufs[1];
+						distance(candidateNode.getID(), selfIDAddress.getID(), distanceOfCandidate);
+						distance(existingNode.getID(), selfIDAddress.getID(), distanceOfExisting);
 
 //System.out.println("largestIndex: " + largestIndex);
 //System.out.println("  existing: " + existingNode);
 //System.out.println("    " + distanceOfExisting.toString(16));
 //System.out.println("  candidate: " + candidateNode);
 //System.out.println("    " + distanceOfCandidate.toString(16));
-						if (distanceOfCandidate.compareTo(distanceOfExisting) < 0) {
+						if (IDDistance.compare(distanceOfCandidate, distanceOfExisting) < 0) {
 //System.out.println("    candidate is nearer.");
 							// candidate is nearer than existing
 
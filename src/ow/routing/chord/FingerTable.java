@@ -17,12 +17,12 @@
 
 package ow.routing.chord;
 
-import java.math.BigInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 import ow.routing.RoutingAlgorithm;
 
 /**
@@ -95,9 +95,9 @@ public final class FingerTable {
 		ID newID = newEntry.getID();
 		ID selfID = this.selfIDAddressPair.getID();
 
-		BigInteger distanceOfNewEntry =
-			algorithm.distance(newID, selfID);
-		int largestIndex = distanceOfNewEntry.bitLength();
+		long[] distanceOfNewEntry = IDDistance.getScratchBuffers(IDDistance.lengthFor(this.idSizeInBit))[0];
+		algorithm.distance(newID, selfID, distanceOfNewEntry);
+		int largestIndex = IDDistance.leadingBitIndex(distanceOfNewEntry) + 1;
 
 		return put(newEntry, largestIndex);
 	}
@@ -142,8 +142,9 @@ public final class FingerTable {
 	 * and fill the blanks with the appropriate alternative entry.
 	 */
 	public void remove(ID target) {
-		BigInteger distance = algorithm.distance(target, selfIDAddressPair.getID());
-		int possibleLargestIndex = distance.bitLength();
+		long[] distance = IDDistance.getScratchBuffers(IDDistance.lengthFor(this.idSizeInBit))[0];
+		algorithm.distance(target, selfIDAddressPair.getID(), distance);
+		int possibleLargestIndex = IDDistance.leadingBitIndex(distance) + 1;
 		if (possibleLargestIndex > this.idSizeInBit) {
 			// target is this node itself
 			return;
@@ -24,6 +24,7 @@ import java.util.logging.Level;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 import ow.id.comparator.AlgoBasedFromSrcIDComparator;
 import ow.messaging.Message;
 import ow.messaging.MessageDirectory;
@@ -132,17 +133,13 @@ public final class FRTChord extends AbstractRoutingAlgorithm  {
 		return new FRTChordRoutingContext();
 	}
 
-	public BigInteger distance(ID to, ID from) {
-		BigInteger toInt = to.toBigInteger();
-		BigInteger fromInt = from.toBigInteger();
-
-		BigInteger distance = toInt.subtract(fromInt);	// distance = to - from
-		if (distance.compareTo(BigInteger.ZERO) <= 0) {
-			distance = distance.add(this.sizeOfIDSpace);
+	public void distance(ID to, ID from, long[] result) {
+		IDDistance.clockwise(to.getLimbs(), from.getLimbs(), this.idSizeInBit, result);	// distance = to - from
+		if (IDDistance.isZero(result)) {
+			IDDistance.setBit(result, this.idSizeInBit);
 				// distance = 2 ^ # of bit if to and from are the same ID
 		}
-
-		return distance;	// 1 <= distance <= 2 ^ # of bit
+		// 1 <= distance <= 2 ^ # of bit
 	}
 
 	public void join(IDAddressPair[] neighbors /* are to be successor list, but including self */) {
@@ -209,6 +206,10 @@ public final class FRTChord extends AbstractRoutingAlgorithm  {
 		return this.routingTable.responsibleNodeCandidates(target, maxNumber);
 	}
 
+	public boolean isRingBased() {
+		return true;
+	}
+
 	public void touch(IDAddressPair from) {
 		this.routingTable.insert(from);
 	}
@@ -17,6 +17,9 @@
 
 package ow.routing.impl;
 
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
@@ -26,7 +29,9 @@ import java.util.logging.Logger;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 import ow.messaging.MessageSender;
+import ow.messaging.ProximityTable;
 import ow.routing.RoutingAlgorithm;
 import ow.routing.RoutingAlgorithmConfiguration;
 import ow.routing.RoutingContext;
@@ -40,6 +45,13 @@ public abstract class AbstractRoutingAlgorithm implements RoutingAlgorithm {
 	protected final static Random random = new Random();
 	protected static Timer timer = null;
 
+	/**
+	 * Sets the seed of random numbers used by routing algorithms, for example to jitter periodic tasks.
+	 */
+	public static void setRandomSeed(long seed) {
+		random.setSeed(seed);
+	}
+
 	protected IDAddressPair selfIDAddress;
 	protected final RoutingAlgorithmConfiguration config;
 	protected final RoutingRuntime runtime;
@@ -88,6 +100,95 @@ public abstract class AbstractRoutingAlgorithm implements RoutingAlgorithm {
 		return null;
 	}
 
+	/**
+	 * The implementation of
+	 * {@link RoutingAlgorithm#distance(ID, ID) distance(ID, ID)}
+	 * based on {@link RoutingAlgorithm#distance(ID, ID, long[]) distance(ID, ID, long[])}.
+	 */
+	public BigInteger distance(ID to, ID from) {
+		long[] d = new long[IDDistance.lengthFor(Math.max(to.getSize(), from.getSize()) * 8)];
+		this.distance(to, from, d);
+
+		return IDDistance.toBigInteger(d);
+	}
+
+	/**
+	 * Returns the table of RTTs to other nodes,
+	 * or null if proximity is not considered.
+	 *
+	 * @see RoutingAlgorithmConfiguration#setUseProximity(boolean)
+	 */
+	protected final ProximityTable getProximityTable() {
+		if (!this.config.getUseProximity() || this.runtime == null) return null;
+
+		return this.runtime.getProximityTable();
+	}
+
+	/**
+	 * Returns the smoothed RTT to the specified node in microsecond,
+	 * or {@link ProximityTable#UNKNOWN ProximityTable.UNKNOWN}
+	 * if it has not been measured or proximity is not considered.
+	 */
+	protected final int getRTTMicros(IDAddressPair node) {
+		ProximityTable table = this.getProximityTable();
+		if (table == null || node == null) return ProximityTable.UNKNOWN;
+
+		return table.getRTTMicros(node.getAddress());
+	}
+
+	/**
+	 * Compares proximity of two nodes. Returns 0 if proximity is not considered.
+	 */
+	protected final int compareProximity(IDAddressPair a, IDAddressPair b) {
+		ProximityTable table = this.getProximityTable();
+		if (table == null) return 0;
+
+		return table.compare(a.getAddress(), b.getAddress());
+	}
+
+	/**
+	 * Sorts next hop candidates in order of proximity (proximity routing),
+	 * only among consecutive candidates sharing the same number of leading digits with the target
+	 * so that every candidate still makes the same progress in ID space.
+	 * Candidates which share no more digits with the target than this node does
+	 * and candidates from this node itself on are kept in place.
+	 * Does nothing if proximity is not considered.
+	 */
+	protected final void sortByProximity(IDAddressPair[] nodes, ID target, int digitSize) {
+		final ProximityTable table = this.getProximityTable();
+		if (table == null || nodes == null) return;
+
+		int limit = 0;
+		while (limit < nodes.length && nodes[limit] != null && !nodes[limit].equals(this.selfIDAddress))
+			limit++;
+
+		Comparator<IDAddressPair> comparator = new Comparator<IDAddressPair>() {
+			public int compare(IDAddressPair a, IDAddressPair b) {
+				return table.compare(a.getAddress(), b.getAddress());
+			}
+		};
+
+		int selfDigits = ID.matchLengthFromMSB(target, this.selfIDAddress.getID()) / digitSize;
+
+		int i = 0;
+		while (i < limit) {
+			int digits = ID.matchLengthFromMSB(target, nodes[i].getID()) / digitSize;
+			if (digits <= selfDigits) break;
+
+			int j = i + 1;
+			while (j < limit && ID.matchLengthFromMSB(target, nodes[j].getID()) / digitSize == digits)
+				j++;
+
+			if (j - i > 1) Arrays.sort(nodes, i, j, comparator);	// stable
+
+			i = j;
+		}
+	}
+
+	public boolean isRingBased() {
+		return false;
+	}
+
 	public final void fail(IDAddressPair failedNode) {
 		int numOfFailures = this.failureTable.register(failedNode);
 
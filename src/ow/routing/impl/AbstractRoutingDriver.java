@@ -38,6 +38,7 @@ import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
 import ow.messaging.MessagingConfiguration;
 import ow.messaging.MessagingProvider;
+import ow.messaging.ProximityTable;
 import ow.routing.CallbackOnNodeFailure;
 import ow.routing.CallbackOnRoute;
 import ow.routing.RoutingAlgorithm;
@@ -55,6 +56,8 @@ import ow.routing.impl.message.PingMessage;
 import ow.routing.impl.message.RepNeighborsMessage;
 import ow.routing.impl.message.ReqNeighborsMessage;
 import ow.stat.MessagingReporter;
+import ow.stat.MetricsRegistry;
+import ow.stat.StatFactory;
 
 /**
  * The super class of all routing drivers.
@@ -239,6 +242,26 @@ public abstract class AbstractRoutingDriver implements RoutingRuntime, RoutingSe
 		return this.receiver.getMessagingReporter();
 	}
 
+	/**
+	 * Records the number of hops and latency of routing to the metrics registry.
+	 */
+	protected void recordRoutingMetrics(RoutingResult[] results, long startNanos) {
+		MetricsRegistry metrics = StatFactory.getMetricsRegistry();
+		long latencyMicros = (System.nanoTime() - startNanos) / 1000L;
+
+		for (RoutingResult r: results) {
+			if (r != null)
+				metrics.routed(r.getRoute().length - 1, latencyMicros);
+			else
+				metrics.routingFailed(latencyMicros);
+		}
+	}
+
+	public ProximityTable getProximityTable() {
+		MessageReceiver r = this.receiver;
+		return (r != null ? r.getProximityTable() : null);
+	}
+
 	/**
 	 * Returns the {@link RoutingAlgorithm RoutingAlgorithm} object.
 	 */
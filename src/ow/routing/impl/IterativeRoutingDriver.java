@@ -21,11 +21,13 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -37,11 +39,13 @@ import java.util.logging.Level;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.comparator.AlgoBasedTowardTargetIDAddrComparator;
 import ow.messaging.Message;
 import ow.messaging.MessageHandler;
 import ow.messaging.MessagingAddress;
 import ow.messaging.MessagingConfiguration;
 import ow.messaging.MessagingProvider;
+import ow.messaging.ReplyCallback;
 import ow.routing.RoutingAlgorithmConfiguration;
 import ow.routing.RoutingAlgorithmProvider;
 import ow.routing.RoutingContext;
@@ -56,6 +60,7 @@ import ow.routing.impl.message.IteRouteJoinMessage;
 import ow.routing.impl.message.IteRouteNoneMessage;
 import ow.stat.MessagingReporter;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 /**
@@ -123,6 +128,8 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 //System.out.flush();
 		if (numResponsibleNodeCands < 1) numResponsibleNodeCands = 1;
 
+		long startNanos = System.nanoTime();
+
 		if (routingContexts == null) routingContexts = new RoutingContext[target.length];
 		if (!msgClass.equals(IteRouteJoinMessage.class)) {
 			for (int i = 0; i < target.length; i++) {
@@ -132,21 +139,17 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 		}
 
 		// calculate query concurrency
-//		int queryConcurrency = this.config.getQueryConcurrency();
-//		if ((!this.queryToAllContacts)
-//				|| (msgType == Tag.ITE_ROUTE_JOIN)
-//				|| (queryConcurrency <= 0)) {
-//			queryConcurrency = 1;
-//		}
+		int queryConcurrency = this.config.getQueryConcurrency();
+		if ((!this.queryToAllContacts)
+				|| msgClass.equals(IteRouteJoinMessage.class)
+				|| (queryConcurrency <= 0)) {
+			queryConcurrency = 1;
+		}
 
 		// initialize route
 		List<RoutingHop>[] route = new List/*<RoutingHop>*/[target.length];
 		for (int i = 0; i < target.length; i++) {
 			route[i] = new ArrayList<RoutingHop>();
-//			if (queryConcurrency > 2) {
-//				route[i] = Collections.synchronizedList(route[i]);
-//			}
-
 			route[i].add(RoutingHop.newInstance(getSelfIDAddressPair()));
 		}
 		Set<MessagingAddress> blackList =
@@ -197,16 +200,28 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 		if (msgClass.equals(IteRouteInvokeMessage.class))
 			callbackResultTable = new RoutingResultTable<Serializable>();
 
-//		if (queryConcurrency <= 1) {
-		if (true) {
-			// serial query
-			Querier querier = new Querier(msgClass,
-					target, routingContexts, numResponsibleNodeCands,
-					config.getTTL(), route,
-					contactList, null, blackList, joinInitialContact,
-					callbackTag,
-					callbackArgs, responsibleNodeCandsTable,
-					callbackResultTable);
+		{
+			Runnable querier;
+			if (queryConcurrency <= 1) {
+				// serial query
+				querier = new Querier(msgClass,
+						target, routingContexts, numResponsibleNodeCands,
+						config.getTTL(), route,
+						contactList, null, blackList, joinInitialContact,
+						callbackTag,
+						callbackArgs, responsibleNodeCandsTable,
+						callbackResultTable);
+			}
+			else {
+				// concurrent queries
+				querier = new ParallelQuerier(msgClass,
+						target, routingContexts, numResponsibleNodeCands, queryConcurrency,
+						config.getTTL(), route,
+						contactList, blackList,
+						callbackTag,
+						callbackArgs, responsibleNodeCandsTable,
+						callbackResultTable);
+			}
 
 			Future<Boolean> f = null;
 			Thread t = null;
@@ -215,7 +230,7 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 			try {
 				// invoke a Thread to timeout
 				if (config.getUseThreadPool()) {
-					ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(
+					ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.ROUTING_QUERIER,
 							ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, Thread.currentThread().isDaemon());
 					f = ex.submit((Callable<Boolean>)querier);
 
@@ -274,11 +289,6 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 				}
 			}
 		}
-// concurrent queries disabled to implement collective routing (April 17, 2008)
-//		else {
-//			// concurrent queries
-//			...
-//		}	// if (queryConcurrency <= 1)
 
 		// return
 		RoutingResult[] ret = new RoutingResult[target.length];
@@ -317,6 +327,8 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 			}
 		}
 
+		this.recordRoutingMetrics(ret, startNanos);
+
 		return ret;
 	}
 
@@ -544,7 +556,7 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 								fSet = new HashSet<Future<Boolean>>();
 								Querier firstQuerier = null;
 
-								ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(
+								ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.ROUTING_QUERIER,
 										ExecutorBlockingMode.CONCURRENT_REJECTING, Thread.currentThread().isDaemon());
 
 								for (Querier q: forkedQueriers.values()) {
@@ -763,6 +775,270 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 		}
 	}
 
+	/**
+	 * Queries up to queryConcurrency contacts closest to each target at a time.
+	 * A reply is merged into the contact list as soon as it arrives and
+	 * the closest contact not queried yet is queried without waiting for the other outstanding queries,
+	 * so that a failed contact does not stall the lookup.
+	 * A lookup for a target finishes when no contact is left to be queried or waited for
+	 * which can be closer than the closest numResponsibleNodeCands replied nodes
+	 * (the closest numOfNodesMaintained nodes in strict termination).
+	 * Note that each target is queried separately, not collectively.
+	 */
+	private final class ParallelQuerier implements Runnable, Callable<Boolean> {
+		private final Class<? extends Message> msgClass;
+		private final ID[] target;
+		private final RoutingContext[] routingContexts;
+		private final int numResponsibleNodeCands;
+		private final int queryConcurrency;
+		private final int numOfNodesToReply;
+
+		private final int ttl;
+
+		private final List<RoutingHop>[] route;
+		private final ContactList[] contactList;
+		private final Set<MessagingAddress> blackList;
+
+		// for ITE_ROUTE_INVOKE
+		private final int callbackTag;
+		private final Serializable[][] callbackArgs;
+
+		// routing results tables
+		private final RoutingResultTable<IDAddressPair[]> respCandsTable;
+		private final RoutingResultTable<Serializable> callbackResultTable;
+
+		ParallelQuerier(Class<? extends Message> msgClass,
+				ID[] target, RoutingContext[] routingContexts, int numResponsibleNodeCands, int queryConcurrency,
+				int ttl, List<RoutingHop>[] route,
+				ContactList[] contactList, Set<MessagingAddress> blackList,
+				int callbackTag,
+				Serializable[][] callbackArgs, RoutingResultTable<IDAddressPair[]> responsibleNodeCandsTable,
+				RoutingResultTable<Serializable> callbackResultTable) {
+			this.msgClass = msgClass;
+			this.target = target;
+			this.routingContexts = routingContexts;
+			this.numResponsibleNodeCands = numResponsibleNodeCands;
+			this.queryConcurrency = queryConcurrency;
+			this.numOfNodesToReply = (config.getStrictQueryTermination() ?
+					Math.max(config.getNumOfNodesMaintained(), numResponsibleNodeCands) : numResponsibleNodeCands);
+
+			this.ttl = ttl;
+
+			this.route = route;
+			this.contactList = contactList;
+			this.blackList = blackList;
+
+			this.callbackTag = callbackTag;
+			this.callbackArgs = callbackArgs;
+
+			this.respCandsTable = responsibleNodeCandsTable;
+			this.callbackResultTable = callbackResultTable;
+		}
+
+		public void run() {
+			try {
+				this.call();
+			}
+			catch (Exception e) {
+				logger.log(Level.SEVERE, "A ParallelQuerier threw an exception.", e);
+			}
+		}
+
+		public Boolean call() {
+			int nTgts = this.target.length;
+			boolean succeed = true;
+
+			List<Comparator<IDAddressPair>> comparators = new ArrayList<Comparator<IDAddressPair>>(nTgts);
+			List<List<IDAddressPair>> replied = new ArrayList<List<IDAddressPair>>(nTgts);
+			List<Set<IDAddressPair>> outstanding = new ArrayList<Set<IDAddressPair>>(nTgts);
+			for (int i = 0; i < nTgts; i++) {
+				comparators.add(new AlgoBasedTowardTargetIDAddrComparator(algorithm, this.target[i]));
+				replied.add(new ArrayList<IDAddressPair>());
+				outstanding.add(new HashSet<IDAddressPair>());
+			}
+			int[] numQueries = new int[nTgts];
+			boolean[] finished = new boolean[nTgts];
+			int numFinished = 0;
+
+			BlockingQueue<QueryCallback> completionQueue = SingletonThreadPoolExecutors.newCompletionQueue();
+
+			while (true) {
+				for (int i = 0; i < nTgts; i++) {
+					if (finished[i]) continue;
+
+					Comparator<IDAddressPair> cmp = comparators.get(i);
+					List<IDAddressPair> repliedNodes = replied.get(i);
+					Set<IDAddressPair> outstandingNodes = outstanding.get(i);
+
+					// send queries to the closest contacts
+					while (outstandingNodes.size() < this.queryConcurrency && numQueries[i] < this.ttl) {
+						IDAddressPair contact = this.contactList[i].inspectExceptContactedNode();
+						if (contact == null || !this.isWorthQuerying(contact, repliedNodes, cmp)) break;
+
+						this.contactList[i].firstExceptContactedNode();	// register to the contacted set
+
+						if (this.blackList.contains(contact.getAddress())) {
+							this.contactList[i].remove(contact);
+							continue;
+						}
+
+						IDAddressPair lastHop = (repliedNodes.isEmpty() ?
+								getSelfIDAddressPair() : repliedNodes.get(repliedNodes.size() - 1));
+
+						sender.sendAndReceiveAsync(contact.getAddress(), this.requestMessage(i, lastHop),
+								new QueryCallback(i, contact, completionQueue));
+
+						outstandingNodes.add(contact);
+						numQueries[i]++;
+					}
+
+					// judge to terminate
+					boolean toWait = false;
+					for (IDAddressPair p: outstandingNodes) {
+						if (this.isWorthQuerying(p, repliedNodes, cmp)) {
+							toWait = true;
+							break;
+						}
+					}
+
+					if (!toWait) {
+						finished[i] = true;
+						numFinished++;
+
+						if (repliedNodes.isEmpty()) {
+							if (numQueries[i] >= this.ttl) {
+								logger.log(Level.WARNING, "TTL expired (target " + this.target[i].toString(-1) + ").");
+							}
+
+							succeed = false;
+
+							this.respCandsTable.clear(this.target[i]);
+							if (this.callbackResultTable != null)
+								this.callbackResultTable.clear(this.target[i]);
+						}
+					}
+				}
+
+				if (numFinished >= nTgts) break;
+
+				// wait for a reply
+				QueryCallback completed;
+				try {
+					completed = completionQueue.take();
+				}
+				catch (InterruptedException e) {
+					logger.log(Level.WARNING, "ParallelQuerier#call() interrupted on " + getSelfIDAddressPair().getAddress());
+					return false;
+				}
+
+				int i = completed.index;
+				IDAddressPair contact = completed.contact;
+
+				outstanding.get(i).remove(contact);
+				if (finished[i]) continue;	// a late reply
+
+				Message replyMsg = completed.reply;
+
+				if (replyMsg == null) {
+					// communication failure
+					IterativeRoutingDriver.super.fail(contact);
+						// tell the algorithm of a failure of the node
+
+					this.blackList.add(contact.getAddress());
+					this.contactList[i].remove(contact);
+
+					continue;
+				}
+
+				// notify the routing algorithm
+				IDAddressPair src = (IDAddressPair)replyMsg.getSource();
+				algorithm.touch(src);
+
+				if (!(replyMsg instanceof IteReplyMessage)) {
+					logger.log(Level.SEVERE, "Received message is not ITE_REPLY: " + replyMsg.getName());
+					continue;
+				}
+
+				// parse the reply
+				IteReplyMessage reply = (IteReplyMessage)replyMsg;
+
+				this.respCandsTable.put(this.target[i], src, reply.responsibleNodeCands[0]);
+				if (this.callbackResultTable != null)
+					this.callbackResultTable.put(this.target[i], src, reply.callbackResult[0]);
+
+				this.route[i].add(RoutingHop.newInstance(contact));
+				replied.get(i).add(contact);
+
+				// add the nodes in the reply to contact list
+				IDAddressPair[] nextHopCands = reply.nextHopCandidates[0];
+				if (nextHopCands != null) {
+					for (IDAddressPair p: nextHopCands) {
+						if (p == null || this.blackList.contains(p.getAddress())) continue;
+
+						this.contactList[i].add(p);
+					}
+				}
+			}	// while (true)
+
+			return succeed;
+		}
+
+		/**
+		 * Returns true if the specified node can be one of
+		 * the closest numOfNodesToReply nodes replied.
+		 */
+		private boolean isWorthQuerying(IDAddressPair node, List<IDAddressPair> repliedNodes, Comparator<IDAddressPair> cmp) {
+			int numCloser = 0;
+			for (IDAddressPair p: repliedNodes) {
+				if (cmp.compare(p, node) < 0) {
+					if (++numCloser >= this.numOfNodesToReply) return false;
+				}
+			}
+
+			return true;
+		}
+
+		private Message requestMessage(int i, IDAddressPair lastHop) {
+			ID[] tgt = { this.target[i] };
+			RoutingContext[] cxt = { this.routingContexts[i] };
+			IDAddressPair[] lastHops = { lastHop };
+
+			if (this.msgClass.equals(IteRouteInvokeMessage.class)) {
+				Serializable[][] args = { this.callbackArgs[i] };
+
+				return new IteRouteInvokeMessage(
+						tgt, cxt, lastHops, config.getNumOfNextHopCandidatesRequested(), this.numResponsibleNodeCands,
+						this.callbackTag, args);
+			}
+			else {
+				return new IteRouteNoneMessage(
+						tgt, cxt, lastHops, config.getNumOfNextHopCandidatesRequested(), this.numResponsibleNodeCands);
+			}
+		}
+	}
+
+	private final static class QueryCallback implements ReplyCallback {
+		private final int index;
+		private final IDAddressPair contact;
+		private final BlockingQueue<QueryCallback> completionQueue;
+		private Message reply;	// null if failed
+
+		QueryCallback(int index, IDAddressPair contact, BlockingQueue<QueryCallback> completionQueue) {
+			this.index = index;
+			this.contact = contact;
+			this.completionQueue = completionQueue;
+		}
+
+		public void replied(Message reply) {
+			this.reply = reply;
+			this.completionQueue.add(this);
+		}
+
+		public void failed(IOException e) {
+			this.completionQueue.add(this);
+		}
+	}
+
 	private final static class RoutingResultTable<V> {
 		private final class Entry {
 			private final ID target; private final IDAddressPair node;
@@ -905,7 +1181,7 @@ public final class IterativeRoutingDriver extends AbstractRoutingDriver {
 
 					try {
 						if (config.getUseThreadPool()) {
-							ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(
+							ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MAINTENANCE,
 									ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, Thread.currentThread().isDaemon());
 							ex.submit(r);
 						}
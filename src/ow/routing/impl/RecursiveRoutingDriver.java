@@ -54,8 +54,10 @@ import ow.routing.impl.message.RecRouteInvokeMessage;
 import ow.routing.impl.message.RecRouteJoinMessage;
 import ow.routing.impl.message.RecRouteNoneMessage;
 import ow.stat.MessagingReporter;
+import ow.util.DiscreteEventScheduler;
 import ow.util.Timer;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 /**
@@ -159,6 +161,8 @@ public final class RecursiveRoutingDriver extends AbstractRoutingDriver {
 
 		if (numResponsibleNodeCands < 1) numResponsibleNodeCands = 1;
 
+		long startNanos = System.nanoTime();
+
 		int routingID = Thread.currentThread().hashCode();
 
 		RoutingContext[] lastRoutingContexts = new RoutingContext[target.length];
@@ -245,6 +249,13 @@ public final class RecursiveRoutingDriver extends AbstractRoutingDriver {
 					break waitForResults;
 				}
 
+				DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+				if (scheduler != null) {
+					// waits in virtual time
+					scheduler.await(nullMsg, sleepPeriod * 1000L);
+					continue;
+				}
+
 				try {
 					synchronized (nullMsg) {
 						nullMsg.wait(sleepPeriod);
@@ -329,6 +340,8 @@ public final class RecursiveRoutingDriver extends AbstractRoutingDriver {
 			ret[index] = null;
 		}
 
+		this.recordRoutingMetrics(ret, startNanos);
+
 		return ret;
 	}
 
@@ -421,8 +434,9 @@ public final class RecursiveRoutingDriver extends AbstractRoutingDriver {
 					if (nextHopCands[i] == null || nextHopCands[i].length <= 0) {
 						nextHops[i] = null;
 					}
-
-					nextHops[i] = nextHopCands[i][0];
+					else {
+						nextHops[i] = nextHopCands[i][0];
+					}
 
 					if (nextHops[i] == null) continue;
 
@@ -536,7 +550,7 @@ public final class RecursiveRoutingDriver extends AbstractRoutingDriver {
 						Set<Future<Boolean>> fSet = new HashSet<Future<Boolean>>();
 						Forwarder firstForwarder = null;
 
-						ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(
+						ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.ROUTING_QUERIER,
 								ExecutorBlockingMode.CONCURRENT_REJECTING, Thread.currentThread().isDaemon());
 
 						for (Forwarder forwarder: forkedForwarder) {
@@ -700,7 +714,7 @@ public final class RecursiveRoutingDriver extends AbstractRoutingDriver {
 
 			try {
 				if (config.getUseThreadPool()) {
-					ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(
+					ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MAINTENANCE,
 							ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, Thread.currentThread().isDaemon());
 					ex.submit(r);
 				}
@@ -894,6 +908,9 @@ public final class RecursiveRoutingDriver extends AbstractRoutingDriver {
 								synchronized (nullMsg) {
 									nullMsg.notify();
 								}
+
+								DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+								if (scheduler != null) scheduler.signal(nullMsg);
 							}
 						}
 					}
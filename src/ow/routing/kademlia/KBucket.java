@@ -102,6 +102,15 @@ final class KBucket implements Iterable<IDAddressPair> {
 				}
 				else {
 					// this k-bucket is full
+
+					// proximity neighbor selection
+					IDAddressPair farther = this.algorithm.fartherEntry(newEntry, this.internalList);
+					if (farther != null) {
+						this.internalList.remove(farther);
+						this.internalList.add(newEntry);
+						return;
+					}
+
 					head = this.peekHead();
 
 					this.nodeBeingChecked = head;
@@ -18,7 +18,6 @@
 package ow.routing.kademlia;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -26,7 +25,9 @@ import java.util.logging.Level;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 import ow.id.comparator.AlgoBasedTowardTargetIDAddrComparator;
+import ow.messaging.ProximityTable;
 import ow.routing.RoutingAlgorithmConfiguration;
 import ow.routing.RoutingContext;
 import ow.routing.RoutingService;
@@ -74,20 +75,30 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 
 	public synchronized void resume() { /* do nothing */ }
 
-	public BigInteger distance(ID to, ID from) {
-		BigInteger toInt = to.toBigInteger();
-		BigInteger fromInt = from.toBigInteger();
-
+	public void distance(ID to, ID from, long[] result) {
 		// XOR distance
-		return fromInt.xor(toInt);
+		IDDistance.xor(to.getLimbs(), from.getLimbs(), result);
 	}
 
 	public IDAddressPair[] nextHopCandidates(ID targetID, ID lastHop /*ignored*/, boolean joining,
 			int maxNum, RoutingContext cxt) {
+		IDAddressPair[] ret = this.closestNodes(targetID, joining, maxNum);
+
+		this.sortByProximity(ret, targetID, 1);
+
+		return ret;
+	}
+
+	public IDAddressPair[] responsibleNodeCandidates(ID target, int maxNum) {
+		return this.closestNodes(target, false, maxNum);
+	}
+
+	private IDAddressPair[] closestNodes(ID targetID, boolean joining, int maxNum) {
 		final IDAddressPair[] results = new IDAddressPair[maxNum];
 
-		BigInteger distance = distance(targetID, selfIDAddress.getID());
-		int highestSetBit = distance.bitLength() - 1;
+		long[] targetLimbs = targetID.getLimbs();
+		long[] selfLimbs = selfIDAddress.getID().getLimbs();
+		int highestSetBit = IDDistance.xorLeadingBitIndex(targetLimbs, selfLimbs);
 
 		Comparator<IDAddressPair> comparator =
 			new AlgoBasedTowardTargetIDAddrComparator(this, targetID);
@@ -105,7 +116,7 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 			}
 
 			for (int i = highestSetBit - 1; i >= 0; i--) {
-				if (distance.testBit(i)) {
+				if (IDDistance.testBit(targetLimbs, i) != IDDistance.testBit(selfLimbs, i)) {	// i-th bit of the distance is set
 					kb = this.kBuckets[i];
 					if (kb != null) {
 						index = pickNodes(index, results, kb, comparator);
@@ -122,7 +133,7 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 
 		if (highestSetBit >= 0) {	// this node is not the target
 			for (int i = 0; i < highestSetBit; i++) {
-				if (!distance.testBit(i)) {
+				if (IDDistance.testBit(targetLimbs, i) == IDDistance.testBit(selfLimbs, i)) {	// i-th bit of the distance is not set
 					kb = this.kBuckets[i];
 					if (kb != null) {
 						index = pickNodes(index, results, kb, comparator);
@@ -152,10 +163,6 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 		return ret;
 	}
 
-	public IDAddressPair[] responsibleNodeCandidates(ID target, int maxNum) {
-		return this.nextHopCandidates(target, null, false, maxNum, null);
-	}
-
 	private int pickNodes(int index, IDAddressPair[] dest, KBucket kb, Comparator<IDAddressPair> comparator) {
 		IDAddressPair[] result;
 		if (true) {	// performs better
@@ -192,6 +199,27 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 		return !pingSucceeded;
 	}
 
+	/**
+	 * Returns the entry farthest in RTT among the given ones if it is farther than newEntry.
+	 * Returns null if such an entry is not found or proximity is not considered.
+	 * Called by KBucket#appendToTail() to replace a far entry of a full k-bucket with a near node.
+	 */
+	IDAddressPair fartherEntry(IDAddressPair newEntry, Iterable<IDAddressPair> entries) {
+		int farthestRTT = this.getRTTMicros(newEntry);
+		if (farthestRTT == ProximityTable.UNKNOWN) return null;
+
+		IDAddressPair farthest = null;
+		for (IDAddressPair e: entries) {
+			int rtt = this.getRTTMicros(e);
+			if (rtt > farthestRTT) {	// an entry whose RTT is unknown is kept
+				farthest = e;
+				farthestRTT = rtt;
+			}
+		}
+
+		return farthest;
+	}
+
 	public void join(IDAddressPair[] neighbors) {
 		// do nothing
 	}
@@ -203,8 +231,7 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 	}
 
 	public void touch(IDAddressPair from) {
-		BigInteger distance = distance(from.getID(), selfIDAddress.getID());
-		int highestSetBit = distance.bitLength() - 1;
+		int highestSetBit = IDDistance.xorLeadingBitIndex(from.getID().getLimbs(), selfIDAddress.getID().getLimbs());
 
 		if (highestSetBit < 0) {
 			// from is myself, and ignore
@@ -225,8 +252,7 @@ public final class Kademlia extends AbstractRoutingAlgorithm {
 	 * Remove the specified node from k-buckets.
 	 */
 	public void forget(IDAddressPair failedNode) {
-		BigInteger distance = distance(failedNode.getID(), selfIDAddress.getID());
-		int highestSetBit = distance.bitLength() - 1;
+		int highestSetBit = IDDistance.xorLeadingBitIndex(failedNode.getID().getLimbs(), selfIDAddress.getID().getLimbs());
 
 		if (highestSetBit < 0) {
 			// from is myself, and ignore
@@ -27,6 +27,7 @@ import java.util.logging.Level;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 import ow.id.comparator.AlgoBasedFromSrcIDComparator;
 import ow.id.comparator.AlgoBasedTowardTargetIDComparator;
 import ow.messaging.Message;
@@ -150,17 +151,13 @@ public class LinearWalker extends AbstractRoutingAlgorithm {
 		return new LinearWalkerRoutingContext();
 	}
 
-	public BigInteger distance(ID to, ID from) {
-		BigInteger toInt = to.toBigInteger();
-		BigInteger fromInt = from.toBigInteger();
-
-		BigInteger distance = toInt.subtract(fromInt);	// distance = to - from
-		if (distance.compareTo(BigInteger.ZERO) <= 0) {
-			distance = distance.add(this.sizeOfIDSpace);
+	public void distance(ID to, ID from, long[] result) {
+		IDDistance.clockwise(to.getLimbs(), from.getLimbs(), this.idSizeInBit, result);	// distance = to - from
+		if (IDDistance.isZero(result)) {
+			IDDistance.setBit(result, this.idSizeInBit);
 				// distance = 2 ^ # of bit if to and from are the same ID
 		}
-
-		return distance;	// 1 <= distance <= 2 ^ # of bit
+		// 1 <= distance <= 2 ^ # of bit
 	}
 
 	public IDAddressPair[] nextHopCandidates(ID target, ID lastHop, boolean joining,
@@ -237,6 +234,10 @@ public class LinearWalker extends AbstractRoutingAlgorithm {
 		return this.successorList.responsibleNodeCandidates(target, maxNumber, this.predecessor);
 	}
 
+	public boolean isRingBased() {
+		return true;
+	}
+
 	public void join(IDAddressPair[] neighbors /* are to be successor list */) {
 		this.successorList.addAll(neighbors);
 
@@ -18,7 +18,6 @@
 package ow.routing.pastry;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -31,6 +30,7 @@ import java.util.logging.Level;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 import ow.id.comparator.AlgoBasedTowardTargetIDAddrComparator;
 import ow.id.comparator.AlgoBasedTowardTargetIDComparator;
 import ow.messaging.Message;
@@ -133,34 +133,41 @@ public final class Pastry extends Plaxton {
 		this.startRoutingTableMaintainer();
 	}
 
-	private final BigInteger ID_SPACE_SIZE = BigInteger.ONE.shiftLeft(idSizeInBit);
-	private final BigInteger HALF_ID_SPACE_SIZE = BigInteger.ONE.shiftLeft(idSizeInBit - 1);
+	public void distance(ID to, ID from, long[] result) {
+		IDDistance.clockwise(to.getLimbs(), from.getLimbs(), idSizeInBit, result);
 
-	public BigInteger distance(ID to, ID from) {
-		BigInteger toInt = to.toBigInteger();
-		BigInteger fromInt = from.toBigInteger();
-
-		BigInteger distance = toInt.subtract(fromInt);
-		if (distance.compareTo(BigInteger.ZERO) < 0) {
-			distance = distance.add(ID_SPACE_SIZE);
-		}
-
-		if (distance.compareTo(HALF_ID_SPACE_SIZE) < 0) {	// if d < 2^(ID_SIZE - 1)
+		if (!IDDistance.testBit(result, idSizeInBit - 1)) {	// if d < 2^(ID_SIZE - 1)
 			// d = d * 2
-			distance = distance.shiftLeft(1);
+			IDDistance.shiftLeftOne(result);
 		}
 		else {
 			// d = ((2 ^ ID_SIZE) - d) * 2 - 1
-			distance = ID_SPACE_SIZE.subtract(distance);
-			distance = distance.shiftLeft(1);
-			distance = distance.subtract(BigInteger.ONE);
+			IDDistance.clockwise(from.getLimbs(), to.getLimbs(), idSizeInBit, result);
+			IDDistance.shiftLeftOne(result);
+			IDDistance.decrement(result);
 		}
-
-		return distance;
 	}
 
-	public IDAddressPair[] nextHopCandidates(ID target, ID lastHop /*ignored*/, boolean joining,
+	public IDAddressPair[] nextHopCandidates(ID target, ID lastHop, boolean joining,
 			int maxNum, RoutingContext cxt) {
+		if (this.leafSetCovers(target)) {
+			// the last hop, which should not be replaced with a near node
+			return this.closestNodes(target, joining, maxNum);
+		}
+
+		return super.nextHopCandidates(target, lastHop, joining, maxNum, cxt);
+	}
+
+	private boolean leafSetCovers(ID target) {
+		if (this.leafSet == null) return false;
+
+		IDAddressPair targetIDAddress = IDAddressPair.getIDAddressPair(target, null);
+		return target.equals(selfIDAddress.getID())
+			|| this.leafSet.coversWithSmallerSet(targetIDAddress)
+			|| this.leafSet.coversWithLargerSet(targetIDAddress);
+	}
+
+	protected IDAddressPair[] closestNodes(ID target, boolean joining, int maxNum) {
 		SortedSet<IDAddressPair> nodesByLeafSet = null;
 		IDAddressPair[] nodesByRoutingTable = null;
 		boolean leafSetPreferred = false;
@@ -173,17 +180,14 @@ public final class Pastry extends Plaxton {
 			num = nodesByLeafSet.size();
 
 			// check if leaf set covers the target
-			IDAddressPair targetIDAddress = IDAddressPair.getIDAddressPair(target, null);
-			if (target.equals(selfIDAddress.getID())
-					|| this.leafSet.coversWithSmallerSet(targetIDAddress)
-					|| this.leafSet.coversWithLargerSet(targetIDAddress)) {
+			if (this.leafSetCovers(target)) {
 				leafSetPreferred = true;
 			}
 		}
 
 		// routing table (Plaxton et al.)
 		if (!leafSetPreferred || num < maxNum) {
-			nodesByRoutingTable = super.nextHopCandidates(target, lastHop, joining, maxNum - num, cxt);
+			nodesByRoutingTable = super.closestNodes(target, joining, maxNum - num);
 				// includes this node itself,
 
 			// decide which is preferred, leaf set or routing table
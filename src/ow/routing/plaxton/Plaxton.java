@@ -73,6 +73,21 @@ public abstract class Plaxton extends AbstractRoutingAlgorithm {
 
 	public IDAddressPair[] nextHopCandidates(ID target, ID lastHop /*ignored*/, boolean joining,
 			int maxNum, RoutingContext cxt) {
+		IDAddressPair[] ret = this.closestNodes(target, joining, maxNum);
+
+		this.sortByProximity(ret, target, this.digitSize);
+
+		return ret;
+	}
+
+	public IDAddressPair[] responsibleNodeCandidates(ID target, int maxNum) {
+		return this.closestNodes(target, false, maxNum);
+	}
+
+	/**
+	 * Returns nodes close to the target, which are not sorted in order of proximity.
+	 */
+	protected IDAddressPair[] closestNodes(ID target, boolean joining, int maxNum) {
 		int nMatchBits = ID.matchLengthFromMSB(selfIDAddress.getID(), target);
 		int nMatchDigits = nMatchBits / digitSize;
 		int notMatchDigit = getDigit(target, nMatchDigits);
@@ -132,10 +147,6 @@ public abstract class Plaxton extends AbstractRoutingAlgorithm {
 		return ret;
 	}
 
-	public IDAddressPair[] responsibleNodeCandidates(ID target, int maxNum) {
-		return this.nextHopCandidates(target, null, false, maxNum, null);
-	}
-
 	protected abstract List<IDAddressPair> traverseDownward(int rowIndex, int startingCol, ID target, int maxNum);
 	protected abstract List<IDAddressPair> traverseUpward(int rowIndex, int maxNum);
 
@@ -152,9 +163,12 @@ public abstract class Plaxton extends AbstractRoutingAlgorithm {
 	}
 
 	public boolean toReplace(IDAddressPair existingEntry, IDAddressPair newEntry) {
+		// proximity neighbor selection
+		int cmp = this.compareProximity(newEntry, existingEntry);
+		if (cmp != 0) return cmp < 0;
+
 		// TODO
 		// To be improved.
-		// Pastry should consider proximity.
 		// Tapestry shows no idea on how to judge this.
 
 		return random.nextDouble() < this.config.getReplaceProbability();
@@ -18,7 +18,6 @@
 package ow.routing.tapestry;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -28,6 +27,7 @@ import java.util.logging.Level;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
+import ow.id.IDDistance;
 import ow.messaging.ExtendedMessageHandler;
 import ow.messaging.Message;
 import ow.messaging.MessageHandler;
@@ -61,29 +61,27 @@ public final class Tapestry extends Plaxton {
 		this.prepareHandlers();
 	}
 
-	public BigInteger distance(ID to, ID from) {
+	public void distance(ID to, ID from, long[] result) {
 		int nMatchBits, nMatchDigits;
 
+		IDDistance.clear(result);
+
 		if (to.equals(from)) {
-			return BigInteger.ZERO;
+			return;
 		}
 
 		nMatchBits = ID.matchLengthFromMSB(to, from);
 		nMatchDigits = nMatchBits / digitSize;
 
-		BigInteger distance = BigInteger.ZERO;
 		for (int i = nMatchDigits; i < idSizeInDigit; i++) {
 			int toDigit = getDigit(to, i);
 			int fromDigit = getDigit(from, i);
 
 			int digitDistance = this.digitDistanceInTapestry(toDigit, fromDigit);
 
-			BigInteger digitDistanceBigInteger =
-				BigInteger.valueOf(digitDistance).shiftLeft((idSizeInDigit - 1 - i) * digitSize); 
-			distance = distance.add(digitDistanceBigInteger);
+			// digit distances do not overlap each other and then can be ORed instead of added
+			IDDistance.or(result, digitDistance, (idSizeInDigit - 1 - i) * digitSize);
 		}
-
-		return distance;
 	}
 
 	private int digitDistanceInTapestry(int toDigit, int fromDigit) {
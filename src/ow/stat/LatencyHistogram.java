@@ -0,0 +1,103 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.stat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values in the style of HdrHistogram.
+ * Each power of 2 range is divided into 32 linear buckets,
+ * so that a recorded value is reported with relative error less than 1/32.
+ * Recording does not allocate nor lock.
+ */
+public final class LatencyHistogram {
+	private final static int SUB_BUCKET_BITS = 5;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private final static int MAX_VALUE_BITS = 40;	// about 12 days in microsecond
+	private final static long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+	private final static int NUM_BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong(0L);
+
+	public void record(long value) {
+		if (value < 0L) value = 0L;
+		else if (value > MAX_VALUE) value = MAX_VALUE;
+
+		this.counts.incrementAndGet(bucketIndex(value));
+		this.count.increment();
+		this.sum.add(value);
+
+		long m;
+		while (value > (m = this.max.get())) {
+			if (this.max.compareAndSet(m, value)) break;
+		}
+	}
+
+	public long getCount() { return this.count.sum(); }
+	public long getSum() { return this.sum.sum(); }
+	public long getMax() { return this.max.get(); }
+
+	/**
+	 * Returns the value at the specified percentile, which is the highest value
+	 * equivalent to the bucket the percentile falls in. 0 if nothing has been recorded.
+	 *
+	 * @param percentile 0.0 - 100.0.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[NUM_BUCKETS];
+		long total = 0L;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if (total <= 0L) return 0L;
+
+		long rank = Math.max(1L, (long)Math.ceil(percentile / 100.0 * total));
+		long acc = 0L;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			acc += snapshot[i];
+			if (acc >= rank) {
+				return Math.min(highestEquivalentValue(i), this.getMax());
+			}
+		}
+
+		return this.getMax();
+	}
+
+	private static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) return (int)value;
+
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKETS) return index;
+
+		int shift = index / SUB_BUCKETS - 1;
+		int sub = index % SUB_BUCKETS;
+
+		return ((long)(SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
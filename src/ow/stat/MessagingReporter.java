@@ -18,6 +18,13 @@
 package ow.stat;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,7 +40,10 @@ import ow.stat.impl.message.EmphasizeNodeMessage;
 import ow.stat.impl.message.MarkIDMessage;
 import ow.stat.impl.message.MessageSentMessage;
 import ow.stat.impl.message.StatAckMessage;
+import ow.stat.impl.message.StatBatchMessage;
 import ow.stat.impl.message.StatPingMessage;
+import ow.util.Timer;
+import ow.util.concurrent.BoundedRing;
 
 public final class MessagingReporter {
 	private final static Logger logger = Logger.getLogger("statcollector");
@@ -46,6 +56,8 @@ public final class MessagingReporter {
 	private int notificationCount;
 	private int failureCount;
 
+	private final Batcher batcher;	// null if not batch reporting
+
 	MessagingReporter(StatConfiguration config,
 			MessagingProvider provider, MessageSender sender) {
 		this.config = config;
@@ -55,6 +67,15 @@ public final class MessagingReporter {
 		this.pingFreq = this.config.getPingFrequency();
 		this.notificationCount = 0;
 		this.failureCount = 0;
+
+		this.batcher = (config.getBatchReporting() ? new Batcher() : null);
+	}
+
+	/**
+	 * Returns the number of reports dropped because the buffer was full or sending a batch failed.
+	 */
+	public long getNumOfDroppedReports() {
+		return (this.batcher != null ? this.batcher.numDropped.get() : 0L);
 	}
 
 	//
@@ -69,6 +90,11 @@ public final class MessagingReporter {
 
 		MessagingAddress src = msg.getSource().getMessagingAddress();
 		Message notifyMsg = new MessageSentMessage(src, dest, msg.getTag(), msgLen);
+		if (this.batcher != null) {
+			this.batcher.add(notifyMsg);
+			return;
+		}
+
 		try {
 			this.sender.send(statCollectorAddress, notifyMsg);
 		}
@@ -105,6 +131,11 @@ public final class MessagingReporter {
 		if (statCollectorAddress == null) return;
 
 		Message msg = new EmphasizeNodeMessage(nodeID);
+		if (this.batcher != null) {
+			this.batcher.add(msg);
+			return;
+		}
+
 		try {
 			this.sender.send(statCollectorAddress, msg);
 		}
@@ -121,6 +152,11 @@ public final class MessagingReporter {
 		if (statCollectorAddress == null) return;
 
 		Message msg = new MarkIDMessage(ids, hint);
+		if (this.batcher != null) {
+			this.batcher.add(msg);
+			return;
+		}
+
 		try {
 			this.sender.send(statCollectorAddress, msg);
 		}
@@ -219,4 +255,127 @@ public final class MessagingReporter {
 
 		return toForget;
 	}
+
+	/**
+	 * Buffers reports in a lock-free ring and sends them in a STAT_BATCH_REPORT message
+	 * from a Timer thread, aggregating MESSAGE_SENT reports by (source, destination, tag).
+	 */
+	private final class Batcher implements Runnable {
+		private final BoundedRing<Message> ring;
+		private final long interval;
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		final AtomicLong numDropped = new AtomicLong(0L);
+		private long numDroppedReported = 0L;
+
+		Batcher() {
+			this.ring = new BoundedRing<Message>(config.getReportBufferSize());
+			this.interval = config.getReportBatchInterval();
+		}
+
+		void add(Message report) {
+			if (!this.ring.offer(report)) {
+				this.numDropped.incrementAndGet();
+			}
+
+			this.scheduleIfNeeded();
+		}
+
+		private void scheduleIfNeeded() {
+			if (!this.scheduled.get() && this.scheduled.compareAndSet(false, true)) {
+				Timer.getSingletonTimer().schedule(this, Timer.currentTimeMillis() + this.interval,
+						true /*isDaemon*/, true /*executeConcurrently*/);
+			}
+		}
+
+		public synchronized void run() {	// the only consumer of the ring
+			this.scheduled.set(false);
+
+			Map<MessagingAddress,Integer> addrIndexTable = new HashMap<MessagingAddress,Integer>();
+			List<MessagingAddress> addrList = new ArrayList<MessagingAddress>();
+			Map<Long,int[]> sentTable = new LinkedHashMap<Long,int[]>();
+			List<ID> emphasizedList = new ArrayList<ID>();
+			List<MarkIDMessage> markList = new ArrayList<MarkIDMessage>();
+			int numReports = 0;
+
+			Message report;
+			while ((report = this.ring.poll()) != null) {
+				numReports++;
+
+				if (report instanceof MessageSentMessage) {
+					MessageSentMessage m = (MessageSentMessage)report;
+					int srcIdx = indexOf(m.msgSrc, addrIndexTable, addrList);
+					int destIdx = indexOf(m.msgDest, addrIndexTable, addrList);
+					long key = ((long)srcIdx << 40) | ((long)destIdx << 16) | (m.msgTag & 0xffff);
+
+					int[] entry = sentTable.get(key);
+					if (entry == null) {
+						entry = new int[] { srcIdx, destIdx, m.msgTag, 0, 0 };
+						sentTable.put(key, entry);
+					}
+					entry[3]++;
+					entry[4] += m.msgLen;
+				}
+				else if (report instanceof EmphasizeNodeMessage) {
+					emphasizedList.add(((EmphasizeNodeMessage)report).node);
+				}
+				else if (report instanceof MarkIDMessage) {
+					markList.add((MarkIDMessage)report);
+				}
+			}
+
+			if (!this.ring.isEmpty()) this.scheduleIfNeeded();	// an unpublished report remains
+			if (numReports <= 0) return;
+
+			MessagingAddress statCollectorAddress = provider.getMessagingCollectorAddress();
+			if (statCollectorAddress == null) return;
+
+			// compose a batch
+			int[] sent = new int[sentTable.size() * 5];
+			int i = 0;
+			for (int[] entry: sentTable.values()) {
+				System.arraycopy(entry, 0, sent, i, 5);
+				i += 5;
+			}
+
+			ID[][] markedIDs = new ID[markList.size()][];
+			int[] markHints = new int[markList.size()];
+			for (i = 0; i < markedIDs.length; i++) {
+				markedIDs[i] = markList.get(i).ids;
+				markHints[i] = markList.get(i).hint;
+			}
+
+			long dropped = this.numDropped.get();
+			int numDroppedSinceLastBatch = (int)(dropped - this.numDroppedReported);
+			this.numDroppedReported = dropped;
+
+			Message batch = new StatBatchMessage(
+					addrList.toArray(new MessagingAddress[addrList.size()]), sent,
+					emphasizedList.toArray(new ID[emphasizedList.size()]), markedIDs, markHints,
+					numDroppedSinceLastBatch);
+
+			// send
+			try {
+				sender.send(statCollectorAddress, batch);
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to send a STAT_BATCH_REPORT message.", e);
+				this.numDropped.addAndGet(numReports);	// reported in the next batch
+				if (failInReporting()) return;
+			}
+
+			confirmAlive(statCollectorAddress);
+		}
+
+		private int indexOf(MessagingAddress addr,
+				Map<MessagingAddress,Integer> indexTable, List<MessagingAddress> list) {
+			Integer idx = indexTable.get(addr);
+			if (idx == null) {
+				idx = list.size();
+				list.add(addr);
+				indexTable.put(addr, idx);
+			}
+
+			return idx;
+		}
+	}
 }
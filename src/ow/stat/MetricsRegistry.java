@@ -0,0 +1,287 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.stat;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ow.messaging.MessageDirectory;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * In-process metrics of messaging and routing, shared by all the nodes in a JVM.
+ * Messaging metrics are kept for each message tag
+ * ({@link MessageDirectory#getTagByClass(Class) MessageDirectory#getTagByClass()}).
+ * Messaging services, TCP connection pools and routing drivers record metrics
+ * and {@link #writeText(PrintWriter) writeText()} dumps them
+ * in the text exposition format of Prometheus,
+ * together with gauges of the thread pools in
+ * {@link SingletonThreadPoolExecutors SingletonThreadPoolExecutors}.
+ *
+ * @see StatFactory#getMetricsRegistry()
+ */
+public final class MetricsRegistry {
+	private final static int NUM_TAGS = 128;	// tags are 7 bit
+	private final static String PREFIX = "ow_";
+	private final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final AtomicReferenceArray<TagMetrics> tagTable =
+		new AtomicReferenceArray<TagMetrics>(NUM_TAGS);
+
+	// connection pools
+	private final StripedCounter poolHits = new StripedCounter();
+	private final StripedCounter poolMisses = new StripedCounter();
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final ConcurrentMap<String,StripedCounter> evictions = new ConcurrentHashMap<String,StripedCounter>();
+
+	// routing
+	private final StripedCounter lookups = new StripedCounter();
+	private final StripedCounter lookupFailures = new StripedCounter();
+	private final LatencyHistogram hops = new LatencyHistogram();
+	private final LatencyHistogram lookupLatency = new LatencyHistogram();
+
+	MetricsRegistry() {}
+
+	private final static class TagMetrics {
+		final StripedCounter sent = new StripedCounter();
+		final StripedCounter sentBytes = new StripedCounter();
+		final StripedCounter received = new StripedCounter();
+		final StripedCounter receivedBytes = new StripedCounter();
+		final StripedCounter timeouts = new StripedCounter();
+		final LatencyHistogram encodeTime = new LatencyHistogram();
+		final LatencyHistogram queueWait = new LatencyHistogram();
+		final LatencyHistogram rtt = new LatencyHistogram();
+	}
+
+	private TagMetrics getTagMetrics(int tag) {
+		int idx = tag & (NUM_TAGS - 1);
+
+		TagMetrics m = this.tagTable.get(idx);
+		if (m == null) {
+			this.tagTable.compareAndSet(idx, null, new TagMetrics());
+			m = this.tagTable.get(idx);
+		}
+
+		return m;
+	}
+
+	//
+	// for messaging services
+	//
+
+	/**
+	 * @param encodeNanos time spent to encode the message.
+	 */
+	public void messageSent(int tag, int len, long encodeNanos) {
+		TagMetrics m = this.getTagMetrics(tag);
+		m.sent.increment();
+		m.sentBytes.add(len);
+		m.encodeTime.record(encodeNanos / 1000L);
+	}
+
+	/**
+	 * @param len length of the message. 0 if unknown.
+	 */
+	public void messageReceived(int tag, int len) {
+		TagMetrics m = this.getTagMetrics(tag);
+		m.received.increment();
+		m.receivedBytes.add(len);
+	}
+
+	/**
+	 * Records time for which a received message waited for a thread to process it.
+	 */
+	public void queueWait(int tag, long nanos) {
+		this.getTagMetrics(tag).queueWait.record(nanos / 1000L);
+	}
+
+	/**
+	 * @param tag tag of the request.
+	 */
+	public void rtt(int tag, long micros) {
+		this.getTagMetrics(tag).rtt.record(micros);
+	}
+
+	/**
+	 * @param tag tag of the request.
+	 */
+	public void timeout(int tag) {
+		this.getTagMetrics(tag).timeouts.increment();
+	}
+
+	//
+	// for connection pools
+	//
+
+	public void connectionPoolHit() { this.poolHits.increment(); }
+
+	public void connectionPoolMiss() { this.poolMisses.increment(); }
+
+	public void connected(long latencyMicros) {
+		this.connectLatency.record(latencyMicros);
+	}
+
+	/**
+	 * @param reason why a pooled connection is closed, such as "expired" and "lru".
+	 */
+	public void connectionEvicted(String reason) {
+		StripedCounter c = this.evictions.get(reason);
+		if (c == null) {
+			this.evictions.putIfAbsent(reason, new StripedCounter());
+			c = this.evictions.get(reason);
+		}
+
+		c.increment();
+	}
+
+	//
+	// for routing drivers
+	//
+
+	public void routed(int numHops, long latencyMicros) {
+		this.lookups.increment();
+		this.hops.record(numHops);
+		this.lookupLatency.record(latencyMicros);
+	}
+
+	public void routingFailed(long latencyMicros) {
+		this.lookups.increment();
+		this.lookupFailures.increment();
+		this.lookupLatency.record(latencyMicros);
+	}
+
+	//
+	// Output
+	//
+
+	/**
+	 * Returns the total length of messages with the tag sent so far.
+	 */
+	public long getSentBytes(int tag) {
+		TagMetrics m = this.tagTable.get(tag & (NUM_TAGS - 1));
+		return (m != null ? m.sentBytes.sum() : 0L);
+	}
+
+	public void writeText(PrintWriter out) {
+		String[] labels = new String[NUM_TAGS];
+		TagMetrics[] metrics = new TagMetrics[NUM_TAGS];
+		for (int i = 0; i < NUM_TAGS; i++) {
+			metrics[i] = this.tagTable.get(i);
+			if (metrics[i] != null) {
+				String name = MessageDirectory.getName(i);
+				labels[i] = "tag=\"" + (name != null ? name : Integer.toString(i)) + "\"";
+			}
+		}
+
+		writeType(out, "messages_sent_total", "counter");
+		for (int i = 0; i < NUM_TAGS; i++)
+			if (metrics[i] != null) writeValue(out, "messages_sent_total", labels[i], metrics[i].sent.sum());
+		writeType(out, "message_bytes_sent_total", "counter");
+		for (int i = 0; i < NUM_TAGS; i++)
+			if (metrics[i] != null) writeValue(out, "message_bytes_sent_total", labels[i], metrics[i].sentBytes.sum());
+		writeType(out, "messages_received_total", "counter");
+		for (int i = 0; i < NUM_TAGS; i++)
+			if (metrics[i] != null) writeValue(out, "messages_received_total", labels[i], metrics[i].received.sum());
+		writeType(out, "message_bytes_received_total", "counter");
+		for (int i = 0; i < NUM_TAGS; i++)
+			if (metrics[i] != null) writeValue(out, "message_bytes_received_total", labels[i], metrics[i].receivedBytes.sum());
+		writeType(out, "timeouts_total", "counter");
+		for (int i = 0; i < NUM_TAGS; i++)
+			if (metrics[i] != null) writeValue(out, "timeouts_total", labels[i], metrics[i].timeouts.sum());
+
+		writeType(out, "encode_time_microseconds", "summary");
+		for (int i = 0; i < NUM_TAGS; i++)
+			if (metrics[i] != null) writeSummary(out, "encode_time_microseconds", labels[i], metrics[i].encodeTime);
+		writeType(out, "queue_wait_microseconds", "summary");
+		for (int i = 0; i < NUM_TAGS; i++)
+			if (metrics[i] != null) writeSummary(out, "queue_wait_microseconds", labels[i], metrics[i].queueWait);
+		writeType(out, "rtt_microseconds", "summary");
+		for (int i = 0; i < NUM_TAGS; i++)
+			if (metrics[i] != null) writeSummary(out, "rtt_microseconds", labels[i], metrics[i].rtt);
+
+		writeType(out, "lookups_total", "counter");
+		writeValue(out, "lookups_total", null, this.lookups.sum());
+		writeType(out, "lookup_failures_total", "counter");
+		writeValue(out, "lookup_failures_total", null, this.lookupFailures.sum());
+		writeType(out, "lookup_hops", "summary");
+		writeSummary(out, "lookup_hops", null, this.hops);
+		writeType(out, "lookup_latency_microseconds", "summary");
+		writeSummary(out, "lookup_latency_microseconds", null, this.lookupLatency);
+
+		writeType(out, "connection_pool_hits_total", "counter");
+		writeValue(out, "connection_pool_hits_total", null, this.poolHits.sum());
+		writeType(out, "connection_pool_misses_total", "counter");
+		writeValue(out, "connection_pool_misses_total", null, this.poolMisses.sum());
+		writeType(out, "connection_pool_evictions_total", "counter");
+		for (Map.Entry<String,StripedCounter> e: this.evictions.entrySet())
+			writeValue(out, "connection_pool_evictions_total", "reason=\"" + e.getKey() + "\"", e.getValue().sum());
+		writeType(out, "connect_latency_microseconds", "summary");
+		writeSummary(out, "connect_latency_microseconds", null, this.connectLatency);
+
+		Map<String,ThreadPoolExecutor> pools = SingletonThreadPoolExecutors.getThreadPools();
+		writeType(out, "executor_queue_depth", "gauge");
+		for (Map.Entry<String,ThreadPoolExecutor> e: pools.entrySet())
+			writeValue(out, "executor_queue_depth", "executor=\"" + e.getKey() + "\"", e.getValue().getQueue().size());
+		writeType(out, "executor_active_threads", "gauge");
+		for (Map.Entry<String,ThreadPoolExecutor> e: pools.entrySet())
+			writeValue(out, "executor_active_threads", "executor=\"" + e.getKey() + "\"", e.getValue().getActiveCount());
+		writeType(out, "executor_pool_size", "gauge");
+		for (Map.Entry<String,ThreadPoolExecutor> e: pools.entrySet())
+			writeValue(out, "executor_pool_size", "executor=\"" + e.getKey() + "\"", e.getValue().getPoolSize());
+		writeType(out, "executor_rejected_total", "counter");
+		for (Map.Entry<String,ThreadPoolExecutor> e: pools.entrySet())
+			writeValue(out, "executor_rejected_total", "executor=\"" + e.getKey() + "\"", SingletonThreadPoolExecutors.getNumRejected(e.getValue()));
+
+		out.flush();
+	}
+
+	private static void writeType(PrintWriter out, String name, String type) {
+		out.print("# TYPE ");
+		out.print(PREFIX);
+		out.print(name);
+		out.print(' ');
+		out.println(type);
+	}
+
+	private static void writeValue(PrintWriter out, String name, String labels, long value) {
+		out.print(PREFIX);
+		out.print(name);
+		if (labels != null) {
+			out.print('{');
+			out.print(labels);
+			out.print('}');
+		}
+		out.print(' ');
+		out.println(value);
+	}
+
+	private static void writeSummary(PrintWriter out, String name, String labels, LatencyHistogram h) {
+		if (h.getCount() <= 0L) return;
+
+		for (double q: QUANTILES) {
+			String l = "quantile=\"" + q + "\"";
+			writeValue(out, name, (labels != null ? labels + "," + l : l), h.getValueAtPercentile(q * 100.0));
+		}
+		writeValue(out, name + "_sum", labels, h.getSum());
+		writeValue(out, name + "_count", labels, h.getCount());
+	}
+}
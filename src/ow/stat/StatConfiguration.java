@@ -42,6 +42,11 @@ public final class StatConfiguration {
 	private final static int DEFAULT_NODE_COLLECTOR_CONCURRENCY = 20;
 	private final static long DEFAULT_PERIODIC_COLLECTION_INTERVAL = 10 * 1000L;
 
+	// for MessagingReporter
+	public final static boolean DEFAULT_BATCH_REPORTING = false;
+	public final static int DEFAULT_REPORT_BUFFER_SIZE = 4096;
+	public final static long DEFAULT_REPORT_BATCH_INTERVAL = 200L;
+
 
 	protected StatConfiguration() {}
 		// prohibits instantiation directly by other classes
@@ -127,6 +132,35 @@ public final class StatConfiguration {
 		return old;
 	}
 
+	private boolean batchReporting = DEFAULT_BATCH_REPORTING;
+	/**
+	 * Whether if a {@link MessagingReporter MessagingReporter} buffers reports and
+	 * sends them in batches from a background thread instead of sending a message for each report.
+	 * Reports are dropped and counted if the buffer is full.
+	 */
+	public boolean getBatchReporting() { return this.batchReporting; }
+	public boolean setBatchReporting(boolean flag) {
+		boolean old = this.batchReporting;
+		this.batchReporting = flag;
+		return old;
+	}
+
+	private int reportBufferSize = DEFAULT_REPORT_BUFFER_SIZE;
+	public int getReportBufferSize() { return this.reportBufferSize; }
+	public int setReportBufferSize(int size) {
+		int old = this.reportBufferSize;
+		this.reportBufferSize = size;
+		return old;
+	}
+
+	private long reportBatchInterval = DEFAULT_REPORT_BATCH_INTERVAL;
+	public long getReportBatchInterval() { return this.reportBatchInterval; }
+	public long setReportBatchInterval(long interval) {
+		long old = this.reportBatchInterval;
+		this.reportBatchInterval = interval;
+		return old;
+	}
+
 	private String selfHost = null;
 		// does not have the default value and could be set by an application
 	public String getSelfAddress() { return this.selfHost; }
@@ -25,6 +25,8 @@ import ow.stat.impl.MessagingCollectorImpl;
 import ow.stat.impl.NodeCollectorImpl;
 
 public class StatFactory {
+	private final static MetricsRegistry metricsRegistry = new MetricsRegistry();
+
 	/**
 	 * Returns a default configuration.
 	 */
@@ -42,6 +44,13 @@ public class StatFactory {
 		return new MessagingReporter(config, provider, sender);
 	}
 
+	/**
+	 * Returns the metrics registry shared in this JVM.
+	 */
+	public static MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
 	public static NodeCollector getNodeCollector(StatConfiguration config,
 			MessagingAddress initialContact, NodeCollectorCallback cb,
 			MessageReceiver receiver /* can be null */)
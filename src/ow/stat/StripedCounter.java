@@ -0,0 +1,56 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.stat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated by many threads with little contention.
+ * Threads add to one of the cells selected by thread ID,
+ * which are placed on different cache lines, and a reader sums them up.
+ */
+public final class StripedCounter {
+	private final static int NUM_STRIPES;
+	private final static int PADDING = 8;	// longs in a 64 byte cache line
+
+	static {
+		int n = 1;
+		while (n < 2 * Runtime.getRuntime().availableProcessors() && n < 64) n <<= 1;
+		NUM_STRIPES = n;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(NUM_STRIPES * PADDING);
+
+	public void increment() { this.add(1L); }
+
+	public void add(long x) {
+		long h = Thread.currentThread().getId() * 0x9e3779b97f4a7c15L;
+		int stripe = (int)(h >>> 32) & (NUM_STRIPES - 1);
+
+		this.cells.addAndGet(stripe * PADDING, x);
+	}
+
+	public long sum() {
+		long sum = 0L;
+		for (int i = 0; i < NUM_STRIPES; i++) {
+			sum += this.cells.get(i * PADDING);
+		}
+
+		return sum;
+	}
+}
@@ -20,6 +20,8 @@ package ow.stat.impl;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import ow.id.ID;
 import ow.id.IDAddressPair;
@@ -39,9 +41,12 @@ import ow.stat.impl.message.EmphasizeNodeMessage;
 import ow.stat.impl.message.MarkIDMessage;
 import ow.stat.impl.message.MessageSentMessage;
 import ow.stat.impl.message.StatAckMessage;
+import ow.stat.impl.message.StatBatchMessage;
 import ow.stat.impl.message.StatPingMessage;
 
 public final class MessagingCollectorImpl implements MessagingCollector {
+	private final static Logger logger = Logger.getLogger("statcollector");
+
 	private final StatConfiguration config;
 
 	private MessagingProvider provider;
@@ -117,21 +122,15 @@ public final class MessagingCollectorImpl implements MessagingCollector {
 					int tag = ((MessageSentMessage)msg).msgTag;
 					int len = ((MessageSentMessage)msg).msgLen;
 
-					// register the id:address table
-					IDAddressPair source = (IDAddressPair)msg.getSource();
-					MessagingAddress addr = source.getAddress();
-					ID id = source.getID();
-					if (id != null) {
-						synchronized (idTable) {
-							ID oldID = idTable.get(addr);
-							if (oldID == null || !oldID.equals(id)) {
-								idTable.put(addr, id);
-							}
-						}
-					}
+					registerID(msg);
 
 					callback.messageSent(src, dest, tag, len);
 				}
+				else if (msg instanceof StatBatchMessage) {
+					registerID(msg);
+
+					processBatch((StatBatchMessage)msg);
+				}
 				else if (msg instanceof DeleteNodeMessage) {
 					MessagingAddress node = ((DeleteNodeMessage)msg).node;
 
@@ -177,4 +176,58 @@ public final class MessagingCollectorImpl implements MessagingCollector {
 		};
 		this.receiver.addHandler(handler);
 	}
+
+	/**
+	 * Registers the source of a report to the id:address table.
+	 */
+	private void registerID(Message msg) {
+		IDAddressPair source = (IDAddressPair)msg.getSource();
+		MessagingAddress addr = source.getAddress();
+		ID id = source.getID();
+		if (id != null) {
+			synchronized (idTable) {
+				ID oldID = idTable.get(addr);
+				if (oldID == null || !oldID.equals(id)) {
+					idTable.put(addr, id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invokes callbacks for each report in a batch.
+	 * Aggregated MESSAGE_SENT reports are expanded to as many callbacks as the original messages.
+	 */
+	private void processBatch(StatBatchMessage batch) {
+		MessagingAddress[] addrs = batch.addresses;
+		int[] sent = batch.sent;
+
+		for (int i = 0; i + 4 < sent.length; i += 5) {
+			MessagingAddress src = addrs[sent[i]];
+			MessagingAddress dest = addrs[sent[i + 1]];
+			int tag = sent[i + 2];
+			int count = sent[i + 3];
+			int totalLen = sent[i + 4];
+
+			for (int j = 0; j < count; j++) {
+				int len = totalLen / count + (j < totalLen % count ? 1 : 0);
+				callback.messageSent(src, dest, tag, len);
+			}
+		}
+
+		if (callback instanceof MessagingCallbackExtended) {
+			MessagingCallbackExtended cb = (MessagingCallbackExtended)callback;
+
+			for (ID nodeID: batch.emphasizedNodes) cb.emphasizeNode(nodeID);
+
+			for (int i = 0; i < batch.markedIDs.length; i++) {
+				for (ID id: batch.markedIDs[i]) cb.markID(id, batch.markHints[i]);
+			}
+		}
+
+		if (batch.numDropped > 0) {
+			logger.log(Level.WARNING, batch.numDropped + " reports were dropped on "
+					+ batch.getSource() + ".");
+		}
+	}
 }
@@ -36,6 +36,7 @@ import ow.stat.NodeCollectorCallback;
 import ow.stat.StatConfiguration;
 import ow.stat.StatFactory;
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 /**
@@ -128,7 +129,7 @@ public class NodeCollectorImpl implements NodeCollector {
 					numOfCollectionThread++;
 //System.out.println("num++: " + numOfCollectionThread);
 
-					SingletonThreadPoolExecutors.getThreadPool(
+					SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MAINTENANCE,
 							ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, true).submit(new Collector(contact));
 				}
 				else {
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.stat.impl.message;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import ow.id.ID;
+import ow.messaging.Message;
+import ow.messaging.MessagingAddress;
+
+/**
+ * A batch of reports, which replaces a number of
+ * MESSAGE_SENT, EMPHASIZE_NODE and MARK_ID messages.
+ */
+public final class StatBatchMessage extends Message {
+	public final static String NAME = "STAT_BATCH_REPORT";	// hashed to a tag not taken by the existing messages
+	public final static boolean TO_BE_REPORTED = false;
+	public final static Color COLOR = null;
+
+	// message members
+	public MessagingAddress[] addresses;
+	public int[] sent;
+		// {index of source in addresses, index of destination, tag, count, total length} for each
+	public ID[] emphasizedNodes;
+	public ID[][] markedIDs;
+	public int[] markHints;
+	public int numDropped;	// the number of reports dropped since the last batch
+
+	public StatBatchMessage() { super(); }	// for Class#newInstance()
+
+	public StatBatchMessage(
+			MessagingAddress[] addresses, int[] sent,
+			ID[] emphasizedNodes, ID[][] markedIDs, int[] markHints, int numDropped) {
+		this.addresses = addresses;
+		this.sent = sent;
+		this.emphasizedNodes = emphasizedNodes;
+		this.markedIDs = markedIDs;
+		this.markHints = markHints;
+		this.numDropped = numDropped;
+	}
+
+	public void encodeContents(ObjectOutputStream oos) throws IOException {
+		oos.writeObject(this.addresses);
+		oos.writeObject(this.sent);
+		oos.writeObject(this.emphasizedNodes);
+		oos.writeObject(this.markedIDs);
+		oos.writeObject(this.markHints);
+		oos.writeInt(this.numDropped);
+	}
+
+	public void decodeContents(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+		this.addresses = (MessagingAddress[])ois.readObject();
+		this.sent = (int[])ois.readObject();
+		this.emphasizedNodes = (ID[])ois.readObject();
+		this.markedIDs = (ID[][])ois.readObject();
+		this.markHints = (int[])ois.readObject();
+		this.numDropped = ois.readInt();
+	}
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2006-2010,2012,2015 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.dhtshell;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import ow.dht.ByteArray;
+import ow.dht.DHT;
+import ow.dht.ValueInfo;
+import ow.id.ID;
+import ow.util.JSONUtil;
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * A gateway to a DHT with compact request and response bodies,
+ * which is mounted on {@link #PATH PATH} of the web server of {@link XmlRpcDHTServer XmlRpcDHTServer}.
+ * Each of /get, /put and /remove takes a batch of requests by POST
+ * and is mapped to a single call of {@link DHT#get(ID[]) DHT#get(ID[])},
+ * {@link DHT#put(DHT.PutRequest[]) DHT#put(PutRequest[])} or
+ * {@link DHT#remove(DHT.RemoveRequest[], ByteArray) DHT#remove(RemoveRequest[], ByteArray)}.
+ * Requests are processed by pooled threads asynchronously
+ * so that threads of the web server do not wait for routing.
+ *
+ * <p>A body is JSON, or length-prefixed binary if the content type is {@link #BINARY_TYPE BINARY_TYPE}.
+ * A response is in the same format as the request.
+ * <pre>
+ * get:    {"keys": [key, ...]}
+ * put:    {"ttl": sec, "secret": secret, "requests": [{"key": key, "values": [value, ...]}, ...]}
+ * remove: {"secret": secret, "requests": [{"key": key, "values": [value, ...]}, ...]}
+ * result: {"results": [{"key": key, "values": [value, ...]} or {"key": key, "error": message}, ...]}
+ * </pre>
+ * A key in JSON is parsed by {@link ID#parseID(String, int) ID#parseID()}.
+ * "ttl" and "secret" are optional, and "values" of a remove request is optional to remove all the values.
+ * Resulting values are the existing values for put, and the removed values for remove.
+ * /get also accepts GET with key parameters as /get?key=k0&amp;key=k1.
+ * <pre>
+ * bytes:  int length, byte[length]
+ * get:    int n, {bytes key}*n
+ * put:    int ttl (sec, negative for the default), bytes secret, int n, {bytes key, int m, {bytes value}*m}*n
+ * remove: bytes secret, int n, {bytes key, int m, {bytes value}*m}*n
+ * result: int n, {int m (-1 on failure), {bytes value}*m}*n
+ * </pre>
+ * A key in binary is an ID in bytes as in the XML-RPC interface. Values are strings encoded in UTF-8.
+ * A secret of length 0 means no secret.
+ */
+public final class HttpDHTGateway extends HttpServlet {
+	private final static Logger logger = Logger.getLogger("dhtshell");
+
+	public final static String PATH = "/dht";
+	public final static String JSON_TYPE = "application/json";
+	public final static String BINARY_TYPE = "application/octet-stream";
+	private final static String ENCODING = XmlRpcDHTServer.ENCODING;
+	private final static int MAX_BODY_LENGTH = 16 * 1024 * 1024;
+
+	private final DHT<String> dht;
+	private final int idSizeInByte;
+
+	public HttpDHTGateway(DHT<String> dht) {
+		this.dht = dht;
+		this.idSizeInByte = dht.getRoutingAlgorithmConfiguration().getIDSizeInByte();
+	}
+
+	private enum Op { GET, PUT, REMOVE }
+
+	protected void doGet(HttpServletRequest req, HttpServletResponse res)
+			throws ServletException, IOException {
+		if (!"/get".equals(req.getPathInfo())) {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		String[] keys = req.getParameterValues("key");
+		if (keys == null) {
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST, "No key specified.");
+			return;
+		}
+
+		final Batch batch = new Batch(Op.GET, false);
+		for (String k: keys) batch.add(k, ID.parseID(k, this.idSizeInByte), null);
+
+		this.dispatch(req, res, batch);
+	}
+
+	protected void doPost(HttpServletRequest req, HttpServletResponse res)
+			throws ServletException, IOException {
+		Op op;
+		String path = req.getPathInfo();
+		if ("/get".equals(path)) op = Op.GET;
+		else if ("/put".equals(path)) op = Op.PUT;
+		else if ("/remove".equals(path)) op = Op.REMOVE;
+		else {
+			res.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		String contentType = req.getContentType();
+		boolean binary = (contentType != null && contentType.startsWith(BINARY_TYPE));
+
+		Batch batch;
+		try {
+			byte[] body = readBody(req);
+
+			batch = (binary ? this.parseBinary(op, body) : this.parseJSON(op, body));
+		}
+		catch (IOException e) {	// including EOFException for a truncated binary body
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		catch (RuntimeException e) {	// IllegalArgumentException and ClassCastException for an invalid JSON
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		this.dispatch(req, res, batch);
+	}
+
+	/**
+	 * Processes the batch on a pooled thread and completes the response there.
+	 */
+	private void dispatch(HttpServletRequest req, final HttpServletResponse res, final Batch batch)
+			throws IOException {
+		final AsyncContext async = req.startAsync();
+		async.setTimeout(0L);	// routing has its own timeouts
+
+		try {
+			SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.FRONTEND,
+					ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, true).submit(new Runnable() {
+				public void run() {
+					try {
+						process(batch);
+						batch.writeResponse(res);
+					}
+					catch (Throwable e) {
+						logger.log(Level.WARNING, "Failed to process a request.", e);
+						try {
+							res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						}
+						catch (Exception e1) { /* ignore */ }
+					}
+					finally {
+						async.complete();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			async.complete();
+		}
+	}
+
+	private void process(Batch batch) throws Exception {
+		int n = batch.ids.size();
+		ID[] keys = batch.ids.toArray(new ID[n]);
+
+		switch (batch.op) {
+		case GET:
+			batch.results = this.dht.get(keys);
+			break;
+		case PUT:
+			DHT.PutRequest<String>[] putReqs = new DHT.PutRequest/*<String>*/[n];
+			for (int i = 0; i < n; i++) putReqs[i] = new DHT.PutRequest<String>(keys[i], batch.values.get(i));
+
+			batch.results = this.dht.put(putReqs,
+					(batch.ttl >= 0L ? batch.ttl : this.dht.getConfiguration().getDefaultTTL()),
+					batch.hashedSecret);
+			break;
+		case REMOVE:
+			DHT.RemoveRequest<String>[] removeReqs = new DHT.RemoveRequest/*<String>*/[n];
+			for (int i = 0; i < n; i++) {
+				String[] values = batch.values.get(i);
+				removeReqs[i] = (values != null && values.length > 0 ?
+						new DHT.RemoveRequest<String>(keys[i], values) :
+							new DHT.RemoveRequest<String>(keys[i]));
+			}
+
+			batch.results = this.dht.remove(removeReqs, batch.hashedSecret);
+			break;
+		}
+	}
+
+	//
+	// request parsing
+	//
+
+	private Batch parseJSON(Op op, byte[] body) throws IOException {
+		Map<String,Object> json = (Map<String,Object>)JSONUtil.parse(new String(body, ENCODING));
+		Batch batch = new Batch(op, false);
+
+		if (op == Op.GET) {
+			for (Object k: (List<Object>)json.get("keys")) {
+				batch.add((String)k, ID.parseID((String)k, this.idSizeInByte), null);
+			}
+
+			return batch;
+		}
+
+		Object ttl = json.get("ttl");
+		if (ttl != null) batch.ttl = ((Number)ttl).longValue() * 1000L;
+		Object secret = json.get("secret");
+		if (secret != null) batch.hashedSecret = new ByteArray(((String)secret).getBytes(ENCODING)).hashWithSHA1();
+
+		for (Object o: (List<Object>)json.get("requests")) {
+			Map<String,Object> r = (Map<String,Object>)o;
+			String k = (String)r.get("key");
+
+			String[] values = null;
+			List<Object> valueList = (List<Object>)r.get("values");
+			if (valueList != null) values = valueList.toArray(new String[valueList.size()]);
+			else if (op == Op.PUT) throw new IllegalArgumentException("No value for a key: " + k);
+
+			batch.add(k, ID.parseID(k, this.idSizeInByte), values);
+		}
+
+		return batch;
+	}
+
+	private Batch parseBinary(Op op, byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		Batch batch = new Batch(op, true);
+
+		if (op == Op.PUT) {
+			int ttl = in.readInt();
+			if (ttl >= 0) batch.ttl = ttl * 1000L;
+		}
+		if (op != Op.GET) {
+			byte[] secret = readBytes(in);
+			if (secret.length > 0) batch.hashedSecret = new ByteArray(secret).hashWithSHA1();
+		}
+
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			ID key = ID.getID(readBytes(in), this.idSizeInByte);
+
+			String[] values = null;
+			if (op != Op.GET) {
+				values = new String[in.readInt()];
+				for (int j = 0; j < values.length; j++) values[j] = new String(readBytes(in), ENCODING);
+			}
+
+			batch.add(null, key, values);
+		}
+
+		return batch;
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > in.available()) throw new IOException("Invalid length: " + len);
+
+		byte[] b = new byte[len];
+		in.readFully(b);
+
+		return b;
+	}
+
+	private static byte[] readBody(HttpServletRequest req) throws IOException {
+		int len = req.getContentLength();
+		if (len > MAX_BODY_LENGTH) throw new IOException("Too large body: " + len);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(len > 0 ? len : 1024);
+		InputStream in = req.getInputStream();
+		byte[] buf = new byte[8192];
+		int r;
+		while ((r = in.read(buf)) >= 0) {
+			out.write(buf, 0, r);
+			if (out.size() > MAX_BODY_LENGTH) throw new IOException("Too large body.");
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Requests in an HTTP request and their results.
+	 */
+	private final static class Batch {
+		final Op op;
+		final boolean binary;
+
+		final List<String> keyStrings = new ArrayList<String>();
+		final List<ID> ids = new ArrayList<ID>();
+		final List<String[]> values = new ArrayList<String[]>();
+		long ttl = -1L;	// msec
+		ByteArray hashedSecret = null;
+
+		Set<ValueInfo<String>>[] results;
+
+		Batch(Op op, boolean binary) {
+			this.op = op;
+			this.binary = binary;
+		}
+
+		void add(String keyString, ID key, String[] values) {
+			this.keyStrings.add(keyString);
+			this.ids.add(key);
+			this.values.add(values);
+		}
+
+		void writeResponse(HttpServletResponse res) throws IOException {
+			byte[] body = (this.binary ? this.binaryResponse() : this.jsonResponse());
+
+			res.setStatus(HttpServletResponse.SC_OK);
+			res.setContentType(this.binary ? BINARY_TYPE : JSON_TYPE + "; charset=" + ENCODING);
+			res.setContentLength(body.length);
+			res.getOutputStream().write(body);
+		}
+
+		private byte[] jsonResponse() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"results\":[");
+
+			for (int i = 0; i < this.ids.size(); i++) {
+				if (i > 0) sb.append(',');
+
+				sb.append("{\"key\":");
+				JSONUtil.quote(sb, this.keyStrings.get(i));
+
+				Set<ValueInfo<String>> v = this.results[i];
+				if (v != null) {
+					sb.append(",\"values\":[");
+					boolean first = true;
+					for (ValueInfo<String> vi: v) {
+						if (!first) sb.append(',');
+						first = false;
+						JSONUtil.quote(sb, vi.getValue());
+					}
+					sb.append("]}");
+				}
+				else if (this.op == Op.REMOVE) {
+					// as DHT#remove(), null if not found or failed
+					sb.append(",\"values\":[]}");
+				}
+				else {
+					sb.append(",\"error\":\"" + (this.op == Op.GET ? "routing failed" : "not stored") + "\"}");
+				}
+			}
+
+			sb.append("]}");
+
+			return sb.toString().getBytes(ENCODING);
+		}
+
+		private byte[] binaryResponse() throws IOException {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bout);
+
+			out.writeInt(this.ids.size());
+			for (int i = 0; i < this.ids.size(); i++) {
+				Set<ValueInfo<String>> v = this.results[i];
+				if (v == null) {
+					out.writeInt(this.op == Op.REMOVE ? 0 : -1);
+					continue;
+				}
+
+				out.writeInt(v.size());
+				for (ValueInfo<String> vi: v) {
+					byte[] b = vi.getValue().getBytes(ENCODING);
+					out.writeInt(b.length);
+					out.write(b);
+				}
+			}
+			out.flush();
+
+			return bout.toByteArray();
+		}
+	}
+}
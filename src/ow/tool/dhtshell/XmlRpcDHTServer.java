@@ -52,6 +52,7 @@ import ow.routing.RoutingAlgorithm;
 import ow.routing.RoutingException;
 import ow.routing.RoutingHop;
 import ow.routing.RoutingResult;
+import ow.stat.StatFactory;
 import ow.tool.util.shellframework.Interruptible;
 import ow.util.HTMLUtil;
 
@@ -59,9 +60,14 @@ import ow.util.HTMLUtil;
  * An XML-RPC DHT server.
  * The access protocol is compatible with Bamboo and OpenDHT.
  * This server is enabled by `-x' option of owdhtshell command.
+ * Metrics of messaging and routing are provided at /metrics
+ * in the text format of Prometheus.
+ * Batched operations with JSON or binary bodies are provided by {@link HttpDHTGateway HttpDHTGateway}
+ * at /dht/.
  */
 public final class XmlRpcDHTServer implements Interruptible {
 	public final static String ENCODING = "UTF-8";
+	private final static String METRICS_PATH = "/metrics";
 
 	// IPInfoDB API key
 	public final static String ipInfoDBAPIKey =
@@ -179,6 +185,7 @@ public final class XmlRpcDHTServer implements Interruptible {
 					Constructor jettyContextCtor = jettyContextClazz.getDeclaredConstructor(jettyHandlerContainerClazz, String.class, int.class);
 					Constructor jettyServletHolderCtor = jettyServletHolderClazz.getDeclaredConstructor(Servlet.class);
 					Method jettyContextAddServletMtd = jettyContextClazz.getDeclaredMethod("addServlet", jettyServletHolderClazz, String.class);
+					Method jettyServletHolderSetAsyncSupportedMtd = jettyServletHolderClazz.getMethod("setAsyncSupported", boolean.class);
 
 					this.jettyWebServer = jettyServerCtor.newInstance(p);
 					Object root = jettyContextCtor.newInstance(this.jettyWebServer, "/", 1);
@@ -189,6 +196,13 @@ public final class XmlRpcDHTServer implements Interruptible {
 						// servletHolder = new ServletHolder();
 						// root.addServlet(servletHoldre, "/*");
 
+					Object gatewayHolder = jettyServletHolderCtor.newInstance(new HttpDHTGateway(this.dht));
+					jettyServletHolderSetAsyncSupportedMtd.invoke(gatewayHolder, true);
+					jettyContextAddServletMtd.invoke(root, gatewayHolder, HttpDHTGateway.PATH + "/*");
+						// gatewayHolder = new ServletHolder(new HttpDHTGateway(dht));
+						// gatewayHolder.setAsyncSupported(true);
+						// root.addServlet(gatewayHolder, "/dht/*");
+
 					Method jettyServerStartMtd = jettyServerClazz.getMethod("start");
 					this.jettyServerStopMtd = jettyServerClazz.getMethod("stop");
 
@@ -243,6 +257,15 @@ public final class XmlRpcDHTServer implements Interruptible {
 			req.setCharacterEncoding(ENCODING);
 			res.setCharacterEncoding(ENCODING);
 
+			// metrics
+			if (METRICS_PATH.equals(req.getRequestURI())) {
+				res.setContentType("text/plain; version=0.0.4");
+				res.setStatus(HttpServletResponse.SC_OK);
+
+				StatFactory.getMetricsRegistry().writeText(res.getWriter());
+				return;
+			}
+
 			// parse query string
 			String resultString = null;
 			String op = null, key = null, value = null, ttl = null, secret = null;
@@ -297,17 +320,17 @@ public final class XmlRpcDHTServer implements Interruptible {
 						}
 						else {
 							int ttlNum = Integer.parseInt(ttl) * 1000;
-							if (secret == null) {
-								dht.setHashedSecretForPut(null);
-							}
-							else {
-								ByteArray hashedSecret = new ByteArray(secret.getBytes(ENCODING)).hashWithSHA1();
-								dht.setHashedSecretForPut(hashedSecret);
+							ByteArray hashedSecret = null;
+							if (secret != null) {
+								hashedSecret = new ByteArray(secret.getBytes(ENCODING)).hashWithSHA1();
 							}
-							dht.setTTLForPut(ttlNum);
+
+							DHT.PutRequest<String>[] reqs = new DHT.PutRequest/*<String>*/[1];
+							reqs[0] = new DHT.PutRequest<String>(keyID, new String[] { value });
 
 							try {
-								dht.put(keyID, value);
+								// with its own TTL and secret, not ones shared with other requests
+								if (dht.put(reqs, ttlNum, hashedSecret)[0] == null) throw new RoutingException();
 
 								lookupPerformed = true;
 								resultString = "Put succeeded.";
@@ -817,16 +840,14 @@ public final class XmlRpcDHTServer implements Interruptible {
 				}
 
 				// put
+				DHT.PutRequest<String>[] reqs = new DHT.PutRequest/*<String>*/[1];
+				reqs[0] = new DHT.PutRequest<String>(hashedKey, new String[] { value });
+
 				try {
-					if (put_removable) {
-						XmlRpcDHTServer.this.dht.setHashedSecretForPut(hashedSecret);
+					// with its own TTL and secret, not ones shared with other requests
+					if (XmlRpcDHTServer.this.dht.put(reqs, ttl * 1000L, hashedSecret)[0] == null) {
+						throw new RoutingException();
 					}
-					else {
-						XmlRpcDHTServer.this.dht.setHashedSecretForPut(null);
-					}
-
-					XmlRpcDHTServer.this.dht.setTTLForPut(ttl * 1000);
-					XmlRpcDHTServer.this.dht.put(hashedKey, value);
 				}
 				catch (Exception e) {
 					System.err.println("An Exception thrown during putting:");
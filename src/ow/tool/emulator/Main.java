@@ -31,6 +31,7 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -38,9 +39,13 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.DefaultParser;
 
+import ow.dht.impl.ChurnTolerantDHTImpl;
+import ow.id.ID;
 import ow.messaging.MessagingFactory;
+import ow.messaging.emulator.EmuMessageSender;
 import ow.messaging.util.MessagingUtility;
 import ow.messaging.util.MessagingUtility.HostAndPort;
+import ow.routing.impl.AbstractRoutingAlgorithm;
 import ow.tool.emulator.commands.ArgumentsCommand;
 import ow.tool.emulator.commands.ClassCommand;
 import ow.tool.emulator.commands.ControlCommand;
@@ -59,6 +64,8 @@ import ow.tool.util.shellframework.Command;
 import ow.tool.util.shellframework.MessagePrinter;
 import ow.tool.util.shellframework.Shell;
 import ow.tool.util.shellframework.ShellServer;
+import ow.util.DiscreteEventScheduler;
+import ow.util.Timer;
 
 /**
  * The main class of distributed environment emulator.
@@ -118,7 +125,7 @@ public class Main {
 
 	private static void usage() {
 		System.out.print("Usage: " + COMMAND);
-		System.out.println(" [-h] [--eventdriven] [-f <host list file>] [-w <str rep of host list>] [-c <connection target file>] [-s <self hostname>] [<scenario URL|file> ...]");
+		System.out.println(" [-h] [--eventdriven] [--timingwheel] [--messagelength] [--seed <seed>] [-f <host list file>] [-w <str rep of host list>] [-c <connection target file>] [-s <self hostname>] [<scenario URL|file> ...]");
 	}
 
 	public void start(String[] args) {
@@ -143,6 +150,9 @@ public class Main {
 		Options opts = new Options();
 		opts.addOption("h", "help", false, "print help");
 		opts.addOption("E", "eventdriven", false, "emulator runs in event driven mode");
+		opts.addOption("T", "timingwheel", false, "timer keeps tasks in a hashed timing wheel");
+		opts.addOption("L", "messagelength", false, "encode messages to measure their length");
+		opts.addOption("R", "seed", true, "seed of random numbers in emulation");
 		opts.addOption("f", "hostfile", true, "host file for working in master mode");
 		opts.addOption("w", "workertable", true, "works in worker mode");
 		opts.addOption("s", "selfipaddress", true, "self IP address (and port)");
@@ -167,6 +177,20 @@ public class Main {
 		if (cmd.hasOption('E')) {
 			eventDrivenMode = true;
 		}
+		if (cmd.hasOption('T')) {
+			Timer.setSingletonSchedulerType("TimingWheel");
+		}
+		if (cmd.hasOption('L')) {
+			EmuMessageSender.setMeasureMessageLength(true);
+		}
+		optVal = cmd.getOptionValue('R');
+		if (optVal != null) {
+			long seed = Long.parseLong(optVal);
+			EmuMessageSender.setRandomSeed(seed);
+			ID.setRandomSeed(seed);
+			AbstractRoutingAlgorithm.setRandomSeed(seed);
+			ChurnTolerantDHTImpl.setRandomSeed(seed);
+		}
 		optVal = cmd.getOptionValue('f');
 		if (optVal != null) {
 			try {
@@ -249,6 +273,13 @@ public class Main {
 
 
 		// parse scenario files
+		DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		if (scheduler != null && args != null && args.length > 0) {
+			// parse as an event, so that the scheduled tasks do not start in the middle
+			this.parseScenarioAsEvent(scheduler, emuContext, args);
+			return;
+		}
+
 		try {
 			parseScenario(emuContext, args);
 		}
@@ -258,6 +289,30 @@ public class Main {
 		}
 	}
 
+	private void parseScenarioAsEvent(DiscreteEventScheduler scheduler,
+			final EmulatorContext emuContext, final String[] filenames) {
+		final CountDownLatch parsed = new CountDownLatch(1);
+
+		scheduler.scheduleAfter(new Runnable() {
+			public void run() {
+				try {
+					parseScenario(emuContext, filenames);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+				finally {
+					parsed.countDown();
+				}
+			}
+		}, 0L);
+
+		try {
+			parsed.await();
+		}
+		catch (InterruptedException e) { /* ignore */ }
+	}
+
 	private void parseScenario(EmulatorContext emuContext, String[] filenames) throws IOException {
 		// prepare commands
 		ShellServer<EmulatorContext> shellServ =
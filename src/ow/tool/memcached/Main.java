@@ -56,6 +56,7 @@ import ow.tool.memcached.commands.StatsCommand;
 import ow.tool.memcached.commands.StatusCommand;
 import ow.tool.memcached.commands.VerbosityCommand;
 import ow.tool.memcached.commands.VersionCommand;
+import ow.tool.memcached.server.MemcachedServer;
 import ow.tool.util.shellframework.Command;
 import ow.tool.util.shellframework.MessagePrinter;
 import ow.tool.util.shellframework.Shell;
@@ -214,12 +215,23 @@ public final class Main extends AbstractDHTBasedTool<Item>
 		cmd = null;
 
 
-		// start a ShellServer
+		// start a memcached server
+		MemcachedServer server = new MemcachedServer(dht, shellPort, ac, commandList, commandTable);
+		try {
+			server.start();
+		}
+		catch (IOException e) {
+			System.err.println("An Exception thrown:");
+			e.printStackTrace();
+			return null;
+		}
+
+		// a ShellServer for the standard input, which does not wait on a port
 		MessagePrinter errPrinter = new ErrorPrinter();
 		ShellServer<Memcached> shellServ =
 			new ShellServer<Memcached>(commandTable, commandList,
 					null /*prompt printer*/, errPrinter, errPrinter,
-					dht, shellPort, ac);
+					dht, -1);
 
 		Shell<Memcached> stdioShell = null;
 		if (disableStdin) {
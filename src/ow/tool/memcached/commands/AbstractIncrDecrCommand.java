@@ -65,7 +65,6 @@ abstract class AbstractIncrDecrCommand implements Command<Memcached> {
 
 		// store
 		long exptime = dht.getConfiguration().getDefaultTTL();
-		dht.setTTLForPut(exptime);
 
 		byte[] b = null;
 		try {
@@ -78,7 +77,7 @@ abstract class AbstractIncrDecrCommand implements Command<Memcached> {
 
 		Set<ValueInfo<Item>> existedValue = null;
 		try {
-			existedValue = dht.put(key, item, cond);
+			existedValue = dht.put(key, item, cond, exptime);
 		}
 		catch (Exception e) {
 			out.print("SERVER_ERROR put failed" + Shell.CRLF);
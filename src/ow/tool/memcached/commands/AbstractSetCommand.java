@@ -89,16 +89,15 @@ abstract class AbstractSetCommand implements Command<Memcached> {
 		// store
 		exptime *= 1000;	// sec -> msec
 		if (exptime <= 0) { exptime = dht.getConfiguration().getDefaultTTL(); }
-		dht.setTTLForPut(exptime);
 
 		Item item = new Item(dataBlock, flags);
 
 		Set<ValueInfo<Item>> existedValue = null;
 		try {
 			if (isCas)
-				existedValue = dht.put(key, item, casUnique);
+				existedValue = dht.put(key, item, casUnique, exptime);
 			else
-				existedValue = dht.put(key, item, cond);
+				existedValue = dht.put(key, item, cond, exptime);
 		}
 		catch (Exception e) {
 			out.print("SERVER_ERROR put failed" + Shell.CRLF);
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2008-2009,2012,2015 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.memcached.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import ow.dht.memcached.Memcached;
+
+/**
+ * Parser and encoder of the binary memcached protocol.
+ */
+final class BinaryProtocol {
+	final static byte REQUEST_MAGIC = (byte)0x80;
+	final static byte RESPONSE_MAGIC = (byte)0x81;
+	final static int HEADER_LENGTH = 24;
+	final static int MAX_BODY_LENGTH = 2 * 1024 * 1024;
+
+	// opcodes
+	final static byte GET = 0x00;
+	final static byte SET = 0x01;
+	final static byte ADD = 0x02;
+	final static byte REPLACE = 0x03;
+	final static byte DELETE = 0x04;
+	final static byte INCREMENT = 0x05;
+	final static byte DECREMENT = 0x06;
+	final static byte QUIT = 0x07;
+	final static byte FLUSH = 0x08;
+	final static byte GETQ = 0x09;
+	final static byte NOOP = 0x0a;
+	final static byte VERSION = 0x0b;
+	final static byte GETK = 0x0c;
+	final static byte GETKQ = 0x0d;
+	final static byte APPEND = 0x0e;
+	final static byte PREPEND = 0x0f;
+	final static byte STAT = 0x10;
+	final static byte SETQ = 0x11;
+	final static byte ADDQ = 0x12;
+	final static byte REPLACEQ = 0x13;
+	final static byte DELETEQ = 0x14;
+	final static byte INCREMENTQ = 0x15;
+	final static byte DECREMENTQ = 0x16;
+	final static byte QUITQ = 0x17;
+	final static byte FLUSHQ = 0x18;
+	final static byte APPENDQ = 0x19;
+	final static byte PREPENDQ = 0x1a;
+
+	// status
+	final static short NO_ERROR = 0x0000;
+	final static short KEY_NOT_FOUND = 0x0001;
+	final static short KEY_EXISTS = 0x0002;
+	final static short INVALID_ARGUMENTS = 0x0004;
+	final static short ITEM_NOT_STORED = 0x0005;
+	final static short NON_NUMERIC_VALUE = 0x0006;
+	final static short UNKNOWN_COMMAND = 0x0081;
+	final static short NOT_SUPPORTED = 0x0083;
+	final static short INTERNAL_ERROR = 0x0084;
+
+	/**
+	 * Parses a request at the position of the buffer and advances the position over it.
+	 *
+	 * @return a request, or null if the request has not been received completely.
+	 * @throws ProtocolException if the connection is to be closed.
+	 */
+	static Request parse(ByteBuffer in) throws ProtocolException {
+		int start = in.position();
+		if (in.remaining() < HEADER_LENGTH) return null;
+
+		if (in.get(start) != REQUEST_MAGIC) throw new ProtocolException("bad magic");
+
+		byte opcode = in.get(start + 1);
+		int keyLen = in.getShort(start + 2) & 0xffff;
+		int extLen = in.get(start + 4) & 0xff;
+		int bodyLen = in.getInt(start + 8);
+		int opaque = in.getInt(start + 12);
+		long cas = in.getLong(start + 16);
+
+		if (bodyLen < 0 || bodyLen > MAX_BODY_LENGTH || keyLen + extLen > bodyLen)
+			throw new ProtocolException("bad body length");
+		if (in.remaining() < HEADER_LENGTH + bodyLen) return null;
+
+		Request.Op op = opOf(opcode);
+		if (op == Request.Op.SET && cas != 0L) op = Request.Op.CAS;
+
+		Request req = new Request(true, op);
+		req.opcode = opcode;
+		req.opaque = opaque;
+		req.cas = cas;
+		req.quiet = isQuiet(opcode);
+		req.returnKey = (opcode == GETK || opcode == GETKQ);
+		req.returnCas = true;
+		if (op == Request.Op.ERROR) req.status = UNKNOWN_COMMAND;
+
+		int pos = start + HEADER_LENGTH;
+		int extStart = pos;
+		pos += extLen;
+
+		if (keyLen > 0) {
+			req.rawKey = new byte[keyLen];
+			in.position(pos);
+			in.get(req.rawKey);
+			try {
+				req.keys = new String[] { new String(req.rawKey, Memcached.ENCODING) };
+			}
+			catch (UnsupportedEncodingException e) { /* NOTREACHED */ }
+			pos += keyLen;
+		}
+
+		req.data = new byte[bodyLen - extLen - keyLen];
+		in.position(pos);
+		in.get(req.data);
+
+		switch (req.op) {
+		case SET: case ADD: case REPLACE: case CAS:
+			if (extLen != 8) return invalid(req);
+			req.flags = in.getInt(extStart) & 0xffffffffL;
+			req.exptime = in.getInt(extStart + 4) & 0xffffffffL;
+			break;
+		case INCR: case DECR:
+			if (extLen != 20) return invalid(req);
+			req.delta = RequestProcessor.toUnsignedString(in.getLong(extStart));
+			req.initial = in.getLong(extStart + 8);
+			long expiration = in.getInt(extStart + 16) & 0xffffffffL;
+			req.create = (expiration != 0xffffffffL);
+			req.exptime = (req.create ? expiration : 0L);
+			break;
+		default:
+			break;
+		}
+
+		if (req.keys == null && (req.op == Request.Op.GET || req.op == Request.Op.SET || req.op == Request.Op.ADD
+				|| req.op == Request.Op.REPLACE || req.op == Request.Op.CAS || req.op == Request.Op.APPEND
+				|| req.op == Request.Op.PREPEND || req.op == Request.Op.DELETE
+				|| req.op == Request.Op.INCR || req.op == Request.Op.DECR)) {
+			return invalid(req);
+		}
+
+		in.position(start + HEADER_LENGTH + bodyLen);
+
+		return req;
+	}
+
+	private static Request invalid(Request req) {
+		Request err = new Request(true, Request.Op.ERROR);
+		err.opcode = req.opcode;
+		err.opaque = req.opaque;
+		err.status = INVALID_ARGUMENTS;
+		return err;
+	}
+
+	private static Request.Op opOf(byte opcode) {
+		switch (opcode) {
+		case GET: case GETQ: case GETK: case GETKQ: return Request.Op.GET;
+		case SET: case SETQ: return Request.Op.SET;	// CAS if the cas field is not 0
+		case ADD: case ADDQ: return Request.Op.ADD;
+		case REPLACE: case REPLACEQ: return Request.Op.REPLACE;
+		case APPEND: case APPENDQ: return Request.Op.APPEND;
+		case PREPEND: case PREPENDQ: return Request.Op.PREPEND;
+		case DELETE: case DELETEQ: return Request.Op.DELETE;
+		case INCREMENT: case INCREMENTQ: return Request.Op.INCR;
+		case DECREMENT: case DECREMENTQ: return Request.Op.DECR;
+		case QUIT: case QUITQ: return Request.Op.QUIT;
+		case FLUSH: case FLUSHQ: return Request.Op.FLUSH;
+		case NOOP: return Request.Op.NOOP;
+		case VERSION: return Request.Op.VERSION;
+		case STAT: return Request.Op.STAT;
+		default: return Request.Op.ERROR;
+		}
+	}
+
+	private static boolean isQuiet(byte opcode) {
+		return opcode == GETQ || opcode == GETKQ || (opcode >= SETQ && opcode <= PREPENDQ);
+	}
+
+	/**
+	 * Writes a response.
+	 *
+	 * @param key key to be returned, or null.
+	 * @param extras extras, or null.
+	 * @param value value, or null.
+	 */
+	static void writeResponse(ByteArrayOutputStream out, Request req, short status, long cas,
+			byte[] extras, byte[] key, byte[] value) {
+		int extLen = (extras != null ? extras.length : 0);
+		int keyLen = (key != null ? key.length : 0);
+		int valueLen = (value != null ? value.length : 0);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(RESPONSE_MAGIC);
+		header.put(req.opcode);
+		header.putShort((short)keyLen);
+		header.put((byte)extLen);
+		header.put((byte)0);	// data type
+		header.putShort(status);
+		header.putInt(extLen + keyLen + valueLen);
+		header.putInt(req.opaque);
+		header.putLong(cas);
+
+		out.write(header.array(), 0, HEADER_LENGTH);
+		if (extras != null) out.write(extras, 0, extLen);
+		if (key != null) out.write(key, 0, keyLen);
+		if (value != null) out.write(value, 0, valueLen);
+	}
+
+	/**
+	 * Writes a response with status and its message.
+	 */
+	static void writeStatus(ByteArrayOutputStream out, Request req, short status) {
+		writeResponse(out, req, status, 0L, null, null,
+				(status == NO_ERROR ? null : RequestProcessor.ascii(statusMessage(status))));
+	}
+
+	private static String statusMessage(short status) {
+		switch (status) {
+		case KEY_NOT_FOUND: return "Not found";
+		case KEY_EXISTS: return "Data exists for key.";
+		case INVALID_ARGUMENTS: return "Invalid arguments";
+		case ITEM_NOT_STORED: return "Not stored.";
+		case NON_NUMERIC_VALUE: return "Non-numeric server-side value for incr or decr";
+		case UNKNOWN_COMMAND: return "Unknown command";
+		case NOT_SUPPORTED: return "Not supported";
+		default: return "Internal error";
+		}
+	}
+}
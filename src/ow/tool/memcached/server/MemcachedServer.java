@@ -0,0 +1,327 @@
+/*
+ * Copyright 2008-2009,2012,2015 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.memcached.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.dht.memcached.Memcached;
+import ow.messaging.util.AccessController;
+import ow.tool.util.shellframework.Command;
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * A memcached server speaking both the text and the binary protocol on a port,
+ * which is distinguished by the first byte of each request.
+ * A selector thread reads requests on all the connections
+ * and hands complete ones to pooled threads, which process them
+ * in the received order for each connection.
+ * Requests received at once, such as pipelined gets, are processed together
+ * and their responses are written at once.
+ * Commands other than the standard ones are executed by the shell commands.
+ */
+public final class MemcachedServer implements Runnable {
+	private final static Logger logger = Logger.getLogger("memcached");
+
+	private final static int INITIAL_BUFFER_SIZE = 16 * 1024;
+	private final static int MAX_BUFFER_SIZE =
+		BinaryProtocol.HEADER_LENGTH + BinaryProtocol.MAX_BODY_LENGTH;
+	private final static long WRITE_TIMEOUT = 60 * 1000L;	// msec
+
+	private final int port;
+	private final AccessController ac;
+	private final RequestProcessor processor;
+
+	private Selector selector;
+	private ServerSocketChannel servChannel;
+	private Thread selectorThread;
+	private volatile boolean stopped = false;
+
+	public MemcachedServer(Memcached dht, int port, AccessController ac,
+			List<Command<Memcached>> commandList, Map<String,Command<Memcached>> commandTable) {
+		this.port = port;
+		this.ac = ac;
+		this.processor = new RequestProcessor(dht, commandList, commandTable);
+	}
+
+	public synchronized void start() throws IOException {
+		if (this.selectorThread != null) return;
+
+		this.selector = Selector.open();
+		this.servChannel = ServerSocketChannel.open();
+		this.servChannel.socket().setReuseAddress(true);
+		this.servChannel.socket().bind(new InetSocketAddress(this.port));
+		this.servChannel.configureBlocking(false);
+		this.servChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+
+		this.stopped = false;
+		this.selectorThread = new Thread(this);
+		this.selectorThread.setName("MemcachedServer");
+		this.selectorThread.setDaemon(true);
+		this.selectorThread.start();
+
+		System.out.println("A memcached server is waiting on the port tcp/" + this.port);
+	}
+
+	public synchronized void stop() {
+		if (this.selectorThread == null) return;
+
+		this.stopped = true;
+		this.selector.wakeup();
+		this.selectorThread = null;
+	}
+
+	public void run() {
+		while (!this.stopped) {
+			try {
+				this.selector.select();
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Selector#select() threw an Exception and the selector thread will die.");
+				break;
+			}
+
+			Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				if (!key.isValid()) continue;
+
+				if (key.isAcceptable()) {
+					this.accept();
+					continue;
+				}
+
+				Connection conn = (Connection)key.attachment();
+				try {
+					if (key.isReadable()) conn.read();
+				}
+				catch (IOException e) {
+					if (e instanceof ProtocolException) {
+						logger.log(Level.INFO, "Invalid request: " + e.getMessage());
+					}
+					conn.close();
+				}
+				catch (RuntimeException e) {
+					// a malformed request should not kill the selector thread
+					logger.log(Level.WARNING, "Reading a request threw an Exception.", e);
+					conn.close();
+				}
+			}
+		}
+
+		// shut down
+		for (SelectionKey key: this.selector.keys()) {
+			Connection conn = (Connection)key.attachment();
+			if (conn != null) conn.close();
+		}
+		try { this.servChannel.close(); } catch (IOException e) { /* ignore */ }
+		try { this.selector.close(); } catch (IOException e) { /* ignore */ }
+	}
+
+	private void accept() {
+		SocketChannel sock;
+		try {
+			sock = this.servChannel.accept();
+			if (sock == null) return;
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "ServerSocketChannel#accept() threw an Exception.", e);
+			return;
+		}
+
+		try {
+			if (this.ac != null && !this.ac.allow(sock.socket().getInetAddress())) {
+				sock.close();
+				return;
+			}
+
+			sock.configureBlocking(false);
+			sock.socket().setTcpNoDelay(true);
+			sock.register(this.selector, SelectionKey.OP_READ, new Connection(sock));
+		}
+		catch (ClosedChannelException e) { /* ignore */ }
+		catch (IOException e) {
+			try { sock.close(); } catch (IOException e1) { /* ignore */ }
+		}
+	}
+
+	/**
+	 * A client connection.
+	 * A write blocks until all bytes are written even though the channel is non-blocking.
+	 */
+	private final class Connection {
+		private final SocketChannel sock;
+
+		private ByteBuffer inBuf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+		private final LinkedList<List<Request>> serialQueue = new LinkedList<List<Request>>();
+		private boolean serialRunning = false;
+		private boolean closing = false;	// input after an error closing the connection is discarded
+
+		private Selector writeSelector;	// created when the send buffer is full
+
+		Connection(SocketChannel sock) {
+			this.sock = sock;
+		}
+
+		void read() throws IOException {
+			if (!this.inBuf.hasRemaining()) {
+				// enlarge the buffer for a large request
+				if (this.inBuf.capacity() >= MAX_BUFFER_SIZE) throw new ProtocolException("request too large");
+
+				ByteBuffer buf = ByteBuffer.allocate(Math.min(this.inBuf.capacity() * 2, MAX_BUFFER_SIZE));
+				this.inBuf.flip();
+				buf.put(this.inBuf);
+				this.inBuf = buf;
+			}
+
+			if (this.sock.read(this.inBuf) < 0) throw new IOException("End-of-stream.");
+
+			if (this.closing) {
+				this.inBuf.clear();
+				return;
+			}
+
+			// parse complete requests
+			this.inBuf.flip();
+
+			List<Request> requests = null;
+			while (this.inBuf.hasRemaining()) {
+				Request req;
+				if (this.inBuf.get(this.inBuf.position()) == BinaryProtocol.REQUEST_MAGIC)
+					req = BinaryProtocol.parse(this.inBuf);
+				else
+					req = TextProtocol.parse(this.inBuf);
+
+				if (req == null) break;
+
+				if (requests == null) requests = new ArrayList<Request>();
+				requests.add(req);
+
+				if (req.closing) this.closing = true;
+			}
+
+			this.inBuf.compact();
+			if (this.inBuf.position() == 0 && this.inBuf.capacity() > INITIAL_BUFFER_SIZE) {
+				this.inBuf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);	// shrink
+			}
+
+			if (requests != null) this.dispatch(requests);
+		}
+
+		private void dispatch(List<Request> requests) {
+			synchronized (this) {
+				this.serialQueue.add(requests);
+				if (this.serialRunning) return;
+
+				this.serialRunning = true;
+			}
+
+			SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.FRONTEND,
+					ExecutorBlockingMode.CONCURRENT_NON_BLOCKING, false).submit(new Runnable() {
+				public void run() {
+					processSerially();
+				}
+			});
+		}
+
+		private void processSerially() {
+			while (true) {
+				// take all the requests received so far
+				List<Request> requests;
+				synchronized (this) {
+					if (this.serialQueue.isEmpty()) {
+						this.serialRunning = false;
+						return;
+					}
+
+					requests = this.serialQueue.poll();
+					if (!this.serialQueue.isEmpty()) {
+						requests = new ArrayList<Request>(requests);
+						for (List<Request> l: this.serialQueue) requests.addAll(l);
+						this.serialQueue.clear();
+					}
+				}
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				boolean quit = processor.process(requests, out);
+
+				try {
+					this.write(ByteBuffer.wrap(out.toByteArray()));
+				}
+				catch (IOException e) {
+					quit = true;
+				}
+
+				if (quit) {
+					this.close();
+
+					synchronized (this) {
+						this.serialQueue.clear();
+						this.serialRunning = false;
+					}
+					return;
+				}
+			}
+		}
+
+		private void write(ByteBuffer src) throws IOException {
+			synchronized (this.sock) {
+				while (src.hasRemaining()) {
+					if (this.sock.write(src) > 0) continue;
+
+					// wait until the send buffer becomes available
+					if (this.writeSelector == null) {
+						this.writeSelector = Selector.open();
+						this.sock.register(this.writeSelector, SelectionKey.OP_WRITE);
+					}
+					if (this.writeSelector.select(WRITE_TIMEOUT) <= 0) throw new IOException("Write timed out.");
+					this.writeSelector.selectedKeys().clear();
+				}
+			}
+		}
+
+		void close() {
+			try { this.sock.close(); } catch (IOException e) { /* ignore */ }
+
+			synchronized (this.sock) {
+				if (this.writeSelector != null) {
+					try { this.writeSelector.close(); } catch (IOException e) { /* ignore */ }
+					this.writeSelector = null;
+				}
+			}
+		}
+	}
+}
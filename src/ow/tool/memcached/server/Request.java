@@ -0,0 +1,70 @@
+/*
+ * Copyright 2008-2009,2012,2015 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.memcached.server;
+
+/**
+ * A request of the text or the binary memcached protocol.
+ */
+final class Request {
+	static enum Op {
+		GET, SET, ADD, REPLACE, APPEND, PREPEND, CAS, DELETE, INCR, DECR,
+		NOOP, VERSION, STAT, FLUSH, QUIT,
+		COMMAND,	// a text command processed by a shell command
+		ERROR		// a malformed request
+	}
+
+	final boolean binary;
+	final Op op;
+
+	// binary protocol
+	byte opcode;
+	int opaque;
+	boolean returnKey;	// GETK and GETKQ
+	short status;	// of an erroneous request
+
+	// noreply of the text protocol, or a quiet command of the binary protocol
+	boolean quiet;
+
+	String[] keys;
+	byte[] rawKey;	// binary protocol
+	long flags;
+	long exptime;	// second
+	byte[] data;
+	long cas;
+	boolean returnCas;	// gets
+
+	// incr and decr
+	String delta;	// decimal
+	long initial;
+	boolean create;	// binary protocol, create the item with initial if not found
+
+	// shell command, or error message
+	String command;
+	String[] args;
+	boolean closing;	// an error after which the connection is closed
+
+	Request(boolean binary, Op op) {
+		this.binary = binary;
+		this.op = op;
+	}
+
+	static Request error(String message) {
+		Request req = new Request(false, Op.ERROR);
+		req.command = message;
+		return req;
+	}
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2008-2009,2012,2015 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.memcached.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ow.dht.ValueInfo;
+import ow.dht.memcached.Item;
+import ow.dht.memcached.Memcached;
+import ow.id.ID;
+import ow.routing.RoutingException;
+import ow.tool.memcached.Main;
+import ow.tool.util.shellframework.Command;
+import ow.tool.util.shellframework.Shell;
+import ow.tool.util.shellframework.ShellContext;
+import ow.tool.util.shellframework.ShellServer;
+
+/**
+ * Processes requests of both protocols on a DHT and writes the responses.
+ * Consecutive retrieval requests, including the keys of a multi-get and pipelined ones,
+ * are looked up by a single call of {@link Memcached#get(ID[]) Memcached#get(ID[])}.
+ * Semantics follow the shell commands in {@link ow.tool.memcached.commands}.
+ */
+final class RequestProcessor {
+	private final static long MAX_RELATIVE_EXPTIME = 60L * 60 * 24 * 30;	// 30 days in second
+	private final static byte[] CRLF = ascii(Shell.CRLF);
+	private final static byte[] END = ascii("END" + Shell.CRLF);
+
+	private final Memcached dht;
+	private final int idSize;
+	private final List<Command<Memcached>> commandList;
+	private final Map<String,Command<Memcached>> commandTable;
+
+	RequestProcessor(Memcached dht,
+			List<Command<Memcached>> commandList, Map<String,Command<Memcached>> commandTable) {
+		this.dht = dht;
+		this.idSize = dht.getRoutingAlgorithmConfiguration().getIDSizeInByte();
+		this.commandList = commandList;
+		this.commandTable = commandTable;
+	}
+
+	/**
+	 * Processes the requests in order.
+	 *
+	 * @return true if the connection is to be closed.
+	 */
+	boolean process(List<Request> requests, ByteArrayOutputStream out) {
+		int i = 0;
+		while (i < requests.size()) {
+			Request req = requests.get(i);
+
+			if (req.op == Request.Op.GET) {
+				int j = i + 1;
+				while (j < requests.size() && requests.get(j).op == Request.Op.GET) j++;
+
+				this.get(requests.subList(i, j), out);
+
+				i = j;
+				continue;
+			}
+
+			if (this.process(req, out)) return true;
+
+			i++;
+		}
+
+		return false;
+	}
+
+	private boolean process(Request req, ByteArrayOutputStream out) {
+		switch (req.op) {
+		case SET: case ADD: case REPLACE: case APPEND: case PREPEND: case CAS:
+			this.store(req, out);
+			break;
+		case DELETE:
+			this.delete(req, out);
+			break;
+		case INCR: case DECR:
+			this.incrOrDecr(req, out);
+			break;
+		case NOOP:
+			BinaryProtocol.writeStatus(out, req, BinaryProtocol.NO_ERROR);
+			break;
+		case VERSION:
+			BinaryProtocol.writeResponse(out, req, BinaryProtocol.NO_ERROR, 0L, null, null, ascii(Main.VERSION));
+			break;
+		case STAT:
+			this.stat(req, out);
+			break;
+		case FLUSH:
+			// not implemented as the flush_all command
+			BinaryProtocol.writeStatus(out, req, BinaryProtocol.NOT_SUPPORTED);
+			break;
+		case QUIT:
+			if (!req.quiet) BinaryProtocol.writeStatus(out, req, BinaryProtocol.NO_ERROR);
+			return true;
+		case COMMAND:
+			return this.executeCommand(req, out);
+		case ERROR:
+			if (req.binary)
+				BinaryProtocol.writeStatus(out, req, req.status);
+			else
+				writeLine(out, req.command);
+			return req.closing;
+		default:
+			break;
+		}
+
+		return false;
+	}
+
+	private void get(List<Request> batch, ByteArrayOutputStream out) {
+		int n = 0;
+		for (Request req: batch) n += req.keys.length;
+
+		ID[] keys = new ID[n];
+		int k = 0;
+		for (Request req: batch) {
+			for (String key: req.keys) keys[k++] = ID.parseID(key, this.idSize);
+		}
+
+		Set<ValueInfo<Item>>[] values = this.dht.get(keys);
+
+		k = 0;
+		for (Request req: batch) {
+			for (String key: req.keys) {
+				Set<ValueInfo<Item>> v = values[k++];
+				Item item = (v != null && !v.isEmpty() ? v.iterator().next().getValue() : null);
+
+				if (req.binary) {
+					byte[] retKey = (req.returnKey ? req.rawKey : null);
+
+					if (item != null) {
+						BinaryProtocol.writeResponse(out, req, BinaryProtocol.NO_ERROR, item.getCasUnique(),
+								int32(item.getFlag()), retKey, item.getData());
+					}
+					else if (v == null) {	// routing failed
+						BinaryProtocol.writeStatus(out, req, BinaryProtocol.INTERNAL_ERROR);
+					}
+					else if (!req.quiet) {
+						BinaryProtocol.writeResponse(out, req, BinaryProtocol.KEY_NOT_FOUND, 0L,
+								null, retKey, ascii("Not found"));
+					}
+				}
+				else if (item != null) {
+					StringBuilder sb = new StringBuilder();
+					sb.append("VALUE ").append(key);
+					sb.append(" ").append(item.getFlag());
+					sb.append(" ").append(item.getData().length);
+					if (req.returnCas) sb.append(" ").append(item.getCasUnique());
+					writeLine(out, sb.toString());
+
+					out.write(item.getData(), 0, item.getData().length);
+					out.write(CRLF, 0, CRLF.length);
+				}
+			}
+
+			if (!req.binary) out.write(END, 0, END.length);
+		}
+	}
+
+	private void store(Request req, ByteArrayOutputStream out) {
+		ID key = ID.parseID(req.keys[0], this.idSize);
+
+		long ttl = this.ttl(req.exptime);
+		Item item = new Item(req.data, req.flags);
+
+		Set<ValueInfo<Item>> existedValue;
+		try {
+			if (req.op == Request.Op.CAS)
+				existedValue = this.dht.put(key, item, (int)req.cas, ttl);	// assume 32 bit unsigned integer
+			else
+				existedValue = this.dht.put(key, item, condition(req.op), ttl);
+		}
+		catch (Exception e) {
+			this.serverError(req, out, "SERVER_ERROR put failed");
+			return;
+		}
+
+		short status;
+		String reply;
+		if (req.op == Request.Op.CAS) {
+			if (existedValue == null) {
+				status = BinaryProtocol.KEY_NOT_FOUND; reply = "NOT_FOUND";
+			}
+			else if (existedValue.isEmpty()) {
+				status = BinaryProtocol.KEY_EXISTS; reply = "EXISTS";
+			}
+			else {
+				status = BinaryProtocol.NO_ERROR; reply = "STORED";
+			}
+		}
+		else if (existedValue != null) {
+			status = BinaryProtocol.NO_ERROR; reply = "STORED";
+		}
+		else {
+			reply = "NOT_STORED";
+			if (req.op == Request.Op.ADD) status = BinaryProtocol.KEY_EXISTS;
+			else if (req.op == Request.Op.REPLACE) status = BinaryProtocol.KEY_NOT_FOUND;
+			else status = BinaryProtocol.ITEM_NOT_STORED;
+		}
+
+		if (req.binary) {
+			if (status != BinaryProtocol.NO_ERROR)
+				BinaryProtocol.writeStatus(out, req, status);
+			else if (!req.quiet)
+				BinaryProtocol.writeResponse(out, req, status, item.getCasUnique(), null, null, null);
+		}
+		else if (!req.quiet) {
+			writeLine(out, reply);
+		}
+	}
+
+	private void delete(Request req, ByteArrayOutputStream out) {
+		ID key = ID.parseID(req.keys[0], this.idSize);
+
+		Set<ValueInfo<Item>> existedValues;
+		try {
+			existedValues = this.dht.remove(key);
+		}
+		catch (RoutingException e) {
+			this.serverError(req, out, "SERVER_ERROR put failed");
+			return;
+		}
+
+		if (req.binary) {
+			if (existedValues == null)
+				BinaryProtocol.writeStatus(out, req, BinaryProtocol.KEY_NOT_FOUND);
+			else if (!req.quiet)
+				BinaryProtocol.writeStatus(out, req, BinaryProtocol.NO_ERROR);
+		}
+		else if (!req.quiet) {
+			writeLine(out, (existedValues != null ? "DELETED" : "NOT_FOUND"));
+		}
+	}
+
+	private void incrOrDecr(Request req, ByteArrayOutputStream out) {
+		ID key = ID.parseID(req.keys[0], this.idSize);
+		boolean increment = (req.op == Request.Op.INCR);
+
+		// check value
+		BigInteger delta;
+		try {
+			delta = new BigInteger(req.delta);
+		}
+		catch (NumberFormatException e) {
+			this.clientError(req, out, "CLIENT_ERROR invalid numeric delta argument");
+			return;
+		}
+		if (delta.signum() < 0) {
+			delta = delta.negate();
+			increment = !increment;
+		}
+		if (delta.compareTo(Memcached.UINT64_MAX) > 0) {
+			this.clientError(req, out, "CLIENT_ERROR bad command line format");
+			return;
+		}
+
+		Memcached.Condition cond = (increment ? Memcached.Condition.INCREMENT : Memcached.Condition.DECREMENT);
+		Set<ValueInfo<Item>> existedValue;
+		try {
+			existedValue = this.dht.put(key, new Item(ascii(delta.toString()), 0L), cond, this.ttl(0L));
+
+			if (existedValue == null && req.create) {
+				// the binary protocol creates the item with the initial value
+				Item initial = new Item(ascii(toUnsignedString(req.initial)), 0L);
+				if (this.dht.put(key, initial, Memcached.Condition.NOT_EXIST, this.ttl(req.exptime)) != null) {
+					BinaryProtocol.writeResponse(out, req, BinaryProtocol.NO_ERROR, initial.getCasUnique(),
+							null, null, int64(req.initial));
+					return;
+				}
+			}
+		}
+		catch (Exception e) {
+			this.serverError(req, out, "SERVER_ERROR put failed");
+			return;
+		}
+
+		Item item = (existedValue != null && !existedValue.isEmpty() ? existedValue.iterator().next().getValue() : null);
+
+		if (req.binary) {
+			if (item == null) {
+				BinaryProtocol.writeStatus(out, req, BinaryProtocol.KEY_NOT_FOUND);
+				return;
+			}
+
+			long value;
+			try {
+				value = new BigInteger(new String(item.getData(), Memcached.ENCODING).trim()).longValue();
+			}
+			catch (Exception e) {
+				BinaryProtocol.writeStatus(out, req, BinaryProtocol.NON_NUMERIC_VALUE);
+				return;
+			}
+
+			if (!req.quiet) {
+				BinaryProtocol.writeResponse(out, req, BinaryProtocol.NO_ERROR, item.getCasUnique(),
+						null, null, int64(value));
+			}
+		}
+		else if (!req.quiet) {
+			if (item != null) {
+				out.write(item.getData(), 0, item.getData().length);
+				out.write(CRLF, 0, CRLF.length);
+			}
+			else {
+				writeLine(out, "NOT_FOUND");
+			}
+		}
+	}
+
+	private void stat(Request req, ByteArrayOutputStream out) {
+		if (req.keys == null) {
+			writeStat(out, req, "time", Long.toString(System.currentTimeMillis() / 1000L));
+			writeStat(out, req, "version", Main.VERSION);
+			writeStat(out, req, "curr_items", Integer.toString(this.dht.getGlobalKeys().size()));
+		}
+
+		// terminator
+		BinaryProtocol.writeStatus(out, req, BinaryProtocol.NO_ERROR);
+	}
+
+	private static void writeStat(ByteArrayOutputStream out, Request req, String name, String value) {
+		BinaryProtocol.writeResponse(out, req, BinaryProtocol.NO_ERROR, 0L, null, ascii(name), ascii(value));
+	}
+
+	/**
+	 * Executes a shell command, which is not one of the storage and retrieval commands.
+	 * Only a full command name is accepted.
+	 */
+	private boolean executeCommand(Request req, ByteArrayOutputStream out) {
+		Command<Memcached> cmd = this.commandTable.get(req.command);
+		if (cmd == null || !Arrays.asList(cmd.getNames()).contains(req.command)) {
+			writeLine(out, "ERROR");
+			return false;
+		}
+
+		PrintStream ps;
+		try {
+			ps = new PrintStream(out, false, ShellServer.ENCODING);
+		}
+		catch (UnsupportedEncodingException e) { return false; /* NOTREACHED */ }
+
+		ShellContext<Memcached> context = new ShellContext<Memcached>(null, null, this.dht, ps,
+				this.commandList, req.command, req.args, false);
+
+		boolean quit = false;
+		try {
+			quit = cmd.execute(context);
+		}
+		catch (Exception e) {
+			ps.print("SERVER_ERROR " + e + Shell.CRLF);
+		}
+		ps.flush();
+
+		return quit;
+	}
+
+	private void serverError(Request req, ByteArrayOutputStream out, String message) {
+		if (req.binary) BinaryProtocol.writeStatus(out, req, BinaryProtocol.INTERNAL_ERROR);
+		else writeLine(out, message);	// even if noreply
+	}
+
+	private void clientError(Request req, ByteArrayOutputStream out, String message) {
+		if (req.binary) BinaryProtocol.writeStatus(out, req, BinaryProtocol.INVALID_ARGUMENTS);
+		else writeLine(out, message);	// even if noreply
+	}
+
+	/**
+	 * Returns TTL in millisecond for the expiration time of memcached.
+	 * A time longer than 30 days is an absolute UNIX time.
+	 */
+	private long ttl(long exptime) {
+		if (exptime > MAX_RELATIVE_EXPTIME) {
+			exptime = Math.max(1L, exptime - System.currentTimeMillis() / 1000L);
+		}
+
+		if (exptime <= 0L) return this.dht.getConfiguration().getDefaultTTL();
+
+		return exptime * 1000L;	// sec -> msec
+	}
+
+	private static Memcached.Condition condition(Request.Op op) {
+		switch (op) {
+		case ADD: return Memcached.Condition.NOT_EXIST;
+		case REPLACE: return Memcached.Condition.EXIST;
+		case APPEND: return Memcached.Condition.APPEND;
+		case PREPEND: return Memcached.Condition.PREPEND;
+		default: return Memcached.Condition.NONE;
+		}
+	}
+
+	//
+	// utilities
+	//
+
+	private static void writeLine(ByteArrayOutputStream out, String line) {
+		byte[] b = ascii(line);
+		out.write(b, 0, b.length);
+		out.write(CRLF, 0, CRLF.length);
+	}
+
+	static byte[] ascii(String s) {
+		try {
+			return s.getBytes(ShellServer.ENCODING);
+		}
+		catch (UnsupportedEncodingException e) { return null; /* NOTREACHED */ }
+	}
+
+	static String toUnsignedString(long v) {
+		if (v >= 0L) return Long.toString(v);
+		return BigInteger.valueOf(v).add(BigInteger.ONE.shiftLeft(64)).toString();
+	}
+
+	private static byte[] int32(long v) {
+		return ByteBuffer.allocate(4).putInt((int)v).array();
+	}
+
+	private static byte[] int64(long v) {
+		return ByteBuffer.allocate(8).putLong(v).array();
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2008-2009,2012,2015 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.memcached.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser of the text memcached protocol.
+ */
+final class TextProtocol {
+	final static int MAX_LINE_LENGTH = 8 * 1024;
+	final static int MAX_KEY_LENGTH = 250;
+	final static int MAX_ITEM_SIZE = 1024 * 1024;	// byte, same as the original memcached
+
+	/**
+	 * Parses a request at the position of the buffer and advances the position over it.
+	 *
+	 * @return a request, or null if the request has not been received completely.
+	 * @throws ProtocolException if the connection is to be closed.
+	 */
+	static Request parse(ByteBuffer in) throws ProtocolException {
+		int start = in.position();
+		int eol = -1;
+		for (int i = start; i < in.limit(); i++) {
+			if (in.get(i) == '\n') { eol = i; break; }
+		}
+
+		if (eol < 0) {
+			if (in.remaining() > MAX_LINE_LENGTH) throw new ProtocolException("line too long");
+			return null;
+		}
+
+		int end = (eol > start && in.get(eol - 1) == '\r' ? eol - 1 : eol);
+		char[] chars = new char[end - start];
+		for (int i = 0; i < chars.length; i++) chars[i] = (char)(in.get(start + i) & 0xff);
+		String[] tokens = split(new String(chars));
+
+		int next = eol + 1;	// position of the next line
+
+		if (tokens.length <= 0) {
+			in.position(next);
+			return Request.error("ERROR");
+		}
+
+		String name = tokens[0].toLowerCase();
+		int nargs = tokens.length - 1;
+		Request req;
+
+		if (name.equals("get") || name.equals("gets")) {
+			if (nargs < 1) {
+				in.position(next);
+				return Request.error("ERROR");
+			}
+
+			req = new Request(false, Request.Op.GET);
+			req.returnCas = name.equals("gets");
+			req.keys = new String[nargs];
+			System.arraycopy(tokens, 1, req.keys, 0, nargs);
+		}
+		else if (name.equals("set") || name.equals("add") || name.equals("replace")
+				|| name.equals("append") || name.equals("prepend") || name.equals("cas")) {
+			boolean isCas = name.equals("cas");
+			int nMandatory = (isCas ? 5 : 4);
+
+			if (nargs < nMandatory || nargs > nMandatory + 1) {
+				in.position(next);
+				return Request.error("ERROR");
+			}
+
+			req = new Request(false, storageOp(name));
+			req.keys = new String[] { tokens[1] };
+
+			int bytes;
+			try {
+				req.flags = Long.parseLong(tokens[2]);
+				req.exptime = Long.parseLong(tokens[3]);
+				bytes = Integer.parseInt(tokens[4]);
+				if (isCas) req.cas = Long.parseLong(tokens[5]);
+			}
+			catch (NumberFormatException e) {
+				in.position(next);
+				return Request.error("CLIENT_ERROR bad command line format");
+			}
+			if (bytes < 0) {
+				in.position(next);
+				return Request.error("CLIENT_ERROR bad command line format");
+			}
+			if (bytes > MAX_ITEM_SIZE) {
+				// the data block cannot be skipped reliably
+				in.position(in.limit());
+				Request err = Request.error("CLIENT_ERROR object too large for cache");
+				err.closing = true;
+				return err;
+			}
+
+			req.quiet = (nargs > nMandatory && tokens[nMandatory + 1].equalsIgnoreCase("noreply"));
+
+			// data block followed by CRLF
+			if (in.limit() - next < bytes + 2) return null;
+
+			if (in.get(next + bytes) != '\r' || in.get(next + bytes + 1) != '\n') {
+				in.position(next + bytes + 2);
+				return Request.error("CLIENT_ERROR bad data chunk");
+			}
+
+			req.data = new byte[bytes];
+			in.position(next);
+			in.get(req.data);
+			next += bytes + 2;
+		}
+		else if (name.equals("delete")) {
+			if (nargs < 1 || nargs > 3) {
+				in.position(next);
+				return Request.error("ERROR");
+			}
+
+			req = new Request(false, Request.Op.DELETE);
+			req.keys = new String[] { tokens[1] };
+			req.quiet = (nargs >= 2 && tokens[nargs].equalsIgnoreCase("noreply"));
+		}
+		else if (name.equals("incr") || name.equals("decr")) {
+			if (nargs < 2 || nargs > 3) {
+				in.position(next);
+				return Request.error("ERROR");
+			}
+
+			req = new Request(false, (name.equals("incr") ? Request.Op.INCR : Request.Op.DECR));
+			req.keys = new String[] { tokens[1] };
+			req.delta = tokens[2];
+			req.quiet = (nargs >= 3 && tokens[3].equalsIgnoreCase("noreply"));
+		}
+		else {
+			// processed by a shell command
+			req = new Request(false, Request.Op.COMMAND);
+			req.command = name;
+			req.args = new String[nargs];
+			System.arraycopy(tokens, 1, req.args, 0, nargs);
+		}
+
+		if (req.keys != null) {
+			for (String k: req.keys) {
+				if (k.length() > MAX_KEY_LENGTH) {
+					in.position(next);
+					return Request.error("CLIENT_ERROR bad command line format");
+				}
+			}
+		}
+
+		in.position(next);
+
+		return req;
+	}
+
+	private static Request.Op storageOp(String name) {
+		if (name.equals("set")) return Request.Op.SET;
+		else if (name.equals("add")) return Request.Op.ADD;
+		else if (name.equals("replace")) return Request.Op.REPLACE;
+		else if (name.equals("append")) return Request.Op.APPEND;
+		else if (name.equals("prepend")) return Request.Op.PREPEND;
+		else return Request.Op.CAS;
+	}
+
+	private static String[] split(String line) {
+		List<String> tokens = new ArrayList<String>();
+
+		int i = 0, len = line.length();
+		while (i < len) {
+			while (i < len && line.charAt(i) == ' ') i++;
+			int s = i;
+			while (i < len && line.charAt(i) != ' ') i++;
+			if (i > s) tokens.add(line.substring(s, i));
+		}
+
+		return tokens.toArray(new String[tokens.size()]);
+	}
+}
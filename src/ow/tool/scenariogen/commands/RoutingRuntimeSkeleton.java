@@ -26,6 +26,7 @@ import ow.messaging.MessageReceiver;
 import ow.messaging.MessageSender;
 import ow.messaging.MessagingAddress;
 import ow.messaging.MessagingProvider;
+import ow.messaging.ProximityTable;
 import ow.routing.CallbackOnNodeFailure;
 import ow.routing.CallbackOnRoute;
 import ow.routing.RoutingAlgorithm;
@@ -57,6 +58,7 @@ class RoutingRuntimeSkeleton implements RoutingService, RoutingRuntime {
 	public RoutingServiceConfiguration getConfiguration() { return null; }
 	public MessageReceiver getMessageReceiver() { return null; }
 	public MessageSender getMessageSender() { return null; }
+	public ProximityTable getProximityTable() { return null; }
 	public IDAddressPair getSelfIDAddressPair() { return this.selfIDAddress; }
 	public boolean ping(MessageSender sender, IDAddressPair target) { return true; }
 	public RoutingResult route(ID target, int numNeighbors) throws RoutingException { return null; }
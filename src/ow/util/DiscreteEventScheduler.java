@@ -0,0 +1,599 @@
+/*
+ * Copyright 2007-2010 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * A discrete-event scheduler, which backs the singleton {@link Timer Timer} in event driven mode.
+ * Events are kept in a single priority queue ordered by virtual time and then by the order of scheduling,
+ * and the clock jumps to the time of the next event.
+ * Events are executed one at a time.
+ *
+ * A task written in blocking style, for example one waiting for an emulated reply,
+ * suspends itself with {@link #await(Object, long) await()} and is resumed later
+ * by an event of {@link #signal(Object) signal()} or of the timeout.
+ * While it is suspended, another thread takes over executing events.
+ * So threads stand only for suspended tasks and never run in parallel,
+ * and the order of execution does not depend on thread scheduling of JVM.
+ * They are virtual threads on Java 24 or later, which does not pin a carrier thread in a synchronized block,
+ * and platform threads otherwise.
+ * A task must not wait for a Java monitor held by a suspended task.
+ * A task suspended in a synchronized method, for example one calling
+ * {@link ow.messaging.MessageSender#sendAndReceive(ow.messaging.MessagingAddress, ow.messaging.Message) sendAndReceive()},
+ * keeps the monitor, and another task entering the monitor blocks the thread executing events
+ * and stalls the whole emulation.
+ * A thread which is not executing events, such as the main thread, should schedule tasks
+ * in an event given to {@link #scheduleAfter(Runnable, long) scheduleAfter()},
+ * because the clock can advance while it is scheduling them.
+ */
+public final class DiscreteEventScheduler {
+	private final static Logger logger = Logger.getLogger("util");
+
+	private final String threadName;
+	private final JVMLifeKeeper jvmLifeKeeper;
+	private final ThreadFactory workerFactory;	// null for platform threads
+
+	// guarded by this
+	private final PriorityQueue<Event> queue = new PriorityQueue<Event>();
+	private final Map<Runnable,Event> taskTable = new HashMap<Runnable,Event>();
+	private final Map<Object,List<Waiter>> waiterTable = new IdentityHashMap<Object,List<Waiter>>();
+	private final List<Worker> idleWorkers = new ArrayList<Worker>();
+	private final List<Worker> allWorkers = new ArrayList<Worker>();
+	private long sequence = 0L;
+	private int numNonDaemonEvent = 0;
+
+	private volatile long nowMicros;
+	private volatile Worker owner = null;	// the thread executing events
+	private volatile boolean stopped = false;
+
+	private final ExecutorService executor = new EventExecutorService();
+
+	DiscreteEventScheduler(String threadName, JVMLifeKeeper jvmLifeKeeper, long startTimeMillis) {
+		this.threadName = threadName;
+		this.jvmLifeKeeper = jvmLifeKeeper;
+		this.nowMicros = startTimeMillis * 1000L;
+
+		// a virtual thread parked in a synchronized block pins its carrier thread before Java 24
+		this.workerFactory = (javaVersion() >= 24 ?
+				SingletonThreadPoolExecutors.createVirtualThreadFactory(threadName) : null);
+	}
+
+	private static int javaVersion() {
+		String v = System.getProperty("java.specification.version", "1");
+		if (v.startsWith("1.")) v = v.substring(2);
+
+		try {
+			return Integer.parseInt(v);
+		}
+		catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Returns the current virtual time in microsecond.
+	 */
+	public long currentTimeMicros() { return this.nowMicros; }
+
+	/**
+	 * Returns true if the current thread is executing events.
+	 */
+	public boolean isExecutingEvents() {
+		Worker o = this.owner;
+		return o != null && Thread.currentThread() == o.thread;
+	}
+
+	//
+	// scheduling
+	//
+
+	void schedule(Runnable r, long absoluteTimeMillis, long intervalMillis, boolean isDaemon) {
+		synchronized (this) {
+			Event e = this.enqueue(r, Math.max(absoluteTimeMillis * 1000L, this.nowMicros),
+					intervalMillis * 1000L, isDaemon);
+			this.taskTable.put(r, e);
+		}
+
+		this.ensureStarted();
+	}
+
+	/**
+	 * Schedules the specified task after the specified virtual time from now.
+	 * The task keeps the JVM alive but cannot be cancelled.
+	 */
+	public void scheduleAfter(Runnable r, long delayMicros) {
+		synchronized (this) {
+			this.enqueue(r, this.nowMicros + Math.max(delayMicros, 0L), 0L, false);
+		}
+
+		this.ensureStarted();
+	}
+
+	private Event enqueue(Runnable r, long timeMicros, long intervalMicros, boolean isDaemon) {
+		Event e = new Event(timeMicros, this.sequence++, r, intervalMicros, isDaemon, null);
+		this.queue.add(e);
+
+		if (!isDaemon && this.numNonDaemonEvent++ == 0) {
+			this.jvmLifeKeeper.keep(true);
+		}
+
+		this.notifyAll();	// wakes the worker waiting for an event
+
+		return e;
+	}
+
+	boolean cancel(Runnable r) {
+		synchronized (this) {
+			Event e = this.taskTable.remove(r);
+			if (e == null || e.cancelled) return false;
+
+			e.cancelled = true;
+			this.finished(e);
+
+			return true;
+		}
+	}
+
+	long getScheduledTime(Runnable r) {
+		synchronized (this) {
+			Event e = this.taskTable.get(r);
+			return (e != null ? e.time / 1000L : -1L);
+		}
+	}
+
+	private void finished(Event e) {
+		if (!e.isDaemon && --this.numNonDaemonEvent <= 0) {
+			this.jvmLifeKeeper.keep(false);
+		}
+	}
+
+	/**
+	 * Moves scheduled tasks to the specified timer, which is not in event driven mode.
+	 */
+	void moveTasksTo(Timer timer) {
+		List<Event> events;
+		synchronized (this) {
+			events = new ArrayList<Event>(this.taskTable.values());
+			Collections.sort(events);
+		}
+
+		for (Event e: events) {
+			if (!this.cancel(e.task)) continue;
+
+			if (e.interval > 0L)
+				timer.scheduleAtFixedRate(e.task, e.time / 1000L, e.interval / 1000L, e.isDaemon);
+			else
+				timer.schedule(e.task, e.time / 1000L, e.isDaemon);
+		}
+	}
+
+	void stop() {
+		List<Worker> workers;
+		synchronized (this) {
+			this.stopped = true;
+			this.notifyAll();
+
+			workers = new ArrayList<Worker>(this.allWorkers);
+		}
+
+		for (Worker w: workers) LockSupport.unpark(w.thread);
+	}
+
+	//
+	// suspension and resumption
+	//
+
+	/**
+	 * Suspends the current task until {@link #signal(Object) signal()} is called on the condition
+	 * or the specified virtual time passes.
+	 * A thread which is not executing events waits for them in real time.
+	 * If the condition is a {@link Future Future} which is done, or a queue returned by
+	 * {@link #newBlockingQueue() newBlockingQueue()} which is not empty, this method returns true at once.
+	 * The check is done under the lock of this scheduler,
+	 * so a signal between the caller's own check and this call is not missed.
+	 *
+	 * @param timeoutMicros timeout in microsecond, or a negative value not to time out.
+	 * @return true if signalled, false if timed out.
+	 */
+	public boolean await(Object condition, long timeoutMicros) {
+		Worker o = this.owner;
+		Waiter w = new Waiter(condition, (o != null && Thread.currentThread() == o.thread ? o : null));
+
+		Worker next = null;
+		synchronized (this) {
+			if (this.stopped) return false;
+			if (isReady(condition)) return true;
+
+			List<Waiter> waiters = this.waiterTable.get(condition);
+			if (waiters == null) {
+				waiters = new ArrayList<Waiter>(1);
+				this.waiterTable.put(condition, waiters);
+			}
+			waiters.add(w);
+
+			if (timeoutMicros >= 0L) {
+				w.timeout = new Event(this.nowMicros + timeoutMicros, this.sequence++, null, 0L, true, w);
+				this.queue.add(w.timeout);
+			}
+
+			if (w.worker != null) {
+				// hand over the execution of events
+				next = (this.idleWorkers.isEmpty() ?
+						this.newWorker() : this.idleWorkers.remove(this.idleWorkers.size() - 1));
+				this.owner = next;
+			}
+			else {
+				this.ensureStarted();	// for the timeout
+
+				while (!w.resumed && !this.stopped) {
+					try {
+						this.wait();
+					}
+					catch (InterruptedException e) { /* ignore */ }
+				}
+
+				return w.signalled;
+			}
+		}
+
+		next.takeTurn();
+		w.worker.waitForTurn();
+
+		return w.signalled;
+	}
+
+	/**
+	 * Returns true if a waiter on the condition need not wait.
+	 * The signaller of such a condition calls {@link #signal(Object) signal()} after changing its state.
+	 */
+	private static boolean isReady(Object condition) {
+		if (condition instanceof Future) return ((Future<?>)condition).isDone();
+		if (condition instanceof EventBlockingQueue) return !((EventBlockingQueue<?>)condition).isEmpty();
+		return false;
+	}
+
+	/**
+	 * Suspends the current task for the specified virtual time.
+	 */
+	public void sleep(long micros) {
+		this.await(new Object(), Math.max(micros, 0L));
+	}
+
+	/**
+	 * Resumes all the tasks suspended on the condition at the current virtual time.
+	 */
+	public void signal(Object condition) {
+		synchronized (this) {
+			List<Waiter> waiters = this.waiterTable.remove(condition);
+			if (waiters == null) return;
+
+			for (Waiter w: waiters) {
+				if (w.timeout != null) {
+					w.timeout.cancelled = true;
+					w.timeout = null;
+				}
+
+				w.signalled = true;
+				this.queue.add(new Event(this.nowMicros, this.sequence++, null, 0L, true, w));
+			}
+
+			this.notifyAll();
+		}
+	}
+
+	//
+	// execution of events
+	//
+
+	private void ensureStarted() {
+		Worker w = null;
+
+		synchronized (this) {
+			if (this.owner == null && !this.stopped) {
+				w = this.owner = this.newWorker();
+			}
+		}
+
+		if (w != null) w.takeTurn();
+	}
+
+	private Worker newWorker() {
+		Worker w = new Worker(this.threadName + " " + this.allWorkers.size());
+		this.allWorkers.add(w);
+		w.thread.start();
+
+		return w;
+	}
+
+	/**
+	 * Executes events until the current worker hands over the execution to a resumed task.
+	 */
+	private void dispatch(Worker self) {
+		while (true) {
+			Event e;
+			Worker resumed = null;
+
+			synchronized (this) {
+				while (true) {
+					if (this.stopped) return;
+
+					e = this.queue.poll();
+					if (e == null) {
+						try {
+							this.wait();
+						}
+						catch (InterruptedException ex) { /* ignore */ }
+						continue;
+					}
+
+					if (!e.cancelled) break;
+				}
+
+				if (e.time > this.nowMicros) this.nowMicros = e.time;
+
+				if (e.waiter != null) {
+					Waiter w = e.waiter;
+					if (e == w.timeout) {
+						w.timeout = null;
+
+						List<Waiter> waiters = this.waiterTable.get(w.condition);
+						if (waiters != null) {
+							waiters.remove(w);
+							if (waiters.isEmpty()) this.waiterTable.remove(w.condition);
+						}
+					}
+
+					w.resumed = true;
+
+					if (w.worker == null) {
+						this.notifyAll();	// a thread waiting in real time
+						continue;
+					}
+
+					resumed = w.worker;
+					this.owner = resumed;
+					this.idleWorkers.add(self);
+				}
+				else if (this.taskTable.get(e.task) == e) {
+					this.taskTable.remove(e.task);
+				}
+			}
+
+			if (resumed != null) {
+				resumed.takeTurn();
+				return;
+			}
+
+			Thread.interrupted();	// clears an interrupt to a previous task
+
+			try {
+				e.task.run();
+			}
+			catch (Throwable t) {
+				logger.log(Level.WARNING, "A task threw an exception: " + t, t);
+			}
+
+			synchronized (this) {
+				// re-submit a periodic task
+				if (e.interval > 0L && !this.stopped) {
+					this.taskTable.put(e.task, this.enqueue(e.task, e.time + e.interval, e.interval, e.isDaemon));
+				}
+
+				this.finished(e);
+			}
+		}
+	}
+
+	private final static class Event implements Comparable<Event> {
+		private final long time;	// in microsecond
+		private final long seq;
+		private final Runnable task;
+		private final long interval;
+		private final boolean isDaemon;
+		private final Waiter waiter;	// a task to be resumed instead of a new task
+		private boolean cancelled = false;
+
+		private Event(long time, long seq, Runnable task, long interval, boolean isDaemon, Waiter waiter) {
+			this.time = time;
+			this.seq = seq;
+			this.task = task;
+			this.interval = interval;
+			this.isDaemon = isDaemon;
+			this.waiter = waiter;
+		}
+
+		public int compareTo(Event o) {
+			int order = Long.signum(this.time - o.time);
+			if (order != 0) return order;
+
+			return Long.signum(this.seq - o.seq);
+		}
+	}
+
+	private final static class Waiter {
+		private final Object condition;
+		private final Worker worker;	// null if the thread is not executing events
+		private Event timeout;
+		private boolean resumed = false;
+		private boolean signalled = false;
+
+		private Waiter(Object condition, Worker worker) {
+			this.condition = condition;
+			this.worker = worker;
+		}
+	}
+
+	/**
+	 * A thread standing for a suspended task, or executing events.
+	 * Most of the workers are parked, so they are virtual threads where the runtime allows.
+	 */
+	private final class Worker implements Runnable {
+		private final Thread thread;
+
+		private Worker(String name) {
+			if (workerFactory != null) {
+				this.thread = workerFactory.newThread(this);
+			}
+			else {
+				this.thread = new Thread(this);
+				this.thread.setDaemon(true);
+			}
+			this.thread.setName(name);
+		}
+
+		public void run() {
+			while (!stopped) {
+				this.waitForTurn();
+				dispatch(this);
+			}
+		}
+
+		private void takeTurn() {
+			LockSupport.unpark(this.thread);
+		}
+
+		private void waitForTurn() {
+			boolean interrupted = false;
+
+			while (owner != this && !stopped) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) interrupted = true;
+			}
+
+			if (interrupted) this.thread.interrupt();
+		}
+	}
+
+	//
+	// utilities for tasks written in blocking style
+	//
+
+	/**
+	 * Returns an {@link ExecutorService ExecutorService} which executes a task as an event at the current virtual time.
+	 * A returned Future waits for the task in virtual time.
+	 */
+	public ExecutorService getExecutorService() { return this.executor; }
+
+	/**
+	 * Returns a {@link BlockingQueue BlockingQueue} whose taker waits in virtual time.
+	 */
+	public <E> BlockingQueue<E> newBlockingQueue() { return new EventBlockingQueue<E>(); }
+
+	private final class EventExecutorService extends AbstractExecutorService {
+		public void execute(Runnable r) { scheduleAfter(r, 0L); }
+
+		protected <T> RunnableFuture<T> newTaskFor(Callable<T> c) { return new EventFuture<T>(c); }
+		protected <T> RunnableFuture<T> newTaskFor(Runnable r, T value) { return new EventFuture<T>(r, value); }
+
+		public void shutdown() {}
+		public List<Runnable> shutdownNow() { return new ArrayList<Runnable>(); }
+		public boolean isShutdown() { return stopped; }
+		public boolean isTerminated() { return stopped; }
+		public boolean awaitTermination(long timeout, TimeUnit unit) { return stopped; }
+	}
+
+	private final class EventFuture<T> extends FutureTask<T> {
+		private EventFuture(Callable<T> c) { super(c); }
+		private EventFuture(Runnable r, T value) { super(r, value); }
+
+		protected void done() { signal(this); }
+
+		public T get() throws InterruptedException, ExecutionException {
+			while (!this.isDone()) {
+				if (stopped) throw new InterruptedException();
+				await(this, -1L);
+			}
+			return super.get();
+		}
+
+		public T get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = currentTimeMicros() + unit.toMicros(timeout);
+
+			while (!this.isDone()) {
+				long rest = deadline - currentTimeMicros();
+				if (rest <= 0L || stopped) throw new TimeoutException();
+
+				await(this, rest);
+			}
+
+			return super.get();
+		}
+	}
+
+	private final class EventBlockingQueue<E> extends LinkedBlockingQueue<E> {
+		public boolean offer(E e) {
+			boolean ret = super.offer(e);
+			if (ret) signal(this);
+			return ret;
+		}
+
+		public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+			return this.offer(e);
+		}
+
+		public void put(E e) throws InterruptedException {
+			this.offer(e);
+		}
+
+		public E take() throws InterruptedException {
+			E e;
+			while ((e = this.poll()) == null) {
+				if (stopped) throw new InterruptedException();
+				await(this, -1L);
+			}
+			return e;
+		}
+
+		public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = currentTimeMicros() + unit.toMicros(timeout);
+
+			E e;
+			while ((e = this.poll()) == null) {
+				long rest = deadline - currentTimeMicros();
+				if (rest <= 0L || stopped) return null;
+
+				await(this, rest);
+			}
+			return e;
+		}
+	}
+}
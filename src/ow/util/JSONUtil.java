@@ -0,0 +1,219 @@
+/*
+ * Copyright 2007 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small JSON parser and writer.
+ * A JSON text is parsed into {@link Map Map}, {@link List List}, {@link String String},
+ * {@link Long Long}, {@link Double Double}, {@link Boolean Boolean} and null.
+ */
+public final class JSONUtil {
+	private final String text;
+	private int pos = 0;
+
+	private JSONUtil(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parses a JSON text.
+	 *
+	 * @throws IllegalArgumentException if the text is not a valid JSON text.
+	 */
+	public static Object parse(String text) {
+		JSONUtil parser = new JSONUtil(text);
+
+		Object ret = parser.parseValue();
+		parser.skipWhitespace();
+		if (parser.pos < text.length()) throw parser.error("garbage after a value");
+
+		return ret;
+	}
+
+	/**
+	 * Appends a string quoted as a JSON string.
+	 */
+	public static StringBuilder quote(StringBuilder sb, String str) {
+		sb.append('"');
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int)c));
+				}
+				else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+
+		return sb;
+	}
+
+	private Object parseValue() {
+		this.skipWhitespace();
+		if (this.pos >= this.text.length()) throw this.error("unexpected end");
+
+		char c = this.text.charAt(this.pos);
+		switch (c) {
+		case '{': return this.parseObject();
+		case '[': return this.parseArray();
+		case '"': return this.parseString();
+		case 't': this.expect("true"); return Boolean.TRUE;
+		case 'f': this.expect("false"); return Boolean.FALSE;
+		case 'n': this.expect("null"); return null;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) return this.parseNumber();
+			throw this.error("unexpected character");
+		}
+	}
+
+	private Map<String,Object> parseObject() {
+		Map<String,Object> ret = new LinkedHashMap<String,Object>();
+
+		this.pos++;	// '{'
+		this.skipWhitespace();
+		if (this.peek() == '}') { this.pos++; return ret; }
+
+		while (true) {
+			this.skipWhitespace();
+			if (this.peek() != '"') throw this.error("a name expected");
+			String name = this.parseString();
+
+			this.skipWhitespace();
+			if (this.peek() != ':') throw this.error("':' expected");
+			this.pos++;
+
+			ret.put(name, this.parseValue());
+
+			this.skipWhitespace();
+			char c = this.peek();
+			this.pos++;
+			if (c == '}') return ret;
+			if (c != ',') throw this.error("',' or '}' expected");
+		}
+	}
+
+	private List<Object> parseArray() {
+		List<Object> ret = new ArrayList<Object>();
+
+		this.pos++;	// '['
+		this.skipWhitespace();
+		if (this.peek() == ']') { this.pos++; return ret; }
+
+		while (true) {
+			ret.add(this.parseValue());
+
+			this.skipWhitespace();
+			char c = this.peek();
+			this.pos++;
+			if (c == ']') return ret;
+			if (c != ',') throw this.error("',' or ']' expected");
+		}
+	}
+
+	private String parseString() {
+		StringBuilder sb = new StringBuilder();
+
+		this.pos++;	// '"'
+		while (true) {
+			if (this.pos >= this.text.length()) throw this.error("unterminated string");
+
+			char c = this.text.charAt(this.pos++);
+			if (c == '"') return sb.toString();
+			if (c != '\\') { sb.append(c); continue; }
+
+			if (this.pos >= this.text.length()) throw this.error("unterminated string");
+			c = this.text.charAt(this.pos++);
+			switch (c) {
+			case '"': case '\\': case '/': sb.append(c); break;
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if (this.pos + 4 > this.text.length()) throw this.error("invalid escape");
+				try {
+					sb.append((char)Integer.parseInt(this.text.substring(this.pos, this.pos + 4), 16));
+				}
+				catch (NumberFormatException e) {
+					throw this.error("invalid escape");
+				}
+				this.pos += 4;
+				break;
+			default:
+				throw this.error("invalid escape");
+			}
+		}
+	}
+
+	private Object parseNumber() {
+		int start = this.pos;
+		boolean isInteger = true;
+
+		while (this.pos < this.text.length()) {
+			char c = this.text.charAt(this.pos);
+			if (c == '.' || c == 'e' || c == 'E') isInteger = false;
+			else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) break;
+			this.pos++;
+		}
+
+		String num = this.text.substring(start, this.pos);
+		try {
+			if (isInteger) return Long.parseLong(num);
+			else return Double.parseDouble(num);
+		}
+		catch (NumberFormatException e) {
+			throw this.error("invalid number");
+		}
+	}
+
+	private void expect(String literal) {
+		if (!this.text.startsWith(literal, this.pos)) throw this.error("unexpected character");
+		this.pos += literal.length();
+	}
+
+	private char peek() {
+		if (this.pos >= this.text.length()) throw this.error("unexpected end");
+		return this.text.charAt(this.pos);
+	}
+
+	private void skipWhitespace() {
+		while (this.pos < this.text.length()) {
+			char c = this.text.charAt(this.pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+			this.pos++;
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException("Invalid JSON: " + message + " at " + this.pos);
+	}
+}
@@ -16,19 +16,27 @@
 
 package ow.util;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
 import ow.util.concurrent.SingletonThreadPoolExecutors;
 
 /**
  * An alternative to {@link java.util.Timer Timer} class.
+ *
+ * In event driven mode, tasks are scheduled on a {@link DiscreteEventScheduler DiscreteEventScheduler},
+ * which advances virtual time to the next task instead of waiting for it,
+ * and {@link #currentTimeMillis() currentTimeMillis()} returns the virtual time.
  */
 public final class Timer {
 	final static Logger logger = Logger.getLogger("util");
@@ -48,6 +56,9 @@ public final class Timer {
 	public final static long ALLOWED_DELAY_TIME = 1000L;
 	public final static long ADDITIONAL_WAIT = 0L;	// 0 msec
 
+	// scheduler backend of the singleton timer
+	public final static String DEFAULT_SCHEDULER_TYPE = "SortedSet";	// "SortedSet" or "TimingWheel"
+
 	// real time or event-driven
 	public volatile boolean eventDrivenMode = false;
 
@@ -62,20 +73,41 @@ public final class Timer {
 
 	private final JVMLifeKeeper jvmLifeKeeper;
 
-	private long expeditedTime = 0L;
+	private final TimingWheel timingWheel;	// null if tasks are kept in taskSet
+
+	long expeditedTime = 0L;
+
+	private volatile DiscreteEventScheduler eventScheduler = null;	// not null in event driven mode
+
+	private final static AtomicLong sequence = new AtomicLong();	// breaks a tie of tasks
 
 	private static Timer singletonTimer = null;
+	private static String singletonSchedulerType = DEFAULT_SCHEDULER_TYPE;
 
 	public static Timer getSingletonTimer() {
 		synchronized (Timer.class) {
 			if (singletonTimer == null) {
-				singletonTimer = new Timer("Singleton Timer", Thread.NORM_PRIORITY);
+				singletonTimer = new Timer("Singleton Timer", Thread.NORM_PRIORITY, singletonSchedulerType);
 			}
 		}
 
 		return singletonTimer;
 	}
 
+	/**
+	 * Sets the scheduler backend of the singleton timer, "SortedSet" or "TimingWheel".
+	 * This takes effect only before the singleton timer is instantiated.
+	 * "TimingWheel" scales to a large number of tasks and concurrent scheduling and cancellation,
+	 * and does not slow down {@link #currentTimeMillis() currentTimeMillis()} when tasks are delayed.
+	 */
+	public static String setSingletonSchedulerType(String type) {
+		synchronized (Timer.class) {
+			String old = singletonSchedulerType;
+			singletonSchedulerType = type;
+			return old;
+		}
+	}
+
 //	public Timer() {
 //		this("Timer thread");
 //	}
@@ -84,7 +116,7 @@ public final class Timer {
 //		this(threadName, Thread.currentThread().getPriority());
 //	}
 
-	private Timer(String threadName, int threadPriority) {
+	Timer(String threadName, int threadPriority, String schedulerType) {
 		this.timerThreadName = threadName;
 		this.timerThreadPriority = threadPriority;
 
@@ -99,14 +131,68 @@ public final class Timer {
 		this.timerRunner = new TimerRunner();
 
 		this.jvmLifeKeeper = new JVMLifeKeeper(JVM_LASTING_TIME);
+
+		if ("TimingWheel".equals(schedulerType)) {
+			this.timingWheel = new TimingWheel(this, this.jvmLifeKeeper, threadName, this.timerThreadPriority);
+		}
+		else {
+			if (!"SortedSet".equals(schedulerType)) {
+				logger.log(Level.WARNING, "No such scheduler: " + schedulerType + ", use SortedSet instead.");
+			}
+			this.timingWheel = null;
+		}
 	}
 
-	public boolean setEventDrivenMode(boolean mode) {
+	/**
+	 * Switches to or from event driven mode, with scheduled tasks and the current time.
+	 */
+	public synchronized boolean setEventDrivenMode(boolean mode) {
 		boolean old = this.eventDrivenMode;
-		this.eventDrivenMode = mode;
+		if (mode == old) return old;
+
+		if (mode) {
+			DiscreteEventScheduler scheduler = new DiscreteEventScheduler(
+					this.timerThreadName, this.jvmLifeKeeper, System.currentTimeMillis() + this.expeditedTime);
+			this.eventScheduler = scheduler;
+			this.eventDrivenMode = true;
+
+			if (this.timingWheel != null) {
+				this.timingWheel.moveTasksTo(scheduler);
+			}
+			else {
+				List<ScheduledTask> tasks;
+				synchronized (this.taskSet) {
+					tasks = new ArrayList<ScheduledTask>(this.taskSet);
+				}
+
+				for (ScheduledTask task: tasks) {
+					if (this.cancelScheduledTask(task.getTask())) {
+						scheduler.schedule(task.getTask(), task.getScheduledTime(), task.getInterval(), task.isDaemon());
+					}
+				}
+			}
+		}
+		else {
+			DiscreteEventScheduler scheduler = this.eventScheduler;
+			this.expeditedTime = scheduler.currentTimeMicros() / 1000L - System.currentTimeMillis();
+			this.eventScheduler = null;
+			this.eventDrivenMode = false;
+
+			scheduler.moveTasksTo(this);
+			scheduler.stop();
+		}
+
 		return old;
 	}
 
+	/**
+	 * Returns the scheduler of the singleton timer in event driven mode, or null.
+	 */
+	public static DiscreteEventScheduler getEventScheduler() {
+		Timer timer = singletonTimer;
+		return (timer != null ? timer.eventScheduler : null);
+	}
+
 	private synchronized void ensureTimerThreadRunning() {
 		// instantiate a thread
 		if (this.timerThread == null) {
@@ -136,6 +222,17 @@ public final class Timer {
 	}
 
 	public void schedule(Runnable r, long absoluteTime, boolean isDaemon, boolean executeConcurrently) {
+		DiscreteEventScheduler scheduler = this.eventScheduler;
+		if (scheduler != null) {
+			scheduler.schedule(r, absoluteTime, 0L, isDaemon);
+			return;
+		}
+
+		if (this.timingWheel != null) {
+			this.timingWheel.schedule(r, absoluteTime, 0L, isDaemon, executeConcurrently);
+			return;
+		}
+
 		ScheduledTask task = new ScheduledTask(r, absoluteTime, 0L, isDaemon, executeConcurrently);
 
 		synchronized (this.taskSet) {
@@ -165,6 +262,17 @@ public final class Timer {
 	}
 
 	public void scheduleAtFixedRate(Runnable r, long absoluteTime, long interval, boolean isDaemon, boolean executeConcurrently) {
+		DiscreteEventScheduler scheduler = this.eventScheduler;
+		if (scheduler != null) {
+			scheduler.schedule(r, absoluteTime, interval, isDaemon);
+			return;
+		}
+
+		if (this.timingWheel != null) {
+			this.timingWheel.schedule(r, absoluteTime, interval, isDaemon, executeConcurrently);
+			return;
+		}
+
 		ScheduledTask task = new ScheduledTask(r, absoluteTime, interval, isDaemon, executeConcurrently);
 
 		synchronized (this.taskSet) {
@@ -186,6 +294,19 @@ public final class Timer {
 	 * Cancels the specified {@link Runnable Runnable} instance.
 	 */
 	public boolean cancel(Runnable r) {
+		DiscreteEventScheduler scheduler = this.eventScheduler;
+		if (scheduler != null) {
+			return scheduler.cancel(r);
+		}
+
+		if (this.timingWheel != null) {
+			return this.timingWheel.cancel(r);
+		}
+
+		return this.cancelScheduledTask(r);
+	}
+
+	private boolean cancelScheduledTask(Runnable r) {
 		boolean scheduled = false;
 
 		synchronized (this.taskSet) {
@@ -212,6 +333,15 @@ public final class Timer {
 	 * Returns (absolute) scheduled time of the specified {@link Runnable Runnable} instance.
 	 */
 	public long getScheduledTime(Runnable r) {
+		DiscreteEventScheduler scheduler = this.eventScheduler;
+		if (scheduler != null) {
+			return scheduler.getScheduledTime(r);
+		}
+
+		if (this.timingWheel != null) {
+			return this.timingWheel.getScheduledTime(r);
+		}
+
 		ScheduledTask task = this.taskTable.get(r);
 
 		if (task != null)
@@ -221,6 +351,15 @@ public final class Timer {
 	}
 
 	public void stop() {
+		DiscreteEventScheduler scheduler = this.eventScheduler;
+		if (scheduler != null) {
+			scheduler.stop();
+		}
+
+		if (this.timingWheel != null) {
+			this.timingWheel.stop();
+		}
+
 		synchronized (this) {
 			if (this.timerRunner != null) {
 				this.timerRunner.stopped = true;
@@ -244,13 +383,24 @@ public final class Timer {
 	//
 
 	public static long currentTimeMillis() {
-		long t = System.currentTimeMillis();
+		Timer timer = singletonTimer;
+		if (timer != null) {
+			DiscreteEventScheduler scheduler = timer.eventScheduler;
+			if (scheduler != null) {
+				return scheduler.currentTimeMicros() / 1000L;
+			}
 
-		if (singletonTimer != null) {
-			t = t + singletonTimer.expeditedTime;
+			return System.currentTimeMillis() + timer.expeditedTime;
 		}
 
-		return t;
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns true if the singleton timer is in event driven mode.
+	 */
+	public static boolean isEventDriven() {
+		return getEventScheduler() != null;
 	}
 
 	// task representation
@@ -260,6 +410,7 @@ public final class Timer {
 		private final long interval;
 		private final boolean isDaemon;
 		private final boolean executedConcurrently;
+		private final long seq = sequence.getAndIncrement();
 
 		private ScheduledTask(Runnable task, long absoluteTime,
 				boolean isDaemon, boolean executedConcurrently) {
@@ -288,10 +439,8 @@ public final class Timer {
 
 			if (order != 0) return order;
 
-			order = System.identityHashCode(o) - System.identityHashCode(this); 
-				// 0 in case that `this' and `o' are the same ScheduledTask instance.
-
-			return order;
+			// in order of scheduling
+			return Long.signum(this.seq - o.seq);
 		}
 	}
 
@@ -406,7 +555,7 @@ System.out.flush();
 
 				if (!Timer.this.eventDrivenMode
 						&& USE_THREAD_POOL && currentTask.executedConcurrently()) {
-					ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(
+					ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MAINTENANCE,
 							ExecutorBlockingMode.CONCURRENT_BLOCKING, currentTask.isDaemon());
 					ex.submit(r);
 				}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import ow.util.concurrent.ExecutorBlockingMode;
+import ow.util.concurrent.ExecutorSubsystem;
+import ow.util.concurrent.SingletonThreadPoolExecutors;
+
+/**
+ * A scheduler backend of {@link Timer Timer} based on a hierarchical hashed timing wheel.
+ * Scheduling and cancellation only put a task on a lock-free queue,
+ * and the wheel itself is touched only by the timer thread.
+ * The timer thread sleeps until the earliest non-empty bucket expires
+ * or an earlier task is scheduled.
+ */
+final class TimingWheel implements Runnable {
+	// the finest wheel ticks every 1 msec, as precise as the sorted set of tasks.
+	private final static long TICK = 1L;
+	private final static int WHEEL_SIZE = 512;
+
+	// the timer thread is woken up to drain the queues when this number of requests have been queued
+	private final static int DRAIN_THRESHOLD = 1024;
+
+	private final Timer timer;
+	private final JVMLifeKeeper jvmLifeKeeper;
+	private final String threadName;
+	private final int threadPriority;
+	private volatile Thread thread = null;
+	private volatile boolean stopped = false;
+
+	private final Queue<Entry> submissions = new ConcurrentLinkedQueue<Entry>();
+	private final Queue<Entry> cancellations = new ConcurrentLinkedQueue<Entry>();
+	private final ConcurrentMap<Runnable,Entry> taskTable = new ConcurrentHashMap<Runnable,Entry>();
+	private final AtomicInteger numQueued = new AtomicInteger();
+	private final AtomicInteger numNonDaemonTask = new AtomicInteger();
+	private volatile long nextWakeup = Long.MIN_VALUE;	// Long.MIN_VALUE while the timer thread is awake
+
+	// touched only by the timer thread
+	private final PriorityQueue<Bucket> bucketQueue = new PriorityQueue<Bucket>();
+	private Wheel wheel = null;
+
+	TimingWheel(Timer timer, JVMLifeKeeper jvmLifeKeeper, String threadName, int threadPriority) {
+		this.timer = timer;
+		this.jvmLifeKeeper = jvmLifeKeeper;
+		this.threadName = threadName;
+		this.threadPriority = threadPriority;
+	}
+
+	void schedule(Runnable r, long absoluteTime, long interval, boolean isDaemon, boolean executeConcurrently) {
+		Entry e = new Entry(r, absoluteTime, interval, isDaemon, executeConcurrently);
+
+		this.taskTable.put(r, e);
+		if (!isDaemon) this.nonDaemonTaskAdded();
+
+		this.submissions.offer(e);
+
+		Thread t = this.ensureTimerThreadRunning();
+		if (absoluteTime < this.nextWakeup
+				|| this.numQueued.incrementAndGet() == DRAIN_THRESHOLD) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	boolean cancel(Runnable r) {
+		Entry e = this.taskTable.remove(r);
+		if (e == null || !e.setState(Entry.PENDING, Entry.CANCELLED)) {
+			return false;
+		}
+
+		this.cancellations.offer(e);	// to be unlinked from a bucket by the timer thread
+		if (this.numQueued.incrementAndGet() == DRAIN_THRESHOLD) {
+			LockSupport.unpark(this.thread);
+		}
+		if (!e.isDaemon) this.nonDaemonTaskRemoved();
+
+		return true;
+	}
+
+	long getScheduledTime(Runnable r) {
+		Entry e = this.taskTable.get(r);
+
+		if (e != null)
+			return e.time;
+		else
+			return -1L;
+	}
+
+	/**
+	 * Moves scheduled tasks to the scheduler of event driven mode.
+	 */
+	void moveTasksTo(DiscreteEventScheduler scheduler) {
+		List<Entry> entries = new ArrayList<Entry>(this.taskTable.values());
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry o1, Entry o2) { return Long.signum(o1.time - o2.time); }
+		});
+
+		for (Entry e: entries) {
+			if (this.cancel(e.task)) {
+				scheduler.schedule(e.task, e.time, e.interval, e.isDaemon);
+			}
+		}
+	}
+
+	synchronized void stop() {
+		this.stopped = true;
+
+		if (this.thread != null) {
+			LockSupport.unpark(this.thread);
+			this.thread = null;
+		}
+	}
+
+	private Thread ensureTimerThreadRunning() {
+		Thread t = this.thread;
+		if (t != null) return t;
+
+		synchronized (this) {
+			if (this.thread == null) {
+				t = this.thread = new Thread(this);
+				t.setName(this.threadName);
+				t.setDaemon(true);
+				try {
+					t.setPriority(this.threadPriority);
+				}
+				catch (Exception e) {
+					Timer.logger.log(Level.WARNING, "Could not set thread priority: " + this.threadPriority, e);
+				}
+
+				this.stopped = false;
+				t.start();
+			}
+
+			return this.thread;
+		}
+	}
+
+	private void nonDaemonTaskAdded() {
+		if (this.numNonDaemonTask.incrementAndGet() == 1) {
+			synchronized (this.jvmLifeKeeper) {
+				if (this.numNonDaemonTask.get() > 0) this.jvmLifeKeeper.keep(true);
+			}
+		}
+	}
+
+	private void nonDaemonTaskRemoved() {
+		if (this.numNonDaemonTask.decrementAndGet() <= 0) {
+			synchronized (this.jvmLifeKeeper) {
+				if (this.numNonDaemonTask.get() <= 0) this.jvmLifeKeeper.keep(false);
+			}
+		}
+	}
+
+	public void run() {
+		while (!this.stopped) {
+			// accept newly scheduled and cancelled tasks
+			this.numQueued.set(0);
+
+			Entry e;
+			while ((e = this.submissions.poll()) != null) {
+				if (e.state == Entry.PENDING) this.add(e);
+			}
+			while ((e = this.cancellations.poll()) != null) {
+				if (e.bucket != null) e.bucket.remove(e);
+			}
+
+			Bucket bucket = this.bucketQueue.peek();
+			long now = Timer.currentTimeMillis();
+
+			if (bucket != null && bucket.expiration <= now) {
+				this.bucketQueue.poll();
+				this.wheel.advance(bucket.expiration);
+
+				// execute expired tasks and move the others to a finer wheel
+				Entry next;
+				for (e = bucket.flush(); e != null; e = next) {
+					next = e.next;
+					e.next = null;
+
+					if (e.state == Entry.PENDING) this.add(e);
+				}
+
+				continue;
+			}
+
+			// sleep until the next bucket expires or an earlier task is scheduled
+			long wakeup = (bucket != null ? bucket.expiration : Long.MAX_VALUE);
+			this.nextWakeup = wakeup;
+			if (this.submissions.isEmpty() && !this.stopped) {
+				if (wakeup == Long.MAX_VALUE)
+					LockSupport.park(this);
+				else
+					LockSupport.parkNanos(this, (wakeup - now) * 1000000L);
+			}
+			this.nextWakeup = Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Puts the task into the wheel, or executes it if it has expired.
+	 */
+	private void add(Entry e) {
+		if (this.wheel == null) {
+			this.wheel = new Wheel(TICK, Timer.currentTimeMillis());
+		}
+
+		if (!this.wheel.add(e)) {
+			this.expire(e);
+		}
+	}
+
+	private void expire(Entry e) {
+		if (!e.setState(Entry.PENDING, Entry.EXPIRED)) return;	// cancelled
+
+		this.taskTable.remove(e.task, e);
+
+		// execute
+		Runnable r = e.task;
+
+		if (Timer.USE_THREAD_POOL && e.executedConcurrently) {
+			ExecutorService ex = SingletonThreadPoolExecutors.getThreadPool(ExecutorSubsystem.MAINTENANCE,
+					ExecutorBlockingMode.CONCURRENT_BLOCKING, e.isDaemon);
+			ex.submit(r);
+		}
+		else {
+			try {
+				r.run();
+			}
+			catch (Throwable t) {
+				Timer.logger.log(Level.WARNING, "A task threw an exception: " + t, t);
+			}
+		}
+
+		// re-submit a periodic task
+		if (e.interval > 0L && !this.stopped) {
+			Entry periodic = new Entry(r, e.time + e.interval, e.interval, e.isDaemon, e.executedConcurrently);
+			this.taskTable.put(r, periodic);
+			this.add(periodic);
+		}
+		else if (!e.isDaemon) {
+			this.nonDaemonTaskRemoved();
+		}
+	}
+
+	// task representation, linked in a bucket
+	private final static class Entry {
+		private final static int PENDING = 0;
+		private final static int CANCELLED = 1;
+		private final static int EXPIRED = 2;
+		private final static AtomicIntegerFieldUpdater<Entry> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+		private final Runnable task;
+		private final long time;
+		private final long interval;
+		private final boolean isDaemon;
+		private final boolean executedConcurrently;
+		private volatile int state = PENDING;
+
+		private Bucket bucket;
+		private Entry prev, next;
+
+		private Entry(Runnable task, long absoluteTime, long interval,
+				boolean isDaemon, boolean executedConcurrently) {
+			this.task = task;
+			this.time = absoluteTime;
+			this.interval = interval;
+			this.isDaemon = isDaemon;
+			this.executedConcurrently = executedConcurrently;
+		}
+
+		private boolean setState(int expect, int update) {
+			return STATE.compareAndSet(this, expect, update);
+		}
+	}
+
+	// a doubly-linked list of tasks which expire within a tick
+	private final static class Bucket implements Comparable<Bucket> {
+		private long expiration = -1L;
+		private Entry head = null;
+		private Entry tail = null;
+
+		/**
+		 * Appends a task, so that tasks with the same deadline run in the scheduled order.
+		 */
+		private void add(Entry e) {
+			e.bucket = this;
+			e.next = null;
+			e.prev = this.tail;
+			if (this.tail != null) this.tail.next = e;
+			else this.head = e;
+			this.tail = e;
+		}
+
+		private void remove(Entry e) {
+			if (e.prev != null) e.prev.next = e.next;
+			else this.head = e.next;
+			if (e.next != null) e.next.prev = e.prev;
+			else this.tail = e.prev;
+
+			e.bucket = null;
+			e.prev = e.next = null;
+		}
+
+		/**
+		 * Sets the expiration time and returns true if it has changed,
+		 * which means this bucket is to be queued.
+		 */
+		private boolean setExpiration(long time) {
+			boolean changed = (this.expiration != time);
+			this.expiration = time;
+			return changed;
+		}
+
+		/**
+		 * Detaches and returns the tasks, linked with Entry#next.
+		 */
+		private Entry flush() {
+			Entry ret = this.head;
+			for (Entry e = ret; e != null; e = e.next) {
+				e.bucket = null;
+				e.prev = null;
+			}
+
+			this.head = this.tail = null;
+			this.expiration = -1L;
+
+			return ret;
+		}
+
+		public int compareTo(Bucket o) {
+			return Long.signum(this.expiration - o.expiration);
+		}
+	}
+
+	// a level of the hierarchical wheel, which overflows to a coarser wheel
+	private final class Wheel {
+		private final long tick;
+		private final long interval;
+		private final Bucket[] buckets = new Bucket[WHEEL_SIZE];
+		private long currentTime;
+		private Wheel overflow = null;
+
+		private Wheel(long tick, long startTime) {
+			this.tick = tick;
+			this.interval = (tick <= Long.MAX_VALUE / WHEEL_SIZE ? tick * WHEEL_SIZE : Long.MAX_VALUE);
+			this.currentTime = startTime - (startTime % tick);
+
+			for (int i = 0; i < WHEEL_SIZE; i++) this.buckets[i] = new Bucket();
+		}
+
+		/**
+		 * Returns false if the task has already expired.
+		 */
+		private boolean add(Entry e) {
+			long t = e.time;
+
+			if (t - this.currentTime < this.tick) {
+				return false;
+			}
+			else if (t - this.currentTime < this.interval) {
+				long virtualID = t / this.tick;
+				Bucket b = this.buckets[(int)(virtualID % WHEEL_SIZE)];
+				b.add(e);
+
+				if (b.setExpiration(virtualID * this.tick)) {
+					TimingWheel.this.bucketQueue.offer(b);
+				}
+				return true;
+			}
+			else {
+				if (this.overflow == null) {
+					this.overflow = new Wheel(this.interval, this.currentTime);
+				}
+				return this.overflow.add(e);
+			}
+		}
+
+		private void advance(long time) {
+			if (time - this.currentTime >= this.tick) {
+				this.currentTime = time - (time % this.tick);
+
+				if (this.overflow != null) this.overflow.advance(this.currentTime);
+			}
+		}
+	}
+}
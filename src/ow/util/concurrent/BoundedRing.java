@@ -0,0 +1,89 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free ring buffer for multiple producers and a single consumer.
+ * {@link #offer(Object) offer()} never blocks and fails if the ring is full.
+ * {@link #poll() poll()} has to be called by only one thread at a time.
+ */
+public final class BoundedRing<E> {
+	private final AtomicReferenceArray<E> slots;
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();	// next slot to be claimed by a producer
+	private volatile long head = 0L;					// next slot to be consumed
+
+	/**
+	 * @param capacity rounded up to a power of 2.
+	 */
+	public BoundedRing(int capacity) {
+		int size = 1;
+		while (size < capacity) size <<= 1;
+
+		this.slots = new AtomicReferenceArray<E>(size);
+		this.mask = size - 1;
+	}
+
+	public int capacity() { return this.mask + 1; }
+
+	/**
+	 * Inserts an element if the ring has room.
+	 *
+	 * @return false if the ring is full.
+	 */
+	public boolean offer(E e) {
+		if (e == null) throw new NullPointerException();
+
+		while (true) {
+			long t = this.tail.get();
+			if (t - this.head > this.mask) return false;	// full
+
+			if (this.tail.compareAndSet(t, t + 1)) {
+				this.slots.set((int)(t & this.mask), e);		// publish
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes the eldest element.
+	 *
+	 * @return null if the ring is empty
+	 * or the eldest element is claimed but not published yet by its producer.
+	 */
+	public E poll() {
+		long h = this.head;
+		int idx = (int)(h & this.mask);
+
+		E e = this.slots.get(idx);
+		if (e == null) return null;
+
+		this.slots.set(idx, null);
+		this.head = h + 1;
+
+		return e;
+	}
+
+	public boolean isEmpty() {
+		return this.tail.get() == this.head;
+	}
+}
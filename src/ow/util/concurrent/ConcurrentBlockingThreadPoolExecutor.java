@@ -35,13 +35,22 @@ public final class ConcurrentBlockingThreadPoolExecutor extends ThreadPoolExecut
 		super(corePoolSize, maximumPoolSize, keepAliveTime, unit, new SynchronousQueue<Runnable>(), threadFactory);
 	}
 
-    protected ConcurrentBlockingThreadPoolExecutor(int corePoolSize, int maximumPoolSize,
+    public ConcurrentBlockingThreadPoolExecutor(int corePoolSize, int maximumPoolSize,
             long keepAliveTime, TimeUnit unit,
             BlockingQueue<Runnable> queue,
             ThreadFactory threadFactory) {
 		super(corePoolSize, maximumPoolSize, keepAliveTime, unit, queue, threadFactory);
 	}
 
+	protected void beforeExecute(Thread t, Runnable r) {
+		// a queued task has been taken
+		if (!(this.getQueue() instanceof SynchronousQueue)) {
+			synchronized (this.submissionLock) {
+				this.submissionLock.notify();
+			}
+		}
+	}
+
 //	private int numTasksBeingExecuted = 0;
 //	public synchronized int getNumTasksBeingExecuted() { return this.numTasksBeingExecuted; }
 
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009-2010,2012 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.util.concurrent;
+
+/**
+ * An enum represents a subsystem which has its own thread pools
+ * so that a workload does not starve another.
+ * <ul>
+ * <li>MESSAGING_IO: reading connections, resolving addresses and invoking reply callbacks.
+ * <li>HANDLER_DISPATCH: invoking message handlers.
+ * <li>ROUTING_QUERIER: queriers and forwarders of routing drivers.
+ * <li>MAINTENANCE: timer tasks, routing table updates and statistics collection.
+ * <li>FRONTEND: servers for clients, such as the memcached server and the HTTP gateway.
+ * <li>GENERAL: others.
+ * </ul>
+ */
+public enum ExecutorSubsystem {
+	MESSAGING_IO,
+	HANDLER_DISPATCH,
+	ROUTING_QUERIER,
+	MAINTENANCE,
+	FRONTEND,
+	GENERAL
+}
@@ -16,171 +16,262 @@
 
 package ow.util.concurrent;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ow.util.DiscreteEventScheduler;
+import ow.util.Timer;
 
 /**
  * Factory and utility methods for {@link ExecutorService ExecutorService}.
  * Provided methods return an {@link ExecutorService ExecutorService} set up
  * with commonly useful configuration settings. 
+ *
+ * Each {@link ExecutorSubsystem subsystem} has its own thread pools,
+ * which are configured by {@link #getConfiguration(ExecutorSubsystem) getConfiguration()}
+ * and created on the first use.
+ * A pool is a {@link ThreadPoolExecutor ThreadPoolExecutor} and
+ * {@link #getThreadPools() getThreadPools()} exposes them to be monitored.
+ * In event driven mode of {@link Timer Timer}, every pool is replaced with
+ * the executor of its {@link DiscreteEventScheduler DiscreteEventScheduler}.
  */
 public final class SingletonThreadPoolExecutors {
-	public final static int NUM_THREADS_FOR_POOL = 32;
+	private final static Logger logger = Logger.getLogger("util");
+
+	public final static int NUM_THREADS_FOR_POOL = ThreadPoolConfiguration.DEFAULT_NUM_THREADS;
 	public final static String POOLED_THREAD_NAME = "A pooled thread";
 	public final static long KEEP_ALIVE_TIME = 3L;	// second
 
+	private final static ExecutorSubsystem[] SUBSYSTEMS = ExecutorSubsystem.values();
+	private final static ExecutorBlockingMode[] MODES = ExecutorBlockingMode.values();
+
 	private final static ThreadGroup threadGroup;
-	private static ExecutorService concurrentBlockingNonDaemonEx;
-	private static ExecutorService concurrentBlockingDaemonEx;
-	private static ExecutorService concurrentNonBlockingNonDaemonEx;
-	private static ExecutorService concurrentNonBlockingDaemonEx;
-	private static ExecutorService concurrentRejectingNonDaemonEx;
-	private static ExecutorService concurrentRejectingDaemonEx;
-//	private static ExecutorService serialBlockingNonDaemonEx;
-//	private static ExecutorService serialBlockingDaemonEx;
-//	private static ExecutorService serialNonBlockingNonDaemonEx;
-//	private static ExecutorService serialNonBlockingDaemonEx;
-	// accept unlimited number of threads
-	private static ExecutorService unlimitedNonDaemonEx;
-	private static ExecutorService unlimitedDaemonEx;
-
-	private static Set<ExecutorService> executorSet;
+	private final static Map<ExecutorSubsystem,ThreadPoolConfiguration> configMap;
+
+	// indexed by subsystem, blocking mode and daemon or not
+	private static volatile AtomicReferenceArray<ThreadPoolExecutor> executors;
 
 	static {
 		threadGroup = new STPThreadGroup("SingletonThreadPool thread group");
 
+		configMap = new LinkedHashMap<ExecutorSubsystem,ThreadPoolConfiguration>();
+		for (ExecutorSubsystem s: SUBSYSTEMS) {
+			configMap.put(s, new ThreadPoolConfiguration());
+		}
+
 		init();
 	}
 
-	public static void init() {
-		// concurrent blocking
-		concurrentBlockingNonDaemonEx =
-				new ConcurrentBlockingThreadPoolExecutor(0, NUM_THREADS_FOR_POOL,
-						KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-						new SynchronousQueue<Runnable>(),
-						new NonDaemonThreadFactory("Pooled thread: concurrent blocking"));
+	/**
+	 * Discards the current thread pools.
+	 * Pools are created again on demand with the current configuration.
+	 */
+	public static synchronized void init() {
+		executors = new AtomicReferenceArray<ThreadPoolExecutor>(SUBSYSTEMS.length * MODES.length * 2);
+	}
 
-		concurrentBlockingDaemonEx =
-			new ConcurrentBlockingThreadPoolExecutor(0, NUM_THREADS_FOR_POOL,
-					KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-					new SynchronousQueue<Runnable>(),
-					new DaemonThreadFactory("Pooled thread: concurrent blocking"));
+	public static ThreadPoolConfiguration getConfiguration(ExecutorSubsystem subsystem) {
+		return configMap.get(subsystem);
+	}
 
-		// concurrent non-blocking
-		concurrentNonBlockingNonDaemonEx =
-			new ConcurrentNonBlockingThreadPoolExecutor(0, NUM_THREADS_FOR_POOL,
-					KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-					new NonDaemonThreadFactory("Pooled thread: concurrent non-blocking"));
+	private static int indexOf(ExecutorSubsystem subsystem, ExecutorBlockingMode blockingMode, boolean daemon) {
+		return (subsystem.ordinal() * MODES.length + blockingMode.ordinal()) * 2 + (daemon ? 1 : 0);
+	}
+
+	private static String nameOf(ExecutorSubsystem subsystem, ExecutorBlockingMode blockingMode, boolean daemon) {
+		return subsystem.name().toLowerCase() + "." + blockingMode.name().toLowerCase()
+			+ (daemon ? ".daemon" : ".non_daemon");
+	}
 
-		concurrentNonBlockingDaemonEx =
-				new ConcurrentNonBlockingThreadPoolExecutor(0, NUM_THREADS_FOR_POOL,
-						KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-						new DaemonThreadFactory("Pooled thread: concurrent non-blocking"));
+	private static synchronized ThreadPoolExecutor create(
+			ExecutorSubsystem subsystem, ExecutorBlockingMode blockingMode, boolean daemon) {
+		int idx = indexOf(subsystem, blockingMode, daemon);
 
-		// concurrent rejecting
-		concurrentRejectingNonDaemonEx =
-				new ThreadPoolExecutor(0, NUM_THREADS_FOR_POOL,
+		ThreadPoolExecutor ex = executors.get(idx);
+		if (ex != null) return ex;
+
+		ThreadPoolConfiguration config = getConfiguration(subsystem);
+		int numThreads = Math.max(1, config.getNumThreads());
+		int capacity = config.getQueueCapacity();
+		ThreadFactory factory = new PooledThreadFactory(
+				"Pooled thread: " + subsystem.name().toLowerCase().replace('_', ' ')
+				+ ", " + blockingMode.name().toLowerCase().replace('_', ' ').replace("non ", "non-"),
+				daemon, config.getUseVirtualThreads());
+
+		switch (blockingMode) {
+		case CONCURRENT_BLOCKING:
+			ex = new ConcurrentBlockingThreadPoolExecutor((capacity > 0 ? numThreads : 0), numThreads,
 					KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-					new SynchronousQueue<Runnable>(),
-					new NonDaemonThreadFactory("Pooled thread: concurrent rejecting"));
-
-		concurrentRejectingDaemonEx =
-			new ThreadPoolExecutor(0, NUM_THREADS_FOR_POOL,
-				KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-				new SynchronousQueue<Runnable>(),
-				new DaemonThreadFactory("Pooled thread: concurrent rejecting"));
-
-		// serial blocking
-//		serialBlockingNonDaemonEx =
-//			new ThreadPoolExecutor(0, 1,
-//				KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-//				new SynchronousQueue<Runnable>(),
-//				new NonDaemonThreadFactory());
-//
-//		serialBlockingDaemonEx =
-//			new ThreadPoolExecutor(0, 1,
-//					KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-//					new SynchronousQueue<Runnable>(),
-//					new DaemonThreadFactory());
-//
-//		// serial non-blocking
-//		serialNonBlockingNonDaemonEx =
-//			new ThreadPoolExecutor(0, 1,
-//					KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-//					new LinkedBlockingQueue<Runnable>(),
-//					new NonDaemonThreadFactory());
-//
-//		serialNonBlockingDaemonEx =
-//			new ThreadPoolExecutor(0, 1,
-//				KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-//				new LinkedBlockingQueue<Runnable>(),
-//				new DaemonThreadFactory());
-//
-
-		// unlimited number of threads
-		unlimitedNonDaemonEx =
-			new ThreadPoolExecutor(0, Integer.MAX_VALUE,
-				KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-				new SynchronousQueue<Runnable>(),
-				new NonDaemonThreadFactory("Pooled thread: unlimited"));
-		unlimitedDaemonEx =
-			new ThreadPoolExecutor(0, Integer.MAX_VALUE,
-				KEEP_ALIVE_TIME, TimeUnit.SECONDS,
-				new SynchronousQueue<Runnable>(),
-				new DaemonThreadFactory("Pooled thread: unlimited"));
-
-		executorSet = new HashSet<ExecutorService>();
-		executorSet.add(concurrentBlockingNonDaemonEx);
-		executorSet.add(concurrentBlockingDaemonEx);
-		executorSet.add(concurrentNonBlockingNonDaemonEx);
-		executorSet.add(concurrentNonBlockingDaemonEx);
-		executorSet.add(concurrentRejectingNonDaemonEx);
-		executorSet.add(concurrentRejectingDaemonEx);
-//		executorSet.add(serialBlockingNonDaemonEx);
-//		executorSet.add(serialBlockingDaemonEx);
-//		executorSet.add(serialNonBlockingNonDaemonEx);
-//		executorSet.add(serialNonBlockingDaemonEx);
-		executorSet.add(unlimitedNonDaemonEx);
-		executorSet.add(unlimitedDaemonEx);
+					createQueue(capacity), factory);
+			break;
+		case CONCURRENT_NON_BLOCKING:
+			// a task overflowing the pool and the queue runs on an extra thread
+			ex = new ThreadPoolExecutor((capacity > 0 ? numThreads : 0), numThreads,
+					KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+					createQueue(capacity), factory);
+			break;
+		case CONCURRENT_REJECTING:
+			ex = new ThreadPoolExecutor((capacity > 0 ? numThreads : 0), numThreads,
+					KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+					createQueue(capacity), factory);
+			break;
+		case UNLIMITED:
+			ex = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+					KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), factory);
+			break;
+		}
+
+		if (ex.getCorePoolSize() > 0) ex.allowCoreThreadTimeOut(true);
+		if (blockingMode == ExecutorBlockingMode.CONCURRENT_NON_BLOCKING)
+			ex.setRejectedExecutionHandler(new CountingOverflowPolicy(factory, config.getMaxOverflowThreads()));
+		else
+			ex.setRejectedExecutionHandler(new CountingAbortPolicy());
+
+		executors.set(idx, ex);
+
+		return ex;
 	}
 
-	private final static class DaemonThreadFactory implements ThreadFactory {
-		private final String threadName;
+	private static BlockingQueue<Runnable> createQueue(int capacity) {
+		if (capacity <= 0)
+			return new SynchronousQueue<Runnable>();
+		else if (capacity == Integer.MAX_VALUE)
+			return new LinkedBlockingQueue<Runnable>();
+		else
+			return new ArrayBlockingQueue<Runnable>(capacity);
+	}
 
-//		public DaemonThreadFactory() { this.threadName = POOLED_THREAD_NAME; }
-		public DaemonThreadFactory(String threadName) { this.threadName = threadName; }
+	/**
+	 * Throws a {@link RejectedExecutionException RejectedExecutionException} as the default policy
+	 * and counts rejections, including ones retried by a blocking pool.
+	 */
+	private static class CountingAbortPolicy implements RejectedExecutionHandler {
+		final AtomicLong count = new AtomicLong(0L);
 
-		public Thread newThread(Runnable r) {
-			Thread t = new Thread(threadGroup, r);
-			t.setName(this.threadName);
-			t.setDaemon(true);
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			this.count.incrementAndGet();
+			throw new RejectedExecutionException();
+		}
+	}
 
-			return t;
+	/**
+	 * Runs a task on a new thread outside the pool instead of rejecting it
+	 * so that a non-blocking pool neither blocks nor rejects a submitter
+	 * even if all the pooled threads wait for tasks queued behind them.
+	 * Once maxThreads extra threads are running, a task runs on the submitting thread.
+	 * Overflows are counted as rejections.
+	 */
+	private final static class CountingOverflowPolicy extends CountingAbortPolicy {
+		private final ThreadFactory factory;
+		private final int maxThreads;
+		private final AtomicInteger numThreads = new AtomicInteger(0);
+
+		CountingOverflowPolicy(ThreadFactory factory, int maxThreads) {
+			this.factory = factory;
+			this.maxThreads = maxThreads;
+		}
+
+		public void rejectedExecution(final Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				super.rejectedExecution(r, executor);	// throws RejectedExecutionException
+				return;
+			}
+
+			this.count.incrementAndGet();
+
+			if (this.numThreads.incrementAndGet() > this.maxThreads) {
+				this.numThreads.decrementAndGet();
+
+				r.run();
+				return;
+			}
+
+			Runnable overflowed = new Runnable() {
+				public void run() {
+					try {
+						r.run();
+					}
+					finally {
+						numThreads.decrementAndGet();
+					}
+				}
+			};
+
+			try {
+				this.factory.newThread(overflowed).start();
+			}
+			catch (Error e) {	// OutOfMemoryError: unable to create a thread
+				this.numThreads.decrementAndGet();
+				throw e;
+			}
 		}
 	}
 
-	private final static class NonDaemonThreadFactory implements ThreadFactory {
+	private final static class PooledThreadFactory implements ThreadFactory {
 		private final String threadName;
+		private final boolean daemon;
+		private final ThreadFactory virtualThreadFactory;
 
-//		public NonDaemonThreadFactory() { this.threadName = POOLED_THREAD_NAME; }
-		public NonDaemonThreadFactory(String threadName) { this.threadName = threadName; }
+		public PooledThreadFactory(String threadName, boolean daemon, boolean useVirtualThreads) {
+			this.threadName = threadName;
+			this.daemon = daemon;
+			this.virtualThreadFactory = (useVirtualThreads ? createVirtualThreadFactory(threadName) : null);
+		}
 
 		public Thread newThread(Runnable r) {
+			if (this.virtualThreadFactory != null) {
+				return this.virtualThreadFactory.newThread(r);
+			}
+
 			Thread t = new Thread(threadGroup, r);
 			t.setName(this.threadName);
-			t.setDaemon(false);
+			t.setDaemon(this.daemon);
 
 			return t;
 		}
 	}
 
+	/**
+	 * Returns a factory of virtual threads, or null if the runtime does not provide them.
+	 * Reflection is used to be compiled and run on an older runtime.
+	 */
+	public static ThreadFactory createVirtualThreadFactory(String threadName) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class).invoke(builder, threadName);
+			Method factoryMethod = builderClass.getMethod("factory");
+
+			return (ThreadFactory)factoryMethod.invoke(builder);
+		}
+		catch (Exception e) {
+			logger.log(Level.WARNING, "Virtual threads are not available. Platform threads are used.");
+			return null;
+		}
+	}
+
 	public static void shutdown() {
-		for (ExecutorService ex: executorSet) {
+		for (ThreadPoolExecutor ex: createdThreadPools()) {
 			ex.shutdown();
 		}
 	}
@@ -191,7 +282,7 @@ public final class SingletonThreadPoolExecutors {
 
 		boolean terminated = true;
 
-		for (ExecutorService ex: executorSet) {
+		for (ThreadPoolExecutor ex: createdThreadPools()) {
 			long timeoutMillis = limit - System.currentTimeMillis();
 			if (timeoutMillis < 0L) return false;
 
@@ -202,6 +293,47 @@ public final class SingletonThreadPoolExecutors {
 		return terminated;
 	}
 
+	private static List<ThreadPoolExecutor> createdThreadPools() {
+		List<ThreadPoolExecutor> list = new ArrayList<ThreadPoolExecutor>();
+
+		AtomicReferenceArray<ThreadPoolExecutor> exs = executors;
+		for (int i = 0; i < exs.length(); i++) {
+			ThreadPoolExecutor ex = exs.get(i);
+			if (ex != null) list.add(ex);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Returns the thread pools created so far with their names
+	 * such as "routing_querier.concurrent_non_blocking.daemon".
+	 */
+	public static Map<String,ThreadPoolExecutor> getThreadPools() {
+		Map<String,ThreadPoolExecutor> map = new LinkedHashMap<String,ThreadPoolExecutor>();
+
+		AtomicReferenceArray<ThreadPoolExecutor> exs = executors;
+		for (ExecutorSubsystem s: SUBSYSTEMS) {
+			for (ExecutorBlockingMode m: MODES) {
+				for (boolean daemon: new boolean[] { false, true }) {
+					ThreadPoolExecutor ex = exs.get(indexOf(s, m, daemon));
+					if (ex != null) map.put(nameOf(s, m, daemon), ex);
+				}
+			}
+		}
+
+		return Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Returns the number of tasks rejected by the thread pool because it was saturated.
+	 * For a non-blocking pool, it is the number of tasks run on extra threads.
+	 */
+	public static long getNumRejected(ThreadPoolExecutor ex) {
+		RejectedExecutionHandler h = ex.getRejectedExecutionHandler();
+		return (h instanceof CountingAbortPolicy ? ((CountingAbortPolicy)h).count.get() : 0L);
+	}
+
 	private final static class STPThreadGroup extends ThreadGroup {
 		public STPThreadGroup(String name) {
 			super(name);
@@ -220,47 +352,30 @@ public final class SingletonThreadPoolExecutors {
 		}
 	}
 
+	/**
+	 * Returns a queue to collect completions of tasks submitted to a pool,
+	 * whose taker waits in virtual time in event driven mode.
+	 */
+	public static <E> BlockingQueue<E> newCompletionQueue() {
+		DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		if (scheduler != null) return scheduler.newBlockingQueue();
+
+		return new LinkedBlockingQueue<E>();
+	}
+
 	public static ExecutorService getThreadPool(
 			ExecutorBlockingMode blockingMode, boolean daemon) {
-		ExecutorService ex = null;
+		return getThreadPool(ExecutorSubsystem.GENERAL, blockingMode, daemon);
+	}
 
-		switch (blockingMode) {
-		case CONCURRENT_BLOCKING:
-			if (daemon)
-				ex = concurrentBlockingDaemonEx;
-			else
-				ex = concurrentBlockingNonDaemonEx;
-			break;
-		case CONCURRENT_NON_BLOCKING:
-			if (daemon)
-				ex = concurrentNonBlockingDaemonEx;
-			else
-				ex = concurrentNonBlockingNonDaemonEx;
-			break;
-		case CONCURRENT_REJECTING:
-			if (daemon)
-				ex = concurrentRejectingDaemonEx;
-			else
-				ex = concurrentRejectingNonDaemonEx;
-			break;
-//		case SERIAL_BLOCKING:
-//			if (!daemon)
-//				ex = serialBlockingNonDaemonEx;
-//			else
-//				ex = serialBlockingDaemonEx;
-//			break;
-//		case SERIAL_NON_BLOCKING:
-//			if (!daemon)
-//				ex = serialNonBlockingNonDaemonEx;
-//			else
-//				ex = serialNonBlockingDaemonEx;
-//			break;
-		case UNLIMITED:
-			if (!daemon)
-				ex = unlimitedNonDaemonEx;
-			else
-				ex = unlimitedDaemonEx;
-			break;
+	public static ExecutorService getThreadPool(ExecutorSubsystem subsystem,
+			ExecutorBlockingMode blockingMode, boolean daemon) {
+		DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		if (scheduler != null) return scheduler.getExecutorService();
+
+		ThreadPoolExecutor ex = executors.get(indexOf(subsystem, blockingMode, daemon));
+		if (ex == null) {
+			ex = create(subsystem, blockingMode, daemon);
 		}
 
 		return ex;
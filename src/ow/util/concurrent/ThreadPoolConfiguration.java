@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009-2010,2012 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.util.concurrent;
+
+/**
+ * Configuration of the thread pools of a subsystem.
+ * Changes take effect on thread pools created after them,
+ * that is, before the first use of the pools or after
+ * {@link SingletonThreadPoolExecutors#init() SingletonThreadPoolExecutors#init()}.
+ *
+ * @see SingletonThreadPoolExecutors#getConfiguration(ExecutorSubsystem)
+ */
+public final class ThreadPoolConfiguration {
+	public final static int DEFAULT_NUM_THREADS = 32;
+	public final static int DEFAULT_QUEUE_CAPACITY = 0;	// hand-off
+	public final static int DEFAULT_MAX_OVERFLOW_THREADS = 64;
+	public final static boolean DEFAULT_USE_VIRTUAL_THREADS = false;
+
+	ThreadPoolConfiguration() {}
+
+	private int numThreads = DEFAULT_NUM_THREADS;
+	/**
+	 * Returns the maximum number of threads in a pool.
+	 * Pools of {@link ExecutorBlockingMode#UNLIMITED UNLIMITED} mode ignore it.
+	 */
+	public int getNumThreads() { return this.numThreads; }
+	public int setNumThreads(int num) {
+		int old = this.numThreads;
+		this.numThreads = num;
+		return old;
+	}
+
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	/**
+	 * Returns the number of tasks queued when all the threads are busy.
+	 * 0 means direct hand-off to a thread and {@link Integer#MAX_VALUE Integer#MAX_VALUE} means an unbounded queue.
+	 * Pools of {@link ExecutorBlockingMode#CONCURRENT_NON_BLOCKING CONCURRENT_NON_BLOCKING} mode
+	 * run a task on an extra thread if both the threads and the queue are full
+	 * (see {@link #getMaxOverflowThreads() getMaxOverflowThreads()}),
+	 * and ones of {@link ExecutorBlockingMode#UNLIMITED UNLIMITED} mode always hand off.
+	 */
+	public int getQueueCapacity() { return this.queueCapacity; }
+	public int setQueueCapacity(int capacity) {
+		int old = this.queueCapacity;
+		this.queueCapacity = capacity;
+		return old;
+	}
+
+	private int maxOverflowThreads = DEFAULT_MAX_OVERFLOW_THREADS;
+	/**
+	 * Returns the maximum number of extra threads running overflowed tasks
+	 * of a pool of {@link ExecutorBlockingMode#CONCURRENT_NON_BLOCKING CONCURRENT_NON_BLOCKING} mode.
+	 * A task overflowing them runs on the submitting thread.
+	 */
+	public int getMaxOverflowThreads() { return this.maxOverflowThreads; }
+	public int setMaxOverflowThreads(int num) {
+		int old = this.maxOverflowThreads;
+		this.maxOverflowThreads = num;
+		return old;
+	}
+
+	private boolean useVirtualThreads = DEFAULT_USE_VIRTUAL_THREADS;
+	/**
+	 * Returns whether pools run tasks on virtual threads.
+	 * It is ignored on a Java runtime without virtual threads.
+	 * Virtual threads are always daemon.
+	 */
+	public boolean getUseVirtualThreads() { return this.useVirtualThreads; }
+	public boolean setUseVirtualThreads(boolean use) {
+		boolean old = this.useVirtualThreads;
+		this.useVirtualThreads = use;
+		return old;
+	}
+}
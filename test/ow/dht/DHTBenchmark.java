@@ -48,7 +48,7 @@ public class DHTBenchmark extends AbstractDHTBasedTool<String> {
 	private final static String VALUE_PREFIX = "value";
 
 	protected void usage(String command) {
-		super.usage(command, null); 
+		super.usage(command, "[-b <# of gets>] [-B <batch size>[,<batch size>...]]"); 
 	}
 
 	public static void main(String[] args) {
@@ -65,10 +65,12 @@ public class DHTBenchmark extends AbstractDHTBasedTool<String> {
 	 */
 	public Writer invoke(String[] args, PrintStream out) {
 		int repeat = 0;
+		int[] batchSizes = null;
 
 		// parse command-line arguments
 		Options opts = this.getInitialOptions();
 		opts.addOption("b", "benchmark", true, "do benchmark");
+		opts.addOption("B", "batch", true, "measure throughput of get(ID[]) with the batch sizes");
 
 		CommandLineParser parser = new DefaultParser();
 		CommandLine cmd = null;
@@ -89,6 +91,14 @@ public class DHTBenchmark extends AbstractDHTBasedTool<String> {
 		if (optVal != null) {
 			repeat = Integer.parseInt(optVal);
 		}
+		optVal = cmd.getOptionValue('B');
+		if (optVal != null) {
+			String[] sizes = optVal.split(",");
+			batchSizes = new int[sizes.length];
+			for (int i = 0; i < sizes.length; i++) {
+				batchSizes[i] = Integer.parseInt(sizes[i].trim());
+			}
+		}
 
 		// parse remaining arguments
 		// and initialize DHT
@@ -139,6 +149,11 @@ public class DHTBenchmark extends AbstractDHTBasedTool<String> {
 			}
 		}
 
+		if (batchSizes != null) {
+			this.measureThroughput(dht, out, repeat, batchSizes, idSize);
+			return null;
+		}
+
 		out.println("benchmark: getting " + repeat + " times.");
 
 		Random rnd = new Random();
@@ -171,4 +186,49 @@ public class DHTBenchmark extends AbstractDHTBasedTool<String> {
 
 		return null;
 	}
+
+	/**
+	 * Gets values in batches of the given sizes with {@link DHT#get(ID[]) get(ID[])}
+	 * and prints throughput for each batch size.
+	 */
+	private void measureThroughput(DHT<String> dht, PrintStream out,
+			int repeat, int[] batchSizes, int idSize) {
+		Random rnd = new Random();
+
+		for (int batchSize: batchSizes) {
+			if (batchSize <= 0) continue;
+
+			out.println("benchmark: getting " + repeat + " times in batches of " + batchSize + ".");
+
+			int numSuccess = 0;
+			long time = System.currentTimeMillis();
+
+			for (int done = 0; done < repeat; done += batchSize) {
+				ID[] ids = new ID[Math.min(batchSize, repeat - done)];
+
+				for (int i = 0; i < ids.length; i++) {
+					String key = KEY_PREFIX + rnd.nextInt(NUM_VALUES);
+
+					try {
+						ids[i] = ID.getID(key.getBytes(ENCODING), idSize);
+					}
+					catch (UnsupportedEncodingException e) { /* NOTREACHED */ }
+				}
+
+				Set<ValueInfo<String>>[] valueSets = dht.get(ids);
+				for (Set<ValueInfo<String>> valueSet: valueSets) {
+					if (valueSet != null) {
+						numSuccess++;
+					}
+				}
+			}
+
+			time = System.currentTimeMillis() - time;
+
+			out.println("batch size: " + batchSize
+					+ ", time (msec): " + time
+					+ ", gets/sec: " + (time > 0 ? (repeat * 1000L / time) : -1)
+					+ ", num of successful get: " + numSuccess + " / " + repeat);
+		}
+	}
 }
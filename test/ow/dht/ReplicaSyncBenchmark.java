@@ -0,0 +1,312 @@
+/*
+ * Copyright 2006-2011,2013 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.dht;
+
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import ow.dht.impl.message.DHTReplyMessage;
+import ow.dht.impl.message.PutMessage;
+import ow.dht.impl.message.PutValueInfoMessage;
+import ow.dht.impl.message.SyncDigestMessage;
+import ow.dht.impl.message.SyncDigestReplyMessage;
+import ow.dht.impl.message.SyncKeysMessage;
+import ow.dht.impl.message.SyncKeysReplyMessage;
+import ow.id.ID;
+import ow.messaging.Message;
+import ow.messaging.MessageDirectory;
+import ow.messaging.MessagingAddress;
+import ow.messaging.Signature;
+import ow.stat.MetricsRegistry;
+import ow.stat.StatFactory;
+import ow.tool.emulator.EmulatorControllable;
+import ow.tool.util.toolframework.AbstractDHTBasedTool;
+
+/**
+ * A benchmark of replica maintenance, reput or anti-entropy, under churn.
+ * It is assumed to be invoked from a scenario ReplicaSyncBenchmarkScenario.
+ * The benchmarking node puts values, and then repeatedly stops a node and lets a spare node join.
+ * After each of them, it reports time until all the values are held by the responsible nodes
+ * and bytes of messages sent in the meantime.
+ * All the nodes have to be in a JVM and replica placement is judged as on a ring.
+ */
+public class ReplicaSyncBenchmark extends AbstractDHTBasedTool<String> {
+	private final static String COMMAND = "java ow.dht.ReplicaSyncBenchmark";
+
+	public final static int NUM_REPLICA = 3;
+	public final static int INTERVAL = 2000;	// msec
+	public final static int NUM_KEYS_PER_REPUT = 100;
+	public final static long CONVERGENCE_TIMEOUT = 120 * 1000L;	// msec
+	public final static String ENCODING = "UTF-8";
+	private final static String KEY_PREFIX = "key";
+	private final static String VALUE_PREFIX = "value";
+
+	private final static Class<? extends Message>[] DHT_MESSAGES = new Class/*<? extends Message>*/[] {
+		PutMessage.class, DHTReplyMessage.class, PutValueInfoMessage.class,
+		SyncDigestMessage.class, SyncDigestReplyMessage.class, SyncKeysMessage.class, SyncKeysReplyMessage.class
+	};
+
+	// all the nodes in this JVM
+	private final static List<DHT<String>> liveNodes = new ArrayList<DHT<String>>();
+	private final static List<DHT<String>> spareNodes = new ArrayList<DHT<String>>();
+
+	protected void usage(String command) {
+		super.usage(command, "[-E] [-S] [-b <# of values>] [-c <# of churn rounds>]");
+	}
+
+	public static void main(String[] args) {
+		(new ReplicaSyncBenchmark()).start(args);
+	}
+
+	protected void start(String[] args) {
+		this.invoke(args, System.out);
+	}
+
+	/**
+	 * Implements {@link EmulatorControllable#invoke(String[], PrintStream)
+	 * EmulatorControllableApplication#start}.
+	 */
+	public Writer invoke(String[] args, PrintStream out) {
+		boolean antiEntropy = false;
+		boolean spare = false;
+		int numValues = 0;
+		int numRounds = 5;
+
+		// parse command-line arguments
+		Options opts = this.getInitialOptions();
+		opts.addOption("E", "antientropy", false, "synchronize replicas by anti-entropy instead of reput");
+		opts.addOption("S", "spare", false, "wait to be joined by the benchmarking node");
+		opts.addOption("b", "benchmark", true, "do benchmark with the number of values");
+		opts.addOption("c", "churn", true, "number of churn rounds");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(opts, args);
+		}
+		catch (ParseException e) {
+			System.out.println("There is an invalid option.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		parser = null;
+		opts = null;
+
+		String optVal;
+		if (cmd.hasOption('E')) {
+			antiEntropy = true;
+		}
+		if (cmd.hasOption('S')) {
+			spare = true;
+		}
+		optVal = cmd.getOptionValue('b');
+		if (optVal != null) {
+			numValues = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('c');
+		if (optVal != null) {
+			numRounds = Integer.parseInt(optVal);
+		}
+
+		// parse remaining arguments
+		// and initialize DHT
+		DHTConfiguration config = DHTFactory.getDefaultConfiguration();
+		config.setNumReplica(NUM_REPLICA);
+		config.setDoReputOnReplicas(!antiEntropy);
+		config.setDoAntiEntropyOnReplicas(antiEntropy);
+		config.setReputParameters(new int[] { INTERVAL, NUM_KEYS_PER_REPUT });
+
+		DHT<String> dht = null;
+		try {
+			dht = super.initialize(Signature.APPLICATION_ID_DHT_SHELL, (short)0x10000,
+					config, COMMAND, cmd);
+		}
+		catch (Exception e) {
+			System.err.println("An Exception thrown:");
+			e.printStackTrace();
+			return null;
+		}
+
+		cmd = null;
+
+		synchronized (liveNodes) {
+			if (spare) spareNodes.add(dht);
+			else liveNodes.add(dht);
+		}
+
+		if (numValues <= 0) {
+			try {
+				Thread.sleep(Long.MAX_VALUE);
+			}
+			catch (InterruptedException e) { /* ignore */ }
+
+			return null;
+		}
+
+		// benchmark
+		out.println("replica maintenance: " + (antiEntropy ? "anti-entropy" : "reput"));
+		out.println("preparation: putting " + numValues + " values.");
+
+		int idSize = dht.getRoutingAlgorithmConfiguration().getIDSizeInByte();
+		ID[] keys = new ID[numValues];
+		for (int i = 0; i < numValues; i++) {
+			try {
+				keys[i] = ID.getSHA1BasedID((KEY_PREFIX + i).getBytes(ENCODING), idSize);
+			}
+			catch (UnsupportedEncodingException e) { /* NOTREACHED */ }
+		}
+
+		long[] base = this.startMeasurement();
+
+		for (int i = 0; i < numValues; i++) {
+			try {
+				dht.put(keys[i], VALUE_PREFIX + i);
+			}
+			catch (Exception e) {
+				out.println("put failed: " + KEY_PREFIX + i);
+			}
+		}
+
+		this.waitForConvergence(out, "put", keys, base);
+
+		// churn
+		Random rnd = new Random();
+		MessagingAddress contact = dht.getSelfIDAddressPair().getAddress();
+
+		for (int round = 1; round <= numRounds; round++) {
+			DHT<String> leaving = null, joining = null;
+
+			synchronized (liveNodes) {
+				if (liveNodes.size() > NUM_REPLICA + 1) {
+					do {
+						leaving = liveNodes.get(rnd.nextInt(liveNodes.size()));
+					} while (leaving == dht);
+
+					liveNodes.remove(leaving);
+				}
+
+				if (!spareNodes.isEmpty()) {
+					joining = spareNodes.remove(0);
+					liveNodes.add(joining);
+				}
+			}
+
+			base = this.startMeasurement();
+
+			if (leaving != null) leaving.stop();
+			if (joining != null) {
+				try {
+					joining.joinOverlay(contact.getHostAddress(), contact.getPort());
+				}
+				catch (Exception e) {
+					out.println("join failed: " + e);
+				}
+			}
+
+			this.waitForConvergence(out, "churn round " + round, keys, base);
+		}
+
+		return null;
+	}
+
+	private long[] startMeasurement() {
+		MetricsRegistry metrics = StatFactory.getMetricsRegistry();
+
+		return new long[] { System.currentTimeMillis(), this.sumOfSentBytes(metrics, true), this.sumOfSentBytes(metrics, false) };
+	}
+
+	private long sumOfSentBytes(MetricsRegistry metrics, boolean onlyDHTMessages) {
+		long sum = 0L;
+
+		if (onlyDHTMessages) {
+			for (Class<? extends Message> c: DHT_MESSAGES) {
+				sum += metrics.getSentBytes(MessageDirectory.getTagByClass(c));
+			}
+		}
+		else {
+			for (int tag: MessageDirectory.getTags()) {
+				sum += metrics.getSentBytes(tag);
+			}
+		}
+
+		return sum;
+	}
+
+	private void waitForConvergence(PrintStream out, String phase, ID[] keys, long[] base) {
+		double ratio;
+
+		while (true) {
+			ratio = this.ratioOfHeldReplicas(keys);
+			if (ratio >= 1.0 || System.currentTimeMillis() - base[0] > CONVERGENCE_TIMEOUT) break;
+
+			try {
+				Thread.sleep(100L);
+			}
+			catch (InterruptedException e) { /* ignore */ }
+		}
+
+		MetricsRegistry metrics = StatFactory.getMetricsRegistry();
+		long time = System.currentTimeMillis() - base[0];
+
+		out.println(phase + ": "
+				+ (ratio >= 1.0 ? "converged" : "not converged (" + ratio + ")")
+				+ ", time (msec): " + time
+				+ ", bytes of DHT messages: " + (this.sumOfSentBytes(metrics, true) - base[1])
+				+ ", bytes of all messages: " + (this.sumOfSentBytes(metrics, false) - base[2]));
+	}
+
+	/**
+	 * Returns the ratio of values held by their responsible nodes,
+	 * which are the successor of the key and the following nodes.
+	 */
+	private double ratioOfHeldReplicas(ID[] keys) {
+		TreeMap<ID,DHT<String>> ring = new TreeMap<ID,DHT<String>>();
+		synchronized (liveNodes) {
+			for (DHT<String> d: liveNodes) ring.put(d.getSelfIDAddressPair().getID(), d);
+		}
+
+		int numReplica = Math.min(NUM_REPLICA, ring.size());
+		int held = 0;
+
+		for (ID k: keys) {
+			Iterator<Map.Entry<ID,DHT<String>>> it = ring.tailMap(k).entrySet().iterator();
+
+			for (int i = 0; i < numReplica; i++) {
+				if (!it.hasNext()) it = ring.entrySet().iterator();	// wrap around
+
+				if (it.next().getValue().getGlobalValues(k) != null) held++;
+			}
+		}
+
+		return (double)held / (keys.length * numReplica);
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import ow.id.ID;
+
+/**
+ * Compares time to put into "BerkeleyDB" directories with and without batches
+ * and a "DeferredWriteBerkeleyDB" directory,
+ * and checks that they survive reopening and that their keys are scanned in order.
+ */
+public class BerkeleyDBTest {
+	private final static String COMMAND = "java BerkeleyDBTest";
+	public final static int ID_SIZE = 20;
+	private final static int DEFAULT_NUM_ENTRIES = 20000;
+	private final static int BATCH_SIZE = 100;
+	private final static String DB_NAME = "berkeleydbtest";
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-n <# of entries>] [-d <working dir>]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numEntries = DEFAULT_NUM_ENTRIES;
+		String workingDir = System.getProperty("java.io.tmpdir");
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numEntries = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-d")) {
+				i++;
+				workingDir = args[i++];
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+		if (!workingDir.endsWith(File.separator)) workingDir += File.separator;
+
+		ID[] keys = new ID[numEntries];
+		TreeSet<ID> sortedKeys = new TreeSet<ID>();
+		for (i = 0; i < numEntries; i++) {
+			keys[i] = ID.getSHA1BasedID(("key" + i).getBytes(), ID_SIZE);
+			sortedKeys.add(keys[i]);
+		}
+
+		String[][] cases = {
+				{ "BerkeleyDB", "each put" },
+				{ "BerkeleyDB", "batches of " + BATCH_SIZE },
+				{ "DeferredWriteBerkeleyDB", "each put" } };
+
+		for (int c = 0; c < cases.length; c++) {
+			String providerName = cases[c][0];
+			boolean batched = (c == 1);
+
+			// JE directories share an environment in a working directory
+			String dir = workingDir + DB_NAME + c + File.separator;
+			new File(dir).mkdirs();
+
+			DirectoryProvider provider = DirectoryFactory.getProvider(providerName);
+			DirectoryConfiguration config = DirectoryConfiguration.getDefaultConfiguration();
+			config.setCacheSize(16 * 1024 * 1024L);
+			try {
+				provider.removeDirectory(dir, DB_NAME);
+			}
+			catch (Exception e) { /* not found */ }
+
+			MultiValueDirectory<ID,String> mdir =
+				provider.openMultiValueDirectory(ID.class, String.class, dir, DB_NAME, config);
+			BatchableDirectory batch = (BatchableDirectory)mdir;
+
+			long time = System.currentTimeMillis();
+
+			for (i = 0; i < numEntries; i++) {
+				if (batched && i % BATCH_SIZE == 0) batch.beginBatch();
+
+				mdir.put(keys[i], "value" + i);
+				if (i % 2 == 0) mdir.put(keys[i], "second" + i);
+
+				if (batched && (i % BATCH_SIZE == BATCH_SIZE - 1 || i == numEntries - 1)) batch.endBatch();
+			}
+
+			time = System.currentTimeMillis() - time;
+			System.out.println(providerName + ", " + cases[c][1] + ": put " + numEntries + " keys: " + time + " msec");
+
+			mdir.close();
+
+			// reopen
+			mdir = provider.openMultiValueDirectory(ID.class, String.class, dir, DB_NAME, config);
+			System.out.println(providerName + ", " + cases[c][1] + ": reopen: "
+					+ (verify(mdir, keys) ? "verified" : "FAILED"));
+
+			// scans
+			KeyOrderedDirectory<ID> odir = (KeyOrderedDirectory<ID>)mdir;
+			ID from = keys[0], to = keys[1];
+			if (from.compareTo(to) > 0) { from = keys[1]; to = keys[0]; }
+
+			boolean ok = sameKeys(odir.ascendingKeys(null, true, null), sortedKeys.iterator())
+				&& sameKeys(odir.ascendingKeys(from, true, to), sortedKeys.subSet(from, true, to, false).iterator())
+				&& sameKeys(odir.ascendingKeys(from, false, null), sortedKeys.tailSet(from, false).iterator())
+				&& sameKeys(odir.descendingKeys(to, true, from), sortedKeys.subSet(from, false, to, true).descendingIterator())
+				&& sameKeys(odir.descendingKeys(null, true, null), sortedKeys.descendingIterator());
+
+			int numEntriesScanned = 0;
+			for (Iterator<?> it = mdir.iterator(); it.hasNext(); it.next()) numEntriesScanned++;
+			ok &= (numEntriesScanned == numEntries + (numEntries + 1) / 2);
+
+			System.out.println(providerName + ", " + cases[c][1] + ": scans: " + (ok ? "verified" : "FAILED"));
+
+			mdir.close();
+			provider.removeDirectory(dir, DB_NAME);
+		}
+	}
+
+	private static boolean verify(MultiValueDirectory<ID,String> dir, ID[] keys) throws Exception {
+		for (int i = 0; i < keys.length; i++) {
+			Set<String> values = dir.get(keys[i]);
+			int expected = (i % 2 == 0 ? 2 : 1);
+
+			if ((values == null ? 0 : values.size()) != expected) {
+				System.out.println("unexpected values for key" + i + ": " + values);
+				return false;
+			}
+			if (!values.contains("value" + i)) return false;
+			if (i % 2 == 0 && !values.contains("second" + i)) return false;
+		}
+
+		return true;
+	}
+
+	private static boolean sameKeys(Iterator<ID> it, Iterator<ID> expected) {
+		while (it.hasNext() && expected.hasNext()) {
+			if (!it.next().equals(expected.next())) return false;
+		}
+
+		return !it.hasNext() && !expected.hasNext();
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ow.id.ID;
+
+/**
+ * Checks a "ConcurrentMap" directory and compares throughput of
+ * multithreaded puts and gets on multiple-value directories with "VolatileMap".
+ * Values expire as those in a DHT do.
+ */
+public class ConcurrentMapTest {
+	private final static String COMMAND = "java ConcurrentMapTest";
+	public final static int ID_SIZE = 20;
+	private final static int DEFAULT_NUM_OPERATIONS = 400000;
+	private final static int DEFAULT_NUM_KEYS = 100000;
+	private final static int DEFAULT_MAX_THREADS = 64;
+	private final static String[] DEFAULT_PROVIDERS = { "VolatileMap", "ConcurrentMap" };
+	private final static long EXPIRATION_TIME = 10 * 60 * 1000L;	// 10 min
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-n <# of operations>] [-k <# of keys>] [-t <max # of threads>] [-p <provider>[,<provider>...]]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numOps = DEFAULT_NUM_OPERATIONS;
+		int numKeys = DEFAULT_NUM_KEYS;
+		int maxThreads = DEFAULT_MAX_THREADS;
+		String[] providerNames = DEFAULT_PROVIDERS;
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numOps = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-k")) {
+				i++;
+				numKeys = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-t")) {
+				i++;
+				maxThreads = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-p")) {
+				i++;
+				providerNames = args[i++].split(",");
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+
+		ID[] keys = new ID[numKeys];
+		for (i = 0; i < numKeys; i++) {
+			keys[i] = ID.getSHA1BasedID(("key" + i).getBytes(), ID_SIZE);
+		}
+
+		DirectoryProvider provider = DirectoryFactory.getProvider("ConcurrentMap");
+
+		// multiple values and removal through an iterator
+		{
+			MultiValueDirectory<String,String> dir =
+				provider.openMultiValueDirectory(String.class, String.class, null, "concurrenttest", null);
+			dir.put("abc", "ABC");
+			dir.put("abc", "DEF");
+			dir.put("abc", "DEF");
+			dir.put("ghi", "GHI");
+			dir.remove("abc", "ABC");
+
+			boolean ok = dir.get("abc").size() == 1 && dir.get("abc").contains("DEF") && dir.get("ghi").size() == 1;
+
+			for (Iterator<Map.Entry<String,String>> it = dir.iterator(); it.hasNext(); ) {
+				if (it.next().getKey().equals("ghi")) it.remove();
+			}
+			ok &= dir.get("ghi") == null && dir.keySet().size() == 1 && dir.entrySet().size() == 1;
+
+			System.out.println("ConcurrentMap: multiple values: " + (ok ? "verified" : "FAILED"));
+			dir.close();
+		}
+
+		// snapshots of keys while other threads put and remove
+		{
+			final MultiValueDirectory<ID,String> dir =
+				provider.openMultiValueDirectory(ID.class, String.class, null, "concurrenttest", null);
+			final ID[] pairedKeys = keys;
+			final int n = Math.min(numKeys / 2, 10000);
+			final AtomicBoolean stop = new AtomicBoolean(false);
+
+			// a writer keeps key 2j and key 2j+1 present together
+			Thread writer = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; !stop.get(); j = (j + 1) % n) {
+							dir.put(pairedKeys[2 * j], "v");
+							dir.put(pairedKeys[2 * j + 1], "v");
+						}
+					}
+					catch (Exception e) { e.printStackTrace(); }
+				}
+			};
+			writer.start();
+
+			boolean ok = true;
+			for (int round = 0; round < 100; round++) {
+				Set<ID> snapshot = dir.keySet();
+				int size = snapshot.size();
+				for (int j = 0; j < n; j++) {
+					// key 2j+1 is put after key 2j
+					if (snapshot.contains(pairedKeys[2 * j + 1]) && !snapshot.contains(pairedKeys[2 * j])) ok = false;
+				}
+				ok &= (size == snapshot.size());
+			}
+			stop.set(true);
+			writer.join();
+
+			System.out.println("ConcurrentMap: snapshot of keys: " + (ok ? "verified" : "FAILED"));
+			dir.close();
+		}
+
+		// throughput
+		System.out.println("throughput of " + numOps + " operations (1 put : 3 gets) on " + numKeys + " keys [ops/sec]");
+		System.out.print("threads");
+		for (String providerName: providerNames) System.out.print("\t" + providerName);
+		System.out.println();
+
+		for (int numThreads = 1; numThreads <= maxThreads; numThreads <<= 1) {
+			System.out.print(numThreads);
+
+			for (String providerName: providerNames) {
+				DirectoryConfiguration config = DirectoryConfiguration.getDefaultConfiguration();
+				config.setExpirationTime(EXPIRATION_TIME);
+
+				MultiValueDirectory<ID,String> dir = DirectoryFactory.getProvider(providerName).openMultiValueDirectory(
+						ID.class, String.class, null, "concurrenttest", config);
+
+				long time = System.nanoTime();
+
+				Thread[] threads = new Thread[numThreads];
+				for (int t = 0; t < numThreads; t++) {
+					threads[t] = new Thread(new Worker(dir, keys, numOps / numThreads, t));
+					threads[t].start();
+				}
+				for (Thread t: threads) t.join();
+
+				time = System.nanoTime() - time;
+				System.out.print("\t" + (long)(numOps / (time / 1000000000.0)));
+
+				dir.clear();
+				dir.close();
+			}
+
+			System.out.println();
+		}
+
+		System.exit(0);
+	}
+
+	private static class Worker implements Runnable {
+		private final MultiValueDirectory<ID,String> dir;
+		private final ID[] keys;
+		private final int numOps;
+		private final int seed;
+
+		Worker(MultiValueDirectory<ID,String> dir, ID[] keys, int numOps, int seed) {
+			this.dir = dir; this.keys = keys; this.numOps = numOps; this.seed = seed;
+		}
+
+		public void run() {
+			Random rnd = new Random(this.seed);
+
+			try {
+				for (int i = 0; i < this.numOps; i++) {
+					ID key = this.keys[rnd.nextInt(this.keys.length)];
+
+					if ((i & 3) == 0)
+						this.dir.put(key, "value" + (i & 7));
+					else
+						this.dir.get(key);
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
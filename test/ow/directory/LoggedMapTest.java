@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Set;
+
+import ow.id.ID;
+
+/**
+ * Checks that a "LoggedMap" directory survives reopening, a torn record at the tail of the log
+ * and compaction, and compares time to put and reopen with "PersistentMap".
+ */
+public class LoggedMapTest {
+	private final static String COMMAND = "java LoggedMapTest";
+	public final static int ID_SIZE = 20;
+	private final static int DEFAULT_NUM_ENTRIES = 100000;
+	private final static String DB_NAME = "loggedmaptest-";
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-n <# of entries>] [-d <working dir>]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numEntries = DEFAULT_NUM_ENTRIES;
+		String workingDir = System.getProperty("java.io.tmpdir");
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numEntries = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-d")) {
+				i++;
+				workingDir = args[i++];
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+		if (!workingDir.endsWith(File.separator)) workingDir += File.separator;
+
+		ID[] keys = new ID[numEntries];
+		for (i = 0; i < numEntries; i++) {
+			keys[i] = ID.getSHA1BasedID(("key" + i).getBytes(), ID_SIZE);
+		}
+
+		DirectoryConfiguration config = DirectoryConfiguration.getDefaultConfiguration();
+		config.setHeapOverflowAction(DirectoryConfiguration.HeapOverflowAction.DO_NOT_CARE);
+
+		for (String providerName: new String[] { "LoggedMap", "PersistentMap" }) {
+			DirectoryProvider provider = DirectoryFactory.getProvider(providerName);
+			String dbName = DB_NAME + providerName;
+			provider.removeDirectory(workingDir, dbName);
+
+			// put, overwrite and remove
+			long time = System.currentTimeMillis();
+
+			MultiValueDirectory<ID,String> dir =
+				provider.openMultiValueDirectory(ID.class, String.class, workingDir, dbName, config);
+			for (i = 0; i < numEntries; i++) {
+				dir.put(keys[i], "value" + i);
+			}
+			for (i = 0; i < numEntries; i += 2) {
+				dir.put(keys[i], "second" + i);
+			}
+			for (i = 0; i < numEntries; i += 3) {
+				dir.remove(keys[i], "value" + i);
+			}
+			dir.close();
+
+			time = System.currentTimeMillis() - time;
+			System.out.println(providerName + ": put and remove " + numEntries + " keys and close: " + time + " msec");
+
+			// reopen
+			time = System.currentTimeMillis();
+			dir = provider.openMultiValueDirectory(ID.class, String.class, workingDir, dbName, config);
+			time = System.currentTimeMillis() - time;
+			System.out.println(providerName + ": reopen: " + time + " msec, "
+					+ (verify(dir, keys) ? "verified" : "FAILED"));
+
+			dir.close();
+
+			if (!providerName.equals("LoggedMap")) provider.removeDirectory(workingDir, dbName);
+		}
+
+		// a torn record at the tail
+		DirectoryProvider provider = DirectoryFactory.getProvider("LoggedMap");
+		String dbName = DB_NAME + "LoggedMap";
+		FileOutputStream out = new FileOutputStream(workingDir + dbName, true);
+		out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+		out.close();
+
+		MultiValueDirectory<ID,String> dir =
+			provider.openMultiValueDirectory(ID.class, String.class, workingDir, dbName, config);
+		System.out.println("LoggedMap: reopen after a torn write: "
+				+ (verify(dir, keys) ? "verified" : "FAILED"));
+
+		// compaction
+		long sizeBefore = new File(workingDir + dbName).length();
+		for (int round = 0; round < 3; round++) {
+			for (i = 0; i < numEntries; i++) {
+				dir.put(keys[i], "second" + i);
+				dir.remove(keys[i], "second" + i);
+				if (i % 2 == 0) dir.put(keys[i], "second" + i);
+			}
+		}
+		Thread.sleep(2000L);	// wait for the compaction
+		dir.close();
+		long sizeAfter = new File(workingDir + dbName).length();
+
+		dir = provider.openMultiValueDirectory(ID.class, String.class, workingDir, dbName, config);
+		System.out.println("LoggedMap: log size " + sizeBefore + " byte, "
+				+ sizeAfter + " byte after compaction, "
+				+ (verify(dir, keys) ? "verified" : "FAILED"));
+		dir.close();
+
+		provider.removeDirectory(workingDir, dbName);
+	}
+
+	private static boolean verify(MultiValueDirectory<ID,String> dir, ID[] keys) throws Exception {
+		for (int i = 0; i < keys.length; i++) {
+			Set<String> values = dir.get(keys[i]);
+			int expected = (i % 3 == 0 ? 0 : 1) + (i % 2 == 0 ? 1 : 0);
+
+			if ((values == null ? 0 : values.size()) != expected) {
+				System.out.println("unexpected values for key" + i + ": " + values);
+				return false;
+			}
+			if (i % 3 != 0 && !values.contains("value" + i)) return false;
+			if (i % 2 == 0 && !values.contains("second" + i)) return false;
+		}
+
+		return true;
+	}
+}
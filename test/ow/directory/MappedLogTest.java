@@ -0,0 +1,258 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ow.directory;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import ow.directory.expiration.ExpiringSingleValueDirectory;
+import ow.directory.expiration.ExpiringValue;
+import ow.directory.mapped.MappedSingleValueDirectory;
+import ow.id.ID;
+
+/**
+ * Compares throughput of put, get and scan of a "MappedLog" directory
+ * with "BerkeleyDB" and "DeferredWriteBerkeleyDB" directories,
+ * and checks that the "MappedLog" directory survives reopening and discards a torn record at the tail.
+ * It also checks that a value expired while the directory was closed
+ * does not bring back an older value after its segment is compacted.
+ */
+public class MappedLogTest {
+	private final static String COMMAND = "java MappedLogTest";
+	public final static int ID_SIZE = 20;
+	private final static int DEFAULT_NUM_ENTRIES = 100000;
+	private final static int VALUE_SIZE = 100;
+	private final static String DB_NAME = "mappedlogtest";
+	private final static String[] PROVIDERS = { "MappedLog", "DeferredWriteBerkeleyDB", "BerkeleyDB" };
+	private final static int FILLER_SIZE = 24 * 1024 * 1024;	// several fillers exceed a segment of 64 MB
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-n <# of entries>] [-d <working dir>]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numEntries = DEFAULT_NUM_ENTRIES;
+		String workingDir = System.getProperty("java.io.tmpdir");
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numEntries = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-d")) {
+				i++;
+				workingDir = args[i++];
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+		if (!workingDir.endsWith(File.separator)) workingDir += File.separator;
+
+		ID[] keys = new ID[numEntries];
+		for (i = 0; i < numEntries; i++) {
+			keys[i] = ID.getSHA1BasedID(("key" + i).getBytes(), ID_SIZE);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < VALUE_SIZE) sb.append('v');
+		String padding = sb.toString();
+
+		for (int c = 0; c < PROVIDERS.length; c++) {
+			String providerName = PROVIDERS[c];
+			String dir = workingDir + DB_NAME + c + File.separator;
+			new File(dir).mkdirs();
+
+			DirectoryProvider provider = DirectoryFactory.getProvider(providerName);
+			DirectoryConfiguration config = DirectoryConfiguration.getDefaultConfiguration();
+			config.setCacheSize(64 * 1024 * 1024L);
+			try {
+				provider.removeDirectory(dir, DB_NAME);
+			}
+			catch (Exception e) { /* not found */ }
+
+			SingleValueDirectory<ID,String> sdir =
+				provider.openSingleValueDirectory(ID.class, String.class, dir, DB_NAME, config);
+
+			// put
+			long time = System.currentTimeMillis();
+			for (i = 0; i < numEntries; i++) {
+				sdir.put(keys[i], padding + i);
+			}
+			report(providerName, "put", numEntries, System.currentTimeMillis() - time);
+
+			// get
+			time = System.currentTimeMillis();
+			int numFound = 0;
+			for (i = 0; i < numEntries; i++) {
+				if (sdir.get(keys[i]) != null) numFound++;
+			}
+			report(providerName, "get", numEntries, System.currentTimeMillis() - time);
+
+			// scan
+			time = System.currentTimeMillis();
+			int numScanned = 0;
+			for (Iterator<?> it = sdir.iterator(); it.hasNext(); it.next()) numScanned++;
+			report(providerName, "scan", numScanned, System.currentTimeMillis() - time);
+
+			sdir.close();
+
+			// reopen
+			time = System.currentTimeMillis();
+			sdir = provider.openSingleValueDirectory(ID.class, String.class, dir, DB_NAME, config);
+			time = System.currentTimeMillis() - time;
+
+			boolean ok = (numFound == numEntries) && (numScanned == numEntries) && verify(sdir, keys, padding, numEntries);
+			System.out.println(providerName + ": reopen (" + time + " msec): " + (ok ? "verified" : "FAILED"));
+
+			sdir.close();
+
+			// torn tail
+			if (providerName.equals("MappedLog")) {
+				if (!tearLastRecord(new File(dir))) {
+					System.out.println(providerName + ": torn tail: no segment found");
+				}
+				else {
+					sdir = provider.openSingleValueDirectory(ID.class, String.class, dir, DB_NAME, config);
+					ok = verify(sdir, keys, padding, numEntries - 1) && sdir.get(keys[numEntries - 1]) == null;
+					System.out.println(providerName + ": torn tail: " + (ok ? "verified" : "FAILED"));
+					sdir.close();
+				}
+
+				provider.removeDirectory(dir, DB_NAME);
+				ok = checkExpiredValue(provider, dir);
+				System.out.println(providerName + ": expired value after compaction: " + (ok ? "verified" : "FAILED"));
+			}
+
+			provider.removeDirectory(dir, DB_NAME);
+		}
+	}
+
+	private static void report(String providerName, String op, int num, long time) {
+		System.out.println(providerName + ": " + op + " " + num + " entries: " + time + " msec ("
+				+ (time > 0L ? num * 1000L / time : "-") + " ops/sec)");
+	}
+
+	private static boolean verify(SingleValueDirectory<ID,String> dir, ID[] keys, String padding, int num) throws Exception {
+		for (int i = 0; i < num; i++) {
+			String value = dir.get(keys[i]);
+			if (!(padding + i).equals(value)) {
+				System.out.println("unexpected value for key" + i + ": " + value);
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes an old value and a newer one expiring soon in different segments,
+	 * reopens the directory after the newer one expired and compacts the segment holding it.
+	 */
+	private static boolean checkExpiredValue(DirectoryProvider provider, String dir) throws Exception {
+		DirectoryConfiguration config = DirectoryConfiguration.getDefaultConfiguration();
+		ID key = ID.getSHA1BasedID("expiring".getBytes(), ID_SIZE);
+		ID[] fillers = new ID[5];
+		for (int i = 0; i < fillers.length; i++) {
+			fillers[i] = ID.getSHA1BasedID(("filler" + i).getBytes(), ID_SIZE);
+		}
+
+		char[] chars = new char[FILLER_SIZE];
+		Arrays.fill(chars, 'f');
+		String filler = new String(chars);
+
+		SingleValueDirectory<ID,ExpiringValue<String>> mdir =
+			provider.openSingleValueDirectory(ID.class, ExpiringValue.class, dir, DB_NAME, config);
+		ExpiringSingleValueDirectory<ID,String> edir = new ExpiringSingleValueDirectory<ID,String>(mdir, -1L);
+
+		// segment 1: the old value, segment 2: the expiring value, segment 3: the last filler
+		edir.put(key, "old", -1L);
+		edir.put(fillers[0], filler, -1L);
+		edir.put(fillers[1], filler, -1L);
+		edir.put(fillers[2], filler, -1L);
+		edir.put(key, "new", 500L);
+		edir.put(fillers[3], filler, -1L);
+		edir.put(fillers[4], filler, -1L);
+		edir.close();
+
+		Thread.sleep(1000L);
+
+		mdir = provider.openSingleValueDirectory(ID.class, ExpiringValue.class, dir, DB_NAME, config);
+		boolean ok = (mdir.get(key) == null);
+
+		// makes segment 2 garbage
+		mdir.remove(fillers[2]);
+		mdir.remove(fillers[3]);
+		((MappedSingleValueDirectory)mdir).compact();
+		mdir.close();
+
+		mdir = provider.openSingleValueDirectory(ID.class, ExpiringValue.class, dir, DB_NAME, config);
+		ExpiringValue<String> v = mdir.get(key);
+		if (v != null) {
+			System.out.println("unexpected value for the expired key: " + v.getValue());
+			ok = false;
+		}
+		mdir.close();
+
+		provider.removeDirectory(dir, DB_NAME);
+
+		return ok;
+	}
+
+	/**
+	 * Flips the last written byte of the last segment, which belongs to the last record.
+	 */
+	private static boolean tearLastRecord(File dir) throws Exception {
+		File last = null;
+		for (File f: dir.listFiles()) {
+			if (f.getName().startsWith(DB_NAME + ".") && f.getName().endsWith(".seg")
+					&& (last == null || f.getName().compareTo(last.getName()) > 0)) {
+				last = f;
+			}
+		}
+		if (last == null) return false;
+
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		try {
+			byte[] buf = new byte[(int)raf.length()];
+			raf.readFully(buf);
+
+			int pos = buf.length - 1;
+			while (pos >= 0 && buf[pos] == 0) pos--;
+			if (pos < 0) return false;
+
+			raf.seek(pos);
+			raf.write(buf[pos] ^ 0xff);
+		}
+		finally {
+			raf.close();
+		}
+
+		return true;
+	}
+}
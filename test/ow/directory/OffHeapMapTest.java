@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.directory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import ow.id.ID;
+
+/**
+ * Checks that an "OffHeapMap" directory keeps values within its capacity by LRU eviction,
+ * and compares throughput of concurrent puts and gets and time spent for GC with "VolatileMap".
+ * Off-heap memory for the capacity has to be allowed by -XX:MaxDirectMemorySize.
+ */
+public class OffHeapMapTest {
+	private final static String COMMAND = "java OffHeapMapTest";
+	public final static int ID_SIZE = 20;
+	private final static int DEFAULT_NUM_ENTRIES = 200000;
+	private final static int DEFAULT_NUM_THREADS = 8;
+	private final static int DEFAULT_VALUE_SIZE = 200;
+	private final static String[] DEFAULT_PROVIDERS = { "VolatileMap", "OffHeapMap" };
+	private final static long CAPACITY = 1024 * 1024L;	// 1 MB, for the eviction test
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-n <# of entries>] [-t <# of threads>] [-s <value size>] [-p <provider>[,<provider>...]]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numEntries = DEFAULT_NUM_ENTRIES;
+		int numThreads = DEFAULT_NUM_THREADS;
+		int valueSize = DEFAULT_VALUE_SIZE;
+		String[] providerNames = DEFAULT_PROVIDERS;
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numEntries = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-t")) {
+				i++;
+				numThreads = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-s")) {
+				i++;
+				valueSize = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-p")) {
+				i++;
+				providerNames = args[i++].split(",");
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+
+		ID[] keys = new ID[numEntries];
+		for (i = 0; i < numEntries; i++) {
+			keys[i] = ID.getSHA1BasedID(("key" + i).getBytes(), ID_SIZE);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < valueSize) sb.append('v');
+		String payload = sb.toString();
+
+		DirectoryProvider provider = DirectoryFactory.getProvider("OffHeapMap");
+
+		// multiple values and removal through an iterator
+		{
+			MultiValueDirectory<String,String> dir =
+				provider.openMultiValueDirectory(String.class, String.class, null, "offheaptest", null);
+			dir.put("abc", "ABC");
+			dir.put("abc", "DEF");
+			dir.put("abc", "DEF");
+			dir.put("ghi", "GHI");
+			dir.remove("abc", "ABC");
+
+			boolean ok = dir.get("abc").size() == 1 && dir.get("abc").contains("DEF") && dir.get("ghi").size() == 1;
+
+			for (Iterator<Map.Entry<String,String>> it = dir.iterator(); it.hasNext(); ) {
+				if (it.next().getKey().equals("ghi")) it.remove();
+			}
+			ok &= dir.get("ghi") == null && dir.keySet().size() == 1;
+
+			System.out.println("OffHeapMap: multiple values: " + (ok ? "verified" : "FAILED"));
+			dir.close();
+		}
+
+		// LRU eviction within the capacity
+		{
+			DirectoryConfiguration config = DirectoryConfiguration.getDefaultConfiguration();
+			config.setOffHeapCapacity(CAPACITY);
+			config.setHeapOverflowAction(DirectoryConfiguration.HeapOverflowAction.LRU);
+
+			SingleValueDirectory<ID,String> dir =
+				provider.openSingleValueDirectory(ID.class, String.class, null, "offheaptest", config);
+			int n = Math.min(numEntries, 10 * (int)(CAPACITY / valueSize));
+			for (i = 0; i < n; i++) {
+				dir.put(keys[i], payload + i);
+				if (i > 0) dir.get(keys[0]);	// keep the first one recently used
+			}
+
+			Set<ID> remaining = dir.keySet();
+			boolean ok = remaining.size() < n
+					&& remaining.contains(keys[0])
+					&& remaining.contains(keys[n - 1])
+					&& !remaining.contains(keys[1])
+					&& (payload + (n - 1)).equals(dir.get(keys[n - 1]));
+			System.out.println("OffHeapMap: " + remaining.size() + " of " + n + " values remain in "
+					+ CAPACITY + " byte: " + (ok ? "verified" : "FAILED"));
+
+			config.setHeapOverflowAction(DirectoryConfiguration.HeapOverflowAction.THROW_AN_OUT_OF_HEAP_EXCEPTION);
+			dir = provider.openSingleValueDirectory(ID.class, String.class, null, "offheaptest", config);
+			try {
+				for (i = 0; i < n; i++) dir.put(keys[i], payload + i);
+				System.out.println("OffHeapMap: OutOfHeapException: FAILED");
+			}
+			catch (OutOfHeapException e) {
+				System.out.println("OffHeapMap: OutOfHeapException after " + i + " values: verified");
+			}
+		}
+
+		// throughput
+		for (String providerName: providerNames) {
+			DirectoryConfiguration config = DirectoryConfiguration.getDefaultConfiguration();
+			config.setOffHeapCapacity(4L * numEntries * (valueSize + 64));
+
+			final SingleValueDirectory<ID,String> dir = DirectoryFactory.getProvider(providerName).openSingleValueDirectory(
+					ID.class, String.class, null, "offheaptest", config);
+
+			long gcTime = gcTime();
+			long time = System.currentTimeMillis();
+
+			Thread[] threads = new Thread[numThreads];
+			for (int t = 0; t < numThreads; t++) {
+				threads[t] = new Thread(new Worker(dir, keys, payload, t, numThreads));
+				threads[t].start();
+			}
+			for (Thread t: threads) t.join();
+
+			time = System.currentTimeMillis() - time;
+			gcTime = gcTime() - gcTime;
+			System.out.println(providerName + ": " + numEntries + " puts and " + 4 * numEntries + " gets by "
+					+ numThreads + " threads: " + time + " msec, GC " + gcTime + " msec");
+
+			dir.close();
+		}
+	}
+
+	private static long gcTime() {
+		long time = 0L;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += gc.getCollectionTime();
+		}
+		return time;
+	}
+
+	private static class Worker implements Runnable {
+		private final SingleValueDirectory<ID,String> dir;
+		private final ID[] keys;
+		private final String payload;
+		private final int offset, stride;
+
+		Worker(SingleValueDirectory<ID,String> dir, ID[] keys, String payload, int offset, int stride) {
+			this.dir = dir; this.keys = keys; this.payload = payload;
+			this.offset = offset; this.stride = stride;
+		}
+
+		public void run() {
+			try {
+				for (int i = this.offset; i < this.keys.length; i += this.stride) {
+					this.dir.put(this.keys[i], this.payload + i);
+				}
+				for (int round = 0; round < 4; round++) {
+					for (int i = this.offset; i < this.keys.length; i += this.stride) {
+						if (this.dir.get(this.keys[i]) == null) {
+							System.out.println("lost a value for key" + i);
+						}
+					}
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
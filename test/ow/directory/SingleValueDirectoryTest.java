@@ -26,6 +26,7 @@ public class SingleValueDirectoryTest {
 		String providerName = "BerkeleyDB";
 //		String providerName = "PersistentMap";
 //		String providerName = "VolatileMap";
+//		String providerName = "OffHeapMap";
 
 		DirectoryProvider dirProvider = DirectoryFactory.getProvider(providerName);
 		DirectoryConfiguration dirConfig = DirectoryConfiguration.getDefaultConfiguration();
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2006-2011 National Institute of Advanced Industrial Science
+ * and Technology (AIST), and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.id;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+
+import ow.id.comparator.AlgoBasedFromSrcIDComparator;
+import ow.id.comparator.AlgoBasedTowardTargetIDComparator;
+import ow.id.comparator.ClockwiseTowardTargetIDAddrComparator;
+import ow.messaging.MessagingFactory;
+import ow.messaging.MessagingProvider;
+import ow.messaging.Signature;
+import ow.routing.RoutingAlgorithm;
+import ow.routing.RoutingAlgorithmConfiguration;
+import ow.routing.RoutingAlgorithmFactory;
+import ow.routing.RoutingAlgorithmProvider;
+import ow.routing.RoutingService;
+import ow.routing.RoutingServiceFactory;
+import ow.routing.RoutingServiceProvider;
+
+/**
+ * Measures throughput of ID comparators for 160-bit IDs,
+ * comparing the distance calculation on {@link IDDistance IDDistance}
+ * with the one on BigInteger.
+ */
+public class IDComparatorBenchmark {
+	private final static String COMMAND = "java IDComparatorBenchmark";
+	private final static int ID_SIZE = 20;	// 160 bit
+	private final static int DEFAULT_NUM_IDS = 1024;
+	private final static int DEFAULT_NUM_COMPARISONS = 10000000;
+	private final static int PORT = 10000;
+	private final static int NUM_ROUNDS = 5;	// the first round is a warm-up
+	private final static String[] DEFAULT_ALGORITHMS = { "Kademlia", "Chord", "Pastry", "Tapestry" };
+
+	private static volatile int sink;	// prevents dead code elimination
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-n <# of IDs>] [-c <# of comparisons>] [-a <algorithm>[,<algorithm>...]]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numIDs = DEFAULT_NUM_IDS;
+		int numComparisons = DEFAULT_NUM_COMPARISONS;
+		String[] algorithms = DEFAULT_ALGORITHMS;
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numIDs = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-c")) {
+				i++;
+				numComparisons = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-a")) {
+				i++;
+				algorithms = args[i++].split(",");
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+
+		ID[] ids = new ID[numIDs];
+		for (i = 0; i < numIDs; i++) ids[i] = ID.getRandomID(ID_SIZE);
+		ID target = ID.getRandomID(ID_SIZE);
+
+		// a routing service hosting an algorithm instance, on the emulator
+		MessagingProvider msgProvider = MessagingFactory.getProvider("Emulator", Signature.getAllAcceptingSignature());
+		RoutingServiceProvider svcProvider = RoutingServiceFactory.getProvider("Iterative");
+		int port = PORT;
+
+		for (String algoName: algorithms) {
+			RoutingAlgorithmProvider provider = RoutingAlgorithmFactory.getProvider(algoName);
+			RoutingAlgorithmConfiguration conf = provider.getDefaultConfiguration();
+			conf.setIDSizeInByte(ID_SIZE);
+			RoutingService svc = svcProvider.getService(svcProvider.getDefaultConfiguration(),
+					msgProvider, msgProvider.getDefaultConfiguration(), port++, 1,
+					provider, conf, ID.getRandomID(ID_SIZE));
+			final RoutingAlgorithm algo = provider.initializeAlgorithmInstance(conf, svc);
+
+			final ID tgt = target;
+			Comparator<ID> bigIntegerComparator = new Comparator<ID>() {
+				public int compare(ID i1, ID i2) {
+					BigInteger dist1 = algo.distance(tgt, i1);
+					BigInteger dist2 = algo.distance(tgt, i2);
+
+					return dist1.compareTo(dist2);
+				}
+			};
+
+			if (!verify(ids, new AlgoBasedTowardTargetIDComparator(algo, target), bigIntegerComparator)) {
+				System.out.println(algoName + ": distance on IDDistance differs from BigInteger.");
+			}
+
+			report(algoName + " toward target (BigInteger)",
+					measure(ids, bigIntegerComparator, numComparisons), numComparisons);
+			report(algoName + " toward target",
+					measure(ids, new AlgoBasedTowardTargetIDComparator(algo, target), numComparisons), numComparisons);
+			report(algoName + " from source",
+					measure(ids, new AlgoBasedFromSrcIDComparator(algo, target), numComparisons), numComparisons);
+		}
+
+		// clockwise
+		Comparator<IDAddressPair> clockwiseComparator =
+			new ClockwiseTowardTargetIDAddrComparator(ID_SIZE * 8, target);
+		IDAddressPair[] pairs = new IDAddressPair[numIDs];
+		for (i = 0; i < numIDs; i++) pairs[i] = IDAddressPair.getIDAddressPair(ids[i], null);
+
+		report("Clockwise toward target",
+				measure(pairs, clockwiseComparator, numComparisons), numComparisons);
+
+		System.exit(0);	// stop the routing services
+	}
+
+	private static boolean verify(ID[] ids, Comparator<ID> cmp, Comparator<ID> reference) {
+		for (int i = 0; i < ids.length; i++) {
+			ID i1 = ids[i], i2 = ids[(i * 7 + 1) % ids.length];
+			if (Integer.signum(cmp.compare(i1, i2)) != Integer.signum(reference.compare(i1, i2)))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the shortest elapsed time in nanosecond of the rounds except the first one.
+	 */
+	private static <T> long measure(T[] ids, Comparator<T> cmp, int numComparisons) {
+		int numIDs = ids.length;
+		long best = Long.MAX_VALUE;
+
+		for (int round = 0; round < NUM_ROUNDS; round++) {
+			int s = 0;
+			long start = System.nanoTime();
+			for (int c = 0; c < numComparisons; c++) {
+				s += cmp.compare(ids[c % numIDs], ids[(c * 7 + 1) % numIDs]);
+			}
+			long elapsed = System.nanoTime() - start;
+			sink += s;
+
+			if (round > 0 && elapsed < best) best = elapsed;
+		}
+
+		return best;
+	}
+
+	private static void report(String name, long elapsedNanos, int count) {
+		System.out.println(name + ": " + count + " comparisons: " + (elapsedNanos / 1000000L) + " msec, "
+				+ (elapsedNanos > 0 ? (1000000000L * count / elapsedNanos) : "-") + " ops/sec");
+	}
+}
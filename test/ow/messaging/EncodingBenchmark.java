@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.messaging.codec.MessageCodec;
+import ow.messaging.codec.MessageCodecFactory;
+
+/**
+ * Compares message codecs in bytes per message and encode/decode time per message
+ * for every message registered to {@link MessageDirectory MessageDirectory}.
+ * Public members of a message are filled with sample values.
+ */
+public class EncodingBenchmark {
+	private final static String COMMAND = "java EncodingBenchmark";
+	private final static String TRANSPORT = "UDP";
+	private final static int ID_SIZE = 20;
+	private final static int ARRAY_LENGTH = 5;
+
+	private final static int DEFAULT_REPEAT = 10000;
+	private final static int DEFAULT_COMPRESSION_THRESHOLD = 256;
+
+	private final static String[] CODECS = { "Serialization", "Binary" };
+
+	private static MessagingProvider provider;
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-r <repeat>] [-c <compression threshold>]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int repeat = DEFAULT_REPEAT;
+		int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-r")) {
+				i++;
+				repeat = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-c")) {
+				i++;
+				compressionThreshold = Integer.parseInt(args[i++]);
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+
+		provider = MessagingFactory.getProvider(TRANSPORT, Signature.getAllAcceptingSignature());
+		IDAddressPair src = IDAddressPair.getIDAddressPair(
+				ID.getRandomID(ID_SIZE), provider.getMessagingAddress(50000));
+
+		System.out.print("message");
+		for (String codecName: CODECS) {
+			System.out.print("\t" + codecName + "(byte)\tencode(ns)\tdecode(ns)");
+		}
+		System.out.println();
+
+		SortedSet<String> names = new TreeSet<String>();
+		for (int tag: MessageDirectory.getTags()) names.add(MessageDirectory.getName(tag) + "\t" + tag);
+
+		for (String nameAndTag: names) {
+			int tag = Integer.parseInt(nameAndTag.substring(nameAndTag.indexOf('\t') + 1));
+
+			Message msg;
+			try {
+				msg = MessageDirectory.getClassByTag(tag).newInstance();
+				fill(msg);
+			}
+			catch (Exception e) {
+				System.out.println(MessageDirectory.getName(tag) + "\t(could not instantiate: " + e + ")");
+				continue;
+			}
+			msg.setSource(src);
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(msg.getName());
+
+			for (String codecName: CODECS) {
+				MessageCodec codec = MessageCodecFactory.getCodec(codecName);
+
+				try {
+					sb.append("\t").append(measure(msg, codec, compressionThreshold, repeat));
+				}
+				catch (Exception e) {
+					sb.append("\t(failed: ").append(e).append(")\t-\t-");
+				}
+			}
+
+			System.out.println(sb);
+		}
+	}
+
+	private static String measure(Message msg, MessageCodec codec, int compressionThreshold, int repeat)
+			throws Exception {
+		ByteBuffer buf = msg.encode(codec, compressionThreshold);
+		int size = buf.remaining();
+
+		// warm up
+		for (int i = 0; i < repeat / 10; i++) {
+			Message.decode(msg.encode(codec, compressionThreshold));
+		}
+
+		long encodeTime = -System.nanoTime();
+		for (int i = 0; i < repeat; i++) {
+			buf = msg.encode(codec, compressionThreshold);
+		}
+		encodeTime += System.nanoTime();
+
+		long decodeTime = -System.nanoTime();
+		for (int i = 0; i < repeat; i++) {
+			Message.decode(buf);
+		}
+		decodeTime += System.nanoTime();
+
+		return size + "\t" + (encodeTime / repeat) + "\t" + (decodeTime / repeat);
+	}
+
+	private static void fill(Message msg) throws Exception {
+		for (Field f: msg.getClass().getFields()) {
+			int mod = f.getModifiers();
+			if (Modifier.isStatic(mod) || Modifier.isFinal(mod)) continue;
+
+			Class<?> type = f.getType();
+			if (type == int.class) f.setInt(msg, 12345);
+			else if (type == long.class) f.setLong(msg, 1234567890L);
+			else if (type == boolean.class) f.setBoolean(msg, true);
+			else if (type == String.class) f.set(msg, "a sample string");
+			else if (type == ID.class) f.set(msg, ID.getRandomID(ID_SIZE));
+			else if (type == IDAddressPair.class) f.set(msg, samplePair(0));
+			else if (type == MessagingAddress.class) f.set(msg, samplePair(0));
+			else if (type == ID[].class) {
+				ID[] ids = new ID[ARRAY_LENGTH];
+				for (int i = 0; i < ids.length; i++) ids[i] = ID.getRandomID(ID_SIZE);
+				f.set(msg, ids);
+			}
+			else if (type == IDAddressPair[].class) {
+				IDAddressPair[] pairs = new IDAddressPair[ARRAY_LENGTH];
+				for (int i = 0; i < pairs.length; i++) pairs[i] = samplePair(i);
+				f.set(msg, pairs);
+			}
+		}
+	}
+
+	private static IDAddressPair samplePair(int i) throws Exception {
+		return IDAddressPair.getIDAddressPair(ID.getRandomID(ID_SIZE),
+				provider.getMessagingAddress("192.168.0." + (i + 1), 3997));
+	}
+}
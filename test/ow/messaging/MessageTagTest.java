@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+/**
+ * Checks that the tags of the messages of a previous release are kept,
+ * so that nodes of the release and the current one understand each other.
+ * A new message has to be named so that its name hashes to a tag not in the table.
+ */
+public class MessageTagTest {
+	// tag and name of the messages of the previous release
+	private final static String[][] RELEASED_TAGS = {
+		{ "0", "STAT_PING" },
+		{ "1", "DISCONNECT_NODES" },
+		{ "4", "REP_SUCC_AND_PRD" },
+		{ "5", "REQ_STICKY_NODES" },
+		{ "6", "EMPHASIZE_NODE" },
+		{ "7", "REQ_NEIGHBORS" },
+		{ "8", "ENCAPSULATED" },
+		{ "13", "NULL" },
+		{ "14", "REQ_PREDECESSOR" },
+		{ "15", "UPDATE_FINGER_TABLE" },
+		{ "18", "REC_ROUTE_JOIN" },
+		{ "19", "ITE_ROUTE_JOIN" },
+		{ "20", "REQ_TRANSFER" },
+		{ "21", "REQ_ROUTING_TABLE_ROW" },
+		{ "22", "MULTICAST_JOINING_NODE" },
+		{ "23", "PUCH_HOLE_REP" },
+		{ "25", "PUT_VALUEINFO" },
+		{ "29", "PUT_ON_CONDITION" },
+		{ "30", "ACK_CONNECT" },
+		{ "31", "CONNECT_NODES" },
+		{ "32", "REP_ROUTING_TABLE_ROW" },
+		{ "38", "REMOVE" },
+		{ "45", "REC_ROUTE_INVOKE" },
+		{ "47", "JOINED" },
+		{ "48", "ACK" },
+		{ "52", "REC_ROUTE_NONE" },
+		{ "54", "DISCONNECT" },
+		{ "56", "DELETE_NODE" },
+		{ "57", "REP_NEIGHBORS" },
+		{ "58", "ITE_ROUTE_NONE" },
+		{ "59", "REQ_SUCC_AND_PRD" },
+		{ "60", "CONNECT" },
+		{ "61", "REC_ACK" },
+		{ "64", "NOTIFY_JOINING_NODE" },
+		{ "67", "PUT" },
+		{ "78", "ITE_REPLY" },
+		{ "79", "NACK_CONNECT" },
+		{ "81", "UPDATE_ROUTING_TABLE" },
+		{ "82", "UPDATE_ROUTING_TABLE" },
+		{ "83", "REP_PREDECESSOR" },
+		{ "84", "MULTICAST_ACK" },
+		{ "85", "GET" },
+		{ "86", "DHT_REPLY" },
+		{ "89", "REC_RESULT" },
+		{ "90", "MARK_ID" },
+		{ "91", "DISCONNECT_AND_REFUSE" },
+		{ "94", "ITE_ROUTE_INVOKE" },
+		{ "106", "PING" },
+		{ "111", "MESSAGE_SENT" },
+		{ "112", "REP_LEAF_SET" },
+		{ "116", "STAT_ACK" },
+		{ "117", "MULTICAST" },
+		{ "118", "PUCH_HOLE_REQ" },
+		{ "120", "REQ_LEAF_SET" },
+		{ "122", "ACK_FINGER_TABLE" },
+		{ "126", "REP_STICKY_NODES" }
+	};
+
+	public static void main(String[] args) {
+		int numMoved = 0;
+
+		for (String[] entry: RELEASED_TAGS) {
+			int tag = Integer.parseInt(entry[0]);
+			String name = MessageDirectory.getName(tag);
+
+			if (!entry[1].equals(name)) {
+				System.out.println("The tag " + tag + " of " + entry[1] + " is taken by " + name + ".");
+				numMoved++;
+			}
+		}
+
+		System.out.println(numMoved == 0 ? "All the " + RELEASED_TAGS.length + " tags are kept."
+				: numMoved + " tags moved.");
+		if (numMoved > 0) System.exit(1);
+	}
+}
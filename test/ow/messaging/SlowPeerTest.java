@@ -0,0 +1,206 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ow.routing.impl.message.AckMessage;
+import ow.routing.impl.message.PingMessage;
+
+/**
+ * Sends requests alternately to a peer which replies later than the timeout
+ * and to a peer which replies soon, and checks that requests time out on time,
+ * that a late reply is not taken as a reply to the next request
+ * and, with TCP, how many connections are opened.
+ */
+public class SlowPeerTest {
+	private final static String COMMAND = "java SlowPeerTest";
+	private final static int DEFAULT_PORT = 10000;
+	private final static int DEFAULT_NUM_ROUNDS = 20;
+	private final static int DEFAULT_TIMEOUT = 200;	// msec
+	private final static long DEFAULT_DELAY = 400L;	// msec
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-hu] [-n <# of rounds>] [-o <timeout (msec)>] [-d <delay of a slow reply (msec)>] [-p <port>]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		String transport = "TCP";
+		int numRounds = DEFAULT_NUM_ROUNDS;
+		int timeout = DEFAULT_TIMEOUT;
+		long delay = DEFAULT_DELAY;
+		int port = DEFAULT_PORT;
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-u")) {
+				transport = "UDP";
+				i++;
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numRounds = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-o")) {
+				i++;
+				timeout = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-d")) {
+				i++;
+				delay = Long.parseLong(args[i++]);
+			}
+			else if (args[i].equals("-p")) {
+				i++;
+				port = Integer.parseInt(args[i++]);
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+
+		MessagingProvider provider = MessagingFactory.getProvider(transport, Signature.getAllAcceptingSignature());
+		MessagingConfiguration config = provider.getDefaultConfiguration();
+		config.setDoUPnPNATTraversal(false);
+		config.setDoTimeoutCalculation(false);
+		config.setStaticTimeout(timeout);
+
+		// a peer which replies to every other request after the delay,
+		// with a message of a different type from a soon reply
+		final long slowDelay = delay;
+		MessageReceiver server = provider.getReceiver(config, port, 1);
+		server.addHandler(new MessageHandler() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Message process(Message msg) {
+				if (count.getAndIncrement() % 2 == 0) {
+					try { Thread.sleep(slowDelay); } catch (InterruptedException e) {}
+					return new PingMessage();
+				}
+
+				return new AckMessage();
+			}
+		});
+
+		MessageReceiver client = provider.getReceiver(config, port + 1, 1);
+		MessageSender sender = client.getSender();
+
+		// with TCP, connections are counted by a relay in between
+		MessagingAddress dest = server.getSelfAddress();
+		Relay relay = null;
+		if (transport.equals("TCP")) {
+			relay = new Relay(port + 2, port);
+			dest = provider.getMessagingAddress(InetAddress.getLocalHost().getHostAddress(), port + 2);
+		}
+
+		int numTimeouts = 0, numReplies = 0, numWrongReplies = 0;
+		long maxTimeoutTime = 0L;
+		for (i = 0; i < 2 * numRounds; i++) {
+			Message ping = new PingMessage();
+			ping.setSource(client.getSelfAddress());
+
+			long start = System.currentTimeMillis();
+			try {
+				Message ret = sender.sendAndReceive(dest, ping);
+				numReplies++;
+
+				if (!(ret instanceof AckMessage)) numWrongReplies++;
+			}
+			catch (IOException e) {
+				numTimeouts++;
+				maxTimeoutTime = Math.max(maxTimeoutTime, System.currentTimeMillis() - start);
+			}
+
+			if (i % 2 == 0) Thread.sleep(delay);	// lets the late reply arrive
+		}
+
+		System.out.println(transport + ": " + numTimeouts + " timeouts (expected " + numRounds
+				+ ", took " + maxTimeoutTime + " msec at most with timeout " + timeout + " msec), "
+				+ numReplies + " replies (" + numWrongReplies + " wrong)");
+		if (relay != null) {
+			System.out.println(transport + ": " + relay.getNumConnections() + " connections opened");
+		}
+
+		System.exit(0);
+	}
+
+	private static class Relay implements Runnable {
+		private final ServerSocket servSock;
+		private final int targetPort;
+		private final AtomicInteger numConnections = new AtomicInteger();
+
+		Relay(int port, int targetPort) throws IOException {
+			this.servSock = new ServerSocket(port);
+			this.targetPort = targetPort;
+
+			Thread t = new Thread(this);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		int getNumConnections() { return this.numConnections.get(); }
+
+		public void run() {
+			try {
+				while (true) {
+					Socket in = this.servSock.accept();
+					Socket out = new Socket(InetAddress.getLocalHost(), this.targetPort);
+					this.numConnections.incrementAndGet();
+
+					pipe(in, out);
+					pipe(out, in);
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private static void pipe(final Socket from, final Socket to) {
+			Thread t = new Thread() {
+				public void run() {
+					byte[] buf = new byte[8192];
+					try {
+						InputStream in = from.getInputStream();
+						OutputStream out = to.getOutputStream();
+						int len;
+						while ((len = in.read(buf)) >= 0) {
+							out.write(buf, 0, len);
+						}
+					}
+					catch (IOException e) { /* closed */ }
+
+					try { from.close(); to.close(); } catch (IOException e) {}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+}
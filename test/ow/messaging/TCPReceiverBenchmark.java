@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.messaging;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import ow.messaging.codec.MessageCodecFactory;
+import ow.messaging.tcp.TCPMessagingConfiguration;
+import ow.routing.impl.message.AckMessage;
+import ow.routing.impl.message.PingMessage;
+
+/**
+ * Measures heap consumption and number of threads of a TCP message receiver
+ * keeping many idle connections, and reports connections supported per GB of heap.
+ * Note that the heap includes client-side sockets, which are held by this process too.
+ */
+public class TCPReceiverBenchmark {
+	private final static String COMMAND = "java TCPReceiverBenchmark";
+	private final static int DEFAULT_PORT = 10000;
+	private final static int DEFAULT_NUM_CONNECTIONS = 2000;
+	private final static int DEFAULT_NUM_SELECTOR_THREADS = 0;
+	private final static long REPLY_TIMEOUT = 5000L;
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-n <# of connections>] [-s <# of selector threads>] [-p <port>]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numConns = DEFAULT_NUM_CONNECTIONS;
+		int numSelectorThreads = DEFAULT_NUM_SELECTOR_THREADS;
+		int port = DEFAULT_PORT;
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numConns = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-s")) {
+				i++;
+				numSelectorThreads = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-p")) {
+				i++;
+				port = Integer.parseInt(args[i++]);
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+
+		MessagingProvider provider = MessagingFactory.getProvider("TCP", Signature.getAllAcceptingSignature());
+		TCPMessagingConfiguration config = (TCPMessagingConfiguration)provider.getDefaultConfiguration();
+		config.setDoUPnPNATTraversal(false);
+		config.setReceiverKeepAliveTime(3600 * 1000L);
+		config.setNumOfSelectorThreads(numSelectorThreads);
+
+		MessageReceiver receiver = provider.getReceiver(config, port, 100);
+		receiver.addHandler(new MessageHandler() {
+			public Message process(Message msg) { return new AckMessage(); }
+		});
+		MessagingAddress addr = receiver.getSelfAddress();
+
+		System.out.println("selector threads: " + numSelectorThreads
+				+ (numSelectorThreads <= 0 ? " (a thread per connection)" : ""));
+
+		long heapBefore = usedHeap();
+		int threadsBefore = Thread.activeCount();
+
+		List<SocketChannel> conns = new ArrayList<SocketChannel>();
+		Message ping = new PingMessage();
+		ping.setSource(addr);
+
+		long time = -System.currentTimeMillis();
+		try {
+			for (i = 0; i < numConns; i++) {
+				SocketChannel sock = SocketChannel.open(((InetMessagingAddress)addr).getInetSocketAddress());
+				conns.add(sock);
+
+				ping.encode(sock, MessageCodecFactory.getCodec("Binary"), -1);
+				Message.decode(sock, REPLY_TIMEOUT);
+					// a thread-per-connection receiver stops replying
+					// once all pooled threads are parked on idle connections.
+			}
+		}
+		catch (Throwable e) {
+			System.out.println("failed after " + conns.size() + " connections: " + e);
+		}
+		time += System.currentTimeMillis();
+
+		Thread.sleep(1000L);
+
+		long heapAfter = usedHeap();
+		int threadsAfter = Thread.activeCount();
+
+		long heapPerConn = (heapAfter - heapBefore) / Math.max(conns.size(), 1);
+
+		System.out.println("connections: " + conns.size() + " (" + time + " msec)");
+		System.out.println("heap: " + (heapAfter - heapBefore) + " byte, " + heapPerConn + " byte/connection");
+		System.out.println("connections per GB of heap: "
+				+ (heapPerConn > 0 ? (1024L * 1024L * 1024L / heapPerConn) : -1));
+		System.out.println("threads: " + (threadsAfter - threadsBefore) + " more threads (stacks are not in heap)");
+
+		for (SocketChannel sock: conns) sock.close();
+		System.exit(0);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime r = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100L);
+		}
+
+		return r.totalMemory() - r.freeMemory();
+	}
+}
@@ -17,10 +17,22 @@
 
 package ow.routing;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
 import ow.id.ID;
+import ow.id.IDAddressPair;
+import ow.id.comparator.AlgoBasedTowardTargetIDAddrComparator;
 import ow.messaging.MessagingFactory;
 import ow.messaging.MessagingProvider;
 import ow.messaging.Signature;
+import ow.messaging.emulator.EmuLatencyMatrix;
+import ow.messaging.emulator.EmuMessageSender;
+import ow.messaging.emulator.EmuMessagingConfiguration;
+import ow.routing.impl.AbstractRoutingAlgorithm;
+import ow.util.DiscreteEventScheduler;
+import ow.util.Timer;
 
 public class RoutingTest {
 	private final static String COMMAND = "java RoutingTest";
@@ -68,6 +80,19 @@ public class RoutingTest {
 			System.exit(1);
 		}
 
+		if (args[0].equals("-p")) {
+			proximityStatistics(args);
+			System.exit(0);
+		}
+		else if (args[0].equals("-e")) {
+			eventDrivenStatistics(args);
+			System.exit(0);
+		}
+		else if (args[0].startsWith("-")) {
+			lookupStatistics(args);
+			System.exit(0);
+		}
+
 		int n = Integer.parseInt(args[0]);
 
 		RoutingTest r = new RoutingTest(n);
@@ -121,6 +146,355 @@ public class RoutingTest {
 		System.out.print("usage: ");
 		System.out.print(cmd);
 		System.out.println(" <number>");
+		System.out.print("   or: ");
+		System.out.print(cmd);
+		System.out.println(" -s [-n <# of nodes>] [-l <# of lookups>] [-a <max query concurrency>] [-f <communication failure rate>] [-d <latency (usec)>] [-o <timeout (msec)>] [-S]");
+		System.out.print("   or: ");
+		System.out.print(cmd);
+		System.out.println(" -p [-n <# of nodes>] [-l <# of lookups>] [-m <# of sites>] [-d <max inter-site latency (usec)>] [-g <algorithm>] [-r <routing style>]");
+		System.out.print("   or: ");
+		System.out.print(cmd);
+		System.out.println(" -e [-n <# of nodes>] [-l <# of lookups>] [-m <# of sites>] [-d <max inter-site latency (usec)>] [-R <seed>]");
+	}
+
+	/**
+	 * Forms an overlay of nodes with iterative routing in this JVM and
+	 * reports distributions of the number of hops and latency of lookups
+	 * for each query concurrency from 1.
+	 */
+	private static void lookupStatistics(String[] args) throws Exception {
+		int numNodes = 64;
+		int numLookups = 200;
+		int maxConcurrency = 5;
+		double failureRate = 0.02;
+		int latencyMicros = 1000;
+		int timeout = 300;
+		boolean strict = false;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-s")) {}
+			else if (args[i].equals("-n")) numNodes = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-l")) numLookups = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-a")) maxConcurrency = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-f")) failureRate = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-d")) latencyMicros = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-o")) timeout = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-S")) strict = true;
+			else {
+				usage(COMMAND);
+				System.exit(1);
+			}
+		}
+
+		MessagingProvider msgProvider = MessagingFactory.getProvider(MESSAGING_TRANSPORT, Signature.getAllAcceptingSignature());
+		EmuMessagingConfiguration msgConfig = (EmuMessagingConfiguration)msgProvider.getDefaultConfiguration();
+		msgConfig.setAdditionalLatencyMicros(latencyMicros);
+		msgConfig.setCommunicationFailureRate(Double.MIN_VALUE);	// enables failures, which are caused after joining
+		msgConfig.setStaticTimeout(timeout);
+
+		RoutingAlgorithmProvider algoProvider = RoutingAlgorithmFactory.getProvider(ROUTING_ALGORITHM);
+		RoutingAlgorithmConfiguration algoConfig = algoProvider.getDefaultConfiguration();
+		RoutingServiceProvider svcProvider = RoutingServiceFactory.getProvider("Iterative");
+		RoutingServiceConfiguration svcConf = svcProvider.getDefaultConfiguration();	// shared by all nodes
+		svcConf.setStrictQueryTermination(strict);
+
+		RoutingService[] nodes = new RoutingService[numNodes];
+		IDAddressPair[] nodeIDs = new IDAddressPair[numNodes];
+		RoutingAlgorithm algo = null;
+		for (int i = 0; i < numNodes; i++) {
+			nodes[i] = svcProvider.getService(svcConf,
+					msgProvider, msgConfig, PORT + i, 1,
+					algoProvider, algoConfig, ID.getRandomID(ID_SIZE));
+			algo = algoProvider.initializeAlgorithmInstance(algoConfig, nodes[i]);
+			nodeIDs[i] = nodes[i].getSelfIDAddressPair();
+
+			if (i > 0) nodes[i].join(nodes[0].getSelfIDAddressPair().getAddress());
+		}
+		Thread.sleep(1000L);
+
+		msgConfig.setCommunicationFailureRate(failureRate);
+
+		System.out.println("nodes: " + numNodes + ", lookups: " + numLookups
+				+ ", latency: " + latencyMicros + " usec, failure rate: " + failureRate
+				+ ", timeout: " + timeout + " msec, " + (strict ? "strict" : "loose") + " termination");
+
+		Random rnd = new Random(1L);
+		for (int alpha = 1; alpha <= maxConcurrency; alpha++) {
+			svcConf.setQueryConcurrency(alpha);
+
+			int[] hops = new int[numLookups];
+			long[] latencies = new long[numLookups];
+			int numFailures = 0, numWrongResults = 0;
+
+			for (int i = 0; i < numLookups; i++) {
+				RoutingService node = nodes[rnd.nextInt(numNodes)];
+				ID target = ID.getRandomID(ID_SIZE);
+
+				long t = System.nanoTime();
+				RoutingResult[] res = node.route(new ID[] { target }, 1);
+				latencies[i] = (System.nanoTime() - t) / 1000L;
+
+				if (res == null || res[0] == null) {
+					numFailures++;
+				}
+				else {
+					hops[i] = res[0].getRoute().length - 1;
+
+					// compare with the node closest to the target
+					Arrays.sort(nodeIDs, new AlgoBasedTowardTargetIDAddrComparator(algo, target));
+					if (!nodeIDs[0].equals(res[0].getResponsibleNodeCandidates()[0])) numWrongResults++;
+				}
+			}
+
+			Arrays.sort(hops);
+			Arrays.sort(latencies);
+			System.out.println("alpha " + alpha + ": failed " + numFailures + ", wrong " + numWrongResults
+					+ ", hops " + distribution(hops)
+					+ ", latency (msec) " + distribution(latencies, 1000.0));
+		}
+	}
+
+	/**
+	 * Forms an overlay of nodes scattered over sites on the emulator in this JVM and
+	 * reports stretch of lookups, which is lookup latency divided by the direct RTT
+	 * from the source to the responsible node, without and with consideration of proximity.
+	 */
+	private static void proximityStatistics(String[] args) throws Exception {
+		int numNodes = 64;
+		int numLookups = 200;
+		int numSites = 8;
+		int maxLatencyMicros = 20000;
+		String algoName = ROUTING_ALGORITHM;
+		String routingStyle = ROUTING_STYLE;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-p")) {}
+			else if (args[i].equals("-n")) numNodes = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-l")) numLookups = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-m")) numSites = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-d")) maxLatencyMicros = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-g")) algoName = args[++i];
+			else if (args[i].equals("-r")) routingStyle = args[++i];
+			else {
+				usage(COMMAND);
+				System.exit(1);
+			}
+		}
+
+		EmuLatencyMatrix matrix = EmuLatencyMatrix.getSyntheticMatrix(numSites, 200, maxLatencyMicros, 1L);
+
+		MessagingProvider msgProvider = MessagingFactory.getProvider(MESSAGING_TRANSPORT, Signature.getAllAcceptingSignature());
+		EmuMessagingConfiguration msgConfig = (EmuMessagingConfiguration)msgProvider.getDefaultConfiguration();
+		msgConfig.setLatencyMatrix(matrix);
+
+		System.out.println(algoName + ", " + routingStyle + ", nodes: " + numNodes + ", lookups: " + numLookups
+				+ ", sites: " + numSites + ", max inter-site latency: " + maxLatencyMicros + " usec");
+
+		int port = PORT;
+		for (boolean useProximity: new boolean[] { false, true }) {
+			RoutingAlgorithmProvider algoProvider = RoutingAlgorithmFactory.getProvider(algoName);
+			RoutingAlgorithmConfiguration algoConfig = algoProvider.getDefaultConfiguration();
+			algoConfig.setUseProximity(useProximity);
+			RoutingServiceProvider svcProvider = RoutingServiceFactory.getProvider(routingStyle);
+			RoutingServiceConfiguration svcConf = svcProvider.getDefaultConfiguration();
+
+			// a fresh overlay for each setting
+			RoutingService[] nodes = new RoutingService[numNodes];
+			for (int i = 0; i < numNodes; i++) {
+				nodes[i] = svcProvider.getService(svcConf,
+						msgProvider, msgConfig, port++, 1,
+						algoProvider, algoConfig, ID.getRandomID(ID_SIZE));
+				algoProvider.initializeAlgorithmInstance(algoConfig, nodes[i]);
+
+				if (i > 0) nodes[i].join(nodes[0].getSelfIDAddressPair().getAddress());
+			}
+
+			Random rnd = new Random(1L);
+
+			// warm up, which measures RTTs and refines routing tables
+			for (int i = 0; i < numLookups; i++) {
+				nodes[rnd.nextInt(numNodes)].route(ID.getRandomID(ID_SIZE), 1);
+			}
+
+			int[] hops = new int[numLookups];
+			long[] latencies = new long[numLookups];
+			long[] stretches = new long[numLookups];	// x 100
+			int numFailures = 0, numStretches = 0;
+
+			for (int i = 0; i < numLookups; i++) {
+				RoutingService node = nodes[rnd.nextInt(numNodes)];
+				ID target = ID.getRandomID(ID_SIZE);
+
+				long t = System.nanoTime();
+				RoutingResult res = node.route(target, 1);
+				latencies[i] = (System.nanoTime() - t) / 1000L;
+
+				if (res == null) {
+					numFailures++;
+					continue;
+				}
+
+				hops[i] = res.getRoute().length - 1;
+
+				IDAddressPair responsible = res.getResponsibleNodeCandidates()[0];
+				if (responsible.equals(node.getSelfIDAddressPair())) continue;	// resolved locally
+
+				int directRTT = 2 * matrix.getLatencyMicros(
+						node.getSelfIDAddressPair().getAddress(), responsible.getAddress());
+				stretches[numStretches++] = 100L * latencies[i] / directRTT;
+			}
+
+			for (RoutingService node: nodes) node.stop();
+
+			Arrays.sort(hops);
+			Arrays.sort(latencies);
+			long[] validStretches = new long[numStretches];
+			System.arraycopy(stretches, 0, validStretches, 0, numStretches);
+			Arrays.sort(validStretches);
+
+			System.out.println("proximity " + (useProximity ? "on" : "off") + ": failed " + numFailures
+					+ ", hops " + distribution(hops)
+					+ ", latency (msec) " + distribution(latencies, 1000.0)
+					+ ", stretch " + (numStretches > 0 ? distribution(validStretches, 100.0) : "-"));
+		}
+	}
+
+	/**
+	 * Forms an overlay of nodes scattered over sites with the timer in event driven mode,
+	 * in which emulated communication is a sequence of events in virtual time.
+	 * The scenario itself runs as an event.
+	 * It reports lookup latency in virtual time, which is determined by the seed,
+	 * and wall-clock time taken by the emulation.
+	 */
+	private static void eventDrivenStatistics(String[] args) throws Exception {
+		int numNodes = 1000;
+		int numLookups = 1000;
+		int numSites = 8;
+		int maxLatencyMicros = 20000;
+		long seed = 1L;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-e")) {}
+			else if (args[i].equals("-n")) numNodes = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-l")) numLookups = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-m")) numSites = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-d")) maxLatencyMicros = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-R")) seed = Long.parseLong(args[++i]);
+			else {
+				usage(COMMAND);
+				System.exit(1);
+			}
+		}
+
+		Timer.getSingletonTimer().setEventDrivenMode(true);
+		ID.setRandomSeed(seed);
+		EmuMessageSender.setRandomSeed(seed);
+		AbstractRoutingAlgorithm.setRandomSeed(seed);
+
+		EmuLatencyMatrix matrix = EmuLatencyMatrix.getSyntheticMatrix(numSites, 200, maxLatencyMicros, seed);
+
+		MessagingProvider msgProvider = MessagingFactory.getProvider(MESSAGING_TRANSPORT, Signature.getAllAcceptingSignature());
+		EmuMessagingConfiguration msgConfig = (EmuMessagingConfiguration)msgProvider.getDefaultConfiguration();
+		msgConfig.setLatencyMatrix(matrix);
+
+		RoutingAlgorithmProvider algoProvider = RoutingAlgorithmFactory.getProvider(ROUTING_ALGORITHM);
+		RoutingAlgorithmConfiguration algoConfig = algoProvider.getDefaultConfiguration();
+		RoutingServiceProvider svcProvider = RoutingServiceFactory.getProvider("Iterative");
+		RoutingServiceConfiguration svcConf = svcProvider.getDefaultConfiguration();
+
+		System.out.println("event driven, nodes: " + numNodes + ", lookups: " + numLookups
+				+ ", sites: " + numSites + ", max inter-site latency: " + maxLatencyMicros + " usec, seed: " + seed);
+
+		final int nNodes = numNodes, nLookups = numLookups;
+		final long rndSeed = seed;
+		final MessagingProvider mp = msgProvider;
+		final EmuMessagingConfiguration mc = msgConfig;
+		final RoutingAlgorithmProvider ap = algoProvider;
+		final RoutingAlgorithmConfiguration ac = algoConfig;
+		final RoutingServiceProvider sp = svcProvider;
+		final RoutingServiceConfiguration sc = svcConf;
+		final DiscreteEventScheduler scheduler = Timer.getEventScheduler();
+		final CountDownLatch finished = new CountDownLatch(1);
+		final Throwable[] thrown = new Throwable[1];
+
+		Runnable scenario = new Runnable() {
+			public void run() {
+				try {
+					long wallClock = System.currentTimeMillis();
+
+					RoutingService[] nodes = new RoutingService[nNodes];
+					for (int i = 0; i < nNodes; i++) {
+						nodes[i] = sp.getService(sc, mp, mc, PORT + i, 1, ap, ac, ID.getRandomID(ID_SIZE));
+						ap.initializeAlgorithmInstance(ac, nodes[i]);
+
+						if (i > 0) nodes[i].join(nodes[0].getSelfIDAddressPair().getAddress());
+					}
+
+					System.out.println("joined in " + (System.currentTimeMillis() - wallClock) + " msec of wall-clock time.");
+					wallClock = System.currentTimeMillis();
+
+					Random rnd = new Random(rndSeed);
+
+					int[] hops = new int[nLookups];
+					long[] latencies = new long[nLookups];
+					int numFailures = 0;
+
+					for (int i = 0; i < nLookups; i++) {
+						RoutingService node = nodes[rnd.nextInt(nNodes)];
+						ID target = ID.getRandomID(ID_SIZE);
+
+						long t = scheduler.currentTimeMicros();
+						RoutingResult res = node.route(target, 1);
+						latencies[i] = scheduler.currentTimeMicros() - t;
+
+						if (res == null) {
+							numFailures++;
+							continue;
+						}
+
+						hops[i] = res.getRoute().length - 1;
+					}
+
+					System.out.println("looked up in " + (System.currentTimeMillis() - wallClock) + " msec of wall-clock time.");
+
+					for (RoutingService node: nodes) node.stop();
+
+					Arrays.sort(hops);
+					Arrays.sort(latencies);
+					System.out.println("failed " + numFailures
+							+ ", hops " + distribution(hops)
+							+ ", latency in virtual time (msec) " + distribution(latencies, 1000.0));
+				}
+				catch (Throwable e) {
+					thrown[0] = e;
+				}
+				finally {
+					finished.countDown();
+				}
+			}
+		};
+
+		scheduler.scheduleAfter(scenario, 0L);
+		finished.await();
+
+		Timer.getSingletonTimer().stop();
+		if (thrown[0] != null) throw new Exception(thrown[0]);
+	}
+
+	private static String distribution(int[] sorted) {
+		long[] l = new long[sorted.length];
+		for (int i = 0; i < sorted.length; i++) l[i] = sorted[i];
+		return distribution(l, 1.0);
+	}
+
+	private static String distribution(long[] sorted, double unit) {
+		int n = sorted.length;
+		double sum = 0.0;
+		for (long v: sorted) sum += v;
+
+		return String.format("mean %.1f, median %.1f, 90%% %.1f, 99%% %.1f, max %.1f",
+				sum / n / unit, sorted[n / 2] / unit, sorted[(int)(n * 0.9)] / unit,
+				sorted[Math.min((int)(n * 0.99), n - 1)] / unit, sorted[n - 1] / unit);
 	}
 
 	public RoutingTest(final int n) throws Exception {
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2007-2009,2012,2015 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.tool.dhtshell;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+
+import ow.dht.DHT;
+import ow.dht.DHTFactory;
+import ow.messaging.Signature;
+import ow.tool.emulator.EmulatorControllable;
+import ow.tool.util.toolframework.AbstractDHTBasedTool;
+import ow.util.JSONUtil;
+
+/**
+ * A load test comparing the XML-RPC interface of {@link XmlRpcDHTServer XmlRpcDHTServer}
+ * with the JSON and binary bodies of {@link HttpDHTGateway HttpDHTGateway}.
+ * It starts a DHT node and its web server, and client threads put and then get values
+ * through each interface. Keys per second are reported.
+ * The node can join an overlay with the usual arguments to measure with routing.
+ */
+public class GatewayBenchmark extends AbstractDHTBasedTool<String> {
+	private final static String COMMAND = "java ow.tool.dhtshell.GatewayBenchmark";
+
+	public final static int TTL = 5 * 60;	// sec
+	public final static String ENCODING = "UTF-8";
+	private final static int WEB_PORT = 8080;
+	private final static int WEB_PORT_RANGE = 100;
+	private final static String VALUE_PREFIX = "value";
+
+	private enum Mode { XMLRPC, JSON, BINARY }
+
+	private String baseURL;
+
+	protected void usage(String command) {
+		super.usage(command, "[-b <# of keys>] [-T <# of threads>] [-B <batch size>]");
+	}
+
+	public static void main(String[] args) {
+		(new GatewayBenchmark()).start(args);
+	}
+
+	protected void start(String[] args) {
+		this.invoke(args, System.out);
+		System.exit(0);
+	}
+
+	/**
+	 * Implements {@link EmulatorControllable#invoke(String[], PrintStream)
+	 * EmulatorControllableApplication#start}.
+	 */
+	public Writer invoke(String[] args, PrintStream out) {
+		int numKeys = 10000;
+		int numThreads = 16;
+		int batchSize = 100;
+
+		// parse command-line arguments
+		Options opts = this.getInitialOptions();
+		opts.addOption("b", "benchmark", true, "number of keys put and got through each interface");
+		opts.addOption("T", "threads", true, "number of client threads");
+		opts.addOption("B", "batch", true, "number of keys in a request to the gateway");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(opts, args);
+		}
+		catch (ParseException e) {
+			System.out.println("There is an invalid option.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		parser = null;
+		opts = null;
+
+		String optVal;
+		optVal = cmd.getOptionValue('b');
+		if (optVal != null) {
+			numKeys = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('T');
+		if (optVal != null) {
+			numThreads = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('B');
+		if (optVal != null) {
+			batchSize = Integer.parseInt(optVal);
+		}
+
+		// parse remaining arguments
+		// and initialize DHT
+		DHT<String> dht = null;
+		XmlRpcDHTServer server = null;
+		try {
+			dht = super.initialize(Signature.APPLICATION_ID_DHT_SHELL, (short)0x10000,
+					DHTFactory.getDefaultConfiguration(),
+					COMMAND, cmd);
+
+			server = new XmlRpcDHTServer(dht);
+			server.start(WEB_PORT, WEB_PORT_RANGE);
+		}
+		catch (Exception e) {
+			System.err.println("An Exception thrown:");
+			e.printStackTrace();
+			return null;
+		}
+
+		cmd = null;
+
+		this.baseURL = "http://localhost:" + server.getPort();
+		out.println("web server: " + this.baseURL + ", keys: " + numKeys
+				+ ", threads: " + numThreads + ", batch size: " + batchSize);
+
+		for (Mode mode: Mode.values()) {
+			int batch = (mode == Mode.XMLRPC ? 1 : batchSize);
+
+			for (boolean put: new boolean[] { true, false }) {
+				double rate = this.measure(mode, put, numKeys, numThreads, batch);
+				out.println(mode.name().toLowerCase() + " " + (put ? "put" : "get") + ": "
+						+ (long)rate + " keys/sec");
+			}
+		}
+
+		server.stop();
+		dht.stop();
+
+		return null;
+	}
+
+	private double measure(final Mode mode, final boolean put,
+			final int numKeys, int numThreads, final int batchSize) {
+		final AtomicLong nextKey = new AtomicLong(0L);
+		final AtomicLong numFailures = new AtomicLong(0L);
+
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					XmlRpcClient client = null;
+					if (mode == Mode.XMLRPC) {
+						try {
+							XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+							config.setServerURL(new URL(baseURL + "/"));
+							client = new XmlRpcClient();
+							client.setConfig(config);
+						}
+						catch (IOException e) { /* NOTREACHED */ }
+					}
+
+					while (true) {
+						int start = (int)nextKey.getAndAdd(batchSize);
+						if (start >= numKeys) break;
+						int n = Math.min(batchSize, numKeys - start);
+
+						String[] keys = new String[n];
+						for (int j = 0; j < n; j++) keys[j] = mode.name().toLowerCase() + (start + j);
+
+						try {
+							if (mode == Mode.XMLRPC)
+								numFailures.addAndGet(xmlrpc(client, put, keys));
+							else
+								numFailures.addAndGet(gateway(mode == Mode.BINARY, put, keys));
+						}
+						catch (Exception e) {
+							System.err.println(mode + " request failed: " + e);
+							numFailures.addAndGet(n);
+						}
+					}
+				}
+			};
+		}
+
+		long startTime = System.nanoTime();
+
+		for (Thread t: threads) t.start();
+		for (Thread t: threads) {
+			try {
+				t.join();
+			}
+			catch (InterruptedException e) { /* ignore */ }
+		}
+
+		double sec = (System.nanoTime() - startTime) / 1e9;
+
+		if (numFailures.get() > 0L) {
+			System.err.println(mode + (put ? " put" : " get") + ": " + numFailures.get() + " keys failed.");
+		}
+
+		return numKeys / sec;
+	}
+
+	/**
+	 * Puts or gets a value with the Bamboo-compatible XML-RPC interface.
+	 *
+	 * @return number of failed keys.
+	 */
+	private static int xmlrpc(XmlRpcClient client, boolean put, String[] keys) throws Exception {
+		int numFailures = 0;
+
+		for (String k: keys) {
+			byte[] key = sha1(k);
+
+			if (put) {
+				Object ret = client.execute("put",
+						new Object[] { key, (VALUE_PREFIX + k).getBytes(ENCODING), TTL, COMMAND });
+				if (!Integer.valueOf(0).equals(ret)) numFailures++;
+			}
+			else {
+				Object[] ret = (Object[])client.execute("get",
+						new Object[] { key, 1, new byte[0], COMMAND });
+				if (((Object[])ret[0]).length <= 0) numFailures++;
+			}
+		}
+
+		return numFailures;
+	}
+
+	/**
+	 * Puts or gets values with a batch request to the gateway.
+	 *
+	 * @return number of failed keys.
+	 */
+	private int gateway(boolean binary, boolean put, String[] keys) throws Exception {
+		byte[] body;
+
+		if (binary) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			DataOutputStream dout = new DataOutputStream(bout);
+
+			if (put) {
+				dout.writeInt(TTL);
+				dout.writeInt(0);	// no secret
+			}
+			dout.writeInt(keys.length);
+			for (String k: keys) {
+				writeBytes(dout, sha1(k));
+				if (put) {
+					dout.writeInt(1);
+					writeBytes(dout, (VALUE_PREFIX + k).getBytes(ENCODING));
+				}
+			}
+			dout.flush();
+
+			body = bout.toByteArray();
+		}
+		else {
+			StringBuilder sb = new StringBuilder();
+			if (put) {
+				sb.append("{\"ttl\":").append(TTL).append(",\"requests\":[");
+				for (int i = 0; i < keys.length; i++) {
+					if (i > 0) sb.append(',');
+					sb.append("{\"key\":");
+					JSONUtil.quote(sb, keys[i]);
+					sb.append(",\"values\":[");
+					JSONUtil.quote(sb, VALUE_PREFIX + keys[i]);
+					sb.append("]}");
+				}
+				sb.append("]}");
+			}
+			else {
+				sb.append("{\"keys\":[");
+				for (int i = 0; i < keys.length; i++) {
+					if (i > 0) sb.append(',');
+					JSONUtil.quote(sb, keys[i]);
+				}
+				sb.append("]}");
+			}
+
+			body = sb.toString().getBytes(ENCODING);
+		}
+
+		URL url = new URL(this.baseURL + HttpDHTGateway.PATH + (put ? "/put" : "/get"));
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", (binary ? HttpDHTGateway.BINARY_TYPE : HttpDHTGateway.JSON_TYPE));
+		conn.setFixedLengthStreamingMode(body.length);
+
+		OutputStream os = conn.getOutputStream();
+		os.write(body);
+		os.close();
+
+		if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+			throw new IOException("HTTP status: " + conn.getResponseCode());
+		}
+
+		InputStream is = conn.getInputStream();
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int r;
+		while ((r = is.read(buf)) >= 0) res.write(buf, 0, r);
+		is.close();	// the connection is kept alive
+
+		return countFailures(binary, put, res.toByteArray(), keys.length);
+	}
+
+	private static int countFailures(boolean binary, boolean put, byte[] res, int numKeys) throws IOException {
+		int numFailures = 0;
+
+		if (binary) {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(res));
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				int m = in.readInt();
+				if (m < 0 || (!put && m == 0)) numFailures++;
+				for (int j = 0; j < m; j++) in.skipBytes(in.readInt());
+			}
+			numFailures += numKeys - n;
+		}
+		else {
+			Map<String,Object> json = (Map<String,Object>)JSONUtil.parse(new String(res, ENCODING));
+			List<Object> results = (List<Object>)json.get("results");
+			for (Object o: results) {
+				Map<String,Object> r = (Map<String,Object>)o;
+				List<Object> values = (List<Object>)r.get("values");
+				if (values == null || (!put && values.isEmpty())) numFailures++;
+			}
+			numFailures += numKeys - results.size();
+		}
+
+		return numFailures;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static byte[] sha1(String key) throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA1").digest(key.getBytes(ENCODING));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2011 Kazuyuki Shudo, and contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ow.util;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures throughput of scheduling and cancellation with a large number of pending tasks,
+ * and lateness of task execution, on each scheduler backend of {@link Timer Timer}.
+ */
+public class TimerBenchmark {
+	private final static String COMMAND = "java TimerBenchmark";
+	private final static int DEFAULT_NUM_PENDING = 1000000;
+	private final static int DEFAULT_NUM_THREADS = 4;
+	private final static int DEFAULT_NUM_CHURN = 1000000;
+	private final static String[] DEFAULT_SCHEDULERS = { "SortedSet", "TimingWheel" };
+
+	private final static long PENDING_DELAY = 60 * 1000L;	// tasks are pending for 1 min or longer
+	private final static int NUM_FIRED = 1000;
+
+	private static void usage() {
+		System.out.print("usage: ");
+		System.out.print(COMMAND);
+		System.out.println(" [-h] [-n <# of pending tasks>] [-c <# of schedule-cancel pairs>] [-t <# of threads>]"
+				+ " [-s <scheduler>[,<scheduler>...]]");
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numPending = DEFAULT_NUM_PENDING;
+		int numChurn = DEFAULT_NUM_CHURN;
+		int numThreads = DEFAULT_NUM_THREADS;
+		String[] schedulers = DEFAULT_SCHEDULERS;
+		int i = 0;
+
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-h")) {
+				usage();
+				System.exit(0);
+			}
+			else if (args[i].equals("-n")) {
+				i++;
+				numPending = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-c")) {
+				i++;
+				numChurn = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-t")) {
+				i++;
+				numThreads = Integer.parseInt(args[i++]);
+			}
+			else if (args[i].equals("-s")) {
+				i++;
+				schedulers = args[i++].split(",");
+			}
+			else {
+				usage();
+				System.exit(1);
+			}
+		}
+
+		for (String scheduler: schedulers) {
+			final Timer timer = new Timer("Benchmark Timer", Thread.NORM_PRIORITY, scheduler);
+
+			// schedule tasks which stay pending
+			final Runnable[] pending = new Runnable[numPending];
+			for (i = 0; i < numPending; i++) pending[i] = new NullTask();
+
+			final long base = Timer.currentTimeMillis() + PENDING_DELAY;
+			final Random rnd = new Random(0L);
+			final long[] times = new long[numPending];
+			for (i = 0; i < numPending; i++) times[i] = base + rnd.nextInt(10 * (int)PENDING_DELAY);
+
+			long elapsed = runConcurrently(numThreads, numPending, new Op() {
+				public void run(int index) {
+					timer.schedule(pending[index], times[index], true);
+				}
+			});
+			report(scheduler, "schedule", numPending, elapsed);
+
+			// schedule and cancel like a timeout of an RPC
+			final Runnable[] churn = new Runnable[numThreads];
+			for (i = 0; i < numThreads; i++) churn[i] = new NullTask();
+
+			elapsed = runConcurrently(numThreads, numChurn, new Op() {
+				public void run(int index) {
+					Runnable r = new NullTask();
+					timer.schedule(r, Timer.currentTimeMillis() + 10 * 1000L, true);
+					timer.cancel(r);
+				}
+			});
+			report(scheduler, "schedule+cancel with " + numPending + " pending", numChurn, elapsed);
+
+			// lateness of execution
+			final long[] lateness = new long[NUM_FIRED];
+			final CountDownLatch fired = new CountDownLatch(NUM_FIRED);
+			long now = Timer.currentTimeMillis();
+			for (i = 0; i < NUM_FIRED; i++) {
+				final int index = i;
+				final long time = now + 100L + i;
+				timer.schedule(new Runnable() {
+					public void run() {
+						lateness[index] = Timer.currentTimeMillis() - time;
+						fired.countDown();
+					}
+				}, time, true);
+			}
+			fired.await();
+
+			long sum = 0L, max = 0L;
+			for (long l: lateness) {
+				sum += l;
+				if (l > max) max = l;
+			}
+			System.out.println(scheduler + ": lateness of " + NUM_FIRED + " tasks: avg "
+					+ ((double)sum / NUM_FIRED) + " msec, max " + max + " msec");
+
+			// cancel the pending tasks
+			elapsed = runConcurrently(numThreads, numPending, new Op() {
+				public void run(int index) {
+					timer.cancel(pending[index]);
+				}
+			});
+			report(scheduler, "cancel", numPending, elapsed);
+
+			timer.stop();
+		}
+
+		// event-driven mode
+		for (String scheduler: schedulers) {
+			System.out.println(scheduler + ": event-driven mode: " + (checkEventDrivenMode(scheduler) ? "verified" : "FAILED"));
+		}
+	}
+
+	private static boolean checkEventDrivenMode(String scheduler) throws InterruptedException {
+		Timer.setSingletonSchedulerType(scheduler);
+		final Timer timer = Timer.getSingletonTimer();
+		timer.setEventDrivenMode(true);
+
+		final StringBuilder order = new StringBuilder();
+		final CountDownLatch fired = new CountDownLatch(3);
+
+		// schedules tasks in an event, in which the clock does not advance
+		Timer.getEventScheduler().scheduleAfter(new Runnable() {
+			public void run() {
+				final long start = Timer.currentTimeMillis();
+
+				for (final long hour: new long[] { 3L, 1L, 2L }) {
+					timer.schedule(new Runnable() {
+						public void run() {
+							if (Timer.currentTimeMillis() >= start + hour * 3600 * 1000L) order.append(hour);
+							fired.countDown();
+						}
+					}, start + hour * 3600 * 1000L, true);
+				}
+			}
+		}, 0L);
+
+		fired.await();
+		timer.stop();
+
+		return order.toString().equals("123");
+	}
+
+	private static void report(String scheduler, String op, int count, long elapsed) {
+		System.out.println(scheduler + ": " + count + " " + op + ": " + elapsed + " msec, "
+				+ (elapsed > 0 ? (1000L * count / elapsed) : "-") + " ops/sec");
+	}
+
+	private static long runConcurrently(int numThreads, final int count, final Op op) throws InterruptedException {
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int offset = t;
+			final int stride = numThreads;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = offset; i < count; i += stride) op.run(i);
+				}
+			};
+		}
+
+		long start = System.currentTimeMillis();
+		for (Thread t: threads) t.start();
+		for (Thread t: threads) t.join();
+		return System.currentTimeMillis() - start;
+	}
+
+	private interface Op {
+		void run(int index);
+	}
+
+	private static class NullTask implements Runnable {
+		public void run() {}
+	}
+}